@@ -97,8 +97,34 @@ public class CompositeImage extends ImagePlus {
 	public Image getImage() {
 		if (img==null)
 			updateImage();
+		else if (imgRect!=null)
+			updateRegion(null);
 		return img;
 	}
+
+	public Image getImage(Rectangle srcRect) {
+		if (img==null)
+			updateImage(srcRect);
+		else if (imgRect!=null && !imgRect.contains(srcRect))
+			updateRegion(srcRect);
+		return img;
+	}
+
+	/* Updates the part 'rect' (null: all) of an image that
+		is up to date only inside 'imgRect'. */
+	private synchronized void updateRegion(Rectangle rect) {
+		if (mode==COMPOSITE && rgbPixels!=null && cip!=null) {
+			ImageProcessor.updateComposite(rgbPixels, cip, active, new boolean[cip.length], rect);
+			imgRect = isPartial(rect)?new Rectangle(rect):null;
+		} else if (rect==null)
+			super.getImage();
+		else
+			super.getImage(rect);
+	}
+
+	private boolean isPartial(Rectangle rect) {
+		return rect!=null && (rect.x>0 || rect.y>0 || rect.width<width || rect.height<height);
+	}
 	
 	public void updateChannelAndDraw() {
 		if (!customLuts) singleChannel = true;
@@ -183,16 +209,24 @@ public class CompositeImage extends ImagePlus {
 	}
 
 	public void updateAndDraw() {
-		updateImage();
+		ImageCanvas ic = win!=null?win.getCanvas():null;
+		updateImage(ic!=null?ic.getSrcRect():null);
 		if (win!=null)
 			notifyListeners(UPDATED);
 		draw();
 	}
 
-	public synchronized void updateImage() {
+	public void updateImage() {
+		updateImage(null);
+	}
+
+	/** Updates the image from the pixel data of the channels, in composite
+		mode only inside 'srcRect' (the part visible in the window) if it is not null.
+		Channels that have not changed since the last update are not converted
+		to 8 bits again. */
+	public synchronized void updateImage(Rectangle srcRect) {
 		int imageSize = width*height;
 		int nChannels = getNChannels();
-		int redValue, greenValue, blueValue;
 		int ch = getChannel();
 		
 		//IJ.log("updateImage: "+ch+"/"+nChannels+" "+currentSlice+" "+currentFrame);
@@ -218,8 +252,7 @@ public class CompositeImage extends ImagePlus {
 					active[i] = i==currentChannel?true:false;
 				Channels.updateChannels();
 			}
-			if (ip!=null)
-				img = ip.createImage();
+			updateFromProcessor(srcRect);
 			return;
 		}
 
@@ -227,8 +260,7 @@ public class CompositeImage extends ImagePlus {
 			cip = null;
 			rgbPixels = null;
 			awtImage = null;
-			if (ip!=null)
-				img = ip.createImage();
+			updateFromProcessor(srcRect);
 			return;
 		}
 	
@@ -267,38 +299,35 @@ public class CompositeImage extends ImagePlus {
 			rgbImage = null;
 		}
 		cip[currentChannel].setMinAndMax(ip.getMin(),ip.getMax());
-		if (singleChannel && nChannels<=3) {
-			switch (currentChannel) {
-				case 0: cip[0].updateComposite(rgbPixels, 1); break;
-				case 1: cip[1].updateComposite(rgbPixels, 2); break;
-				case 2: cip[2].updateComposite(rgbPixels, 3); break;
-			}
-		} else {
-			if (cip==null) return;
-			if (syncChannels) {
-				ImageProcessor ip2 = getProcessor();
-				double min=ip2.getMin(), max=ip2.getMax();
-				for (int i=0; i<nChannels; i++) {
-					cip[i].setMinAndMax(min, max);
-					lut[i].min = min;
-					lut[i].max = max;
-				}
-				syncChannels = false;
+		if (syncChannels) {
+			ImageProcessor ip2 = getProcessor();
+			double min=ip2.getMin(), max=ip2.getMax();
+			for (int i=0; i<nChannels; i++) {
+				cip[i].setMinAndMax(min, max);
+				lut[i].min = min;
+				lut[i].max = max;
 			}
-			if (active[0])
-				cip[0].updateComposite(rgbPixels, 4);
-			else
-				{for (int i=1; i<imageSize; i++) rgbPixels[i] = 0;}
-			if (cip==null || nChannels>cip.length)
-				return;
-			for (int i=1; i<nChannels; i++)
-				if (active[i]) cip[i].updateComposite(rgbPixels, 5);
+			syncChannels = false;
 		}
+		if (nChannels>cip.length)
+			return;
+		boolean[] update = new boolean[nChannels];
+		for (int i=0; i<nChannels; i++)
+			update[i] = !singleChannel || i==currentChannel;
+		ImageProcessor.updateComposite(rgbPixels, cip, active, update, srcRect);
+		imgRect = isPartial(srcRect)?new Rectangle(srcRect):null;
 		createBufferedImage();
 		if (img==null && awtImage!=null)
 			img = awtImage;
 		singleChannel = false;
 	}
+
+	private void updateFromProcessor(Rectangle srcRect) {
+		if (srcRect!=null)
+			super.updateImage(srcRect);
+		else
+			super.updateImage();
+	}
 		
 	void createImage() {
 		if (imageSource==null) {
@@ -645,6 +645,8 @@ public class IJ {
 		macro or JavaScript is running, it is aborted. Writes to the
 		Java console if the ImageJ window is not present.*/
 	public static void error(String msg) {
+		if (VirtualStackCache.isReadAheadThread())
+			return;
 		error(null, msg);
 		if (Thread.currentThread().getName().endsWith("JavaScript"))
 			throw new RuntimeException(Macro.MACRO_CANCELED);
@@ -658,6 +660,8 @@ public class IJ {
 	public static void error(String title, String msg) {
 		if (msg!=null && msg.endsWith(Macro.MACRO_CANCELED))
 			return;
+		if (VirtualStackCache.isReadAheadThread())
+			return;	// the slice is read again, with error messages, when it is needed
 		String title2 = title!=null?title:"ImageJ";
 		boolean abortMacro = title!=null;
 		lastErrorMessage = msg;
@@ -50,6 +50,7 @@ public class ImagePlus implements ImageObserver, Measurements, Cloneable {
 	public boolean changes;
 	
 	protected Image img;
+	Rectangle imgRect; // the up-to-date part of 'img', or null if all of it
 	protected ImageProcessor ip;
 	protected ImageWindow win;
 	protected Roi roi;
@@ -364,8 +365,21 @@ public class ImagePlus implements ImageObserver, Measurements, Cloneable {
 	/** ImageCanvas.paint() calls this method when the
 		ImageProcessor has generated a new image. */
 	public void updateImage() {
-		if (ip!=null)
+		if (ip!=null) {
 			img = ip.createImage();
+			imgRect = null;
+		}
+	}
+
+	/** Same as updateImage(), but 16 and 32-bit images are converted for
+		display only inside 'srcRect', the part of the image visible in the window. */
+	public void updateImage(Rectangle srcRect) {
+		if (ip==null)
+			return;
+		img = ip.createImage(srcRect);
+		int depth = ip.getBitDepth();
+		boolean partial = (depth==16||depth==32) && (srcRect.x>0||srcRect.y>0||srcRect.width<width||srcRect.height<height);
+		imgRect = partial?new Rectangle(srcRect):null;
 	}
 
 	/** Closes the window, if any, that is displaying this image. */
@@ -480,8 +494,21 @@ public class ImagePlus implements ImageObserver, Measurements, Cloneable {
 		
 	/** Returns this image as a AWT image. */
 	public Image getImage() {
-		if (img==null && ip!=null)
+		if ((img==null||imgRect!=null) && ip!=null) {
 			img = ip.createImage();
+			imgRect = null;
+		}
+		return img;
+	}
+
+	/** Returns this image as a AWT image that is up to date at least inside 'srcRect',
+		the part of the image visible in the window. For 16 and 32-bit images, only
+		this part is converted to 8 bits, and again when the visible part changes.
+		@see #updateImage(Rectangle)
+	*/
+	public Image getImage(Rectangle srcRect) {
+		if (img==null || (imgRect!=null && !imgRect.contains(srcRect)))
+			updateImage(srcRect);
 		return img;
 	}
 		
@@ -540,6 +567,7 @@ public class ImagePlus implements ImageObserver, Measurements, Cloneable {
 			ip = new ByteProcessor(image);
 		setType(type);
 		this.img = ip.createImage();
+		imgRect = null;
 		if (win!=null) {
 			if (dimensionsChanged)
 				win = new ImageWindow(this);
@@ -938,6 +966,21 @@ public class ImagePlus implements ImageObserver, Measurements, Cloneable {
 		return getStatistics(AREA+MEAN+STD_DEV+MODE+MIN_MAX+RECT);
 	}
 	
+	/** Returns the statistics, including the 256 bin histogram, of all the
+		images in this stack inside the selection, using the entire pixel value
+		range. The slices are processed in parallel.
+		@see ij.process.StackStatistics
+	*/
+	public ImageStatistics getStackStatistics() {
+		return new StackStatistics(this);
+	}
+
+	/** Returns the statistics of all the images in this stack using the
+		specified histogram bin count and range (0,0 for the entire range). */
+	public ImageStatistics getStackStatistics(int nBins, double histMin, double histMax) {
+		return new StackStatistics(this, nBins, histMin, histMax);
+	}
+
 	/** This method returns complete calibrated statistics for this image or ROI
 		(with "Limit to threshold"), but it is up to 70 times slower than getStatistics().*/
 	public ImageStatistics getAllStatistics() {
@@ -2127,6 +2170,10 @@ public class ImagePlus implements ImageObserver, Measurements, Cloneable {
 			}
 			if (isComposite())
 				((CompositeImage)this).setChannelsUpdated(); //flush
+			if (stack instanceof VirtualStack)
+				VirtualStackCache.remove((VirtualStack)stack);
+			if (stack instanceof FileInfoVirtualStack)
+				((FileInfoVirtualStack)stack).close();
 		}
 		setStackNull();
 		img = null;
@@ -37,6 +37,8 @@ public class Prefs {
     public static final String NOISE_SD = "noise.sd";
     public static final String MENU_SIZE = "menu.size";
     public static final String THREADS = "threads";
+    public static final String VIRTUAL_STACK_CACHE = "virtual.cache";
+    public static final String READ_AHEAD = "virtual.read.ahead";
 	public static final String KEY_PREFIX = ".";
  
 	private static final int USE_POINTER=1<<0, ANTIALIASING=1<<1, INTERPOLATE=1<<2, ONE_HUNDRED_PERCENT=1<<3,
@@ -188,6 +190,8 @@ public class Prefs {
 	static String imagesURL;
 	static String homeDir; // ImageJ folder
 	static int threads;
+	static int virtualStackCache = -1;
+	static int readAhead = -1;
 	static int transparentIndex = -1;
 	private static boolean resetPreferences;
 
@@ -408,6 +412,8 @@ public class Prefs {
 			prefs.put(DIV_BY_ZERO_VALUE, Double.toString(FloatBlitter.divideByZeroValue));
 			prefs.put(NOISE_SD, Double.toString(Filters.getSD()));
 			if (threads>1) prefs.put(THREADS, Integer.toString(threads));
+			if (virtualStackCache>=0) prefs.put(VIRTUAL_STACK_CACHE, Integer.toString(virtualStackCache));
+			if (readAhead>=0) prefs.put(READ_AHEAD, Integer.toString(readAhead));
 			if (IJ.isMacOSX()) useJFileChooser = false;
 			if (!IJ.isLinux()) dialogCancelButtonOnRight = false;
 			saveOptions(prefs);
@@ -677,6 +683,40 @@ public class Prefs {
 		threads = n;
 	}
 	
+	/** Returns the memory (in MB) used for caching images of virtual stacks.
+		The default is 1/8 of the maximum memory, but not more than 1 GB. */
+	public static int getVirtualStackCache() {
+		if (virtualStackCache<0) {
+			int mb = getInt(VIRTUAL_STACK_CACHE, -1);
+			if (mb>=0)
+				virtualStackCache = mb;
+			else
+				return (int)Math.min(IJ.maxMemory()/(8*1048576L), 1024L);
+		}
+		return virtualStackCache;
+	}
+
+	/** Sets the memory (in MB) used for caching images of virtual stacks;
+		0 disables the cache. */
+	public static void setVirtualStackCache(int mb) {
+		if (mb<0) mb = 0;
+		virtualStackCache = mb;
+		if (mb==0) VirtualStackCache.clear();
+	}
+
+	/** Returns the number of virtual stack slices read in advance (default 2). */
+	public static int getReadAhead() {
+		if (readAhead<0)
+			readAhead = Math.max(getInt(READ_AHEAD, 2), 0);
+		return readAhead;
+	}
+
+	/** Sets the number of virtual stack slices read in advance; 0 disables read-ahead. */
+	public static void setReadAhead(int n) {
+		if (n<0) n = 0;
+		readAhead = n;
+	}
+
 	/** Sets the transparent index (0-255), or set to -1 to disable transparency. */
 	public static void setTransparentIndex(int index) {
 		if (index<-1 || index>255) index = -1;
@@ -88,6 +88,7 @@ public class VirtualStack extends ImageStack {
 			names[i-1] = names[i];
 		names[nSlices-1] = null;
 		nSlices--;
+		VirtualStackCache.remove(this);
 	}
 	
 	/** Deletes the last slice in the stack. */
@@ -112,32 +113,71 @@ public class VirtualStack extends ImageStack {
 
    /** Returns an ImageProcessor for the specified slice,
 		were 1<=n<=nslices. Returns null if the stack is empty.
+		Recently used slices are kept in the VirtualStackCache,
+		and the following slices are read in advance.
 	*/
 	public ImageProcessor getProcessor(int n) {
+		Slice slice = VirtualStackCache.get(this, n);
+		if (slice==null) {
+			slice = readSlice(n);
+			if (!slice.failed)
+				VirtualStackCache.put(this, n, slice);
+		}
+		setSliceInfo(n, slice);
+		VirtualStackCache.readAhead(this, n);
+		return slice.ip;
+	}
+
+	/** A slice as read by readSlice: the image, and the label and
+		properties that getProcessor sets when the slice is used. */
+	protected static class Slice {
+		/** The image */
+		public ImageProcessor ip;
+		/** The slice label, or null to keep the current label */
+		public String label;
+		/** The image properties, or null */
+		public Properties properties;
+		/** True if the image could not be read; 'ip' is a placeholder then.
+			Such slices are not cached, so they are read again, with error
+			messages, when they are needed. */
+		public boolean failed;
+
+		public Slice(ImageProcessor ip) {
+			this.ip = ip;
+		}
+	}
+
+	/** Reads the specified slice from disk, were 1<=n<=nslices.
+		Subclasses override this method instead of getProcessor.
+		Since it is also called on the read-ahead thread, it must not
+		change the state of the stack (e.g. labels) or global settings;
+		these are set by setSliceInfo on the thread calling getProcessor.
+		Error messages are only shown if this is not the read-ahead thread.
+		@see VirtualStackCache#isReadAheadThread
+	*/
+	protected Slice readSlice(int n) {
 		if (path==null) {
 			ImageProcessor ip = new ByteProcessor(getWidth(), getHeight());
 			label(ip, ""+n, Color.white);
-			return ip;
+			return new Slice(ip);
 		}
+		boolean readAhead = VirtualStackCache.isReadAheadThread();
 		Opener opener = new Opener();
 		opener.setSilentMode(true);
-		IJ.redirectErrorMessages(true);
+		if (!readAhead) IJ.redirectErrorMessages(true);
 		ImagePlus imp = opener.openImage(path, names[n-1]);
-		IJ.redirectErrorMessages(false);
+		if (!readAhead) IJ.redirectErrorMessages(false);
 		ImageProcessor ip = null;
+		Slice slice = new Slice(null);
 		int depthThisImage = 0;
 		if (imp!=null) {
-			int w = imp.getWidth();
-			int h = imp.getHeight();
-			int type = imp.getType();
-			ColorModel cm = imp.getProcessor().getColorModel();
 			String info = (String)imp.getProperty("Info");
 			if (info!=null && !(info.startsWith("Software")||info.startsWith("ImageDescription")))
-				labels[n-1] = info;
+				slice.label = info;
 			depthThisImage = imp.getBitDepth();
 			ip = imp.getProcessor();
 			ip.setOverlay(imp.getOverlay());
-			properties = imp.getProperty("FHT")!=null?imp.getProperties():null;
+			slice.properties = imp.getProperty("FHT")!=null?imp.getProperties():null;
 		} else {
 			File f = new File(path, names[n-1]);
 			String msg = f.exists()?"Error opening ":"File not found: ";
@@ -145,6 +185,7 @@ public class VirtualStack extends ImageStack {
 			ip.invert();
 			label(ip, msg+names[n-1], Color.black);
 			depthThisImage = 8;
+			slice.failed = true;
 		}
 		if (depthThisImage!=bitDepth) {
 			switch (bitDepth) {
@@ -159,8 +200,17 @@ public class VirtualStack extends ImageStack {
 			ip2.insert(ip, 0, 0);
 			ip = ip2;
 		}
-		return ip;
+		slice.ip = ip;
+		return slice;
 	 }
+
+	/** Sets the label and properties of slice 'n' as read by readSlice.
+		Called by getProcessor, also for slices from the cache. */
+	protected void setSliceInfo(int n, Slice slice) {
+		if (slice.label!=null && labels!=null)
+			labels[n-1] = slice.label;
+		properties = slice.properties;
+	}
 	 
 	 private void label(ImageProcessor ip, String msg, Color color) {
 		int size = getHeight()/20;
@@ -244,6 +294,7 @@ public class VirtualStack extends ImageStack {
 			names[i] = names2[slice-1];
 			labels[i] = info[slice-1];
 		}
+		VirtualStackCache.remove(this);
 		return this;
 	}
 	
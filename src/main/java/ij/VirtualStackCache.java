@@ -0,0 +1,308 @@
+package ij;
+import ij.process.*;
+import java.lang.ref.*;
+import java.util.*;
+import java.util.concurrent.*;
+
+/** A least-recently-used cache of decoded virtual stack images, shared by
+	all virtual stacks. The size of the cache is limited by the memory set
+	in Edit/Options/Memory &amp; Threads ("Virtual stack cache"); the images
+	are softly referenced, so the garbage collector may reclaim them when
+	memory runs low. When a slice is requested, the next few slices in the
+	direction of the last move are read on a background thread.
+	@see VirtualStack#getProcessor
+*/
+public class VirtualStackCache {
+	private static LinkedHashMap<Key,Entry> map = new LinkedHashMap<Key,Entry>(64, 0.75f, true);
+	private static ReferenceQueue<ImageProcessor> cleared = new ReferenceQueue<ImageProcessor>();
+	private static HashSet<Key> loading = new HashSet<Key>();
+	private static WeakHashMap<VirtualStack,int[]> lastSlice = new WeakHashMap<VirtualStack,int[]>();
+	private static ThreadPoolExecutor readAheadExecutor;
+	private static long bytes;
+	private static long hits, misses, readAheads;
+	private static final String THREAD_NAME = "ImageJ-read-ahead";
+
+	private VirtualStackCache() {}
+
+	/** Returns the cached slice 'n' of 'stack' with a copy of the image,
+		or null if the slice is not cached. Waits if the slice is currently
+		being read ahead. */
+	static VirtualStack.Slice get(VirtualStack stack, int n) {
+		if (getMaxBytes()<=0L)
+			return null;
+		Key key = new Key(stack, n);
+		ImageProcessor ip = null;
+		Entry entry = null;
+		synchronized(VirtualStackCache.class) {
+			while (loading.contains(key)) {
+				try {
+					VirtualStackCache.class.wait();
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+					break;
+				}
+			}
+			entry = map.get(key);
+			if (entry!=null)
+				ip = entry.get();
+			if (ip!=null)
+				hits++;
+			else
+				misses++;
+		}
+		if (ip==null)
+			return null;
+		VirtualStack.Slice slice = new VirtualStack.Slice(copy(ip));
+		slice.label = entry.label;
+		slice.properties = entry.properties;
+		return slice;
+	}
+
+	/** Adds slice 'n' of 'stack', with a copy of its image, to the cache. */
+	static void put(VirtualStack stack, int n, VirtualStack.Slice slice) {
+		long maxBytes = getMaxBytes();
+		ImageProcessor ip = slice.ip;
+		long size = getBytes(ip);
+		if (ip==null || size>maxBytes/2)
+			return;
+		ImageProcessor ip2 = copy(ip);
+		synchronized(VirtualStackCache.class) {
+			Key key = new Key(stack, n);
+			removeEntry(map.get(key));
+			Entry entry = new Entry(key, ip2, size, slice.label, slice.properties);
+			map.put(key, entry);
+			bytes += size;
+			trim(maxBytes);
+		}
+	}
+
+	/** Reads the next slices after 'n' in the direction of the last move
+		of 'stack' on the background thread; slices that are cached already
+		are skipped. Pending reads for other positions are discarded. */
+	static void readAhead(final VirtualStack stack, int n) {
+		int count = Prefs.getReadAhead();
+		if (count<1 || getMaxBytes()<=0L)
+			return;
+		int direction;
+		synchronized(VirtualStackCache.class) {
+			int[] last = lastSlice.get(stack);
+			if (last==null) {
+				last = new int[] {n, 1};
+				lastSlice.put(stack, last);
+			} else if (n!=last[0]) {
+				last[1] = n>last[0]?1:-1;
+				last[0] = n;
+			}
+			direction = last[1];
+		}
+		ThreadPoolExecutor executor = getExecutor();
+		executor.getQueue().clear();
+		int size = stack.getSize();
+		for (int i=1; i<=count; i++) {
+			final int slice = n + i*direction;
+			if (slice<1 || slice>size)
+				break;
+			if (isCached(stack, slice))
+				continue;
+			executor.execute(new Runnable() {
+				public void run() {
+					read(stack, slice);
+				}
+			});
+		}
+	}
+
+	/** Reads one slice on the background thread, unless it is cached
+		or being read by another thread. */
+	private static void read(VirtualStack stack, int n) {
+		Key key = new Key(stack, n);
+		synchronized(VirtualStackCache.class) {
+			if (loading.contains(key) || n>stack.getSize())
+				return;
+			Entry entry = map.get(key);
+			if (entry!=null && entry.get()!=null)
+				return;
+			loading.add(key);
+		}
+		try {
+			VirtualStack.Slice slice = stack.readSlice(n);
+			if (!slice.failed) {
+				put(stack, n, slice);
+				synchronized(VirtualStackCache.class) {
+					readAheads++;
+				}
+			}
+		} catch (Throwable e) {
+			if (IJ.debugMode) IJ.log("VirtualStackCache: "+e);
+		} finally {
+			synchronized(VirtualStackCache.class) {
+				loading.remove(key);
+				VirtualStackCache.class.notifyAll();
+			}
+		}
+	}
+
+	/** Returns true if the current thread is the thread that reads slices
+		in advance. Code that may run on this thread (VirtualStack.readSlice)
+		must not show error messages or change global settings. */
+	public static boolean isReadAheadThread() {
+		return Thread.currentThread().getName().equals(THREAD_NAME);
+	}
+
+	private static synchronized boolean isCached(VirtualStack stack, int n) {
+		Entry entry = map.get(new Key(stack, n));
+		return entry!=null && entry.get()!=null;
+	}
+
+	private static synchronized ThreadPoolExecutor getExecutor() {
+		if (readAheadExecutor==null) {
+			ThreadFactory factory = new ThreadFactory() {
+				public Thread newThread(Runnable r) {
+					Thread thread = new Thread(r, THREAD_NAME);
+					thread.setDaemon(true);
+					thread.setPriority(Thread.NORM_PRIORITY-1);
+					return thread;
+				}
+			};
+			readAheadExecutor = new ThreadPoolExecutor(1, 1, 10L, TimeUnit.SECONDS,
+				new LinkedBlockingQueue<Runnable>(), factory);
+			readAheadExecutor.allowCoreThreadTimeOut(true);
+		}
+		return readAheadExecutor;
+	}
+
+	/** Removes all cached images of 'stack'; called when slices are
+		deleted or reordered. */
+	public static synchronized void remove(VirtualStack stack) {
+		Iterator<Entry> iterator = map.values().iterator();
+		while (iterator.hasNext()) {
+			Entry entry = iterator.next();
+			if (entry.key.stack==stack) {
+				bytes -= entry.size;
+				iterator.remove();
+			}
+		}
+		lastSlice.remove(stack);
+	}
+
+	/** Removes all images from the cache. */
+	public static synchronized void clear() {
+		map.clear();
+		bytes = 0L;
+	}
+
+	/** Returns the number of requests that were served from the cache. */
+	public static synchronized long getHits() {
+		return hits;
+	}
+
+	/** Returns the number of requests that had to read the image. */
+	public static synchronized long getMisses() {
+		return misses;
+	}
+
+	/** Returns the number of images read in advance. */
+	public static synchronized long getReadAheads() {
+		return readAheads;
+	}
+
+	/** Returns the memory (in bytes) used by the cached images. */
+	public static synchronized long getSize() {
+		purge();
+		return bytes;
+	}
+
+	/** Resets the hit, miss and read-ahead counters. */
+	public static synchronized void resetCounters() {
+		hits = misses = readAheads = 0L;
+	}
+
+	/** Returns a summary of the cache statistics, e.g. for the Log window. */
+	public static synchronized String getStatistics() {
+		long requests = hits + misses;
+		return "Virtual stack cache: "+map.size()+" images, "+IJ.d2s(getSize()/1048576.0,1)+"/"
+			+IJ.d2s(getMaxBytes()/1048576.0,1)+" MB, hits="+hits+", misses="+misses
+			+(requests>0?" ("+IJ.d2s(100.0*hits/requests,1)+"% hits)":"")+", read ahead="+readAheads;
+	}
+
+	private static long getMaxBytes() {
+		return Prefs.getVirtualStackCache()*1048576L;
+	}
+
+	/** Removes the least recently used images until the cache fits into 'maxBytes'. */
+	private static void trim(long maxBytes) {
+		purge();
+		Iterator<Entry> iterator = map.values().iterator();
+		while (bytes>maxBytes && iterator.hasNext()) {
+			Entry entry = iterator.next();
+			bytes -= entry.size;
+			iterator.remove();
+		}
+	}
+
+	/** Removes the entries whose images have been reclaimed by the garbage collector. */
+	private static void purge() {
+		Reference<? extends ImageProcessor> ref;
+		while ((ref=cleared.poll())!=null) {
+			Entry entry = (Entry)ref;
+			if (map.get(entry.key)==entry) {
+				map.remove(entry.key);
+				bytes -= entry.size;
+			}
+		}
+	}
+
+	private static void removeEntry(Entry entry) {
+		if (entry!=null) {
+			map.remove(entry.key);
+			bytes -= entry.size;
+		}
+	}
+
+	private static long getBytes(ImageProcessor ip) {
+		if (ip==null) return 0L;
+		return (long)ip.getPixelCount()*(ip.getBitDepth()==24?4:ip.getBitDepth()/8);
+	}
+
+	private static ImageProcessor copy(ImageProcessor ip) {
+		ImageProcessor ip2 = ip.duplicate();	// keeps LUT and display range
+		ip2.setOverlay(ip.getOverlay());
+		return ip2;
+	}
+
+	private static class Key {
+		final VirtualStack stack;
+		final int n;
+
+		Key(VirtualStack stack, int n) {
+			this.stack = stack;
+			this.n = n;
+		}
+
+		public int hashCode() {
+			return System.identityHashCode(stack)*31 + n;
+		}
+
+		public boolean equals(Object obj) {
+			if (!(obj instanceof Key)) return false;
+			Key key = (Key)obj;
+			return key.stack==stack && key.n==n;
+		}
+	}
+
+	private static class Entry extends SoftReference<ImageProcessor> {
+		final Key key;
+		final long size;
+		final String label;
+		final Properties properties;
+
+		Entry(Key key, ImageProcessor ip, long size, String label, Properties properties) {
+			super(ip, cleared);
+			this.key = key;
+			this.size = size;
+			this.label = label;
+			this.properties = properties;
+		}
+	}
+
+}
@@ -5,6 +5,8 @@ import java.util.Properties;
 import java.awt.image.*;
 import ij.process.*;
 import ij.measure.*;
+import ij.io.FileInfo;
+import ij.io.Opener;
 import ij.plugin.WandToolOptions;
 import ij.plugin.frame.Recorder;
 import ij.plugin.frame.RoiManager;
@@ -55,6 +57,12 @@ public class ImageCanvas extends Canvas implements MouseListener, MouseMotionLis
     private int mousePressedX, mousePressedY;
     private long mousePressedTime;
     private boolean overOverlayLabel;
+    private FileInfo pyramidLevel;	// reduced-resolution level of a pyramidal TIFF currently shown
+    private ImageProcessor pyramidIp;
+    private FileInfo pyramidLoading;	// level being read by a background thread
+    private Image pyramidImage;
+    private ColorModel pyramidCM;
+    private double pyramidMin, pyramidMax;
 
     /** If the mouse moves less than this in screen pixels, successive zoom operations are on the same image pixel */
 	protected final static int MAX_MOUSEMOVE_ZOOM = 10;
@@ -226,13 +234,12 @@ public class ImageCanvas extends Canvas implements MouseListener, MouseMotionLis
 		try {
 			if (imageUpdated) {
 				imageUpdated = false;
-				imp.updateImage();
+				imp.updateImage(srcRect);
 			}
 			setInterpolation(g, Prefs.interpolateScaledImages);
-			Image img = imp.getImage();
+			Image img = imp.getImage(srcRect);
 			if (img!=null)
- 				g.drawImage(img, 0, 0, (int)(srcRect.width*magnification+0.5), (int)(srcRect.height*magnification+0.5),
-				srcRect.x, srcRect.y, srcRect.x+srcRect.width, srcRect.y+srcRect.height, null);
+				drawImage(g, img, (int)(srcRect.width*magnification+0.5), (int)(srcRect.height*magnification+0.5));
 			if (overlay!=null)
 				drawOverlay(overlay, g);
 			if (showAllOverlay!=null)
@@ -246,6 +253,89 @@ public class ImageCanvas extends Canvas implements MouseListener, MouseMotionLis
 		setPaintPending(false);
     }
     
+	/** Draws the srcRect part of the image, scaled to 'width' x 'height'. At
+		magnifications of 50% or less, images opened from pyramidal TIFFs are
+		drawn from the smallest reduced-resolution level that still has at least
+		the screen resolution, instead of scaling down the full image. */
+	private void drawImage(Graphics g, Image img, int width, int height) {
+		Image level = magnification<=0.5?getPyramidImage():null;
+		if (level!=null) {
+			double scale = (double)pyramidLevel.width/imageWidth;
+			int x1 = (int)Math.floor(srcRect.x*scale);
+			int y1 = (int)Math.floor(srcRect.y*scale);
+			int x2 = Math.min((int)Math.ceil((srcRect.x+srcRect.width)*scale), pyramidLevel.width);
+			int y2 = Math.min((int)Math.ceil((srcRect.y+srcRect.height)*scale), pyramidLevel.height);
+			g.drawImage(level, 0, 0, width, height, x1, y1, x2, y2, null);
+		} else
+			g.drawImage(img, 0, 0, width, height,
+				srcRect.x, srcRect.y, srcRect.x+srcRect.width, srcRect.y+srcRect.height, null);
+	}
+
+	/** Reads a pyramid level in a separate thread, so that painting does not
+		wait for the disk, and repaints when it is available. */
+	private void loadPyramidLevel(final FileInfo level) {
+		pyramidLoading = level;
+		Thread thread = new Thread(new Runnable() {
+			public void run() {
+				ImagePlus imp2 = Opener.openTiffRegion(level, null);
+				final ImageProcessor ip2 = imp2!=null?imp2.getProcessor():null;
+				EventQueue.invokeLater(new Runnable() {
+					public void run() {
+						if (pyramidLoading!=level)
+							return;		// not needed any more
+						pyramidLoading = null;
+						pyramidLevel = level;
+						pyramidIp = ip2;
+						pyramidImage = null;
+						repaint();
+					}
+				});
+			}
+		}, "Pyramid Level Reader");
+		thread.setPriority(Thread.MIN_PRIORITY);
+		thread.start();
+	}
+
+	/** Returns the pyramid level to be drawn at the current magnification,
+		with the LUT and display range of the image, or null if there is none
+		or it is not read yet. */
+	private Image getPyramidImage() {
+		FileInfo fi = imp.getOriginalFileInfo();
+		if (fi==null || fi.pyramid==null || imp.changes || imp.getStackSize()>1 || imp.isComposite()
+		|| fi.width!=imageWidth || fi.height!=imageHeight) {
+			pyramidLevel = null;
+			pyramidLoading = null;
+			pyramidIp = null;
+			pyramidImage = null;
+			return null;
+		}
+		FileInfo level = null;
+		for (int i=0; i<fi.pyramid.length; i++) {
+			if ((double)fi.pyramid[i].width/fi.width>=magnification)
+				level = fi.pyramid[i];
+		}
+		if (level==null)
+			return null;
+		if (level!=pyramidLevel) {
+			if (level!=pyramidLoading)
+				loadPyramidLevel(level);
+			return null;	// until the level is read, the full image is drawn
+		}
+		pyramidLoading = null;	// a level requested before is not needed any more
+		ImageProcessor ip = imp.getProcessor();
+		if (pyramidIp==null || ip==null || pyramidIp.getBitDepth()!=ip.getBitDepth())
+			return null;
+		if (pyramidImage==null || ip.getColorModel()!=pyramidCM || ip.getMin()!=pyramidMin || ip.getMax()!=pyramidMax) {
+			if (!(ip instanceof ColorProcessor))
+				pyramidIp.setLut(ip.getLut());
+			pyramidCM = ip.getColorModel();
+			pyramidMin = ip.getMin();
+			pyramidMax = ip.getMax();
+			pyramidImage = pyramidIp.createImage();
+		}
+		return pyramidImage;
+	}
+
 	private void setInterpolation(Graphics g, boolean interpolate) {
 		if (magnification==1)
 			return;
@@ -523,14 +613,13 @@ public class ImageCanvas extends Canvas implements MouseListener, MouseMotionLis
 		try {
 			if (imageUpdated) {
 				imageUpdated = false;
-				imp.updateImage();
+				imp.updateImage(srcRect);
 			}
 			Graphics offScreenGraphics = offScreenImage.getGraphics();
 			setInterpolation(offScreenGraphics, Prefs.interpolateScaledImages);
-			Image img = imp.getImage();
+			Image img = imp.getImage(srcRect);
 			if (img!=null)
-				offScreenGraphics.drawImage(img, 0, 0, srcRectWidthMag, srcRectHeightMag,
-					srcRect.x, srcRect.y, srcRect.x+srcRect.width, srcRect.y+srcRect.height, null);
+				drawImage(offScreenGraphics, img, srcRectWidthMag, srcRectHeightMag);
 			if (overlay!=null)
 				drawOverlay(overlay, offScreenGraphics);
 			if (showAllOverlay!=null)
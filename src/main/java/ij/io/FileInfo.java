@@ -110,6 +110,10 @@ public class FileInfo implements Cloneable {
     public int[] stripOffsets; 
     public int[] stripLengths;
     public int rowsPerStrip;
+	// Tiled TIFFs: size of the tiles, which are stored in stripOffsets and stripLengths
+	public int tileWidth, tileHeight;
+	// Reduced-resolution versions of the image (TIFF SubIFDs), largest first
+	public FileInfo[] pyramid;
 	public int lutSize;
 	public byte[] reds;
 	public byte[] greens;
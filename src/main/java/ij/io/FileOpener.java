@@ -36,6 +36,7 @@ public class FileOpener {
 	private static boolean showConflictMessage = true;
 	private double minValue, maxValue;
 	private static boolean silentMode;
+	private MappedImageReader mappedReader;
 
 	public FileOpener(FileInfo fi) {
 		this.fi = fi;
@@ -193,30 +194,41 @@ public class FileOpener {
 		ImageStack stack = new ImageStack(fi.width, fi.height, cm);
 		long skip = fi.getOffset();
 		Object pixels;
+		MappedImageReader mapped = null;
 		try {
 			ImageReader reader = new ImageReader(fi);
-			InputStream is = createInputStream(fi);
-			if (is==null)
+			long imageSize = (long)fi.width*fi.height*fi.getBytesPerPixel() + fi.gapBetweenImages;
+			mapped = createMappedReader(fi, fi.getOffset(), fi.nImages*imageSize);
+			long offset = fi.getOffset();
+			InputStream is = mapped==null ? createInputStream(fi) : null;
+			if (is==null && mapped==null)
 				return null;
-			IJ.resetEscape();
+			boolean readAhead = VirtualStackCache.isReadAheadThread();
+			if (!readAhead)
+				IJ.resetEscape();
 			for (int i=1; i<=fi.nImages; i++) {
-				if (!silentMode)
+				if (!isSilent())
 					IJ.showStatus("Reading: " + i + "/" + fi.nImages);
-				if (IJ.escapePressed()) {
+				if (!readAhead && IJ.escapePressed()) {
 					IJ.beep();
 					IJ.showProgress(1.0);
 					silentMode = false;
 					return null;
 				}
-				pixels = reader.readPixels(is, skip);
+				if (mapped!=null) {
+					pixels = mapped.readPixels(offset);
+					offset += imageSize;
+				} else
+					pixels = reader.readPixels(is, skip);
 				if (pixels==null)
 					break;
 				stack.addSlice(null, pixels);
 				skip = fi.gapBetweenImages;
-				if (!silentMode)
+				if (!isSilent())
 					IJ.showProgress(i, fi.nImages);
 			}
-			is.close();
+			if (is!=null)
+				is.close();
 		}
 		catch (Exception e) {
 			IJ.log("" + e);
@@ -225,7 +237,11 @@ public class FileOpener {
 			IJ.outOfMemory(fi.fileName);
 			stack.trim();
 		}
-		if (!silentMode) IJ.showProgress(1.0);
+		finally {
+			if (mapped!=null)
+				mapped.close();	// unmap, so that the file is not locked
+		}
+		if (!isSilent()) IJ.showProgress(1.0);
 		if (stack.getSize()==0)
 			return null;
 		if (fi.sliceLabels!=null && fi.sliceLabels.length<=stack.getSize()) {
@@ -245,7 +261,7 @@ public class FileOpener {
 		ImageProcessor ip = imp.getProcessor();
 		if (ip.getMin()==ip.getMax())  // find stack min and max if first slice is blank
 			setStackDisplayRange(imp);
-		if (!silentMode) IJ.showProgress(1.0);
+		if (!isSilent()) IJ.showProgress(1.0);
 		return imp;
 	}
 
@@ -255,7 +271,7 @@ public class FileOpener {
 		double max = -Double.MAX_VALUE;
 		int n = stack.getSize();
 		for (int i=1; i<=n; i++) {
-			if (!silentMode)
+			if (!isSilent())
 				IJ.showStatus("Calculating stack min and max: "+i+"/"+n);
 			ImageProcessor ip = stack.getProcessor(i);
 			ip.resetMinAndMax();
@@ -504,6 +520,8 @@ public class FileOpener {
 			+"  Offset: " + offset + "\n"
 			+"  Bytes/pixel: " + fi.getBytesPerPixel() + "\n"
 			+(length>0?"  File length: " + length + "\n":"");
+		if (VirtualStackCache.isReadAheadThread())
+			return;
 		if (silentMode) {
 			IJ.log("Error opening "+fi.directory+fi.fileName);
 			IJ.log(msg2);
@@ -512,9 +530,43 @@ public class FileOpener {
 	}
 
 
+	/** Uses 'reader' for reading the pixels of the image (if not null),
+		falling back to a stream if the reader has been closed. This avoids
+		mapping the same file again when opening many images from one file,
+		as done by a FileInfoVirtualStack, which also closes the reader.
+		Otherwise, the file is mapped for each image and unmapped after
+		reading it, so that the file is not locked (on Windows). */
+	public void setMappedReader(MappedImageReader reader) {
+		mappedReader = reader;
+	}
+
+	/** Returns a MappedImageReader for the given part of the file, or null
+		if the image cannot be read from a memory-mapped file. The caller
+		must close it. */
+	static MappedImageReader createMappedReader(FileInfo fi, long start, long length) {
+		if (!MappedImageReader.canRead(fi))
+			return null;
+		try {
+			return new MappedImageReader(fi, start, length);
+		} catch (Exception e) {	// e.g., out of address space; the stream-based ImageReader is used then
+			if (IJ.debugMode) IJ.log("FileOpener: cannot map "+fi.fileName+": "+e);
+			return null;
+		}
+	}
+
 	/** Reads the pixel data from an image described by a FileInfo object. */
 	Object readPixels(FileInfo fi) {
 		Object pixels = null;
+		MappedImageReader mapped = mappedReader;
+		if (mapped==null)
+			mapped = createMappedReader(fi, fi.getOffset(), (long)fi.width*fi.height*fi.getBytesPerPixel());
+		if (mapped!=null) {
+			pixels = mapped.readPixels(fi.getOffset());
+			if (mapped!=mappedReader)
+				mapped.close();
+			if (pixels!=null)
+				return pixels;
+		}
 		try {
 			InputStream is = createInputStream(fi);
 			if (is==null)
@@ -608,5 +660,11 @@ public class FileOpener {
 		silentMode = mode;
 	}
 
+	// No status and progress messages when opening silently or on the
+	// virtual stack read-ahead thread
+	private static boolean isSilent() {
+		return silentMode || VirtualStackCache.isReadAheadThread();
+	}
+
 
 }
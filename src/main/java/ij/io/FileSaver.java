@@ -19,6 +19,7 @@ public class FileSaver {
 
 	public static final int DEFAULT_JPEG_QUALITY = 85;
 	private static int jpegQuality;
+	private static int tiffCompression = FileInfo.COMPRESSION_NONE;
 	
     static {setJpegQuality(ij.Prefs.getInt(ij.Prefs.JPEG, DEFAULT_JPEG_QUALITY));}
 
@@ -92,6 +93,57 @@ public class FileSaver {
 			return saveAsTiff(path);
 	}
 	
+	/** Saves the image as a tiled TIFF, with tiles of 'tileSize' x 'tileSize'
+		pixels (rounded up to a multiple of 16) and up to 'levels'
+		reduced-resolution versions, each half the size of the previous one,
+		stored as SubIFDs. Levels smaller than one tile are not created.
+		Stacks are saved as regular TIFFs. */
+	public boolean saveAsTiledTiff(String path, int tileSize, int levels) {
+		if (fi.nImages>1)
+			return saveAsTiffStack(path);
+		fi.tileWidth = fi.tileHeight = tileSize;
+		fi.pyramid = createPyramid(tileSize, levels);
+		boolean ok = saveAsTiff(path);
+		fi.tileWidth = fi.tileHeight = 0;
+		fi.pyramid = null;
+		return ok;
+	}
+
+	/** Creates the reduced-resolution images of a pyramidal TIFF. */
+	private FileInfo[] createPyramid(int tileSize, int levels) {
+		java.util.ArrayList<FileInfo> list = new java.util.ArrayList<FileInfo>();
+		ImageProcessor ip = imp.getProcessor();
+		double scale = 1.0;
+		for (int i=0; i<levels; i++) {
+			if (ip.getWidth()<=tileSize && ip.getHeight()<=tileSize)
+				break;
+			int method = ip.getInterpolationMethod();
+			ip.setInterpolationMethod(ImageProcessor.BILINEAR);
+			ImageProcessor ip2 = ip.resize(Math.max(ip.getWidth()/2,1), Math.max(ip.getHeight()/2,1), true);
+			ip.setInterpolationMethod(method);
+			ip = ip2;
+			scale *= 2.0;
+			FileInfo level = (FileInfo)fi.clone();
+			level.width = ip.getWidth();
+			level.height = ip.getHeight();
+			level.pixels = ip.getPixels();
+			level.pixelWidth = fi.pixelWidth*scale;
+			level.pixelHeight = fi.pixelHeight*scale;
+			level.description = null;
+			level.info = null;
+			level.sliceLabels = null;
+			level.plot = level.roi = null;
+			level.overlay = null;
+			level.metaData = null;
+			level.metaDataTypes = null;
+			level.displayRanges = null;
+			level.channelLuts = null;
+			level.pyramid = null;
+			list.add(level);
+		}
+		return list.size()>0?list.toArray(new FileInfo[list.size()]):null;
+	}
+
 	/** Saves the image in TIFF format using the specified path. Equivalent to
 		 IJ.saveAsTiff(imp,path), which is more convenient. */
 	public boolean saveAsTiff(String path) {
@@ -112,6 +164,7 @@ public class FileSaver {
 		}
 		fi.roi = RoiEncoder.saveAsByteArray(imp.getRoi());
 		fi.overlay = getOverlay(imp);
+		fi.compression = tiffCompression;
 		DataOutputStream out = null;
 		try {
 			TiffEncoder file = new TiffEncoder(fi);
@@ -202,6 +255,7 @@ public class FileSaver {
 		fi.roi = RoiEncoder.saveAsByteArray(imp.getRoi());
 		fi.overlay = getOverlay(imp);
 		if (imp.isComposite()) saveDisplayRangesAndLuts(imp, fi);
+		fi.compression = tiffCompression;
 		DataOutputStream out = null;
 		try {
 			TiffEncoder file = new TiffEncoder(fi);
@@ -309,9 +363,15 @@ public class FileSaver {
 			fi.virtualStack = (VirtualStack)imp.getStack();
 		DataOutputStream out = null;
 		try {
-			ZipOutputStream zos = new ZipOutputStream(new FileOutputStream(path));
+			OutputStream zos;
+			if (Prefs.getThreads()>1)
+				zos = new ParallelZipOutputStream(new FileOutputStream(path), name);
+			else {
+				ZipOutputStream zos1 = new ZipOutputStream(new FileOutputStream(path));
+				zos1.putNextEntry(new ZipEntry(name));
+				zos = zos1;
+			}
 			out = new DataOutputStream(new BufferedOutputStream(zos));
-        	zos.putNextEntry(new ZipEntry(name));
 			TiffEncoder te = new TiffEncoder(fi);
 			te.write(out);
 			out.close();
@@ -818,5 +878,20 @@ public class FileSaver {
         return jpegQuality;
     }
 
+	/** Sets the compression of TIFF files saved by saveAsTiff() and
+		saveAsTiffStack(): FileInfo.COMPRESSION_NONE (the default),
+		FileInfo.ZIP or FileInfo.LZW. The strips of compressed files
+		are compressed in parallel. */
+	public static void setTiffCompression(int compression) {
+		if (compression!=FileInfo.ZIP && compression!=FileInfo.LZW)
+			compression = FileInfo.COMPRESSION_NONE;
+		tiffCompression = compression;
+	}
+
+	/** Returns the compression of saved TIFF files. */
+	public static int getTiffCompression() {
+		return tiffCompression;
+	}
+
 
 }
@@ -1,8 +1,10 @@
 package ij.io;
 import ij.*;
 import ij.process.*;
+import ij.util.ThreadUtil;
 import java.io.*;
 import java.net.*;
+import java.awt.Rectangle;
 import java.awt.image.BufferedImage;
 import javax.imageio.ImageIO;
 import java.util.zip.Inflater;
@@ -25,6 +27,7 @@ public class ImageReader {
 	private int eofErrorCount;
 	private int imageCount;
 	private long startTime;
+	private byte[][] compressedStrips; // strips read in advance by readStrips(InputStream)
 	public double min, max; // readRGB48() calculates min/max pixel values
 
 	/**
@@ -65,36 +68,17 @@ public class ImageReader {
 	byte[] readCompressed8bitImage(InputStream in) throws IOException {
 		byte[] pixels = new byte[nPixels];
 		int current = 0;
-		byte last = 0;
-		for (int i=0; i<fi.stripOffsets.length; i++) {
-			if (in instanceof RandomAccessStream)
-				((RandomAccessStream)in).seek(fi.stripOffsets[i]);
-			else if (i > 0) {
-				long skip = (fi.stripOffsets[i]&0xffffffffL) - (fi.stripOffsets[i-1]&0xffffffffL) - fi.stripLengths[i-1];
-				if (skip > 0L) in.skip(skip);
-			}
-			byte[] byteArray = new byte[fi.stripLengths[i]];
-			int read = 0, left = byteArray.length;
-			while (left > 0) {
-				int r = in.read(byteArray, read, left);
-				if (r == -1) {eofError(); break;}
-				read += r;
-				left -= r;
-			}
-			byteArray = uncompress(byteArray);
+		byte[][] strips = readStrips(in, 1);
+		for (int i=0; i<strips.length; i++) {
+			byte[] byteArray = strips[i];
+			strips[i] = null;
 			int length = byteArray.length;
 			length = length - (length%fi.width);
-			if (fi.compression==FileInfo.LZW_WITH_DIFFERENCING) {
-				for (int b=0; b<length; b++) {
-					byteArray[b] += last;
-					last = b % fi.width == fi.width - 1 ? 0 : byteArray[b];
-				}
-			}
 			if (current+length>pixels.length)
 				length = pixels.length-current;
 			System.arraycopy(byteArray, 0, pixels, current, length);
 			current += length;
-			showProgress(i+1, fi.stripOffsets.length);
+			showProgress(i+1, strips.length);
 		}
 		return pixels;
 	}
@@ -153,23 +137,10 @@ public class ImageReader {
 		short[] pixels = new short[nPixels];
 		int base = 0;
 		short last = 0;
-		for (int k=0; k<fi.stripOffsets.length; k++) {
-			//IJ.log("seek: "+fi.stripOffsets[k]+" "+fi.stripLengths[k]+"  "+(in instanceof RandomAccessStream));
-			if (in instanceof RandomAccessStream)
-				((RandomAccessStream)in).seek(fi.stripOffsets[k]);
-			else if (k > 0) {
-				long skip = (fi.stripOffsets[k]&0xffffffffL) - (fi.stripOffsets[k-1]&0xffffffffL) - fi.stripLengths[k-1];
-				if (skip > 0L) in.skip(skip);
-			}
-			byte[] byteArray = new byte[fi.stripLengths[k]];
-			int read = 0, left = byteArray.length;
-			while (left > 0) {
-				int r = in.read(byteArray, read, left);
-				if (r == -1) {eofError(); break;}
-				read += r;
-				left -= r;
-			}
-			byteArray = uncompress(byteArray);
+		byte[][] strips = readStrips(in, 0);
+		for (int k=0; k<strips.length; k++) {
+			byte[] byteArray = strips[k];
+			strips[k] = null;
 			int pixelsRead = byteArray.length/bytesPerPixel;
 			pixelsRead = pixelsRead - (pixelsRead%fi.width);
 			int pmax = base+pixelsRead;
@@ -188,7 +159,7 @@ public class ImageReader {
 				}
 			}
 			base += pixelsRead;
-			showProgress(k+1, fi.stripOffsets.length);
+			showProgress(k+1, strips.length);
 		}
 		if (fi.fileType==FileInfo.GRAY16_SIGNED) {
 			// convert to unsigned
@@ -261,22 +232,10 @@ public class ImageReader {
 		float[] pixels = new float[nPixels];
 		int base = 0;
 		float last = 0;
-		for (int k=0; k<fi.stripOffsets.length; k++) {
-			if (in instanceof RandomAccessStream)
-				((RandomAccessStream)in).seek(fi.stripOffsets[k]);
-			else if (k > 0) {
-				long skip = (fi.stripOffsets[k]&0xffffffffL) - (fi.stripOffsets[k-1]&0xffffffffL) - fi.stripLengths[k-1];
-				if (skip > 0L) in.skip(skip);
-			}
-			byte[] byteArray = new byte[fi.stripLengths[k]];
-			int read = 0, left = byteArray.length;
-			while (left > 0) {
-				int r = in.read(byteArray, read, left);
-				if (r == -1) {eofError(); break;}
-				read += r;
-				left -= r;
-			}
-			byteArray = uncompress(byteArray);
+		byte[][] strips = readStrips(in, 0);
+		for (int k=0; k<strips.length; k++) {
+			byte[] byteArray = strips[k];
+			strips[k] = null;
 			int pixelsRead = byteArray.length/bytesPerPixel;
 			pixelsRead = pixelsRead - (pixelsRead%fi.width);
 			int pmax = base+pixelsRead;
@@ -310,7 +269,7 @@ public class ImageReader {
 				}
 			}
 			base += pixelsRead;
-			showProgress(k+1, fi.stripOffsets.length);
+			showProgress(k+1, strips.length);
 		}
 		return pixels;
 	}
@@ -444,29 +403,10 @@ public class ImageReader {
 		int red=0, green=0, blue=0, alpha = 0;
 		boolean bgr = fi.fileType==FileInfo.BGR;
 		boolean cmyk = fi.fileType==FileInfo.CMYK;
-		boolean differencing = fi.compression == FileInfo.LZW_WITH_DIFFERENCING;
-		for (int i=0; i<fi.stripOffsets.length; i++) {
-			if (in instanceof RandomAccessStream)
-				((RandomAccessStream)in).seek(fi.stripOffsets[i]);
-			else if (i > 0) {
-				long skip = (fi.stripOffsets[i]&0xffffffffL) - (fi.stripOffsets[i-1]&0xffffffffL) - fi.stripLengths[i-1];
-				if (skip > 0L) in.skip(skip);
-			}
-			byte[] byteArray = new byte[fi.stripLengths[i]];
-			int read = 0, left = byteArray.length;
-			while (left > 0) {
-				int r = in.read(byteArray, read, left);
-				if (r == -1) {eofError(); break;}
-				read += r;
-				left -= r;
-			}
-			byteArray = uncompress(byteArray);
-			if (differencing) {
-				for (int b=0; b<byteArray.length; b++) {
-					if (b / bytesPerPixel % fi.width == 0) continue;
-					byteArray[b] += byteArray[b - bytesPerPixel];
-				}
-			}
+		byte[][] strips = readStrips(in, bytesPerPixel);
+		for (int i=0; i<strips.length; i++) {
+			byte[] byteArray = strips[i];
+			strips[i] = null;
 			int k = 0;
 			int pixelsRead = byteArray.length/bytesPerPixel;
 			pixelsRead = pixelsRead - (pixelsRead%fi.width);
@@ -494,7 +434,7 @@ public class ImageReader {
 					pixels[j] = 0xff000000 | (red<<16) | (green<<8) | blue;
 			}
 			base += pixelsRead;
-			showProgress(i+1, fi.stripOffsets.length);
+			showProgress(i+1, strips.length);
 		}
 		return pixels;
 	}
@@ -561,6 +501,238 @@ public class ImageReader {
 		return pixels;
 	}
 
+	/** Reads the strips of a compressed image (or the strips of an image stored
+		as several strips) and uncompresses them. If strips have been read in
+		advance by readStrips(InputStream), these are used instead of reading 'in'.
+		With more than one thread (Edit/Options/Memory & Threads), the strips are
+		uncompressed in parallel. With 'differencingStride'>0, the horizontal
+		predictor of LZW_WITH_DIFFERENCING images is undone for each strip as well,
+		with 'differencingStride' being the distance of two values of the same
+		channel in bytes. */
+	byte[][] readStrips(InputStream in, final int differencingStride) throws IOException {
+		final byte[][] strips = compressedStrips!=null ? compressedStrips : readCompressedStrips(in);
+		compressedStrips = null;
+		if (fi.compression<=FileInfo.COMPRESSION_NONE)
+			return strips;
+		int grain = strips.length>=64 ? 4 : 1;
+		ThreadUtil.parallelFor(0, strips.length, grain, new ThreadUtil.RangeTask() {
+			public void run(int from, int to) {
+				for (int i=from; i<to; i++) {
+					strips[i] = uncompress(strips[i]);
+					if (differencingStride>0 && fi.compression==FileInfo.LZW_WITH_DIFFERENCING)
+						undoDifferencing(strips[i], differencingStride);
+				}
+			}
+		});
+		return strips;
+	}
+
+	/** Reads the strips of the image as they are stored in the file. */
+	private byte[][] readCompressedStrips(InputStream in) throws IOException {
+		byte[][] strips = new byte[fi.stripOffsets.length][];
+		for (int i=0; i<strips.length; i++) {
+			if (in instanceof RandomAccessStream)
+				((RandomAccessStream)in).seek(fi.stripOffsets[i]);
+			else if (i > 0) {
+				long skip = (fi.stripOffsets[i]&0xffffffffL) - (fi.stripOffsets[i-1]&0xffffffffL) - fi.stripLengths[i-1];
+				if (skip > 0L) in.skip(skip);
+			}
+			byte[] byteArray = new byte[fi.stripLengths[i]];
+			int read = 0, left = byteArray.length;
+			while (left > 0) {
+				int r = in.read(byteArray, read, left);
+				if (r == -1) {eofError(); break;}
+				read += r;
+				left -= r;
+			}
+			strips[i] = byteArray;
+		}
+		return strips;
+	}
+
+	/** Reads the (compressed) strips of the image from the InputStream
+		without decoding them. The pixels can be obtained later, by calling
+		readPixels(InputStream, long) with a null InputStream. This allows
+		reading several images sequentially and decoding them in parallel. */
+	public void readStrips(InputStream in) throws IOException {
+		compressedStrips = readCompressedStrips(in);
+	}
+
+	private void undoDifferencing(byte[] data, int stride) {
+		int lineLength = fi.width*stride;
+		for (int line=0; line<data.length; line+=lineLength) {
+			int end = Math.min(line+lineLength, data.length);
+			for (int b=line+stride; b<end; b++)
+				data[b] += data[b-stride];
+		}
+	}
+
+	/** Reads the part 'r' of a tiled image, reading only the tiles that
+		intersect 'r' if 'in' is a RandomAccessStream. Returns the pixel
+		array (byte, short, float or int) of size r.width*r.height,
+		or null if there was an IO exception. */
+	public Object readRegion(InputStream in, Rectangle r) {
+		if (fi.tileWidth<=0 || fi.tileHeight<=0 || fi.stripOffsets==null)
+			throw new IllegalArgumentException("Not a tiled image");
+		r = r.intersection(new Rectangle(0, 0, width, height));
+		if (r.isEmpty())
+			return null;
+		showProgressBar = false;
+		bytesPerPixel = fi.getBytesPerPixel();
+		byteCount = ((long)width)*height*bytesPerPixel;
+		try {
+			if (!(in instanceof RandomAccessStream))
+				skip(in);
+			return readTiledImage(in, r);
+		} catch (IOException e) {
+			IJ.log("" + e);
+			return null;
+		}
+	}
+
+	/** Reads the tiles intersecting 'r' and converts the samples to a pixel array. */
+	private Object readTiledImage(InputStream in, Rectangle r) throws IOException {
+		byte[] bytes = readTiles(in, r);
+		FileInfo fi2 = (FileInfo)fi.clone();
+		fi2.width = r.width;
+		fi2.height = r.height;
+		fi2.nImages = 1;
+		fi2.compression = FileInfo.COMPRESSION_NONE;
+		fi2.tileWidth = fi2.tileHeight = 0;
+		fi2.stripOffsets = fi2.stripLengths = null;
+		fi2.offset = 0;
+		fi2.longOffset = 0L;
+		fi2.pyramid = null;
+		ImageReader reader = new ImageReader(fi2);
+		reader.showProgressBar = false;
+		return reader.readPixels(new ByteArrayInputStream(bytes));
+	}
+
+	/** Reads and uncompresses the tiles intersecting 'r' and returns the
+		samples of 'r' as stored in the file (r.width*bytesPerPixel bytes
+		per line). With a RandomAccessStream, the tiles are read in the order
+		of their file offsets; other streams must be positioned at the first
+		tile. The tiles are uncompressed in parallel. */
+	private byte[] readTiles(InputStream in, final Rectangle r) throws IOException {
+		final int tw=fi.tileWidth, th=fi.tileHeight;
+		final int tilesAcross = (width+tw-1)/tw;
+		int tx1=r.x/tw, tx2=(r.x+r.width-1)/tw;
+		int ty1=r.y/th, ty2=(r.y+r.height-1)/th;
+		int n = (tx2-tx1+1)*(ty2-ty1+1);
+		Integer[] order = new Integer[n];
+		for (int ty=ty1, k=0; ty<=ty2; ty++)
+			for (int tx=tx1; tx<=tx2; tx++)
+				order[k++] = Integer.valueOf(ty*tilesAcross+tx);
+		java.util.Arrays.sort(order, new java.util.Comparator<Integer>() {
+			public int compare(Integer t1, Integer t2) {
+				long o1=fi.stripOffsets[t1.intValue()]&0xffffffffL, o2=fi.stripOffsets[t2.intValue()]&0xffffffffL;
+				return o1<o2?-1:(o1>o2?1:0);
+			}
+		});
+		final int[] tiles = new int[n];
+		final byte[][] data = new byte[n][];
+		long position = fi.getOffset();
+		for (int k=0; k<n; k++) {
+			int tile = order[k].intValue();
+			long offset = fi.stripOffsets[tile]&0xffffffffL;
+			if (in instanceof RandomAccessStream)
+				((RandomAccessStream)in).seek(offset);
+			else {
+				if (offset<position)
+					throw new IOException("Tile offsets not in ascending order");
+				long toSkip = offset - position;
+				while (toSkip>0L) {
+					long skipped = in.skip(toSkip);
+					if (skipped<=0L) {eofError(); break;}
+					toSkip -= skipped;
+				}
+			}
+			byte[] bytes = new byte[fi.stripLengths[tile]];
+			int read = 0;
+			while (read<bytes.length) {
+				int count = in.read(bytes, read, bytes.length-read);
+				if (count==-1) {eofError(); break;}
+				read += count;
+			}
+			position = offset + read;
+			tiles[k] = tile;
+			data[k] = bytes;
+		}
+		final int bpp = bytesPerPixel;
+		final byte[] out = new byte[r.width*r.height*bpp];
+		ThreadUtil.parallelFor(0, n, 1, new ThreadUtil.RangeTask() {
+			public void run(int from, int to) {
+				for (int k=from; k<to; k++) {
+					byte[] tile = uncompress(data[k]);
+					data[k] = null;
+					if (fi.compression==FileInfo.LZW_WITH_DIFFERENCING)
+						undoTileDifferencing(tile, tw);
+					int x0 = (tiles[k]%tilesAcross)*tw;
+					int y0 = (tiles[k]/tilesAcross)*th;
+					int xs = Math.max(r.x, x0), xe = Math.min(r.x+r.width, x0+tw);
+					int ys = Math.max(r.y, y0), ye = Math.min(r.y+r.height, y0+th);
+					int length = (xe-xs)*bpp;
+					for (int y=ys; y<ye; y++) {
+						int src = ((y-y0)*tw + xs-x0)*bpp;
+						if (src+length>tile.length) break;
+						System.arraycopy(tile, src, out, ((y-r.y)*r.width + xs-r.x)*bpp, length);
+					}
+				}
+			}
+		});
+		return out;
+	}
+
+	/** Undoes the horizontal predictor, line by line, of an uncompressed tile. */
+	private void undoTileDifferencing(byte[] tile, int tileWidth) {
+		int bpp = fi.getBytesPerPixel();
+		int lineLength = tileWidth*bpp;
+		boolean shorts = fi.fileType==FileInfo.GRAY16_SIGNED || fi.fileType==FileInfo.GRAY16_UNSIGNED;
+		boolean ints = fi.fileType==FileInfo.GRAY32_INT || fi.fileType==FileInfo.GRAY32_UNSIGNED;
+		boolean floats = fi.fileType==FileInfo.GRAY32_FLOAT;
+		for (int line=0; line+lineLength<=tile.length; line+=lineLength) {
+			int end = line+lineLength;
+			if (shorts) {
+				int hi=fi.intelByteOrder?1:0, lo=1-hi;
+				for (int b=line+2; b<end; b+=2) {
+					int value = ((tile[b+hi]&255)<<8) + (tile[b+lo]&255) + ((tile[b-2+hi]&255)<<8) + (tile[b-2+lo]&255);
+					tile[b+hi] = (byte)(value>>8);
+					tile[b+lo] = (byte)value;
+				}
+			} else if (ints || floats) {	// per sample, as in readCompressed32bitImage
+				int last = getInt(tile, line);
+				for (int b=line+4; b<end; b+=4) {
+					int value = getInt(tile, b);
+					if (floats)
+						value = Float.floatToRawIntBits(Float.intBitsToFloat(value)+Float.intBitsToFloat(last));
+					else
+						value += last;
+					putInt(tile, b, value);
+					last = value;
+				}
+			} else {
+				for (int b=line+bpp; b<end; b++)
+					tile[b] += tile[b-bpp];
+			}
+		}
+	}
+
+	/** The 32-bit value at position 'b' of 'bytes', in the byte order of the file. */
+	private int getInt(byte[] bytes, int b) {
+		if (fi.intelByteOrder)
+			return ((bytes[b+3]&0xff)<<24) | ((bytes[b+2]&0xff)<<16) | ((bytes[b+1]&0xff)<<8) | (bytes[b]&0xff);
+		else
+			return ((bytes[b]&0xff)<<24) | ((bytes[b+1]&0xff)<<16) | ((bytes[b+2]&0xff)<<8) | (bytes[b+3]&0xff);
+	}
+
+	private void putInt(byte[] bytes, int b, int value) {
+		if (fi.intelByteOrder) {
+			bytes[b] = (byte)value; bytes[b+1] = (byte)(value>>8); bytes[b+2] = (byte)(value>>16); bytes[b+3] = (byte)(value>>24);
+		} else {
+			bytes[b+3] = (byte)value; bytes[b+2] = (byte)(value>>8); bytes[b+1] = (byte)(value>>16); bytes[b] = (byte)(value>>24);
+		}
+	}
+
 	private void showProgress(int current, int last) {
 		if (showProgressBar && (System.currentTimeMillis()-startTime)>500L)
 			IJ.showProgress(current, last);
@@ -767,6 +939,14 @@ public class ImageReader {
 		Object pixels;
 		startTime = System.currentTimeMillis();
 		try {
+			if (fi.tileWidth>0 && fi.stripOffsets!=null) {
+				bytesPerPixel = fi.getBytesPerPixel();
+				skip(in);
+				pixels = readTiledImage(in, new Rectangle(0, 0, width, height));
+				showProgress(1, 1);
+				imageCount++;
+				return pixels;
+			}
 			switch (fi.fileType) {
 				case FileInfo.GRAY8:
 				case FileInfo.COLOR8:
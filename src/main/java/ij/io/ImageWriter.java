@@ -2,6 +2,8 @@ package ij.io;
 import java.io.*;
 import ij.*;  //??
 import ij.process.ImageProcessor;
+import ij.util.ThreadUtil;
+import java.util.zip.Deflater;
 
 /** Writes a raw image described by a FileInfo object to an OutputStream. */
 public class ImageWriter {
@@ -248,6 +250,125 @@ public class ImageWriter {
 		}
 	}
 
+	/** Writes the image (fi.pixels, a single 8-bit, 16-bit, float or RGB image)
+		as tiles of 'tileWidth' x 'tileHeight' pixels, row by row. Tiles
+		extending beyond the right or bottom edge are padded with zeros. */
+	public void writeTiles(OutputStream out, int tileWidth, int tileHeight) throws IOException {
+		if (fi.pixels==null || fi.pixels instanceof Object[])
+			throw new IOException("ImageWriter: fi.pixels not a single image");
+		int bpp = fi.getBytesPerPixel();
+		int tilesAcross = (fi.width+tileWidth-1)/tileWidth;
+		int tilesDown = (fi.height+tileHeight-1)/tileHeight;
+		byte[] tile = new byte[tileWidth*tileHeight*bpp];
+		for (int ty=0; ty<tilesDown; ty++) {
+			for (int tx=0; tx<tilesAcross; tx++) {
+				int x0=tx*tileWidth, y0=ty*tileHeight;
+				int w = Math.min(tileWidth, fi.width-x0);
+				int h = Math.min(tileHeight, fi.height-y0);
+				if (w<tileWidth || h<tileHeight)
+					java.util.Arrays.fill(tile, (byte)0);
+				for (int y=0; y<h; y++)
+					toBytes(fi.pixels, (y0+y)*fi.width+x0, w, tile, y*tileWidth*bpp);
+				out.write(tile);
+			}
+			showProgress((double)(ty+1)/tilesDown);
+		}
+	}
+
+	/** Converts image 'n' (1-based) of the image or stack to strips of
+		'rowsPerStrip' rows and returns them compressed with fi.compression
+		(FileInfo.ZIP or FileInfo.LZW). The strips are compressed in parallel. */
+	public byte[][] compressStrips(int n, final int rowsPerStrip) {
+		final Object pixels = getPixels(n);
+		final int bpp = fi.getBytesPerPixel();
+		final boolean zip = fi.compression==FileInfo.ZIP;
+		final byte[][] strips = new byte[(fi.height+rowsPerStrip-1)/rowsPerStrip][];
+		ThreadUtil.parallelFor(0, strips.length, 1, new ThreadUtil.RangeTask() {
+			public void run(int from, int to) {
+				byte[] buffer = new byte[fi.width*rowsPerStrip*bpp];
+				Deflater deflater = zip?new Deflater():null;
+				for (int s=from; s<to; s++) {
+					int rows = Math.min(rowsPerStrip, fi.height-s*rowsPerStrip);
+					int length = fi.width*rows*bpp;
+					toBytes(pixels, s*rowsPerStrip*fi.width, fi.width*rows, buffer, 0);
+					if (zip)
+						strips[s] = deflate(deflater, buffer, length);
+					else
+						strips[s] = new TiffLZWEncoder().compress(buffer, 0, length);
+				}
+				if (deflater!=null)
+					deflater.end();
+			}
+		});
+		return strips;
+	}
+
+	private static byte[] deflate(Deflater deflater, byte[] bytes, int length) {
+		deflater.reset();
+		deflater.setInput(bytes, 0, length);
+		deflater.finish();
+		ByteArrayOutputStream out = new ByteArrayOutputStream(length/2+64);
+		byte[] buffer = new byte[8192];
+		while (!deflater.finished())
+			out.write(buffer, 0, deflater.deflate(buffer));
+		return out.toByteArray();
+	}
+
+	/** Returns the pixel array of image 'n' (1-based). */
+	private Object getPixels(int n) {
+		if (fi.virtualStack!=null) {
+			ImageProcessor ip = fi.virtualStack.getProcessor(n);
+			if ("FlipTheseImages".equals(fi.fileName))
+				ip.flipVertical();
+			return ip.getPixels();
+		}
+		if (fi.pixels instanceof Object[])
+			return ((Object[])fi.pixels)[n-1];
+		return fi.pixels;
+	}
+
+	/** Converts 'n' pixels, starting at 'offset', to bytes in the byte order of the file. */
+	private void toBytes(Object pixels, int offset, int n, byte[] buffer, int index) {
+		if (pixels instanceof byte[])
+			System.arraycopy((byte[])pixels, offset, buffer, index, n);
+		else if (pixels instanceof short[]) {
+			short[] shorts = (short[])pixels;
+			for (int i=offset; i<offset+n; i++, index+=2) {
+				int value = shorts[i];
+				if (fi.intelByteOrder) {
+					buffer[index] = (byte)value;
+					buffer[index+1] = (byte)(value>>>8);
+				} else {
+					buffer[index] = (byte)(value>>>8);
+					buffer[index+1] = (byte)value;
+				}
+			}
+		} else if (pixels instanceof float[]) {
+			float[] floats = (float[])pixels;
+			for (int i=offset; i<offset+n; i++, index+=4) {
+				int value = Float.floatToRawIntBits(floats[i]);
+				if (fi.intelByteOrder) {
+					buffer[index] = (byte)value;
+					buffer[index+1] = (byte)(value>>8);
+					buffer[index+2] = (byte)(value>>16);
+					buffer[index+3] = (byte)(value>>>24);
+				} else {
+					buffer[index] = (byte)(value>>>24);
+					buffer[index+1] = (byte)(value>>16);
+					buffer[index+2] = (byte)(value>>8);
+					buffer[index+3] = (byte)value;
+				}
+			}
+		} else if (pixels instanceof int[]) {
+			int[] rgb = (int[])pixels;
+			for (int i=offset; i<offset+n; i++, index+=3) {
+				buffer[index]   = (byte)(rgb[i]>>16);	//red
+				buffer[index+1] = (byte)(rgb[i]>>8);	//green
+				buffer[index+2] = (byte)rgb[i];		//blue
+			}
+		}
+	}
+
 	/** Writes the image to the specified OutputStream.
 		The OutputStream is not closed. The fi.pixels field
 		must contain the image data. If fi.nImages>1
@@ -0,0 +1,202 @@
+package ij.io;
+import ij.*;
+import java.io.*;
+import java.nio.*;
+import java.nio.channels.FileChannel;
+import java.lang.reflect.*;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/** Reads uncompressed 8, 16 and 32-bit grayscale images directly from a
+	memory-mapped file, without intermediate buffers. The file is mapped once,
+	in windows of 1 GB (overlapping by one image) so that files larger than
+	2 GB are supported; each image is converted with one bulk get from a
+	view with the byte order of the file. Instances can be shared between
+	threads. The mapping keeps the file open (and locked on Windows) until
+	close() is called.
+	@see FileOpener#setMappedReader
+*/
+public class MappedImageReader {
+	private static final long WINDOW_SIZE = 1L<<30;
+
+	private FileInfo fi;
+	private long start;
+	private int imageSize;
+	private ByteOrder order;
+	private MappedByteBuffer[] windows;
+	private ReentrantReadWriteLock lock = new ReentrantReadWriteLock();
+
+	/** Maps 'length' bytes of the file described by 'fi', starting at
+		the file position 'start'. 'length' is truncated at the end of the file. */
+	public MappedImageReader(FileInfo fi, long start, long length) throws IOException {
+		this.fi = fi;
+		this.start = start;
+		imageSize = fi.width*fi.height*fi.getBytesPerPixel();
+		order = fi.intelByteOrder ? ByteOrder.LITTLE_ENDIAN : ByteOrder.BIG_ENDIAN;
+		RandomAccessFile raf = new RandomAccessFile(getPath(fi), "r");
+		try {
+			FileChannel channel = raf.getChannel();
+			long fileLength = channel.size();
+			if (start+length>fileLength)
+				length = fileLength-start;
+			if (length<=0)
+				throw new IOException("Offset beyond end of file");
+			int n = (int)((length+WINDOW_SIZE-1)/WINDOW_SIZE);
+			windows = new MappedByteBuffer[n];
+			for (int i=0; i<n; i++) {
+				long position = start + i*WINDOW_SIZE;
+				long size = Math.min(WINDOW_SIZE+imageSize, start+length-position);
+				windows[i] = channel.map(FileChannel.MapMode.READ_ONLY, position, size);
+			}
+		} finally {
+			raf.close();	// the mapping remains valid until close()
+		}
+	}
+
+	/** Releases the mapping, so that the file can be overwritten, renamed
+		or deleted. Subsequent calls of readPixels return null. Waits until
+		images that are being read by other threads are done. */
+	public void close() {
+		lock.writeLock().lock();
+		try {
+			if (windows==null)
+				return;
+			for (int i=0; i<windows.length; i++)
+				unmap(windows[i]);
+			windows = null;
+		} finally {
+			lock.writeLock().unlock();
+		}
+	}
+
+	/** Returns 'true' if close() has been called. */
+	public boolean isClosed() {
+		lock.readLock().lock();
+		try {
+			return windows==null;
+		} finally {
+			lock.readLock().unlock();
+		}
+	}
+
+	/* Unmaps the buffer immediately, instead of when it is garbage collected.
+		Java does not provide a public method for this, so the internal
+		methods are used via reflection: Unsafe.invokeCleaner (Java 9 and later)
+		or the buffer's cleaner (Java 8). If neither works, the mapping is
+		released by the garbage collector. */
+	private static void unmap(MappedByteBuffer buffer) {
+		try {
+			Class<?> c = Class.forName("sun.misc.Unsafe");
+			Method invokeCleaner = c.getMethod("invokeCleaner", ByteBuffer.class);
+			Field theUnsafe = c.getDeclaredField("theUnsafe");
+			theUnsafe.setAccessible(true);
+			invokeCleaner.invoke(theUnsafe.get(null), buffer);
+			return;
+		} catch (Throwable e) {}
+		try {
+			Method getCleaner = buffer.getClass().getMethod("cleaner");
+			getCleaner.setAccessible(true);
+			Object cleaner = getCleaner.invoke(buffer);
+			if (cleaner!=null)
+				cleaner.getClass().getMethod("clean").invoke(cleaner);
+		} catch (Throwable e) {
+			if (IJ.debugMode) IJ.log("MappedImageReader: cannot unmap: "+e);
+		}
+	}
+
+	/** Returns 'true' if images of this FileInfo can be read by a MappedImageReader. */
+	public static boolean canRead(FileInfo fi) {
+		if (fi==null || fi.inputStream!=null || (fi.url!=null && !fi.url.equals("")))
+			return false;
+		if (fi.directory==null || fi.fileName==null || fi.fileName.endsWith(".gz") || fi.fileName.endsWith(".GZ"))
+			return false;
+		if (fi.compression>FileInfo.COMPRESSION_NONE || fi.tileWidth>0)
+			return false;
+		switch (fi.fileType) {
+			case FileInfo.GRAY8: case FileInfo.COLOR8:
+			case FileInfo.GRAY16_SIGNED: case FileInfo.GRAY16_UNSIGNED:
+			case FileInfo.GRAY32_INT: case FileInfo.GRAY32_UNSIGNED: case FileInfo.GRAY32_FLOAT:
+				break;
+			default:
+				return false;
+		}
+		if (fi.width<=0 || fi.height<=0 || (long)fi.width*fi.height*fi.getBytesPerPixel()>WINDOW_SIZE)
+			return false;
+		if (fi.stripOffsets!=null && fi.stripOffsets.length>1) {	// strips must be contiguous
+			for (int i=1; i<fi.stripOffsets.length; i++) {
+				if ((fi.stripOffsets[i]&0xffffffffL)!=(fi.stripOffsets[i-1]&0xffffffffL)+(fi.stripLengths[i-1]&0xffffffffL))
+					return false;
+			}
+		}
+		return new File(getPath(fi)).isFile();
+	}
+
+	/** Returns the path of the file described by 'fi'. */
+	static String getPath(FileInfo fi) {
+		String dir = fi.directory;
+		if (dir.length()>0 && !(dir.endsWith(Prefs.separator)||dir.endsWith("/")))
+			dir += Prefs.separator;
+		return dir + fi.fileName;
+	}
+
+	/** Returns the pixel array (byte, short or float) of the image that starts
+		at position 'offset' of the file, or null if it is not inside the
+		mapped part of the file or the reader has been closed. 16-bit signed
+		data are converted to unsigned by adding 32768. */
+	public Object readPixels(long offset) {
+		lock.readLock().lock();
+		try {
+			return windows!=null ? read(offset) : null;
+		} finally {
+			lock.readLock().unlock();
+		}
+	}
+
+	private Object read(long offset) {
+		long relative = offset - start;
+		if (relative<0L)
+			return null;
+		int window = (int)(relative/WINDOW_SIZE);
+		if (window>=windows.length)
+			return null;
+		int position = (int)(relative - window*WINDOW_SIZE);
+		if (position+imageSize>windows[window].limit())
+			return null;
+		ByteBuffer buffer = windows[window].duplicate();	// own position, thus thread-safe
+		buffer.position(position);
+		buffer.order(order);
+		int nPixels = fi.width*fi.height;
+		switch (fi.fileType) {
+			case FileInfo.GRAY8: case FileInfo.COLOR8:
+				byte[] bytes = new byte[nPixels];
+				buffer.get(bytes);
+				return bytes;
+			case FileInfo.GRAY16_SIGNED: case FileInfo.GRAY16_UNSIGNED:
+				short[] shorts = new short[nPixels];
+				buffer.asShortBuffer().get(shorts);
+				if (fi.fileType==FileInfo.GRAY16_SIGNED) {
+					for (int i=0; i<nPixels; i++)
+						shorts[i] = (short)(shorts[i]+32768);
+				}
+				return shorts;
+			case FileInfo.GRAY32_FLOAT:
+				float[] floats = new float[nPixels];
+				buffer.asFloatBuffer().get(floats);
+				return floats;
+			case FileInfo.GRAY32_INT: case FileInfo.GRAY32_UNSIGNED:
+				IntBuffer ints = buffer.asIntBuffer();
+				float[] pixels = new float[nPixels];
+				boolean fits = fi.fileFormat==FileInfo.FITS;
+				for (int i=0; i<nPixels; i++) {
+					int value = ints.get(i);
+					if (fi.fileType==FileInfo.GRAY32_INT)
+						pixels[i] = value;
+					else
+						pixels[i] = fits ? (float)(value^0x80000000) : (float)(value&0xffffffffL);
+				}
+				return pixels;
+			default:
+				return null;
+		}
+	}
+
+}
@@ -6,6 +6,7 @@ import ij.plugin.frame.*;
 import ij.plugin.*;
 import ij.text.TextWindow;
 import ij.util.Java2;
+import ij.util.ThreadUtil;
 import ij.measure.ResultsTable;
 import ij.macro.Interpreter;
 import ij.util.Tools;
@@ -303,11 +304,15 @@ public class Opener {
 	*/
 	public ImagePlus openImage(String directory, String name) {
 		ImagePlus imp;
-		FileOpener.setSilentMode(silentMode);
+		boolean readAhead = VirtualStackCache.isReadAheadThread();
+		if (!readAhead)
+			FileOpener.setSilentMode(silentMode);
 		if (directory.length()>0 && !(directory.endsWith("/")||directory.endsWith("\\")))
 			directory += Prefs.separator;
-		OpenDialog.setLastDirectory(directory);
-		OpenDialog.setLastName(name);
+		if (!readAhead) {
+			OpenDialog.setLastDirectory(directory);
+			OpenDialog.setLastName(name);
+		}
 		String path = directory+name;
 		fileType = getFileType(path);
 		if (IJ.debugMode) IJ.log("openImage: \""+types[fileType]+"\", "+path);
@@ -704,7 +709,8 @@ public class Opener {
 				&& info[i].height==info[0].height;
 			contiguous &= info[i].getOffset()==startingOffset+i*size;
 		}
-		if (contiguous &&  info[0].fileType!=FileInfo.RGB48)
+		if (contiguous &&  info[0].fileType!=FileInfo.RGB48 && info[0].tileWidth==0
+		&& info[0].compression<=FileInfo.COMPRESSION_NONE)
 			info[0].nImages = info.length;
 		//if (IJ.debugMode) {
 		//	IJ.log("sameSizeAndType: " + sameSizeAndType);
@@ -740,7 +746,17 @@ public class Opener {
 				InputStream is = createInputStream(fi);
 				ImageReader reader = new ImageReader(fi);
 				IJ.resetEscape();
-				for (int i=0; i<info.length; i++) {
+				int first = 0;
+				if (canDecodeInParallel(info, is)) {
+					first = readCompressedPlanes(is, info, stack);
+					if (first<0) {
+						is.close();
+						return null;
+					}
+					if (first<info.length)
+						skip = 0L;	// strips are located by their offsets
+				}
+				for (int i=first; i<info.length; i++) {
 					nChannels = 1;
 					Object[] channels = null;
 					if (!silentMode)
@@ -808,11 +824,20 @@ public class Opener {
 			}
 			//if (fi.whiteIsZero)
 			//	new StackProcessor(stack, stack.getProcessor(1)).invert();
+			if (fi.sliceLabels!=null && fi.sliceLabels.length<=stack.getSize()) {
+				for (int i=0; i<fi.sliceLabels.length; i++)
+					stack.setSliceLabel(fi.sliceLabels[i], i+1);
+			}
 			ImagePlus imp = new ImagePlus(fi.fileName, stack);
-			new FileOpener(fi).setCalibration(imp);
+			FileOpener fo = new FileOpener(fi);
+			fo.setCalibration(imp);
 			imp.setFileInfo(fi);
 			if (fi.info!=null)
 				imp.setProperty("Info", fi.info);
+			if (fi.roi!=null)
+				imp.setRoi(RoiDecoder.openFromByteArray(fi.roi));
+			if (fi.overlay!=null)
+				fo.setOverlay(imp, fi.overlay);
 			if (fi.description!=null && fi.description.contains("order=zct"))
 				new HyperStackConverter().shuffle(imp, HyperStackConverter.ZCT);
 			int stackSize = stack.getSize();
@@ -827,6 +852,87 @@ public class Opener {
 		}
 	}
 	
+	/** Returns true if the planes of a TIFF stack are compressed in a way
+		that allows reading them first and decoding them in parallel. */
+	private boolean canDecodeInParallel(FileInfo[] info, InputStream is) {
+		FileInfo fi = info[0];
+		if (info.length<2 || Prefs.getThreads()<2 || !(is instanceof RandomAccessStream) || fi.tileWidth>0)
+			return false;
+		if (!(fi.compression==FileInfo.LZW||fi.compression==FileInfo.LZW_WITH_DIFFERENCING
+		||fi.compression==FileInfo.ZIP||fi.compression==FileInfo.PACK_BITS))
+			return false;
+		switch (fi.fileType) {
+			case FileInfo.GRAY8: case FileInfo.COLOR8:
+			case FileInfo.GRAY16_SIGNED: case FileInfo.GRAY16_UNSIGNED:
+			case FileInfo.GRAY32_INT: case FileInfo.GRAY32_UNSIGNED: case FileInfo.GRAY32_FLOAT:
+				break;
+			case FileInfo.RGB: case FileInfo.BGR: case FileInfo.ARGB: case FileInfo.CMYK:
+				break;
+			default:
+				return false;
+		}
+		for (int i=0; i<info.length; i++) {
+			int bpp = info[i].getBytesPerPixel();
+			if (info[i].samplesPerPixel>1 && !(bpp==3||bpp==4))
+				return false;
+			if (info[i].compression!=fi.compression || info[i].stripOffsets==null)
+				return false;
+		}
+		return true;
+	}
+
+	/** Reads the planes of a compressed TIFF stack in batches: the strips of
+		all planes of a batch are read sequentially, then the planes are decoded
+		in parallel. Returns the number of planes added to the stack, or -1 if
+		the user pressed 'Esc'. If a plane cannot be decoded, the planes before
+		it are added, the failure is logged and its index is returned, so that
+		the caller reads the remaining planes sequentially. */
+	private int readCompressedPlanes(InputStream is, FileInfo[] info, ImageStack stack) throws IOException {
+		int batchSize = 2*Prefs.getThreads();
+		final ImageReader[] readers = new ImageReader[batchSize];
+		final Object[] planes = new Object[batchSize];
+		for (int first=0; first<info.length; first+=batchSize) {
+			if (!silentMode)
+				IJ.showStatus("Reading: " + (first+1) + "/" + info.length);
+			if (IJ.escapePressed()) {
+				IJ.beep();
+				IJ.showProgress(1.0);
+				return -1;
+			}
+			int n = Math.min(batchSize, info.length-first);
+			for (int i=0; i<n; i++) {
+				FileInfo fi = (FileInfo)info[0].clone();
+				fi.stripOffsets = info[first+i].stripOffsets;
+				fi.stripLengths = info[first+i].stripLengths;
+				readers[i] = new ImageReader(fi);
+				readers[i].readStrips(is);
+			}
+			ThreadUtil.parallelFor(0, n, 1, new ThreadUtil.RangeTask() {
+				public void run(int from, int to) {
+					for (int i=from; i<to; i++) {
+						try {
+							planes[i] = readers[i].readPixels(null, 0L);
+						} catch (RuntimeException e) {	// corrupt data; the sequential reader reports it
+							planes[i] = null;
+						}
+					}
+				}
+			});
+			for (int i=0; i<n; i++) {
+				if (planes[i]==null) {
+					IJ.log("Opener: cannot decode plane "+(first+i+1)+"/"+info.length+" of "+info[0].fileName
+						+" in parallel; reading the remaining planes sequentially");
+					return first+i;
+				}
+				stack.addSlice(null, planes[i]);
+				planes[i] = null;
+				readers[i] = null;
+			}
+			IJ.showProgress(first+n, info.length);
+		}
+		return info.length;
+	}
+
 	/** Attempts to open the specified file as a tiff.
 		Returns an ImagePlus object if successful. */
 	public ImagePlus openTiff(String directory, String name) {
@@ -880,6 +986,71 @@ public class Opener {
 		return fo.openImage();
 	}
 
+	/** Opens the part 'r' of the first image of a TIFF file. 'level' selects
+		a reduced-resolution version of pyramidal TIFFs (0 is the full
+		resolution); 'r' is given in pixels of this level. With tiled TIFFs,
+		only the tiles intersecting 'r' are read. Returns null on failure. */
+	public static ImagePlus openTiffRegion(String path, Rectangle r, int level) {
+		FileInfo[] info = getTiffFileInfo(path);
+		if (info==null)
+			return null;
+		FileInfo fi = info[0];
+		if (level>0) {
+			if (fi.pyramid==null || level>fi.pyramid.length)
+				return null;
+			fi = fi.pyramid[level-1];
+		}
+		return openTiffRegion(fi, r);
+	}
+
+	/** Opens the part 'r' of the image described by 'fi', which must be
+		a single image of a TIFF file (e.g. an element of FileInfo.pyramid). */
+	public static ImagePlus openTiffRegion(FileInfo fi, Rectangle r) {
+		if (r==null)
+			r = new Rectangle(0, 0, fi.width, fi.height);
+		if (fi.tileWidth==0) {
+			ImagePlus imp = new FileOpener(fi).openImage();
+			if (imp==null || (r.x==0 && r.y==0 && r.width==fi.width && r.height==fi.height))
+				return imp;
+			imp.setRoi(r);
+			return imp.crop();
+		}
+		Object pixels = null;
+		try {
+			RandomAccessStream in = new RandomAccessStream(new RandomAccessFile(new File(fi.directory, fi.fileName), "r"));
+			try {
+				pixels = new ImageReader(fi).readRegion(in, r);
+			} finally {
+				in.close();
+			}
+		} catch (IOException e) {
+			IJ.log("openTiffRegion: "+e);
+		}
+		if (pixels==null)
+			return null;
+		r = r.intersection(new Rectangle(0, 0, fi.width, fi.height));
+		ColorModel cm = new Opener().createColorModel(fi);
+		ImageProcessor ip = null;
+		if (pixels instanceof byte[])
+			ip = new ByteProcessor(r.width, r.height, (byte[])pixels, cm);
+		else if (pixels instanceof short[])
+			ip = new ShortProcessor(r.width, r.height, (short[])pixels, cm);
+		else if (pixels instanceof float[])
+			ip = new FloatProcessor(r.width, r.height, (float[])pixels, cm);
+		else if (pixels instanceof int[])
+			ip = new ColorProcessor(r.width, r.height, (int[])pixels);
+		else
+			return null;
+		ImagePlus imp = new ImagePlus(fi.fileName, ip);
+		if (fi.unit!=null && fi.pixelWidth!=0.0) {
+			ij.measure.Calibration cal = imp.getCalibration();
+			cal.pixelWidth = fi.pixelWidth;
+			cal.pixelHeight = fi.pixelHeight;
+			cal.setUnit(fi.unit);
+		}
+		return imp;
+	}
+
 	/** Returns the FileInfo of the specified TIFF file. */
 	public static FileInfo[] getTiffFileInfo(String path) {
 		Opener o = new Opener();
@@ -1042,7 +1213,7 @@ public class Opener {
 		if (imp==null)
 			return null;
 		int[] offsets = info[0].stripOffsets;
-		if (offsets!=null&&offsets.length>1 && offsets[offsets.length-1]<offsets[0])
+		if (offsets!=null&&offsets.length>1 && offsets[offsets.length-1]<offsets[0] && info[0].tileWidth==0)
 			ij.IJ.run(imp, "Flip Vertically", "stack");
 		imp = makeComposite(imp, info[0]);
 		if (imp.getBitDepth()==32 && imp.getTitle().startsWith("FFT of"))
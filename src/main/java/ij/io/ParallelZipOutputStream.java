@@ -0,0 +1,241 @@
+package ij.io;
+import ij.Prefs;
+import ij.util.ThreadUtil;
+import java.io.*;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.zip.*;
+
+/** Writes a ZIP file with a single, deflate compressed entry. The data are
+	split into blocks of 1 MB that are compressed in parallel on the shared
+	thread pool, while the caller continues writing. Each block is primed with
+	the last 32 KB of the previous block and ends with a sync flush, so the
+	blocks form one standard deflate stream that any unzip program can read.
+	Entries larger than 4 GB are written in the ZIP64 format.
+	@see FileSaver#saveAsZip
+*/
+public class ParallelZipOutputStream extends OutputStream {
+	private static final int BLOCK_SIZE = 1<<20;
+	private static final int DICTIONARY_SIZE = 32768;
+	private static final long ZIP64_LIMIT = 0xffffffffL;
+
+	private OutputStream out;
+	private byte[] name;
+	private int dosTime;
+	private byte[] block = new byte[BLOCK_SIZE];
+	private int count;
+	private byte[] dictionary;
+	private LinkedList<Future<byte[]>> pending = new LinkedList<Future<byte[]>>();
+	private CRC32 crc = new CRC32();
+	private long size, compressedSize, position;
+	private byte[] buffer = new byte[8];
+	private boolean closed;
+
+	/** Creates a ZIP file with one entry named 'name' and writes its header. */
+	public ParallelZipOutputStream(OutputStream out, String name) throws IOException {
+		this.out = out;
+		this.name = name.getBytes("UTF-8");
+		Calendar c = Calendar.getInstance();
+		dosTime = (c.get(Calendar.YEAR)-1980)<<25 | (c.get(Calendar.MONTH)+1)<<21 | c.get(Calendar.DAY_OF_MONTH)<<16
+			| c.get(Calendar.HOUR_OF_DAY)<<11 | c.get(Calendar.MINUTE)<<5 | c.get(Calendar.SECOND)>>1;
+		writeInt(0x04034b50);	// local file header
+		writeShort(20);			// version needed to extract
+		writeShort(0x0808);		// sizes in data descriptor, UTF-8 name
+		writeShort(ZipEntry.DEFLATED);
+		writeInt(dosTime);
+		writeInt(0);			// CRC and sizes follow the data
+		writeInt(0);
+		writeInt(0);
+		writeShort(this.name.length);
+		writeShort(0);
+		writeBytes(this.name, this.name.length);
+	}
+
+	public void write(int b) throws IOException {
+		block[count++] = (byte)b;
+		if (count==BLOCK_SIZE)
+			submitBlock(false);
+	}
+
+	public void write(byte[] b, int off, int len) throws IOException {
+		while (len>0) {
+			int n = Math.min(len, BLOCK_SIZE-count);
+			System.arraycopy(b, off, block, count, n);
+			count += n;
+			off += n;
+			len -= n;
+			if (count==BLOCK_SIZE)
+				submitBlock(false);
+		}
+	}
+
+	/** Compresses the current block on the thread pool; waits for the oldest
+		blocks if more than two blocks per thread are pending. */
+	private void submitBlock(final boolean last) throws IOException {
+		final byte[] data = block;
+		final int length = count;
+		final byte[] dict = dictionary;
+		crc.update(data, 0, length);
+		size += length;
+		if (length>0) {
+			int n = Math.min(length, DICTIONARY_SIZE);
+			dictionary = new byte[n];
+			System.arraycopy(data, length-n, dictionary, 0, n);
+		}
+		FutureTask<byte[]> task = new FutureTask<byte[]>(new Callable<byte[]>() {
+			public byte[] call() {
+				return deflate(data, length, dict, last);
+			}
+		});
+		int threads = Prefs.getThreads();
+		if (threads>1)
+			ThreadUtil.getPool().execute(task);
+		else
+			task.run();
+		pending.add(task);
+		block = last?null:new byte[BLOCK_SIZE];
+		count = 0;
+		while (pending.size()>2*threads)
+			writeBlock(pending.removeFirst());
+	}
+
+	private static byte[] deflate(byte[] data, int length, byte[] dictionary, boolean last) {
+		Deflater deflater = new Deflater(Deflater.DEFAULT_COMPRESSION, true);
+		if (dictionary!=null)
+			deflater.setDictionary(dictionary);
+		deflater.setInput(data, 0, length);
+		ByteArrayOutputStream out = new ByteArrayOutputStream(length/2+64);
+		byte[] buffer = new byte[65536];
+		if (last) {
+			deflater.finish();
+			while (!deflater.finished())
+				out.write(buffer, 0, deflater.deflate(buffer));
+		} else {
+			int n;
+			do {
+				n = deflater.deflate(buffer, 0, buffer.length, Deflater.SYNC_FLUSH);
+				out.write(buffer, 0, n);
+			} while (n==buffer.length);
+		}
+		deflater.end();
+		return out.toByteArray();
+	}
+
+	private void writeBlock(Future<byte[]> future) throws IOException {
+		byte[] bytes;
+		try {
+			bytes = future.get();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new InterruptedIOException("Saving interrupted");
+		} catch (ExecutionException e) {
+			throw new IOException(""+e.getCause());
+		}
+		writeBytes(bytes, bytes.length);
+		compressedSize += bytes.length;
+	}
+
+	/** Writes the remaining data, the data descriptor and the central
+		directory, and closes the underlying stream. */
+	public void close() throws IOException {
+		if (closed)
+			return;
+		closed = true;
+		try {
+			submitBlock(true);
+			while (pending.size()>0)
+				writeBlock(pending.removeFirst());
+			boolean zip64 = size>=ZIP64_LIMIT || compressedSize>=ZIP64_LIMIT;
+			writeInt(0x08074b50);	// data descriptor
+			writeInt((int)crc.getValue());
+			if (zip64) {
+				writeLong(compressedSize);
+				writeLong(size);
+			} else {
+				writeInt((int)compressedSize);
+				writeInt((int)size);
+			}
+			long directoryOffset = position;
+			int extraSize = (size>=ZIP64_LIMIT?8:0) + (compressedSize>=ZIP64_LIMIT?8:0);
+			writeInt(0x02014b50);	// central directory file header
+			writeShort(zip64?45:20);	// version made by
+			writeShort(zip64?45:20);	// version needed to extract
+			writeShort(0x0808);
+			writeShort(ZipEntry.DEFLATED);
+			writeInt(dosTime);
+			writeInt((int)crc.getValue());
+			writeInt(compressedSize>=ZIP64_LIMIT?-1:(int)compressedSize);
+			writeInt(size>=ZIP64_LIMIT?-1:(int)size);
+			writeShort(name.length);
+			writeShort(extraSize>0?extraSize+4:0);
+			writeShort(0);			// comment length
+			writeShort(0);			// disk number
+			writeShort(0);			// internal attributes
+			writeInt(0);			// external attributes
+			writeInt(0);			// offset of the local header
+			writeBytes(name, name.length);
+			if (extraSize>0) {
+				writeShort(1);		// ZIP64 extended information
+				writeShort(extraSize);
+				if (size>=ZIP64_LIMIT)
+					writeLong(size);
+				if (compressedSize>=ZIP64_LIMIT)
+					writeLong(compressedSize);
+			}
+			long directorySize = position - directoryOffset;
+			if (directoryOffset>=ZIP64_LIMIT) {
+				long recordOffset = position;
+				writeInt(0x06064b50);	// ZIP64 end of central directory record
+				writeLong(44);
+				writeShort(45);
+				writeShort(45);
+				writeInt(0);
+				writeInt(0);
+				writeLong(1);
+				writeLong(1);
+				writeLong(directorySize);
+				writeLong(directoryOffset);
+				writeInt(0x07064b50);	// ZIP64 end of central directory locator
+				writeInt(0);
+				writeLong(recordOffset);
+				writeInt(1);
+			}
+			writeInt(0x06054b50);	// end of central directory record
+			writeShort(0);
+			writeShort(0);
+			writeShort(1);
+			writeShort(1);
+			writeInt((int)directorySize);
+			writeInt(directoryOffset>=ZIP64_LIMIT?-1:(int)directoryOffset);
+			writeShort(0);
+		} finally {
+			for (Future<byte[]> future : pending)
+				future.cancel(true);
+			out.close();
+		}
+	}
+
+	private void writeBytes(byte[] b, int len) throws IOException {
+		out.write(b, 0, len);
+		position += len;
+	}
+
+	private void writeShort(int v) throws IOException {
+		buffer[0] = (byte)v;
+		buffer[1] = (byte)(v>>>8);
+		writeBytes(buffer, 2);
+	}
+
+	private void writeInt(int v) throws IOException {
+		for (int i=0; i<4; i++)
+			buffer[i] = (byte)(v>>>(8*i));
+		writeBytes(buffer, 4);
+	}
+
+	private void writeLong(long v) throws IOException {
+		for (int i=0; i<8; i++)
+			buffer[i] = (byte)(v>>>(8*i));
+		writeBytes(buffer, 8);
+	}
+
+}
@@ -0,0 +1,184 @@
+package ij.io;
+import java.io.*;
+import java.util.Arrays;
+
+/** Reads the lines of a part of a text file as raw bytes, so that large
+	text files (e.g. tables) can be parsed by several threads and without
+	creating a String for each line. Use getChunks() to split a file into
+	parts that start at the beginning of a line; each part is then read by
+	its own TextChunkReader. As with BufferedReader.readLine, lines end with
+	"\n", "\r" or "\r\n".
+	@see ij.measure.ResultsTable#open(String,String[],int,int)
+	@see ij.plugin.TextReader
+*/
+public class TextChunkReader {
+	private static final int BUFFER_SIZE = 1<<20;
+	private static final double[] POWERS_OF_TEN = {1e0, 1e1, 1e2, 1e3, 1e4, 1e5, 1e6, 1e7, 1e8, 1e9,
+		1e10, 1e11, 1e12, 1e13, 1e14, 1e15, 1e16, 1e17, 1e18, 1e19, 1e20, 1e21, 1e22};
+
+	private RandomAccessFile raf;
+	private long end;
+	private long bufferPosition;	// file position of buffer[0]
+	private byte[] buffer = new byte[BUFFER_SIZE];
+	private int count;				// number of valid bytes in the buffer
+	private int position;			// start of the next line in the buffer
+
+	/** The current line, from bytes[lineStart] to bytes[lineEnd-1], without line separator. */
+	public byte[] bytes;
+	public int lineStart, lineEnd;
+	/** 'true' if the current line is followed by a line separator. */
+	public boolean terminated;
+
+	/** Reads the lines of file 'path' that start at positions from 'start'
+		(which must be the beginning of a line) to 'end'-1. */
+	public TextChunkReader(String path, long start, long end) throws IOException {
+		raf = new RandomAccessFile(path, "r");
+		raf.seek(start);
+		bufferPosition = start;
+		this.end = end;
+		bytes = buffer;
+	}
+
+	/** Returns the start positions of 'n' parts of about equal size of the
+		file 'path', followed by the length of the file. Each part starts at the
+		beginning of a line; parts may be empty. */
+	public static long[] getChunks(String path, int n) throws IOException {
+		RandomAccessFile raf = new RandomAccessFile(path, "r");
+		try {
+			long length = raf.length();
+			long[] starts = new long[n+1];
+			starts[n] = length;
+			byte[] b = new byte[65536];
+			for (int k=1; k<n; k++) {
+				long start = Math.max(length*k/n, starts[k-1]);
+				if (start==0L) continue;
+				raf.seek(start-1);	// the line starts after a '\n', or after a '\r' not followed by '\n'
+				int previous = raf.read();
+				long pos = start;
+				starts[k] = length;
+				search:
+				while (pos<length) {
+					int len = raf.read(b);
+					if (len<=0) break;
+					for (int i=0; i<len; i++, pos++) {
+						if (previous=='\n' || (previous=='\r' && b[i]!='\n')) {
+							starts[k] = pos;
+							break search;
+						}
+						previous = b[i];
+					}
+				}
+			}
+			return starts;
+		} finally {
+			raf.close();
+		}
+	}
+
+	/** Reads the next line; returns 'false' if there are no more lines
+		that start before the end of the part. */
+	public boolean nextLine() throws IOException {
+		if (bufferPosition+position>=end)
+			return false;
+		int i = 0;	// relative to 'position'
+		boolean eof = false;
+		while (true) {
+			if (position+i==count && !fill()) {
+				eof = true;
+				break;
+			}
+			byte b = buffer[position+i];
+			if (b=='\n' || b=='\r')
+				break;
+			i++;
+		}
+		lineStart = position;
+		lineEnd = position + i;
+		bytes = buffer;
+		if (eof) {
+			terminated = false;
+			position = lineEnd;
+			return lineEnd>lineStart;
+		}
+		terminated = true;
+		int next = i + 1;
+		if (buffer[position+i]=='\r') {
+			if (position+next==count)
+				fill();
+			if (position+next<count && buffer[position+next]=='\n')
+				next++;
+			lineStart = position;
+			lineEnd = position + i;
+			bytes = buffer;
+		}
+		position += next;
+		return true;
+	}
+
+	/** Moves the unread bytes to the beginning of the buffer, enlarging it if it
+		is full, and reads more bytes. Returns 'false' at the end of the file. */
+	private boolean fill() throws IOException {
+		if (position>0) {
+			System.arraycopy(buffer, position, buffer, 0, count-position);
+			count -= position;
+			bufferPosition += position;
+			position = 0;
+		}
+		if (count==buffer.length)
+			buffer = Arrays.copyOf(buffer, buffer.length*2);
+		int n = raf.read(buffer, count, buffer.length-count);
+		if (n<=0)
+			return false;
+		count += n;
+		return true;
+	}
+
+	public void close() throws IOException {
+		raf.close();
+	}
+
+	/** Returns the value of the number in bytes[start] to bytes[end-1], or NaN
+		if it is not a number. The result is the same as with Tools.parseDouble,
+		but decimal numbers with up to 15 digits are converted without creating
+		a String. */
+	public static double parseDouble(byte[] bytes, int start, int end) {
+		int i = start, e = end;
+		while (i<e && (bytes[i]&255)<=' ') i++;
+		while (e>i && (bytes[e-1]&255)<=' ') e--;
+		boolean negative = false;
+		if (i<e && (bytes[i]=='-' || bytes[i]=='+')) {
+			negative = bytes[i]=='-';
+			i++;
+		}
+		long mantissa = 0L;
+		int scale = 0;
+		boolean point=false, digits=false, simple=true;
+		for (; i<e; i++) {
+			int c = bytes[i];
+			if (c>='0' && c<='9') {
+				if (mantissa>=1L<<53) {
+					simple = false;
+					break;
+				}
+				mantissa = mantissa*10 + (c-'0');
+				digits = true;
+				if (point) scale++;
+			} else if (c=='.' && !point)
+				point = true;
+			else {
+				simple = false;
+				break;
+			}
+		}
+		if (simple && digits && mantissa<=1L<<53 && scale<POWERS_OF_TEN.length) {
+			double value = scale==0?mantissa:mantissa/POWERS_OF_TEN[scale];
+			return negative?-value:value;
+		}
+		try {
+			return Double.parseDouble(new String(bytes, start, end-start, "ISO-8859-1"));
+		} catch (Exception ex) {
+			return Double.NaN;
+		}
+	}
+
+}
@@ -34,6 +34,10 @@ public class TiffDecoder {
 	public static final int PREDICTOR = 317;
 	public static final int COLOR_MAP = 320;
 	public static final int TILE_WIDTH = 322;
+	public static final int TILE_LENGTH = 323;
+	public static final int TILE_OFFSETS = 324;
+	public static final int TILE_BYTE_COUNTS = 325;
+	public static final int SUB_IFDS = 330;
 	public static final int SAMPLE_FORMAT = 339;
 	public static final int JPEG_TABLES = 347;
 	public static final int METAMORPH1 = 33628;
@@ -333,6 +337,11 @@ public class TiffDecoder {
 			case COMPRESSION: name="Compression"; break; 
 			case PREDICTOR: name="Predictor"; break; 
 			case COLOR_MAP: name="ColorMap"; break; 
+			case TILE_WIDTH: name="TileWidth"; break; 
+			case TILE_LENGTH: name="TileLength"; break; 
+			case TILE_OFFSETS: name="TileOffsets"; break; 
+			case TILE_BYTE_COUNTS: name="TileByteCounts"; break; 
+			case SUB_IFDS: name="SubIFDs"; break; 
 			case SAMPLE_FORMAT: name="SampleFormat"; break; 
 			case JPEG_TABLES: name="JPEGTables"; break; 
 			case NIH_IMAGE_HDR: name="NIHImageHeader"; break; 
@@ -366,6 +375,7 @@ public class TiffDecoder {
 			ij.IJ.showStatus("Opening IFDs: "+ifdCount);
 		FileInfo fi = new FileInfo();
 		fi.fileType = FileInfo.BITMAP;  //BitsPerSample defaults to 1
+		long[] subIFDs = null;
 		for (int i=0; i<nEntries; i++) {
 			tag = getShort();
 			fieldType = getShort();
@@ -381,7 +391,7 @@ public class TiffDecoder {
 				case IMAGE_LENGTH: 
 					fi.height = value;
 					break;
- 				case STRIP_OFFSETS:
+ 				case STRIP_OFFSETS: case TILE_OFFSETS:
 					if (count==1)
 						fi.stripOffsets = new int[] {value};
 					else {
@@ -396,7 +406,7 @@ public class TiffDecoder {
 					if (count>1 && (((long)fi.stripOffsets[count-1])&0xffffffffL)<(((long)fi.stripOffsets[0])&0xffffffffL))
 						fi.offset = fi.stripOffsets[count-1];
 					break;
-				case STRIP_BYTE_COUNT:
+				case STRIP_BYTE_COUNT: case TILE_BYTE_COUNTS:
 					if (count==1)
 						fi.stripLengths = new int[] {value};
 					else {
@@ -523,7 +533,22 @@ public class TiffDecoder {
 						getColorMap(lvalue, fi);
 					break;
 				case TILE_WIDTH:
-					error("ImageJ cannot open tiled TIFFs.\nTry using the Bio-Formats plugin.");
+					fi.tileWidth = value;
+					break;
+				case TILE_LENGTH:
+					fi.tileHeight = value;
+					break;
+				case SUB_IFDS:
+					subIFDs = new long[count];
+					if (count==1)
+						subIFDs[0] = lvalue;
+					else {
+						long saveLoc = in.getLongFilePointer();
+						in.seek(lvalue);
+						for (int c=0; c<count; c++)
+							subIFDs[c] = getUnsignedInt();
+						in.seek(saveLoc);
+					}
 					break;
 				case SAMPLE_FORMAT:
 					if (fi.fileType==FileInfo.GRAY32_INT && value==FLOATING_POINT)
@@ -584,9 +609,56 @@ public class TiffDecoder {
 		fi.directory = directory;
 		if (url!=null)
 			fi.url = url;
+		if (fi.tileWidth>0)
+			checkTiles(fi);
+		if (subIFDs!=null)
+			fi.pyramid = getSubIFDs(subIFDs, fi);
 		return fi;
 	}
 
+	/** Checks that ImageJ can read the tiles of 'fi' and sets
+		fi.offset to the offset of the first tile in the file. */
+	void checkTiles(FileInfo fi) throws IOException {
+		switch (fi.fileType) {
+			case FileInfo.GRAY8: case FileInfo.COLOR8:
+			case FileInfo.GRAY16_SIGNED: case FileInfo.GRAY16_UNSIGNED:
+			case FileInfo.GRAY32_INT: case FileInfo.GRAY32_UNSIGNED: case FileInfo.GRAY32_FLOAT:
+			case FileInfo.RGB: case FileInfo.ARGB: case FileInfo.CMYK:
+				break;
+			default:
+				error("ImageJ cannot open tiled TIFFs of this type.\nTry using the Bio-Formats plugin.");
+		}
+		if (fi.compression==FileInfo.COMPRESSION_UNKNOWN || fi.compression==FileInfo.JPEG)
+			error("ImageJ cannot open tiled TIFFs compressed in this fashion.");
+		if (fi.tileHeight<=0 || fi.stripOffsets==null || fi.stripLengths==null)
+			error("Invalid tiled TIFF: missing TileLength, TileOffsets or TileByteCounts");
+		int nTiles = ((fi.width+fi.tileWidth-1)/fi.tileWidth) * ((fi.height+fi.tileHeight-1)/fi.tileHeight);
+		if (fi.stripOffsets.length<nTiles || fi.stripLengths.length<nTiles)
+			error("Invalid tiled TIFF: "+fi.stripOffsets.length+" tiles, "+nTiles+" expected");
+		long min = Long.MAX_VALUE;
+		for (int i=0; i<nTiles; i++)
+			min = Math.min(min, fi.stripOffsets[i]&0xffffffffL);
+		fi.offset = 0;
+		fi.longOffset = min;
+	}
+
+	/** Decodes the reduced-resolution images (SubIFDs) of the image 'fi'. */
+	FileInfo[] getSubIFDs(long[] offsets, FileInfo fi) throws IOException {
+		ArrayList<FileInfo> list = new ArrayList<FileInfo>();
+		long saveLoc = in.getLongFilePointer();
+		for (int i=0; i<offsets.length; i++) {
+			in.seek(offsets[i]);
+			FileInfo level = OpenIFD();
+			if (level!=null && level.width>0 && level.width<fi.width && level.fileType==fi.fileType
+			&& level.stripOffsets!=null) {
+				level.nImages = 1;
+				list.add(level);
+			}
+		}
+		in.seek(saveLoc);
+		return list.size()>0?list.toArray(new FileInfo[list.size()]):null;
+	}
+
 	void getMetaData(int loc, FileInfo fi) throws IOException {
 		if (metaDataCounts==null || metaDataCounts.length==0)
 			return;
@@ -779,7 +851,7 @@ public class TiffDecoder {
 			} else
 				ifdOffset = 0L;
 			if (debugMode && ifdCount<10) dInfo += "  nextIFD=" + ifdOffset + "\n";
-			if (fi!=null && fi.nImages>1)
+			if (fi!=null && fi.nImages>1 && fi.compression<=FileInfo.COMPRESSION_NONE)
 				ifdOffset = 0L;   // ignore extra IFDs in ImageJ and NIH Image stacks
 		}
 		if (list.size()==0) {
@@ -796,6 +868,8 @@ public class TiffDecoder {
 			if (info[0].info==null)
 				info[0].info = tiffMetadata;
 			FileInfo fi = info[0];
+			if (info.length>1 && fi.compression>FileInfo.COMPRESSION_NONE)
+				fi.nImages = 1;   // compressed ImageJ stack, images are described by their IFDs
 			if (fi.fileType==FileInfo.GRAY16_UNSIGNED && fi.description==null)
 				fi.lutSize = 0; // ignore troublesome non-ImageJ 16-bit LUTs
 			if (debugMode) {
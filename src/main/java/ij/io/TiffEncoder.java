@@ -1,12 +1,18 @@
 package ij.io;
 import java.io.*;
+import java.util.concurrent.*;
 
-/**Saves an image described by a FileInfo object as an uncompressed, big-endian TIFF file.*/
+/**Saves an image described by a FileInfo object as an uncompressed, big-endian TIFF file.
+	Single images are written as tiles if fi.tileWidth>0, with the
+	reduced-resolution images in fi.pyramid (if any) as SubIFDs.
+	Images and stacks are written as ZIP (deflate) or LZW compressed
+	strips if fi.compression is FileInfo.ZIP or FileInfo.LZW.*/
 public class TiffEncoder {
 	static final int HDR_SIZE = 8;
 	static final int MAP_SIZE = 768; // in 16-bit words
 	static final int BPS_DATA_SIZE = 6;
 	static final int SCALE_DATA_SIZE = 16;
+	static final int STRIP_SIZE = 65536; // uncompressed bytes per strip of compressed images
 		
 	private FileInfo fi;
 	private int bitsPerSample;
@@ -27,10 +33,30 @@ public class TiffEncoder {
 	private boolean littleEndian = ij.Prefs.intelByteOrder;
 	private byte buffer[] = new byte[8];
 	private int colorMapSize = 0;
+	private long ifdOffset = HDR_SIZE;
+	private boolean reducedResolution;
+	private boolean tiled;
+	private int tileWidth, tileHeight, nTiles;
+	private int tileArraysSize;	// TileOffsets and TileByteCounts, if more than one tile
+	private int subIFDsSize;	// SubIFD offsets, if more than one level
+	private TiffEncoder[] levels;
+	private boolean compressed;
+	private int rowsPerStrip, nStrips;
+	private int stripArraysSize;	// StripOffsets and StripByteCounts, if more than one strip
+	private long stripArraysOffset;
+	private int[] stripByteCounts;	// of the compressed image being written
 
 		
 	public TiffEncoder (FileInfo fi) {
+		this(fi, HDR_SIZE, false);
+	}
+
+	/** Creates an encoder for an image whose IFD is written at file position
+		'ifdOffset'; 'reducedResolution' is true for the levels of a pyramid. */
+	private TiffEncoder (FileInfo fi, long ifdOffset, boolean reducedResolution) {
 		this.fi = fi;
+		this.ifdOffset = ifdOffset;
+		this.reducedResolution = reducedResolution;
 		fi.intelByteOrder = littleEndian;
 		bitsPerSample = 8;
 		samplesPerPixel = 1;
@@ -87,27 +113,75 @@ public class TiffEncoder {
 			nEntries += 3; // XResolution, YResolution and ResolutionUnit
 		if (fi.fileType==fi.GRAY32_FLOAT)
 			nEntries++; // SampleFormat tag
-		makeDescriptionString();
+		if (!reducedResolution)
+			makeDescriptionString();
 		if (description!=null)
 			nEntries++;  // ImageDescription tag
 		long size = (long)fi.width*fi.height*bytesPerPixel;
+		tiled = fi.tileWidth>0 && fi.nImages==1 && bytesPerPixel>0 && fi.fileType!=FileInfo.RGB48;
+		if (tiled) {
+			tileWidth = roundUp(fi.tileWidth);
+			tileHeight = roundUp(fi.tileHeight>0?fi.tileHeight:fi.tileWidth);
+			nTiles = ((fi.width+tileWidth-1)/tileWidth)*((fi.height+tileHeight-1)/tileHeight);
+			size = (long)nTiles*tileWidth*tileHeight*bytesPerPixel;
+			nEntries++; // TileWidth, TileLength, TileOffsets & TileByteCounts instead of 3 strip tags
+			if (nTiles>1)
+				tileArraysSize = nTiles*8;
+			if (!reducedResolution && fi.pyramid!=null && fi.pyramid.length>0) {
+				nEntries++; // SubIFDs
+				if (fi.pyramid.length>1)
+					subIFDsSize = fi.pyramid.length*4;
+			}
+		}
+		compressed = !tiled && (fi.compression==FileInfo.ZIP||fi.compression==FileInfo.LZW)
+			&& (fi.fileType==FileInfo.GRAY8||fi.fileType==FileInfo.COLOR8||fi.fileType==FileInfo.GRAY16_UNSIGNED
+			||fi.fileType==FileInfo.GRAY16_SIGNED||fi.fileType==FileInfo.GRAY32_FLOAT||fi.fileType==FileInfo.RGB);
+		if (compressed) {
+			nEntries++; // Compression
+			rowsPerStrip = Math.max(1, Math.min(fi.height, STRIP_SIZE/(fi.width*bytesPerPixel)));
+			nStrips = (fi.height+rowsPerStrip-1)/rowsPerStrip;
+			if (nStrips>1)
+				stripArraysSize = nStrips*8;
+		}
 		imageSize = size<=0xffffffffL?(int)size:0;
 		stackSize = (long)imageSize*fi.nImages;
-		metaDataSize = getMetaDataSize();
+		metaDataSize = reducedResolution?0:getMetaDataSize();
 		if (metaDataSize>0)
 			nEntries += 2; // MetaData & MetaDataCounts
 		ifdSize = 2 + nEntries*12 + 4;
 		int descriptionSize = description!=null?description.length:0;
 		scaleSize = fi.unit!=null && fi.pixelWidth!=0 && fi.pixelHeight!=0?SCALE_DATA_SIZE:0;
-		imageOffset = HDR_SIZE+ifdSize+bpsSize+descriptionSize+scaleSize+colorMapSize + nMetaDataEntries*4 + metaDataSize;
-		fi.offset = (int)imageOffset;
+		imageOffset = ifdOffset+ifdSize+bpsSize+descriptionSize+scaleSize+tileArraysSize+subIFDsSize+colorMapSize + nMetaDataEntries*4 + metaDataSize + stripArraysSize;
+		if (!reducedResolution)
+			fi.offset = (int)imageOffset;
+		if (tiled && !reducedResolution && fi.pyramid!=null && fi.pyramid.length>0) {
+			levels = new TiffEncoder[fi.pyramid.length];
+			long offset = imageOffset + imageSize;
+			for (int i=0; i<levels.length; i++) {
+				FileInfo level = fi.pyramid[i];
+				level.tileWidth = tileWidth;
+				level.tileHeight = tileHeight;
+				level.nImages = 1;
+				levels[i] = new TiffEncoder(level, offset, true);
+				offset = levels[i].imageOffset + levels[i].imageSize;
+			}
+		}
 		//ij.IJ.log(imageOffset+", "+ifdSize+", "+bpsSize+", "+descriptionSize+", "+scaleSize+", "+colorMapSize+", "+nMetaDataEntries*4+", "+metaDataSize);
 	}
+
+	/** Tile sizes must be multiples of 16. */
+	private static int roundUp(int size) {
+		return Math.max((size+15)/16*16, 16);
+	}
 	
 	/** Saves the image as a TIFF file. The OutputStream is not closed.
 		The fi.pixels field must contain the image data. If fi.nImages>1
 		then fi.pixels must be a 2D array. The fi.offset field is ignored. */
 	public void write(OutputStream out) throws IOException {
+		if (compressed) {
+			writeCompressed(out);
+			return;
+		}
 		writeHeader(out);
 		long nextIFD = 0L;
 		if (fi.nImages>1)
@@ -116,17 +190,18 @@ public class TiffEncoder {
 		if (bigTiff)
 			nextIFD = 0L;
 		writeIFD(out, (int)imageOffset, (int)nextIFD);
-		if (fi.fileType==FileInfo.RGB||fi.fileType==FileInfo.RGB48)
-			writeBitsPerPixel(out);
-		if (description!=null)
-			writeDescription(out);
-		if (scaleSize>0)
-			writeScale(out);
-		if (colorMapSize>0)
-			writeColorMap(out);
-		if (metaDataSize>0)
-			writeMetaData(out);
-		new ImageWriter(fi).write(out);
+		writeTagData(out);
+		if (tiled)
+			new ImageWriter(fi).writeTiles(out, tileWidth, tileHeight);
+		else
+			new ImageWriter(fi).write(out);
+		if (levels!=null) {
+			for (int i=0; i<levels.length; i++) {
+				levels[i].writeIFD(out, (int)levels[i].imageOffset, 0);
+				levels[i].writeTagData(out);
+				new ImageWriter(levels[i].fi).writeTiles(out, tileWidth, tileHeight);
+			}
+		}
 		if (nextIFD>0L) {
 			int ifdSize2 = ifdSize;
 			if (metaDataSize>0) {
@@ -150,6 +225,122 @@ public class TiffEncoder {
 		write((OutputStream)out);
 	}
 
+	/** Writes a compressed image or stack in one pass: each IFD is followed
+		by the StripOffsets and StripByteCounts arrays and by the compressed
+		strips of its image. The strips of the next image are compressed
+		in parallel while the current image is written. */
+	private void writeCompressed(OutputStream out) throws IOException {
+		ImageWriter writer = new ImageWriter(fi);
+		writeHeader(out);
+		int ifdSize2 = metaDataSize>0?ifdSize-2*12:ifdSize;	// IFDs of the other images have no metadata
+		long ifdPosition = HDR_SIZE;
+		Future<byte[][]> next = compress(writer, 1);
+		for (int n=1; n<=fi.nImages; n++) {
+			byte[][] strips = getStrips(next);
+			if (n<fi.nImages)
+				next = compress(writer, n+1);
+			if (n==2 && metaDataSize>0) {
+				metaDataSize = 0;
+				nEntries -= 2;
+			}
+			if (n>1)
+				imageOffset = ifdPosition+ifdSize2+stripArraysSize;
+			stripArraysOffset = imageOffset-stripArraysSize;
+			stripByteCounts = new int[strips.length];
+			long end = imageOffset;
+			for (int i=0; i<strips.length; i++) {
+				stripByteCounts[i] = strips[i].length;
+				end += strips[i].length;
+			}
+			long nextIFD = n<fi.nImages?end+(end&1):0L;	// IFDs must begin on a word boundary
+			if (end+(n<fi.nImages?ifdSize2:0)>0xffffffffL)
+				throw new IOException("Compressed TIFF files larger than 4GB are not supported");
+			if (fi.nImages>1)
+				ij.IJ.showStatus("Writing: " + n + "/" + fi.nImages);
+			writeIFD(out, (int)imageOffset, (int)nextIFD);
+			if (n==1)
+				writeTagData(out);
+			if (stripArraysSize>0) {
+				long offset = imageOffset;
+				for (int i=0; i<strips.length; i++) {
+					writeInt(out, (int)offset);
+					offset += strips[i].length;
+				}
+				for (int i=0; i<strips.length; i++)
+					writeInt(out, strips[i].length);
+			}
+			for (int i=0; i<strips.length; i++)
+				out.write(strips[i]);
+			if (nextIFD>end)
+				out.write(0);
+			ifdPosition = nextIFD;
+			if (fi.nImages>1)
+				ij.IJ.showProgress(n, fi.nImages);
+		}
+	}
+
+	/** Starts compressing image 'n' on the shared thread pool; with
+		one thread, the image is compressed immediately. */
+	private Future<byte[][]> compress(final ImageWriter writer, final int n) {
+		FutureTask<byte[][]> task = new FutureTask<byte[][]>(new Callable<byte[][]>() {
+			public byte[][] call() {
+				return writer.compressStrips(n, rowsPerStrip);
+			}
+		});
+		if (ij.Prefs.getThreads()>1)
+			ij.util.ThreadUtil.getPool().execute(task);
+		else
+			task.run();
+		return task;
+	}
+
+	private byte[][] getStrips(Future<byte[][]> future) throws IOException {
+		try {
+			return future.get();
+		} catch (InterruptedException e) {
+			future.cancel(true);
+			Thread.currentThread().interrupt();
+			throw new InterruptedIOException("Saving interrupted");
+		} catch (ExecutionException e) {
+			Throwable cause = e.getCause();
+			if (cause instanceof RuntimeException)
+				throw (RuntimeException)cause;
+			if (cause instanceof Error)
+				throw (Error)cause;
+			throw new IOException(""+cause);
+		}
+	}
+
+	/** Writes the values of the IFD entries that do not fit into the
+		entries, in the order of the offsets assigned by writeIFD. */
+	void writeTagData(OutputStream out) throws IOException {
+		if (fi.fileType==FileInfo.RGB||fi.fileType==FileInfo.RGB48)
+			writeBitsPerPixel(out);
+		if (description!=null)
+			writeDescription(out);
+		if (scaleSize>0)
+			writeScale(out);
+		if (tileArraysSize>0)
+			writeTileArrays(out);
+		if (subIFDsSize>0) {
+			for (int i=0; i<levels.length; i++)
+				writeInt(out, (int)levels[i].ifdOffset);
+		}
+		if (colorMapSize>0)
+			writeColorMap(out);
+		if (metaDataSize>0)
+			writeMetaData(out);
+	}
+
+	/** Writes the TileOffsets and TileByteCounts arrays. */
+	void writeTileArrays(OutputStream out) throws IOException {
+		int tileSize = imageSize/nTiles;
+		for (int i=0; i<nTiles; i++)
+			writeInt(out, (int)(imageOffset+(long)i*tileSize));
+		for (int i=0; i<nTiles; i++)
+			writeInt(out, tileSize);
+	}
+
 	int getMetaDataSize() {
 		nSliceLabels = 0;
 		nMetaDataEntries = 0;
@@ -272,9 +463,9 @@ public class TiffEncoder {
 	
 	/** Writes one IFD (Image File Directory). */
 	void writeIFD(OutputStream out, int imageOffset, int nextIFD) throws IOException {	
-		int tagDataOffset = HDR_SIZE + ifdSize;
+		int tagDataOffset = (int)ifdOffset + ifdSize;
 		writeShort(out, nEntries);
-		writeEntry(out, TiffDecoder.NEW_SUBFILE_TYPE, 4, 1, 0);
+		writeEntry(out, TiffDecoder.NEW_SUBFILE_TYPE, 4, 1, reducedResolution?1:0);
 		writeEntry(out, TiffDecoder.IMAGE_WIDTH, 4, 1, fi.width);
 		writeEntry(out, TiffDecoder.IMAGE_LENGTH, 4, 1, fi.height);
 		if (fi.fileType==FileInfo.RGB||fi.fileType==FileInfo.RGB48) {
@@ -282,15 +473,28 @@ public class TiffEncoder {
 			tagDataOffset += BPS_DATA_SIZE;
 		} else
 			writeEntry(out, TiffDecoder.BITS_PER_SAMPLE,  3, 1, bitsPerSample);
+		if (compressed)
+			writeEntry(out, TiffDecoder.COMPRESSION, 3, 1, fi.compression==FileInfo.ZIP?8:5);
 		writeEntry(out, TiffDecoder.PHOTO_INTERP,     3, 1, photoInterp);
 		if (description!=null) {
 			writeEntry(out, TiffDecoder.IMAGE_DESCRIPTION, 2, description.length, tagDataOffset);
 			tagDataOffset += description.length;
 		}
-		writeEntry(out, TiffDecoder.STRIP_OFFSETS,    4, 1, imageOffset);
+		if (compressed && nStrips>1)
+			writeEntry(out, TiffDecoder.STRIP_OFFSETS,    4, nStrips, (int)stripArraysOffset);
+		else if (!tiled)
+			writeEntry(out, TiffDecoder.STRIP_OFFSETS,    4, 1, imageOffset);
 		writeEntry(out, TiffDecoder.SAMPLES_PER_PIXEL,3, 1, samplesPerPixel);
-		writeEntry(out, TiffDecoder.ROWS_PER_STRIP,   3, 1, fi.height);
-		writeEntry(out, TiffDecoder.STRIP_BYTE_COUNT, 4, 1, imageSize);
+		if (compressed) {
+			writeEntry(out, TiffDecoder.ROWS_PER_STRIP,   3, 1, rowsPerStrip);
+			if (nStrips>1)
+				writeEntry(out, TiffDecoder.STRIP_BYTE_COUNT, 4, nStrips, (int)stripArraysOffset+nStrips*4);
+			else
+				writeEntry(out, TiffDecoder.STRIP_BYTE_COUNT, 4, 1, stripByteCounts[0]);
+		} else if (!tiled) {
+			writeEntry(out, TiffDecoder.ROWS_PER_STRIP,   3, 1, fi.height);
+			writeEntry(out, TiffDecoder.STRIP_BYTE_COUNT, 4, 1, imageSize);
+		}
 		if (fi.unit!=null && fi.pixelWidth!=0 && fi.pixelHeight!=0) {
 			writeEntry(out, TiffDecoder.X_RESOLUTION, 5, 1, tagDataOffset);
 			writeEntry(out, TiffDecoder.Y_RESOLUTION, 5, 1, tagDataOffset+8);
@@ -302,6 +506,26 @@ public class TiffEncoder {
 				unit = 3;
 			writeEntry(out, TiffDecoder.RESOLUTION_UNIT, 3, 1, unit);
 		}
+		if (tiled) {
+			writeEntry(out, TiffDecoder.TILE_WIDTH, 4, 1, tileWidth);
+			writeEntry(out, TiffDecoder.TILE_LENGTH, 4, 1, tileHeight);
+			if (nTiles==1) {
+				writeEntry(out, TiffDecoder.TILE_OFFSETS, 4, 1, imageOffset);
+				writeEntry(out, TiffDecoder.TILE_BYTE_COUNTS, 4, 1, imageSize);
+			} else {
+				writeEntry(out, TiffDecoder.TILE_OFFSETS, 4, nTiles, tagDataOffset);
+				writeEntry(out, TiffDecoder.TILE_BYTE_COUNTS, 4, nTiles, tagDataOffset+nTiles*4);
+				tagDataOffset += tileArraysSize;
+			}
+			if (levels!=null) {
+				if (levels.length==1)
+					writeEntry(out, TiffDecoder.SUB_IFDS, 4, 1, (int)levels[0].ifdOffset);
+				else {
+					writeEntry(out, TiffDecoder.SUB_IFDS, 4, levels.length, tagDataOffset);
+					tagDataOffset += subIFDsSize;
+				}
+			}
+		}
 		if (fi.fileType==fi.GRAY32_FLOAT) {
 			int format = TiffDecoder.FLOATING_POINT;
 			writeEntry(out, TiffDecoder.SAMPLE_FORMAT, 3, 1, format);
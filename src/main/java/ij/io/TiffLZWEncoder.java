@@ -0,0 +1,112 @@
+package ij.io;
+
+/** Compresses data with the LZW variant used by TIFF (compression 5):
+	MSB-first codes of 9 to 12 bits, with the code width increased one
+	code early, as expected by ImageReader.lzwUncompress(). */
+public class TiffLZWEncoder {
+
+	private static final int CLEAR_CODE = 256;
+	private static final int EOI_CODE = 257;
+	private static final int FIRST_CODE = 258;
+	private static final int MAX_CODE = 4094;	// emit CLEAR_CODE before the table overflows
+	private static final int HASH_SIZE = 8192;	// power of 2, larger than the number of codes
+
+	private int[] hashKeys = new int[HASH_SIZE];
+	private short[] hashCodes = new short[HASH_SIZE];
+	private byte[] out;
+	private int outPos;
+	private int bitBuffer, bitCount;
+
+	/** Returns the LZW-compressed version of 'data'. */
+	public static byte[] encode(byte[] data) {
+		return new TiffLZWEncoder().compress(data, 0, data.length);
+	}
+
+	/** Returns the LZW-compressed version of 'length' bytes of 'data',
+		starting at 'offset'. */
+	public byte[] compress(byte[] data, int offset, int length) {
+		out = new byte[length/2 + 64];
+		outPos = 0;
+		bitBuffer = 0;
+		bitCount = 0;
+		int bits = 9;
+		clearTable();
+		int nextCode = FIRST_CODE;
+		putCode(CLEAR_CODE, bits);
+		if (length==0) {
+			putCode(EOI_CODE, bits);
+			return finish();
+		}
+		int prefix = data[offset]&0xff;
+		int end = offset + length;
+		for (int i=offset+1; i<end; i++) {
+			int c = data[i]&0xff;
+			int key = (prefix<<8) | c;
+			int slot = find(key);
+			if (hashKeys[slot]==key+1) {	// (keys are stored +1, 0 marks empty slots)
+				prefix = hashCodes[slot];
+				continue;
+			}
+			putCode(prefix, bits);
+			hashKeys[slot] = key+1;
+			hashCodes[slot] = (short)nextCode;
+			nextCode++;
+			if (nextCode==(1<<bits) && bits<12)
+				bits++;
+			if (nextCode>=MAX_CODE) {
+				putCode(CLEAR_CODE, bits);
+				clearTable();
+				nextCode = FIRST_CODE;
+				bits = 9;
+			}
+			prefix = c;
+		}
+		putCode(prefix, bits);
+		nextCode++;		// the decoder adds a table entry for the last code as well
+		if (nextCode==(1<<bits) && bits<12)
+			bits++;
+		putCode(EOI_CODE, bits);
+		return finish();
+	}
+
+	private int find(int key) {
+		int slot = (key*0x9E3779B1)>>>19;	// 13 bits
+		while (hashKeys[slot]!=0 && hashKeys[slot]!=key+1)
+			slot = (slot+1)&(HASH_SIZE-1);
+		return slot;
+	}
+
+	private void clearTable() {
+		java.util.Arrays.fill(hashKeys, 0);
+	}
+
+	private void putCode(int code, int bits) {
+		bitBuffer = (bitBuffer<<bits) | code;
+		bitCount += bits;
+		while (bitCount>=8) {
+			bitCount -= 8;
+			putByte(bitBuffer>>>bitCount);
+		}
+		bitBuffer &= (1<<bitCount)-1;
+	}
+
+	private void putByte(int b) {
+		if (outPos==out.length) {
+			byte[] out2 = new byte[out.length*2];
+			System.arraycopy(out, 0, out2, 0, outPos);
+			out = out2;
+		}
+		out[outPos++] = (byte)b;
+	}
+
+	private byte[] finish() {
+		if (bitCount>0)
+			putByte(bitBuffer<<(8-bitCount));
+		bitCount = 0;
+		byte[] result = new byte[outPos];
+		System.arraycopy(out, 0, result, 0, outPos);
+		out = null;
+		return result;
+	}
+
+}
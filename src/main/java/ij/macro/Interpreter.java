@@ -36,6 +36,10 @@ public class Interpreter implements MacroConstants {
 	int topOfStack = -1;
 	int topOfGlobals = -1;
 	int startOfLocals = 0;
+	int stackVersion;	// incremented when variables are pushed, popped or renamed
+	private Program cachedProgram;	// program of the cached slots and skip targets
+	private int[] slots, slotVersions;	// stack index of the topmost variable of each symbol
+	private int[] skipTargets;	// end of the statements skipped before (+1), by start location
 
 	static volatile Interpreter instance, previousInstance;
 	public static boolean batchMode;
@@ -136,6 +140,7 @@ public class Interpreter implements MacroConstants {
 	/** Runs an existing macro starting at the specified program counter location. */
 	public void run(int location) {
 		topOfStack = topOfGlobals;
+		stackVersion++;
 		done = false;
 		pc = location-1;
 		doStatements();
@@ -198,6 +203,7 @@ public class Interpreter implements MacroConstants {
 		pgm.saveGlobals(this);
 		pc = -1;
 		topOfStack = -1;
+		stackVersion++;
 		done = false;
 	}
 
@@ -433,6 +439,7 @@ public class Interpreter implements MacroConstants {
 			   getToken();
 			   if (i>=0)
 				  stack[i].symTabIndex = tokenAddress;
+			   stackVersion++;
 			   i--;
 			   count--;
 			   getToken();
@@ -638,9 +645,26 @@ public class Interpreter implements MacroConstants {
 			error("'}' expected");
 	}
 
+	/** Skips a statement. Statements that were skipped before are skipped
+		in one step, using the end location found the first time. */
 	final void skipStatement() {
 		if (done)
 			return;
+		int start = pc;
+		if (cachedProgram==pgm && skipTargets!=null && start+1<skipTargets.length && skipTargets[start+1]>0) {
+			pc = skipTargets[start+1]-2;
+			getToken();
+			return;
+		}
+		skipStatement2();
+		if (!done) {
+			checkCache();
+			if (start+1<skipTargets.length)
+				skipTargets[start+1] = pc+1;
+		}
+	}
+
+	private void skipStatement2() {
 		getToken();
 		switch (token) {
 			case PREDEFINED_FUNCTION: case USER_FUNCTION: case VAR:
@@ -1624,34 +1648,59 @@ public class Interpreter implements MacroConstants {
 		the specified variable. Returns null if it is not found. */
 	final Variable lookupLocalVariable(int symTabAddress) {
 		//IJ.log("lookupLocalVariable: "+topOfStack+" "+startOfLocals+" "+topOfGlobals);
-		Variable v = null;
-		for (int i=topOfStack; i>=startOfLocals; i--) {
-			if (stack[i].symTabIndex==symTabAddress) {
-				v = stack[i];
-				break;
-			}
-		}
-		if (v==null) {
-			for (int i=topOfGlobals; i>=0; i--) {
-				if (stack[i].symTabIndex==symTabAddress) {
-					v = stack[i];
-					break;
-				}
-			}
+		int slot = findSlot(symTabAddress);
+		if (slot<0)
+			return null;
+		if (slot>=startOfLocals || slot<=topOfGlobals)
+			return stack[slot];
+		for (int i=topOfGlobals; i>=0; i--) {	// variable of a calling function; look for a global
+			if (stack[i].symTabIndex==symTabAddress)
+				return stack[i];
 		}
-		return v;
+		return null;
 	}
 
 	/** Searches the entire stack for the specified variable. Returns null if it is not found. */
 	final Variable lookupVariable(int symTabAddress) {
-		Variable v = null;
+		int slot = findSlot(symTabAddress);
+		return slot>=0?stack[slot]:null;
+	}
+
+	/** Returns the stack index of the topmost variable associated with
+		symbol 'symTabAddress', or -1 if there is none. The index is cached
+		per symbol until the stack changes, so repeated lookups (e.g. in
+		loops) do not search the stack. */
+	final int findSlot(int symTabAddress) {
+		checkCache();
+		if (symTabAddress>=slots.length) {
+			int n = Math.max(symTabAddress+1, slots.length*2);
+			slots = java.util.Arrays.copyOf(slots, n);
+			slotVersions = java.util.Arrays.copyOf(slotVersions, n);
+		}
+		if (slotVersions[symTabAddress]==stackVersion)
+			return slots[symTabAddress];
+		int slot = -1;
 		for (int i=topOfStack; i>=0; i--) {
 			if (stack[i].symTabIndex==symTabAddress) {
-				v = stack[i];
+				slot = i;
 				break;
 			}
 		}
-		return v;
+		slots[symTabAddress] = slot;
+		slotVersions[symTabAddress] = stackVersion;
+		return slot;
+	}
+
+	/** Discards the cached slots and skip targets if the program has changed. */
+	private void checkCache() {
+		if (cachedProgram!=pgm || skipTargets==null) {
+			cachedProgram = pgm;
+			int n = pgm!=null?pgm.table.length:16;
+			slots = new int[n];
+			slotVersions = new int[n];
+			stackVersion++;
+			skipTargets = new int[pgm!=null?pgm.code.length:0];
+		}
 	}
 
 	Variable push(Variable var, Interpreter interp) {
@@ -1662,6 +1711,7 @@ public class Interpreter implements MacroConstants {
 		else
 			topOfStack++;
 		stack[topOfStack] = var;
+		stackVersion++;
 		return var;
 	}
 
@@ -1675,6 +1725,7 @@ public class Interpreter implements MacroConstants {
 			stack[topOfStack] = pgm.globals[i];
 		}
 		topOfGlobals = topOfStack;
+		stackVersion++;
 	}
 
 	/** Creates a Variable and pushes it onto the stack. */
@@ -1687,6 +1738,7 @@ public class Interpreter implements MacroConstants {
 		else
 			topOfStack++;
 		stack[topOfStack] = var;
+		stackVersion++;
 		return var;
 	}
 
@@ -1695,6 +1747,7 @@ public class Interpreter implements MacroConstants {
 			stack[i] = null;
 		topOfStack = previousTOS;
 	    startOfLocals = previousStartOfLocals;
+		stackVersion++;
 	}
 	
 	/** Searches the entire stack for the variable associated with the 
@@ -1705,17 +1758,12 @@ public class Interpreter implements MacroConstants {
 			undefined();
 			return v;
 		}
-		boolean found = false;
-		for (int i=topOfStack; i>=0; i--) {
-			v = stack[i];
-			if (v.symTabIndex==tokenAddress) {
-				found = true;
-				break;
-			}
-		}
-		if (!found)
+		int slot = findSlot(tokenAddress);
+		if (slot<0) {
 			undefined();
-		return v;
+			return stack[0];
+		}
+		return stack[slot];
 	}
 
 	final String lookupStringVariable() {
@@ -0,0 +1,512 @@
+package ij.macro;
+import ij.process.*;
+import java.util.*;
+
+/** A Process&gt;Math&gt;Macro code fragment compiled into an expression tree
+	that is evaluated over an array of numeric variables. Assignments,
+	if/else statements, blocks, the arithmetic, bitwise, relational and
+	logical operators and the functions abs, acos, asin, atan, atan2, cos,
+	exp, floor, getPixel, isNaN, log, maxOf, minOf, pow, round, sin, sqrt and
+	tan are supported, with the precedence and semantics of the Interpreter.
+	Constant subexpressions are folded. A compiled expression has no state
+	of its own, so it can be evaluated by several threads at the same time,
+	each with its own variables.
+	@see ij.plugin.filter.ImageMath#applyMacro
+*/
+public class MacroExpression implements MacroConstants {
+	/** Indexes of the predefined variables in the variables array. */
+	public static final int V=0, X=1, Y=2, Z=3, W=4, H=5, D=6, A=7;
+	private static final String NAMES = "vxyzwhda";
+
+	private Program pgm;
+	private int pc = -1;
+	private ImageProcessor ip;
+	private ArrayList<String> variables = new ArrayList<String>();
+	private HashSet<String> assigned = new HashSet<String>();
+	private boolean[] used = new boolean[NAMES.length()];
+	private Node code;
+
+	private MacroExpression(Program pgm, ImageProcessor ip) {
+		this.pgm = pgm;
+		this.ip = ip;
+		for (int i=0; i<NAMES.length(); i++) {
+			String name = NAMES.substring(i, i+1);
+			variables.add(name);
+			assigned.add(name);
+		}
+	}
+
+	/** Compiles 'macro'; getPixel() reads from 'ip'. Returns null if the
+		macro uses statements, functions or variables that are not supported,
+		or is not valid. */
+	public static MacroExpression compile(String macro, ImageProcessor ip) {
+		Program pgm = new Tokenizer().tokenize(macro);
+		MacroExpression expression = new MacroExpression(pgm, ip);
+		try {
+			ArrayList<Node> statements = new ArrayList<Node>();
+			while (expression.next()!=EOF)
+				statements.add(expression.statement());
+			expression.code = new Block(statements.toArray(new Node[statements.size()]));
+			return expression;
+		} catch (Unsupported e) {
+			return null;
+		}
+	}
+
+	/** Returns a new variables array, to be filled with the predefined
+		variables and passed to run(). */
+	public double[] newVariables() {
+		return new double[variables.size()];
+	}
+
+	/** Returns true if the predefined variable 'index' (e.g. D or A) is
+		used, so that the caller can skip calculating it. */
+	public boolean uses(int index) {
+		return used[index];
+	}
+
+	/** Runs the code; the result is in variables[V]. Throws an
+		IllegalArgumentException if a boolean expression has a value other
+		than 0 or 1. */
+	public void run(double[] variables) {
+		code.eval(variables);
+	}
+
+	/* The parser, which follows the recursive descent of the Interpreter. */
+
+	private int next() {
+		return pgm.code[pc+1]&TOK_MASK;
+	}
+
+	private int nextNext() {
+		return pgm.code[pc+2]&TOK_MASK;
+	}
+
+	private int getToken() {
+		return pgm.code[++pc]&TOK_MASK;
+	}
+
+	private Symbol getSymbol() {
+		return pgm.table[pgm.code[pc]>>TOK_SHIFT];
+	}
+
+	private void expect(int token) {
+		if (getToken()!=token)
+			throw new Unsupported();
+	}
+
+	private static boolean isAssignment(int token) {
+		return token=='=' || token==PLUS_EQUAL || token==MINUS_EQUAL || token==MUL_EQUAL || token==DIV_EQUAL;
+	}
+
+	private Node statement() {
+		int token = getToken();
+		switch (token) {
+			case ';':
+				return new Block(new Node[0]);
+			case '{':
+				ArrayList<Node> statements = new ArrayList<Node>();
+				while (next()!='}') {
+					if (next()==EOF)
+						throw new Unsupported();
+					statements.add(statement());
+				}
+				getToken();
+				return new Block(statements.toArray(new Node[statements.size()]));
+			case IF:
+				expect('(');
+				Node condition = logical();
+				expect(')');
+				HashSet<String> saved = new HashSet<String>(assigned);
+				Node then = statement();
+				assigned = new HashSet<String>(saved);	// conditional assignments do not count
+				if (next()==';')
+					getToken();
+				Node otherwise = null;
+				if (next()==ELSE) {
+					getToken();
+					otherwise = statement();
+					assigned = saved;
+				}
+				return new If(condition, then, otherwise);
+			case WORD:
+				if (!isAssignment(next()))
+					throw new Unsupported();
+				pc--;
+				Node node = assignment();
+				int end = next();
+				if (end!=';' && end!=EOF)
+					throw new Unsupported();
+				if (end==';')
+					getToken();
+				return node;
+			default:
+				throw new Unsupported();
+		}
+	}
+
+	private Node assignment() {
+		if (next()==WORD && isAssignment(nextNext())) {
+			getToken();
+			String name = getSymbol().str;
+			int op = getToken();
+			int index = variables.indexOf(name);
+			if ((index>V && index<NAMES.length()) || (op!='=' && index<0))
+				throw new Unsupported();	// predefined variables other than 'v' are read-only
+			Node value = assignment();
+			if (index<0) {
+				index = variables.size();
+				variables.add(name);
+			}
+			if (op!='=' && !assigned.contains(name))
+				throw new Unsupported();
+			assigned.add(name);
+			return new Assign(index, op, value);
+		}
+		return logical();
+	}
+
+	private Node logical() {
+		Node left = booleanExpression();
+		int op = next();
+		if (op!=LOGICAL_AND && op!=LOGICAL_OR)
+			return left;
+		getToken();
+		return new Logical(op, left, logical());
+	}
+
+	private Node booleanExpression() {
+		Node left = expression();
+		int op = next();
+		if (op>=EQ && op<=LTE) {
+			getToken();
+			return fold(new Binary(op, left, expression()));
+		}
+		return left;
+	}
+
+	private Node expression() {
+		Node value = term();
+		while (next()=='+' || next()=='-') {
+			int op = getToken();
+			value = fold(new Binary(op, value, term()));
+		}
+		return value;
+	}
+
+	private Node term() {
+		Node value = factor();
+		while (true) {
+			int op = next();
+			if (!(op=='*'||op=='/'||op=='%'||op=='&'||op=='|'||op=='^'||op==SHIFT_RIGHT||op==SHIFT_LEFT))
+				return value;
+			getToken();
+			value = fold(new Binary(op, value, factor()));
+		}
+	}
+
+	private Node factor() {
+		int token = getToken();
+		switch (token) {
+			case NUMBER: return new Constant(getSymbol().value);
+			case TRUE: return new Constant(1.0);
+			case FALSE: return new Constant(0.0);
+			case PI: return new Constant(Math.PI);
+			case NaN: return new Constant(Double.NaN);
+			case NUMERIC_FUNCTION: return function(getSymbol().type);
+			case WORD:
+				String name = getSymbol().str;
+				int next = next();
+				if (next=='[' || next=='.' || next==PLUS_PLUS || next==MINUS_MINUS || !assigned.contains(name))
+					throw new Unsupported();
+				int index = variables.indexOf(name);
+				if (index<NAMES.length())
+					used[index] = true;
+				return new Var(index);
+			case '(':
+				Node node = logical();
+				expect(')');
+				return node;
+			case '!': return fold(new Unary('!', factor()));
+			case '-': return fold(new Unary('-', factor()));
+			case '~': return fold(new Unary('~', factor()));
+			default:
+				throw new Unsupported();
+		}
+	}
+
+	private Node function(int type) {
+		switch (type) {
+			case ABS: case COS: case EXP: case FLOOR: case LOG: case ROUND: case SIN:
+			case SQRT: case TAN: case ATAN: case ASIN: case ACOS: case IS_NAN:
+				expect('(');
+				Node arg = expression();
+				expect(')');
+				return fold(new Function(type, arg, null));
+			case MAX_OF: case MIN_OF: case POW: case ATAN2:
+				expect('(');
+				Node arg1 = expression();
+				expect(',');
+				Node arg2 = expression();
+				expect(')');
+				return fold(new Function(type, arg1, arg2));
+			case GET_PIXEL:
+				if (ip==null)
+					throw new Unsupported();
+				expect('(');
+				Node x = expression();
+				Node y = null;
+				if (next()==',') {
+					getToken();
+					y = expression();
+				}
+				expect(')');
+				return new GetPixel(ip, x, y);
+			default:
+				throw new Unsupported();
+		}
+	}
+
+	/** Replaces operations on constants by their value. */
+	private static Node fold(Node node) {
+		Node[] args = node.args();
+		for (int i=0; i<args.length; i++) {
+			if (!(args[i] instanceof Constant))
+				return node;
+		}
+		try {
+			return new Constant(node.eval(null));
+		} catch (IllegalArgumentException e) {
+			return node;	// reported when the code runs
+		}
+	}
+
+	static double checkBoolean(double value) {
+		if (!(value==0.0 || value==1.0))
+			throw new IllegalArgumentException("Boolean expression expected");
+		return value;
+	}
+
+	/* The expression tree */
+
+	private static class Unsupported extends RuntimeException {
+		private static final long serialVersionUID = 1L;
+	}
+
+	private static abstract class Node {
+		abstract double eval(double[] vars);
+
+		Node[] args() {
+			return new Node[0];
+		}
+	}
+
+	private static class Constant extends Node {
+		final double value;
+		Constant(double value) {this.value = value;}
+		double eval(double[] vars) {return value;}
+	}
+
+	private static class Var extends Node {
+		final int index;
+		Var(int index) {this.index = index;}
+		double eval(double[] vars) {return vars[index];}
+	}
+
+	private static class Assign extends Node {
+		final int index, op;
+		final Node value;
+
+		Assign(int index, int op, Node value) {
+			this.index = index;
+			this.op = op;
+			this.value = value;
+		}
+
+		double eval(double[] vars) {
+			double v = value.eval(vars);
+			switch (op) {
+				case PLUS_EQUAL: v = vars[index]+v; break;
+				case MINUS_EQUAL: v = vars[index]-v; break;
+				case MUL_EQUAL: v = vars[index]*v; break;
+				case DIV_EQUAL: v = vars[index]/v; break;
+			}
+			vars[index] = v;
+			return v;
+		}
+	}
+
+	private static class Block extends Node {
+		final Node[] statements;
+		Block(Node[] statements) {this.statements = statements;}
+
+		double eval(double[] vars) {
+			for (int i=0; i<statements.length; i++)
+				statements[i].eval(vars);
+			return 0.0;
+		}
+	}
+
+	private static class If extends Node {
+		final Node condition, then, otherwise;
+
+		If(Node condition, Node then, Node otherwise) {
+			this.condition = condition;
+			this.then = then;
+			this.otherwise = otherwise;
+		}
+
+		double eval(double[] vars) {
+			if (checkBoolean(condition.eval(vars))!=0.0)
+				then.eval(vars);
+			else if (otherwise!=null)
+				otherwise.eval(vars);
+			return 0.0;
+		}
+	}
+
+	private static class Logical extends Node {
+		final int op;
+		final Node left, right;
+
+		Logical(int op, Node left, Node right) {
+			this.op = op;
+			this.left = left;
+			this.right = right;
+		}
+
+		double eval(double[] vars) {	// both sides are evaluated, as in the Interpreter
+			int v1 = (int)checkBoolean(left.eval(vars));
+			int v2 = (int)checkBoolean(right.eval(vars));
+			return op==LOGICAL_AND ? v1&v2 : v1|v2;
+		}
+	}
+
+	private static class Unary extends Node {
+		final int op;
+		final Node arg;
+
+		Unary(int op, Node arg) {
+			this.op = op;
+			this.arg = arg;
+		}
+
+		double eval(double[] vars) {
+			double v = arg.eval(vars);
+			switch (op) {
+				case '-': return -v;
+				case '~': return ~(int)v;
+				default:
+					if (!(v==0.0 || v==1.0))
+						throw new IllegalArgumentException("Boolean expected");
+					return v==0.0?1.0:0.0;
+			}
+		}
+
+		Node[] args() {return new Node[] {arg};}
+	}
+
+	private static class Binary extends Node {
+		final int op;
+		final Node left, right;
+
+		Binary(int op, Node left, Node right) {
+			this.op = op;
+			this.left = left;
+			this.right = right;
+		}
+
+		double eval(double[] vars) {
+			double v1 = left.eval(vars);
+			double v2 = right.eval(vars);
+			switch (op) {
+				case '+': return v1+v2;
+				case '-': return v1-v2;
+				case '*': return v1*v2;
+				case '/': return v1/v2;
+				case '%': return v1%v2;
+				case '&': return (int)v1&(int)v2;
+				case '|': return (int)v1|(int)v2;
+				case '^': return (int)v1^(int)v2;
+				case SHIFT_RIGHT: return (int)v1>>(int)v2;
+				case SHIFT_LEFT: return (int)v1<<(int)v2;
+				case EQ: return v1==v2?1.0:0.0;
+				case NEQ: return v1!=v2?1.0:0.0;
+				case GT: return v1>v2?1.0:0.0;
+				case GTE: return v1>=v2?1.0:0.0;
+				case LT: return v1<v2?1.0:0.0;
+				case LTE: return v1<=v2?1.0:0.0;
+				default: return 0.0;
+			}
+		}
+
+		Node[] args() {return new Node[] {left, right};}
+	}
+
+	private static class Function extends Node {
+		final int type;
+		final Node arg1, arg2;
+
+		Function(int type, Node arg1, Node arg2) {
+			this.type = type;
+			this.arg1 = arg1;
+			this.arg2 = arg2;
+		}
+
+		double eval(double[] vars) {
+			double a1 = arg1.eval(vars);
+			double a2 = arg2!=null?arg2.eval(vars):0.0;
+			switch (type) {
+				case ABS: return Math.abs(a1);
+				case COS: return Math.cos(a1);
+				case EXP: return Math.exp(a1);
+				case FLOOR: return Math.floor(a1);
+				case LOG: return Math.log(a1);
+				case ROUND: return Math.floor(a1 + 0.5);
+				case SIN: return Math.sin(a1);
+				case SQRT: return Math.sqrt(a1);
+				case TAN: return Math.tan(a1);
+				case ATAN: return Math.atan(a1);
+				case ASIN: return Math.asin(a1);
+				case ACOS: return Math.acos(a1);
+				case IS_NAN: return Double.isNaN(a1)?1:0;
+				case MIN_OF: return Math.min(a1, a2);
+				case MAX_OF: return Math.max(a1, a2);
+				case POW: return Math.pow(a1, a2);
+				case ATAN2: return Math.atan2(a1, a2);
+				default: return 0.0;
+			}
+		}
+
+		Node[] args() {return arg2!=null?new Node[] {arg1, arg2}:new Node[] {arg1};}
+	}
+
+	/** getPixel(x,y) or getPixel(index), as in Functions.getPixel. */
+	private static class GetPixel extends Node {
+		final ImageProcessor ip;
+		final Node x, y;
+
+		GetPixel(ImageProcessor ip, Node x, Node y) {
+			this.ip = ip;
+			this.x = x;
+			this.y = y;
+		}
+
+		double eval(double[] vars) {
+			double a1 = x.eval(vars);
+			if (y==null)
+				return ip instanceof ColorProcessor ? ip.get((int)a1) : ip.getf((int)a1);
+			double a2 = y.eval(vars);
+			int ia1 = (int)a1;
+			int ia2 = (int)a2;
+			if (a1==ia1 && a2==ia2)
+				return ip instanceof FloatProcessor ? ip.getPixelValue(ia1, ia2) : ip.getPixel(ia1, ia2);
+			else if (ip instanceof ColorProcessor)
+				return ip.getPixelInterpolated(a1, a2);
+			else
+				return ip.getInterpolatedValue(a1, a2);
+		}
+
+	}
+
+}
@@ -1,6 +1,7 @@
 package ij.macro;
 import ij.*;
 import java.util.Hashtable;
+import java.util.HashMap;
 
 /** An object of this type is a tokenized macro file and the associated symbol table. */
 public class Program implements MacroConstants {
@@ -13,6 +14,8 @@ public class Program implements MacroConstants {
 	int symTabLoc;
 	Symbol[] table = new Symbol[maxSymbols];
     static Symbol[] systemTable;
+    private static HashMap<String,Integer> systemWords;
+    private HashMap<String,Integer> words;	// symbol table index of each word
 	int[] code = new int[maxProgramSize];
 	int[] lineNumbers = new int[maxProgramSize];
 	Variable[] globals;
@@ -29,7 +32,9 @@ public class Program implements MacroConstants {
 			stLoc = systemTable.length - 1;
 			for (int i=0; i<=stLoc; i++)
 			table[i] = systemTable[i];
+			words = new HashMap<String,Integer>(systemWords);
 		} else {
+			words = new HashMap<String,Integer>();
 			//IJ.log("make table");
 			addKeywords();
 			addFunctions();
@@ -40,6 +45,7 @@ public class Program implements MacroConstants {
 			systemTable = new Symbol[stLoc+1];
 			for (int i=0; i<=stLoc; i++)
 				systemTable[i] = table[i];
+			systemWords = new HashMap<String,Integer>(words);
 			IJ.register(Program.class);
 		}
 	}
@@ -91,6 +97,8 @@ public class Program implements MacroConstants {
 			maxSymbols *= 2;
 		}
 		table[stLoc] = sym;
+		if (sym.type!=STRING_CONSTANT && sym.str!=null && !words.containsKey(sym.str))
+			words.put(sym.str, Integer.valueOf(stLoc));
 	}
 	
 	void addToken(int tok, int lineNumber) {//n__
@@ -113,16 +121,81 @@ public class Program implements MacroConstants {
 	/** Looks up a word in the symbol table. Returns null if the word is not found. */
 	Symbol lookupWord(String str) {
         //IJ.log("lookupWord: "+str);
-		Symbol symbol;
-		String symStr;
-		for (int i=0; i<=stLoc; i++) {
-			symbol = table[i];
-			if (symbol.type!=STRING_CONSTANT && str.equals(symbol.str)) {
-				symTabLoc = i;
-				return symbol;
+		Integer index = words.get(str);
+		if (index==null)
+			return null;
+		symTabLoc = index.intValue();
+		return table[symTabLoc];
+	}
+
+	/** Replaces constant products, quotients, remainders, sums and
+		differences of two numbers (e.g. "255*0.5") by their value. Only
+		operations that the interpreter would evaluate first are folded. */
+	void foldConstants() {
+		boolean changed;
+		do {
+			changed = false;
+			int n = 0;
+			for (int i=0; i<=pc; i++) {
+				int op = i+2<=pc?code[i+1]&TOK_MASK:0;
+				if (n>0 && (code[i]&TOK_MASK)==NUMBER && (op=='*'||op=='/'||op=='%'||op=='+'||op=='-')
+				&& (code[i+2]&TOK_MASK)==NUMBER && canFold(n>1?code[n-2]&TOK_MASK:0, code[n-1]&TOK_MASK, op, i+3<=pc?code[i+3]&TOK_MASK:0)) {
+					Symbol sym = table[code[i]>>TOK_SHIFT];
+					double value2 = table[code[i+2]>>TOK_SHIFT].value;
+					switch (op) {
+						case '*': sym.value *= value2; break;
+						case '/': sym.value /= value2; break;
+						case '%': sym.value %= value2; break;
+						case '+': sym.value += value2; break;
+						case '-': sym.value -= value2; break;
+					}
+					code[n] = code[i];
+					lineNumbers[n] = lineNumbers[i];
+					n++;
+					i += 2;
+					changed = true;
+				} else {
+					code[n] = code[i];
+					lineNumbers[n] = lineNumbers[i];
+					n++;
+				}
 			}
+			pc = n-1;
+		} while (changed);
+	}
+
+	/** Returns 'true' if "number op number" preceded by the tokens 'previous2'
+		and 'previous' and followed by 'next' can be replaced by its value. */
+	private static boolean canFold(int previous2, int previous, int op, int next) {
+		switch (previous) {
+			case '(': case ',': case '=': case '[': case RETURN: case LOGICAL_AND: case LOGICAL_OR:
+			case PLUS_EQUAL: case MINUS_EQUAL: case MUL_EQUAL: case DIV_EQUAL:
+			case EQ: case NEQ: case GT: case GTE: case LT: case LTE:
+				break;
+			case '+': case '-':
+				// Only a binary '+' or '-', i.e., one after an operand, has a lower
+				// precedence than 'op'. A unary minus binds tighter: "a/-2*3" is
+				// (a/-2)*3 and must not become a/-6.
+				if ((op=='*'||op=='/'||op=='%') && isOperandEnd(previous2))
+					break;
+				return false;
+			default:
+				return false;
+		}
+		if (op=='*'||op=='/'||op=='%')
+			return true;
+		switch (next) {
+			case ')': case ',': case ';': case ']': case LOGICAL_AND: case LOGICAL_OR:
+			case EQ: case NEQ: case GT: case GTE: case LT: case LTE:
+				return true;
+			default:
+				return false;
 		}
-		return null;
+	}
+
+	/** Returns 'true' if 'token' can be the last token of an operand. */
+	private static boolean isOperandEnd(int token) {
+		return token==NUMBER || token==WORD || token==STRING_CONSTANT || token==')' || token==']';
 	}
 
 	void saveGlobals(Interpreter interp) {
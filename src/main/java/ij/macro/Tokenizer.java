@@ -30,6 +30,7 @@ public class Tokenizer implements MacroConstants {
             getToken();
             addToken();
         } while (token!=EOF);
+        pgm.foldConstants();
         if (pgm.hasFunctions)
         	addUserFunctions();
         return pgm;
@@ -5,6 +5,7 @@ import ij.text.*;
 import ij.process.*;
 import ij.gui.Roi;
 import ij.util.Tools;
+import ij.util.ThreadUtil;
 import ij.io.*;
 import ij.macro.*;
 import java.awt.*;
@@ -16,6 +17,10 @@ import java.io.*;
 /** This is a table for storing measurement results and strings as columns of values. 
 	Call the static ResultsTable.getResultsTable() method to get a reference to the 
 	ResultsTable used by the <i>Analyze/Measure</i> command. 
+	Numeric values are stored in one double array per column; strings are stored
+	as indexes into a per-column dictionary of the distinct values, so that columns
+	with many repeated strings need little memory. Use setValues() to set whole
+	columns at once.
 	@see ij.plugin.filter.Analyzer#getResultsTable
 */
 public class ResultsTable implements Cloneable {
@@ -57,7 +62,9 @@ public class ResultsTable implements Cloneable {
 	private char delimiter = '\t';
 	private boolean headingSet; 
 	private boolean showRowNumbers;
-	private Hashtable stringColumns;
+	private StringColumn[] stringColumns;
+	private HashMap<String,Integer> headingIndex;	// column of each heading, up to the first unused column
+	private int firstFreeColumn;
 	private boolean NaNEmptyCells;
 	private boolean quoteCommas;
 	private String title;
@@ -104,23 +111,32 @@ public class ResultsTable implements Cloneable {
 	/** Increments the measurement counter by one. */
 	public synchronized void incrementCounter() {
 		counter++;
-		if (counter==maxRows) {
-			if (rowLabels!=null) {
-				String[] s = new String[maxRows*2];
-				System.arraycopy(rowLabels, 0, s, 0, maxRows);
-				rowLabels = s;
-			}
-			for (int i=0; i<=lastColumn; i++) {
-				if (columns[i]!=null) {
-					double[] tmp = new double[maxRows*2];
-					if (NaNEmptyCells)
-						Arrays.fill(tmp, maxRows, tmp.length, Double.NaN);
-					System.arraycopy(columns[i], 0, tmp, 0, maxRows);
-					columns[i] = tmp;
-				}
+		growRows(counter);
+	}
+
+	/** Enlarges the arrays, by doubling their size, so that row 'row' can
+		be used and the last row remains free. */
+	private void growRows(int row) {
+		if (row<maxRows)
+			return;
+		int newSize = maxRows;
+		while (newSize<=row)
+			newSize *= 2;
+		if (rowLabels!=null) {
+			String[] s = new String[newSize];
+			System.arraycopy(rowLabels, 0, s, 0, maxRows);
+			rowLabels = s;
+		}
+		for (int i=0; i<=lastColumn; i++) {
+			if (columns[i]!=null) {
+				double[] tmp = new double[newSize];
+				if (NaNEmptyCells)
+					Arrays.fill(tmp, maxRows, tmp.length, Double.NaN);
+				System.arraycopy(columns[i], 0, tmp, 0, maxRows);
+				columns[i] = tmp;
 			}
-			maxRows *= 2;
 		}
+		maxRows = newSize;
 	}
 	
 	/** Obsolete; the addValue() method automatically adds columns as needed.
@@ -142,7 +158,13 @@ public class ResultsTable implements Cloneable {
 			tmp4[i] = AUTO_FORMAT;
 		System.arraycopy(decimalPlaces, 0, tmp4, 0, maxColumns);
 		decimalPlaces = tmp4;
+		if (stringColumns!=null) {
+			StringColumn[] tmp5 = new StringColumn[maxColumns*2];
+			System.arraycopy(stringColumns, 0, tmp5, 0, maxColumns);
+			stringColumns = tmp5;
+		}
 		maxColumns *= 2;
+		headingIndex = null;
 	}
 	
 	/** Returns the current value of the measurement counter. */
@@ -168,7 +190,7 @@ public class ResultsTable implements Cloneable {
 			if (NaNEmptyCells)
 				Arrays.fill(columns[column], Double.NaN);
 			if (headings[column]==null)
-				headings[column] = "C"+(column+1);
+				setHeading2(column, "C"+(column+1));
 			if (column>lastColumn) lastColumn = column;
 		}
 		columns[column][counter-1] = value;
@@ -323,38 +345,61 @@ public class ResultsTable implements Cloneable {
 	/** Returns the index of the first column with the given heading.
 		heading. If not found, returns COLUMN_NOT_FOUND. */
 	public int getColumnIndex(String heading) {
-		for (int i=0; i<headings.length; i++) {
-			if (headings[i]==null)
-				return COLUMN_NOT_FOUND;
-			else if (headings[i].equals(heading))
-				return i;
+		Integer index = getHeadingIndex().get(heading);
+		return index!=null?index.intValue():COLUMN_NOT_FOUND;
+	}
+
+	/** Returns the map from headings to column indexes, which is rebuilt after
+		headings have been changed. Like a search from the first column, it only
+		contains the first column of each heading and no column after the first
+		unused one. */
+	private HashMap<String,Integer> getHeadingIndex() {
+		HashMap<String,Integer> map = headingIndex;
+		if (map==null) {
+			map = new HashMap<String,Integer>();
+			int i = 0;
+			for (; i<headings.length && headings[i]!=null; i++) {
+				if (!map.containsKey(headings[i]))
+					map.put(headings[i], Integer.valueOf(i));
+			}
+			firstFreeColumn = i;
+			headingIndex = map;
 		}
-		return COLUMN_NOT_FOUND;
+		return map;
+	}
+
+	/** Sets the heading of a column and invalidates the heading index. */
+	private void setHeading2(int column, String heading) {
+		headings[column] = heading;
+		headingIndex = null;
 	}
 	
 	/** Sets the heading of the the first available column and
 		returns that column's index. Returns COLUMN_IN_USE
 		 if this is a duplicate heading. */
 	public int getFreeColumn(String heading) {
-		for(int i=0; i<headings.length; i++) {
-			if (headings[i]==null) {
-				columns[i] = new double[maxRows];
-				if (NaNEmptyCells)
-					Arrays.fill(columns[i], Double.NaN);
-				headings[i] = heading;
-				if (i>lastColumn) lastColumn = i;
-				return i;
-			}
-			if (headings[i].equals(heading))
-				return COLUMN_IN_USE;
-		}
-		addColumns();
-		lastColumn++;
-		columns[lastColumn] = new double[maxRows];
-		if (NaNEmptyCells)
-			Arrays.fill(columns[lastColumn], Double.NaN);
-		headings[lastColumn] = heading;
-		return lastColumn;
+		return getFreeColumn(heading, null);
+	}
+
+	/** Adds a column with the values in 'data', which must have a length of
+		at least maxRows, or with new values if 'data' is null. */
+	private int getFreeColumn(String heading, double[] data) {
+		if (getHeadingIndex().containsKey(heading))
+			return COLUMN_IN_USE;
+		int i = firstFreeColumn;
+		if (i>=headings.length) {
+			addColumns();
+			i = ++lastColumn;
+		}
+		if (data==null) {
+			data = new double[maxRows];
+			if (NaNEmptyCells)
+				Arrays.fill(data, Double.NaN);
+		}
+		columns[i] = data;
+		setHeading2(i, heading);
+		if (i>lastColumn) lastColumn = i;
+		return i;
 	}
 	
 	/**	Returns the value of the given column and row, where
@@ -477,7 +522,7 @@ public class ResultsTable implements Cloneable {
 		}
 		columns[column][row] = value;
 		if (headings[column]==null)
-			headings[column] = "C"+(column+1);
+			setHeading2(column, "C"+(column+1));
 		if ((int)value!=value && !Double.isNaN(value))
 			decimalPlaces[column] = (short)precision;
 	}
@@ -500,22 +545,76 @@ public class ResultsTable implements Cloneable {
 		where 0&lt;=column&lt;=(lastRow+1 and 0&lt;=row&lt;=size(). */
 	public void setValue(int column, int row, String value) {
 		setValue(column, row, Double.NaN);
+		getStringColumn(column).set(row, value);
+	}
+
+	/** Sets the values of the given column, starting at the first row, and
+		adds rows as needed. The column is created if it does not exist.
+		This is much faster than adding the values one by one. */
+	public synchronized void setValues(String column, double[] values) {
+		int col = getColumnForValues(column, values.length);
+		System.arraycopy(values, 0, columns[col], 0, values.length);
+		checkDecimalPlaces(col, values.length);
+	}
+
+	/** Sets the values of the given column, starting at the first row, and
+		adds rows as needed. The column is created if it does not exist. */
+	public synchronized void setValues(String column, float[] values) {
+		int col = getColumnForValues(column, values.length);
+		double[] data = columns[col];
+		for (int i=0; i<values.length; i++)
+			data[i] = values[i];
+		checkDecimalPlaces(col, values.length);
+	}
+
+	/** Sets the string values of the given column, starting at the first
+		row, and adds rows as needed. The column is created if it does not exist. */
+	public synchronized void setValues(String column, String[] values) {
+		int col = getColumnForValues(column, values.length);
+		Arrays.fill(columns[col], 0, values.length, Double.NaN);
+		StringColumn stringColumn = getStringColumn(col);
+		for (int i=values.length-1; i>=0; i--)
+			stringColumn.set(i, values[i]);
+	}
+
+	/** Returns the index of the given column, creating it if necessary, and
+		makes sure that the table has at least 'rows' rows. */
+	private int getColumnForValues(String column, int rows) {
+		if (column==null)
+			throw new IllegalArgumentException("Column is null");
+		int col = getColumnIndex(column);
+		if (col==COLUMN_NOT_FOUND)
+			col = getFreeColumn(column);
+		if (rows>counter) {
+			growRows(rows);
+			counter = rows;
+		}
+		keep[col] = true;
+		return col;
+	}
+
+	private void checkDecimalPlaces(int column, int rows) {
+		double[] data = columns[column];
+		for (int i=0; i<rows; i++) {
+			if ((int)data[i]!=data[i] && !Double.isNaN(data[i])) {
+				decimalPlaces[column] = (short)precision;
+				break;
+			}
+		}
+	}
+
+	private StringColumn getStringColumn(int column) {
 		if (stringColumns==null)
-			stringColumns = new Hashtable();
-		ArrayList stringColumn = (ArrayList)stringColumns.get(new Integer(column));
-		if (stringColumn==null) {
-			stringColumn = new ArrayList();
-			stringColumns.put(new Integer(column), stringColumn);
-		}
-		int size = stringColumn.size();
-		if (row>=size) {
-			for (int i=size; i<row; i++)
-				stringColumn.add(i, "");
-		}
-		if (row==stringColumn.size())
-			stringColumn.add(row, value);
-		else
-			stringColumn.set(row, value);
+			stringColumns = new StringColumn[maxColumns];
+		if (stringColumns[column]==null)
+			stringColumns[column] = new StringColumn();
+		return stringColumns[column];
+	}
+
+	/** Returns the string stored in the given cell, or null. */
+	private String getString(int column, int row) {
+		StringColumn stringColumn = stringColumns!=null&&column<stringColumns.length?stringColumns[column]:null;
+		return stringColumn!=null?stringColumn.get(row):null;
 	}
 
 	/** Returns a tab or comma delimited string containing the column headings. */
@@ -523,7 +622,7 @@ public class ResultsTable implements Cloneable {
 		if (headingSet && !rowLabelHeading.equals("")) { // workaround setHeading() bug
 			for (int i=0; i<=lastColumn; i++) {
 				if (columns[i]!=null && rowLabelHeading.equals(headings[i]))
-					{headings[i]=null; columns[i]=null;}
+					{setHeading2(i, null); columns[i]=null;}
 			}
 			headingSet = false;
 		}
@@ -582,6 +681,12 @@ public class ResultsTable implements Cloneable {
 			sb = new StringBuilder(200);
 		else
 			sb.setLength(0);
+		appendRow(sb, row);
+		return new String(sb);
+	}
+
+	/** Appends the given row, as in getRowAsString(), to 'sb'. */
+	private void appendRow(StringBuilder sb, int row) {
 		if (showRowNumbers) {
 			sb.append(Integer.toString(row+1));
 			sb.append(delimiter);
@@ -607,7 +712,6 @@ public class ResultsTable implements Cloneable {
 					sb.append(delimiter);
 			}
 		}
-		return new String(sb);
 	}
 	
 	/** Implements the Table.getColumn() macro function. */
@@ -622,13 +726,10 @@ public class ResultsTable implements Cloneable {
 			double value = columns[col][row];
 			String str = null;
 			if (Double.isNaN(value) && stringColumns!=null) {
-				ArrayList stringColumn = (ArrayList)stringColumns.get(new Integer(col));
-				if (stringColumn!=null && row>=0 && row<stringColumn.size()) {
-						str = (String)stringColumn.get(row);
-						if (firstValueNumeric && "".equals(str)) {
-							nValues = row;
-							break;
-						}
+				str = getString(col, row);
+				if (str!=null && firstValueNumeric && "".equals(str)) {
+					nValues = row;
+					break;
 				}
 			}
 			if (str!=null)
@@ -682,18 +783,13 @@ public class ResultsTable implements Cloneable {
 		double value = columns[column][row];
 		//IJ.log("getValueAsString1: col="+column+ ", row= "+row+", value= "+value+", size="+stringColumns.size());
 		if (Double.isNaN(value) && stringColumns!=null) {
-			String string = "NaN";
-			ArrayList stringColumn = (ArrayList)stringColumns.get(new Integer(column));
-			if (stringColumn==null)
-				return string;
-			//IJ.log("getValueAsString2: "+column+ +row+" "+stringColumn.size());
-			if (row>=0 && row<stringColumn.size()) {
-				string = (String)stringColumn.get(row);
-				if (string!=null && string.contains("\n"))
-					string = string.replaceAll("\n", "\\\\n");
-				return string;
-			} else
-				return string;
+			StringColumn stringColumn = column<stringColumns.length?stringColumns[column]:null;
+			if (stringColumn==null || row<0 || row>=stringColumn.size)
+				return "NaN";
+			String string = stringColumn.get(row);
+			if (string!=null && string.contains("\n"))
+				string = string.replaceAll("\n", "\\\\n");
+			return string;
 		} else {
 			int places = decimalPlaces[column];
 			if (places==AUTO_FORMAT)
@@ -719,7 +815,7 @@ public class ResultsTable implements Cloneable {
 	public void setHeading(int column, String heading) {
 		if ((column<0) || (column>=headings.length))
 			throw new IllegalArgumentException("Column out of range: "+column);
-		headings[column] = heading;
+		setHeading2(column, heading);
 		if (columns[column]==null) {
 			columns[column] = new double[maxRows];
 			if (NaNEmptyCells)
@@ -733,6 +829,7 @@ public class ResultsTable implements Cloneable {
 	public void setDefaultHeadings() {
 		for(int i=0; i<defaultHeadings.length; i++)
 				headings[i] = defaultHeadings[i];
+		headingIndex = null;
 		showRowNumbers(true);
 	}
 
@@ -799,6 +896,8 @@ public class ResultsTable implements Cloneable {
 		}
 		if (decimalPlaces<0) decimalPlaces = 0;
 		if (decimalPlaces>9) decimalPlaces = 9;
+		if (decimalPlaces==0 && n==(long)n && (n!=0.0 || 1.0/n>0.0))
+			return Long.toString((long)n);	// same as DecimalFormat("0"), but faster
 		if (df==null) {
 			dfs = new DecimalFormatSymbols(Locale.US);
 			df = new DecimalFormat[10];
@@ -829,12 +928,9 @@ public class ResultsTable implements Cloneable {
 			if (columns[col]!=null) {
 				for (int i=rowIndex; i<counter-1; i++)
 					columns[col][i] = columns[col][i+1];
-				ArrayList stringColumn = stringColumns!=null?(ArrayList)stringColumns.get(new Integer(col)):null;
-				if (stringColumn!=null && stringColumn.size()==counter) {
-					for (int i=rowIndex; i<counter-1; i++)
-						stringColumn.set(i,stringColumn.get(i+1));
-					stringColumn.remove(counter-1);
-				}
+				StringColumn stringColumn = stringColumns!=null?stringColumns[col]:null;
+				if (stringColumn!=null && stringColumn.size==counter)
+					stringColumn.delete(rowIndex);
 			}
 		}
 		counter--;
@@ -854,7 +950,7 @@ public class ResultsTable implements Cloneable {
 		if (col==COLUMN_NOT_FOUND)
 			throw new IllegalArgumentException("\""+column+"\" column not found");
 		columns[col] = null;
-		headings[col] = "-";
+		setHeading2(col, "-");
 		columnDeleted = true;
 	}
 
@@ -866,7 +962,7 @@ public class ResultsTable implements Cloneable {
 		int newCol = getColumnIndex(newName);
 		if (columnExists(newCol))
 			throw new IllegalArgumentException("\""+newName+"\" column exists");
-		headings[oldCol] = newName;
+		setHeading2(oldCol, newName);
 	}
 
 	public synchronized void reset() {
@@ -881,6 +977,7 @@ public class ResultsTable implements Cloneable {
 		lastColumn = -1;
 		rowLabels = null;
 		stringColumns = null;
+		headingIndex = null;
 		columnDeleted = false;
 	}
 	
@@ -1002,7 +1099,7 @@ public class ResultsTable implements Cloneable {
 				columns[i] = new double[maxRows];
 				if (NaNEmptyCells)
 					Arrays.fill(columns[i], Double.NaN);
-				headings[i] = rt2.getColumnHeading(i);
+				setHeading2(i, rt2.getColumnHeading(i));
 				if (i>lastColumn) lastColumn = i;
 			} else if (rt2.getColumn(i)==null && columns[i]!=null && !keep[i])
 				columns[i] = null;
@@ -1044,7 +1141,6 @@ public class ResultsTable implements Cloneable {
 	* @see #open2(String)
 	*/
 	public static ResultsTable open(String path) throws IOException {
-		final String lineSeparator =  "\n";
 		if (path==null || path.equals("")) {
 			OpenDialog od = new OpenDialog("Open Table", "");
 			String dir = od.getDirectory();
@@ -1053,23 +1149,67 @@ public class ResultsTable implements Cloneable {
 				return null;
 			path = dir+name;
 		}
-		String text = IJ.openAsString(path);
-		if (text==null)
-			return null;
-		if (text.startsWith("Error:"))
+		return open(path, null, 0, -1);
+	}
+
+	/** Opens rows of a tab or comma delimited text file as a ResultsTable.
+	* Only the columns with the headings in 'columns' are read, or all
+	* columns if 'columns' is null. 'firstRow' is the index of the first row
+	* (not counting the headings) and 'nRows' the number of rows to read,
+	* or -1 to read all rows. The file is read in parts, by several threads,
+	* and numbers are converted without creating Strings, so that large
+	* files can be opened quickly and with little memory.
+	*/
+	public static ResultsTable open(String path, String[] columns, int firstRow, int nRows) throws IOException {
+		File file = new File(path);
+		if (!file.exists())
 			throw new IOException("Error opening "+path);
 		boolean csv = path.endsWith(".csv") || path.endsWith(".CSV");
-		String cellSeparator =  csv?",":"\t";
+		final byte cellSeparator = csv?(byte)',':(byte)'\t';
+		long length = file.length();
+		int nChunks = (int)Math.max(1, Math.min(4*Prefs.getThreads(), length/(1<<20)));
+		final long[] starts = TextChunkReader.getChunks(path, nChunks);
+		final int[] lineCounts = new int[nChunks];
+		final int[] trailingEmptyLines = new int[nChunks];
+		final boolean[] quotes = new boolean[nChunks];
+		final String path2 = path;
+		try {
+			ThreadUtil.parallelFor(0, nChunks, 1, new ThreadUtil.RangeTask() {
+				public void run(int from, int to) {
+					for (int k=from; k<to; k++)
+						countLines(path2, starts[k], starts[k+1], k, lineCounts, trailingEmptyLines, quotes);
+				}
+			});
+		} catch (RuntimeException e) {
+			throw ioException(e);
+		}
+		int nLines = 0;
 		boolean commasReplaced = false;
-		if (csv && text.contains("\"")) {
-			text = replaceQuotedCommas(text);
-			commasReplaced = true;
+		for (int k=0; k<nChunks; k++) {
+			nLines += lineCounts[k];
+			commasReplaced |= csv && quotes[k];
 		}
-		String commaSubstitute2 = ""+commaSubstitute;
-		String[] lines = text.split(lineSeparator);
-		if (lines.length==0)
+		for (int k=nChunks-1; k>=0; k--) {	// empty lines at the end are ignored
+			nLines -= trailingEmptyLines[k];
+			if (trailingEmptyLines[k]<lineCounts[k])
+				break;
+		}
+		if (nLines==0 && length>0)
 			throw new IOException("Table is empty or invalid");
-		String[] headings = lines[0].split(cellSeparator);
+		BufferedReader r = new BufferedReader(new FileReader(file));
+		String line0 = r.readLine();
+		String line1 = r.readLine();
+		r.close();
+		String[] lines = line1!=null&&nLines>1?new String[] {line0, line1}:new String[] {line0!=null?line0:""};
+		String cellSeparator2 = csv?",":"\t";
+		if (commasReplaced) {
+			String text = replaceQuotedCommas(lines[0]+"\n"+(lines.length>1?lines[1]:""));
+			int index = text.indexOf("\n");
+			lines[0] = text.substring(0, index);
+			if (lines.length>1)
+				lines[1] = text.substring(index+1);
+		}
+		String[] headings = lines[0].split(cellSeparator2);
 		if (headings.length==1)
 			throw new IOException("This is not a tab or comma delimited text file.");
 		int numbersInHeadings = 0;
@@ -1090,11 +1230,9 @@ public class ResultsTable implements Cloneable {
 					headings[i] = headings[i].substring(1, headings[i].length()-1);
 			}
 		}
-		int firstRow = allNumericHeadings?0:1;
+		int firstLine = allNumericHeadings?0:1;
 		boolean labels = firstColumn==1 && headings[1].equals("Label");
-		int type=getTableType(path, lines, firstRow, cellSeparator);
-		//if (!labels && (type==1||type==2))
-		//	labels = true;
+		int type=getTableType(path, lines, firstLine, cellSeparator2);
 		int labelsIndex = (type==2)?0:1;
 		if (lines[0].startsWith("\t")) {
 			String[] headings2 = new String[headings.length+1];
@@ -1104,31 +1242,273 @@ public class ResultsTable implements Cloneable {
 			headings = headings2;
 			firstColumn = 1;
 		}
-		ResultsTable rt = new ResultsTable();
+		HashSet<String> selected = null;
+		if (columns!=null)
+			selected = new HashSet<String>(Arrays.asList(columns));
+		if (labels && labelsIndex<firstColumn)
+			labels = false;
+		final int labelField = labels&&(selected==null||selected.contains(headings[labelsIndex]))?labelsIndex:-1;
+		if (firstRow<0)
+			firstRow = 0;
+		int available = Math.max(0, nLines-firstLine-firstRow);
+		final int rows = nRows>=0?Math.min(nRows, available):available;
+		final ResultsTable rt = new ResultsTable();
 		rt.showRowNumbers(true);
-		for (int i=firstRow; i<lines.length; i++) {
-			rt.incrementCounter();
-			String[] items=lines[i].split(cellSeparator);
-			for (int j=firstColumn; j<items.length; j++) {
-				if (j==labelsIndex&&labels)
-					rt.addLabel(headings[labelsIndex], items[labelsIndex]);
-				else if (j<headings.length) {
-					double value = Tools.parseDouble(items[j]);
-					if (Double.isNaN(value)) {
-						String item = items[j];
-						if (commasReplaced) {
-							item = item.replaceAll(commaSubstitute2, ",");
-							if (item.startsWith("\"") && item.endsWith("\""))
-								item = item.substring(1, item.length()-1);
+		rt.growRows(rows);
+		rt.counter = rows;
+		final TableParser parser = new TableParser();
+		parser.separator = cellSeparator;
+		parser.quoted = commasReplaced;
+		parser.firstColumn = firstColumn;
+		parser.nFields = headings.length;
+		parser.labelField = labelField;
+		parser.firstRowLine = firstLine + firstRow;
+		parser.rows = rows;
+		parser.lastLine = nLines;
+		parser.itemCounts = new int[rows];
+		parser.values = new double[headings.length][];
+		for (int j=firstColumn; j<headings.length; j++) {
+			if (!(labels&&j==labelsIndex) && (selected==null||selected.contains(headings[j])))
+				parser.values[j] = new double[rt.maxRows];
+		}
+		if (labelField>=0)
+			parser.labels = new String[rt.maxRows];
+		parser.firstPresent = new int[headings.length];
+		Arrays.fill(parser.firstPresent, Integer.MAX_VALUE);
+		parser.nonInteger = new boolean[headings.length];
+		final int nParts = commasReplaced?1:nChunks;	// quotes may span lines
+		parser.strings = new StringList[nParts][headings.length];
+		final int[] firstLines = new int[nChunks];
+		for (int k=1; k<nChunks; k++)
+			firstLines[k] = firstLines[k-1] + lineCounts[k-1];
+		if (rows>0) {
+			try {
+				ThreadUtil.parallelFor(0, nParts, 1, new ThreadUtil.RangeTask() {
+					public void run(int from, int to) {
+						for (int k=from; k<to; k++) {
+							long end = nParts==1?starts[starts.length-1]:starts[k+1];
+							parser.parse(path2, starts[k], end, firstLines[k], k);
 						}
-						rt.addValue(headings[j], item);
-					} else
-						rt.addValue(headings[j], value);
-				}
+					}
+				});
+			} catch (RuntimeException e) {
+				throw ioException(e);
 			}
 		}
+		parser.addTo(rt, headings);
 		return rt;
 	}
+
+	/** Counts the lines of a part of a table file, the number of empty lines
+		at its end and whether it contains quotes. */
+	private static void countLines(String path, long start, long end, int k, int[] lineCounts,
+	int[] trailingEmptyLines, boolean[] quotes) {
+		try {
+			TextChunkReader reader = new TextChunkReader(path, start, end);
+			int lines=0, empty=0;
+			boolean quote = false;
+			while (reader.nextLine()) {
+				lines++;
+				empty = reader.lineEnd==reader.lineStart?empty+1:0;
+				byte[] bytes = reader.bytes;
+				for (int i=reader.lineStart; i<reader.lineEnd && !quote; i++)
+					quote = bytes[i]=='"';
+			}
+			reader.close();
+			lineCounts[k] = lines;
+			trailingEmptyLines[k] = empty;
+			quotes[k] = quote;
+		} catch (IOException e) {
+			throw new RuntimeException(e);
+		}
+	}
+
+	private static IOException ioException(RuntimeException e) {
+		if (e.getCause() instanceof IOException)
+			return (IOException)e.getCause();
+		throw e;
+	}
+
+	/** Parses the rows of a table file into the column arrays and adds them to a ResultsTable. */
+	private static class TableParser {
+		byte separator;
+		boolean quoted;
+		int firstColumn, nFields, labelField;
+		int firstRowLine, rows, lastLine;
+		int[] itemCounts;		// number of items in each row
+		double[][] values;		// for each field, the values of all rows; null if not read
+		String[] labels;
+		int[] firstPresent;		// for each field, the first row where it is present
+		boolean[] nonInteger;
+		StringList[][] strings;	// for each part and field, the non-numeric items
+
+		/** Parses the lines of a part that starts with line 'line'. */
+		void parse(String path, long start, long end, int line, int part) {
+			int[] itemStarts = new int[nFields];
+			int[] itemEnds = new int[nFields];
+			int[] firstPresent = new int[nFields];
+			Arrays.fill(firstPresent, Integer.MAX_VALUE);
+			StringList[] strings = this.strings[part];
+			HashMap<String,String> dictionary = new HashMap<String,String>();
+			boolean inQuotes = false;
+			try {
+				TextChunkReader reader = new TextChunkReader(path, start, end);
+				for (; reader.nextLine(); line++) {
+					if (line>=lastLine)
+						break;
+					int row = line - firstRowLine;
+					if (row>=rows)
+						break;
+					byte[] bytes = reader.bytes;
+					int lineEnd = reader.lineEnd;
+					int n = 0;	// number of items, without empty items at the end (as with String.split)
+					int items = 0;
+					int itemStart = reader.lineStart;
+					for (int i=reader.lineStart; i<=lineEnd; i++) {
+						if (i<lineEnd) {
+							byte b = bytes[i];
+							if (quoted && b=='"')
+								inQuotes = !inQuotes;
+							if (b!=separator || (quoted&&inQuotes))
+								continue;
+						}
+						if (items<nFields) {
+							itemStarts[items] = itemStart;
+							itemEnds[items] = i;
+						}
+						items++;
+						if (i>itemStart)
+							n = items;
+						itemStart = i+1;
+					}
+					if (row<0)
+						continue;
+					if (lineEnd==reader.lineStart)
+						n = 1;		// an empty line is one empty item
+					itemCounts[row] = n;
+					int nItems = Math.min(n, nFields);
+					for (int j=firstColumn; j<nItems; j++) {
+						if (j==labelField) {
+							labels[row] = getString(bytes, itemStarts[j], itemEnds[j], false, dictionary);
+							continue;
+						}
+						double[] data = values[j];
+						if (data==null)
+							continue;
+						if (row<firstPresent[j])
+							firstPresent[j] = row;
+						double value = TextChunkReader.parseDouble(bytes, itemStarts[j], itemEnds[j]);
+						data[row] = value;
+						if (Double.isNaN(value)) {
+							if (strings[j]==null)
+								strings[j] = new StringList();
+							strings[j].add(row, getString(bytes, itemStarts[j], itemEnds[j], quoted, dictionary));
+						} else if (row<24 && (int)value!=value)
+							nonInteger[j] = true;
+					}
+				}
+				reader.close();
+			} catch (IOException e) {
+				throw new RuntimeException(e);
+			}
+			synchronized (this) {
+				for (int j=0; j<nFields; j++)
+					this.firstPresent[j] = Math.min(this.firstPresent[j], firstPresent[j]);
+			}
+		}
+
+		private String getString(byte[] bytes, int start, int end, boolean stripQuotes, HashMap<String,String> dictionary) {
+			if (stripQuotes && end-start>=2 && bytes[start]=='"' && bytes[end-1]=='"') {
+				start++;
+				end--;
+			}
+			String str = new String(bytes, start, end-start);
+			String str2 = dictionary.get(str);
+			if (str2==null) {
+				dictionary.put(str, str);
+				str2 = str;
+			}
+			return str2;
+		}
+
+		/** Adds the columns to 'rt', in the order in which they first appear. */
+		void addTo(ResultsTable rt, String[] headings) {
+			Integer[] fields = new Integer[nFields];
+			int n = 0;
+			HashMap<String,Integer> fieldCounts = new HashMap<String,Integer>();
+			for (int j=0; j<nFields; j++) {
+				if (values[j]!=null && firstPresent[j]<rows) {
+					fields[n++] = Integer.valueOf(j);
+					Integer count = fieldCounts.get(headings[j]);
+					fieldCounts.put(headings[j], Integer.valueOf(count==null?1:count.intValue()+1));
+				}
+			}
+			Arrays.sort(fields, 0, n, new Comparator<Integer>() {
+				public int compare(Integer j1, Integer j2) {
+					int row1=firstPresent[j1.intValue()], row2=firstPresent[j2.intValue()];
+					return row1!=row2?(row1<row2?-1:1):j1.compareTo(j2);
+				}
+			});
+			int[] fieldColumns = new int[nFields];
+			boolean[] shared = new boolean[nFields];
+			for (int i=0; i<n; i++) {
+				int j = fields[i].intValue();
+				shared[j] = fieldCounts.get(headings[j]).intValue()>1;
+				int col = rt.getColumnIndex(headings[j]);
+				if (col==COLUMN_NOT_FOUND)
+					col = rt.getFreeColumn(headings[j], shared[j]?null:values[j]);
+				fieldColumns[j] = col;
+			}
+			for (int j=0; j<nFields; j++) {	// in the order of the items, as later items overwrite earlier ones
+				if (values[j]==null || firstPresent[j]>=rows)
+					continue;
+				int col = fieldColumns[j];
+				if (shared[j]) {
+					double[] data = rt.columns[col];
+					for (int row=0; row<rows; row++) {
+						if (itemCounts[row]>j)
+							data[row] = values[j][row];
+					}
+				}
+				for (int part=0; part<strings.length; part++) {
+					StringList list = strings[part][j];
+					if (list!=null) {
+						StringColumn stringColumn = rt.getStringColumn(col);
+						for (int i=0; i<list.size; i++)
+							stringColumn.set(list.rows[i], list.strings[i]);
+					}
+				}
+				if (nonInteger[j])
+					rt.decimalPlaces[col] = rt.precision;
+				rt.keep[col] = true;
+			}
+			if (labels!=null) {
+				for (int row=0; row<rows; row++) {
+					if (itemCounts[row]>labelField) {
+						rt.rowLabels = labels;
+						rt.rowLabelHeading = headings[labelField];
+						break;
+					}
+				}
+			}
+		}
+	}
+
+	/** The rows and values of the non-numeric items of a field. */
+	private static class StringList {
+		int size;
+		int[] rows = new int[16];
+		String[] strings = new String[16];
+
+		void add(int row, String str) {
+			if (size==rows.length) {
+				rows = Arrays.copyOf(rows, size*2);
+				strings = Arrays.copyOf(strings, size*2);
+			}
+			rows[size] = row;
+			strings[size++] = str;
+		}
+	}
 	
 	private static int getTableType(String path, String[] lines, int firstRow, String cellSeparator) {
 		if (lines.length<2) return 0;
@@ -1201,8 +1581,18 @@ public class ResultsTable implements Cloneable {
 			pw.println(headings);
 		}
 		quoteCommas = csv?true:false;
-		for (int i=0; i<size(); i++)
-			pw.println(getRowAsString(i));
+		StringBuilder sb = new StringBuilder(200);
+		char[] chars = new char[200];
+		for (int i=0; i<size(); i++) {
+			sb.setLength(0);
+			appendRow(sb, i);
+			int length = sb.length();
+			if (length>chars.length)
+				chars = new char[length*2];
+			sb.getChars(0, length, chars, 0);
+			pw.write(chars, 0, length);
+			pw.println();
+		}
 		quoteCommas = false;
 		showRowNumbers = saveShowRowNumbers;
 		pw.close();
@@ -1238,14 +1628,13 @@ public class ResultsTable implements Cloneable {
 					rt2.rowLabels[i] = rowLabels[i];
 			}
 			if (stringColumns!=null) {
-				rt2.stringColumns = new Hashtable();
-				Set set = stringColumns.keySet();
-				for (Iterator i=set.iterator(); i.hasNext();) {
-					Integer column = (Integer)i.next();
-					ArrayList list = (ArrayList)stringColumns.get(column);
-					rt2.stringColumns.put(column, list.clone());
+				rt2.stringColumns = new StringColumn[stringColumns.length];
+				for (int i=0; i<stringColumns.length; i++) {
+					if (stringColumns[i]!=null)
+						rt2.stringColumns[i] = stringColumns[i].duplicate();
 				}
 			}
+			rt2.headingIndex = null;
 			return rt2;
 		}
 		catch (CloneNotSupportedException e) {return null;}
@@ -1443,5 +1832,53 @@ public class ResultsTable implements Cloneable {
 			}
 		}
 	}
-		
+
+	/** A column of strings, stored as indexes into the list of its distinct values. */
+	private static class StringColumn {
+		int size;
+		int[] codes = new int[16];
+		ArrayList<String> values = new ArrayList<String>();
+		HashMap<String,Integer> index = new HashMap<String,Integer>();
+
+		/** Returns the string in the given row, or null if the row is not set. */
+		String get(int row) {
+			return row>=0&&row<size?values.get(codes[row]):null;
+		}
+
+		/** Sets the string in the given row; rows skipped are set to "". */
+		void set(int row, String value) {
+			if (row>=codes.length)
+				codes = Arrays.copyOf(codes, Math.max(row+1, codes.length*2));
+			if (row>size)
+				Arrays.fill(codes, size, row, getCode(""));
+			codes[row] = getCode(value);
+			if (row>=size)
+				size = row + 1;
+		}
+
+		void delete(int row) {
+			System.arraycopy(codes, row+1, codes, row, size-row-1);
+			size--;
+		}
+
+		private int getCode(String value) {
+			Integer code = index.get(value);
+			if (code==null) {
+				code = Integer.valueOf(values.size());
+				values.add(value);
+				index.put(value, code);
+			}
+			return code.intValue();
+		}
+
+		StringColumn duplicate() {
+			StringColumn column = new StringColumn();
+			column.size = size;
+			column.codes = codes.clone();
+			column.values = new ArrayList<String>(values);
+			column.index = new HashMap<String,Integer>(index);
+			return column;
+		}
+	}
+
 }
@@ -281,14 +281,11 @@ public class FFT implements	 PlugIn, Measurements {
 	ImageProcessor pad(ImageProcessor ip) {
 		originalWidth = ip.getWidth();
 		originalHeight = ip.getHeight();
-		int maxN = Math.max(originalWidth, originalHeight);
-		int i = 2;
-		while(i<maxN) i *= 2;
-		if (i==maxN && originalWidth==originalHeight) {
+		int maxN = FFTEngine.nextFastSize(Math.max(originalWidth, originalHeight)); //product of 2, 3, 5, 7
+		if (maxN==originalWidth && maxN==originalHeight) {
 			padded = false;
 			return ip;
 		}
-		maxN = i;
 		showStatus("Padding to "+ maxN + "x" + maxN);
 		if (maxN>=65536) {
 			IJ.error("FFT", "Padded image is too large ("+maxN+"x"+maxN+")");
@@ -347,41 +344,43 @@ public class FFT implements	 PlugIn, Measurements {
 
 	// Change pixels not equal to v1 to the new value v2.
 	// For pixels equal to v1, also the symmetry-equivalent pixel is set to v1
-	// Requires a quadratic 8-bit image.
+	// Requires an 8-bit image.
 	void changeValuesAndSymmetrize(ImageProcessor ip, byte v1, byte v2) {
 		byte[] pixels = (byte[])ip.getPixels();
-		int n = ip.getWidth();
+		int width = ip.getWidth();
+		int height = ip.getHeight();
 		for (int i=0; i<pixels.length; i++) {
 			if (pixels[i] == v1) {	//pixel has been edited for pass or filter, set symmetry-equivalent
-				if (i%n==0) {		//left edge
-					if (i>0) pixels[n*n-i] = v1;
-				} else if (i<n)		//top edge
-					pixels[n-i] = v1;
-				else				//no edge
-					pixels[n*(n+1)-i] = v1;
+				int x = i%width, y = i/width;
+				pixels[((height-y)%height)*width + (width-x)%width] = v1;
 			} else
 				pixels[i] = v2;		//reset all other pixel values
 		}
 	}
 
-	// Smooth an 8-bit square image with periodic boundary conditions
+	// Smooth an 8-bit image with periodic boundary conditions
 	// by averaging over 3x3 pixels
-	// Requires a quadratic 8-bit image.
 	static void smooth(ImageProcessor ip) {
 		byte[] pixels = (byte[])ip.getPixels();
 		byte[] pixels2 = (byte[])pixels.clone();
-		int n = ip.getWidth();
-		int[] iMinus = new int[n];	//table of previous index modulo n
-		int[] iPlus = new int[n];	//table of next index modulo n
+		int width = ip.getWidth();
+		int height = ip.getHeight();
+		int n = Math.max(width, height);
+		int[] iMinus = new int[n];	//table of previous index modulo width
+		int[] iPlus = new int[n];	//table of next index modulo width
+		int[] yMinus = new int[n];	//table of previous index modulo height
+		int[] yPlus = new int[n];	//table of next index modulo height
 		for (int i=0; i<n; i++) {	//creating the tables in advance is faster calculating each time
-			iMinus[i] = (i-1+n)%n;
-			iPlus[i] = (i+1)%n;
+			iMinus[i] = (i-1+width)%width;
+			iPlus[i] = (i+1)%width;
+			yMinus[i] = (i-1+height)%height;
+			yPlus[i] = (i+1)%height;
 		}
-		for (int y=0; y<n; y++) {
-			int offset1 = n*iMinus[y];
-			int offset2 = n*y;
-			int offset3 = n*iPlus[y];
-			for (int x=0; x<n; x++) {
+		for (int y=0; y<height; y++) {
+			int offset1 = width*yMinus[y];
+			int offset2 = width*y;
+			int offset3 = width*yPlus[y];
+			for (int x=0; x<width; x++) {
 				int sum = (pixels2[offset1+iMinus[x]]&255)
 						+ (pixels2[offset1+x]&255)
 						+ (pixels2[offset1+iPlus[x]]&255)
@@ -447,14 +446,15 @@ public class FFT implements	 PlugIn, Measurements {
 		ImageStack stack = imp.getStack();
 		if (!stack.getSliceLabel(1).equals("Real"))
 			return;
-		int maxN = imp.getWidth();
+		int width = imp.getWidth();
+		int height = imp.getHeight();
 		swapQuadrants(stack);
 		float[] rein = (float[])stack.getPixels(1);
 		float[] imin = (float[])stack.getPixels(2);
-		float[] reout= new float[maxN*maxN];
-		float[] imout = new float[maxN*maxN];
-		c2c2DFFT(rein, imin, maxN, reout, imout);
-		ImageStack stack2 = new ImageStack(maxN, maxN);
+		float[] reout= new float[width*height];
+		float[] imout = new float[width*height];
+		c2c2DFFT(rein, imin, width, height, reout, imout);
+		ImageStack stack2 = new ImageStack(width, height);
 		swapQuadrants(stack);
 		stack2.addSlice("Real", reout);
 		stack2.addSlice("Imaginary", imout);
@@ -481,38 +481,38 @@ public class FFT implements	 PlugIn, Measurements {
 	/** Complex to Complex Inverse Fourier Transform
 	*	Author: Joachim Wesner
 	*/
-	void c2c2DFFT(float[] rein, float[] imin, int maxN, float[] reout, float[] imout) {
-			FHT fht = new FHT(new FloatProcessor(maxN,maxN));
+	void c2c2DFFT(float[] rein, float[] imin, int width, int height, float[] reout, float[] imout) {
+			FHT fht = new FHT(new FloatProcessor(width,height));
 			float[] fhtpixels = (float[])fht.getPixels();
 			// Real part of inverse transform
-			for (int iy = 0; iy < maxN; iy++)
-				  cplxFHT(iy, maxN, rein, imin, false, fhtpixels);
+			for (int iy = 0; iy < height; iy++)
+				  cplxFHT(iy, width, height, rein, imin, false, fhtpixels);
 			fht.inverseTransform();
 			// Save intermediate result, so we can do a "in-place" transform
-			float[] hlp = new float[maxN*maxN];
-			System.arraycopy(fhtpixels, 0, hlp, 0, maxN*maxN);
+			float[] hlp = new float[width*height];
+			System.arraycopy(fhtpixels, 0, hlp, 0, width*height);
 			// Imaginary part of inverse transform
-			for (int iy = 0; iy < maxN; iy++)
-				  cplxFHT(iy, maxN, rein, imin, true, fhtpixels);
+			for (int iy = 0; iy < height; iy++)
+				  cplxFHT(iy, width, height, rein, imin, true, fhtpixels);
 			fht.inverseTransform();
-			System.arraycopy(hlp, 0, reout, 0, maxN*maxN);
-			System.arraycopy(fhtpixels, 0, imout, 0, maxN*maxN);
+			System.arraycopy(hlp, 0, reout, 0, width*height);
+			System.arraycopy(fhtpixels, 0, imout, 0, width*height);
 	  }
 
 	/** Build FHT input for equivalent inverse FFT
 	*	Author: Joachim Wesner
 	*/
-	void cplxFHT(int row, int maxN, float[] re, float[] im, boolean reim, float[] fht) {
-			int base = row*maxN;
-			int offs = ((maxN-row)%maxN) * maxN;
+	void cplxFHT(int row, int width, int height, float[] re, float[] im, boolean reim, float[] fht) {
+			int base = row*width;
+			int offs = ((height-row)%height) * width;
 			if (!reim) {
-				  for (int c=0; c<maxN; c++) {
-						int l =	 offs + (maxN-c)%maxN;
+				  for (int c=0; c<width; c++) {
+						int l =	 offs + (width-c)%width;
 						fht[base+c] = ((re[base+c]+re[l]) - (im[base+c]-im[l]))*0.5f;
 				  }
 			} else {
-				  for (int c=0; c<maxN; c++) {
-						int l = offs + (maxN-c)%maxN;
+				  for (int c=0; c<width; c++) {
+						int l = offs + (width-c)%width;
 						fht[base+c] = ((im[base+c]+im[l]) + (re[base+c]-re[l]))*0.5f;
 				  }
 			}
@@ -30,32 +30,13 @@ public class FFTMath implements PlugIn {
             IJ.noImage();
             return false;
         }
-        int nGoodImages = 0;
+        String[] titles = new String[wList.length];
         for (int i=0; i<wList.length; i++) {
             ImagePlus imp = WindowManager.getImage(wList[i]);
-            if (imp == null || imp.getWidth() != imp.getHeight() || !FHT.isPowerOf2(imp.getWidth()))
-                wList[i] = 0;               //mark images that are not a power of 2
-            else
-                nGoodImages++;
+            titles[i] = imp!=null?imp.getTitle():"";
         }
-        if (nGoodImages == 0) {
-        	IJ.error("FFT Math", "Images must be a power of 2 size (256x256, 512x512, etc.)");
-        	return false;
-        }
-        int[] wList2 = new int[nGoodImages];
-        String[] titles = new String[nGoodImages];
-        for (int i=0, i2=0; i<wList.length; i++) {
-            if (wList[i] == 0) continue;    //ignore this image, not power of 2
-            wList2[i2] = wList[i];
-            ImagePlus imp = WindowManager.getImage(wList2[i2]);
-            if (imp!=null)
-                titles[i2] = imp.getTitle();
-            else
-                titles[i2] = "";
-            i2++;
-        }
-        if (index1>=wList2.length) index1 = 0;
-        if (index2>=wList2.length) index2 = 0;
+        if (index1>=wList.length) index1 = 0;
+        if (index2>=wList.length) index2 = 0;
         if (WindowManager.getImage(title)!=null)
             title = WindowManager.getUniqueName(title);
         GenericDialog gd = new GenericDialog("FFT Math");
@@ -73,8 +54,14 @@ public class FFTMath implements PlugIn {
         index2 = gd.getNextChoiceIndex();
         title = gd.getNextString();
         doInverse = gd.getNextBoolean();
-        imp1 = WindowManager.getImage(wList2[index1]);
-        imp2 = WindowManager.getImage(wList2[index2]);
+        imp1 = WindowManager.getImage(wList[index1]);
+        imp2 = WindowManager.getImage(wList[index2]);
+        if (imp1==null || imp2==null)
+            return false;
+        if (imp1.getWidth()!=imp2.getWidth() || imp1.getHeight()!=imp2.getHeight()) {
+            IJ.error("FFT Math", "Image1 and Image2 must have the same width and height");
+            return false;
+        }
         return true;
    }
     
@@ -97,12 +84,8 @@ public class FFTMath implements PlugIn {
         	if (imp2!=imp1)
        	 		h2 = new FHT(ip2);
        	}
-        if (!h1.powerOf2Size()) {
-        	IJ.error("FFT Math", "Images must be a power of 2 size (256x256, 512x512, etc.)");
-        	return;
-        }
-        if (imp1.getWidth()!=imp2.getWidth()) {
-        	IJ.error("FFT Math", "Images must be the same size");
+        if (imp1.getWidth()!=imp2.getWidth() || imp1.getHeight()!=imp2.getHeight()) {
+        	IJ.error("FFT Math", "Image1 and Image2 must have the same width and height");
         	return;
         }
 		if (fht1==null) {
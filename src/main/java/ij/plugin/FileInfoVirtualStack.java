@@ -12,6 +12,9 @@ import java.util.Properties;
 public class FileInfoVirtualStack extends VirtualStack implements PlugIn {
 	private FileInfo[] info;
 	private int nImages;
+	private static final long MIN_MAPPED_SIZE = 64L<<20;	// smaller files are read with streams
+	private MappedImageReader mappedReader;	// maps the file once for all images, if possible
+	private boolean mappingTried;
 	
 	/* Default constructor. */
 	public FileInfoVirtualStack() {}
@@ -184,41 +187,89 @@ public class FileInfoVirtualStack extends VirtualStack implements PlugIn {
 			info[i-1] = info[i];
 		info[nImages-1] = null;
 		nImages--;
+		VirtualStackCache.remove(this);
 	}
 	
-	/** Returns an ImageProcessor for the specified image,
-		were 1<=n<=nImages. Returns null if the stack is empty.
+	/** Reads the specified image, were 1<=n<=nImages.
+		Returns null if the stack is empty.
 	*/
-	public ImageProcessor getProcessor(int n) {
+	protected Slice readSlice(int n) {
 		if (n<1 || n>nImages)
 			throw new IllegalArgumentException("Argument out of range: "+n);
 		//if (n>1) IJ.log("  "+(info[n-1].getOffset()-info[n-2].getOffset()));
 		info[n-1].nImages = 1; // why is this needed?
 		ImagePlus imp = null;
+		MappedImageReader mapped = getMappedReader();
 		if (IJ.debugMode) {
 			long t0 = System.currentTimeMillis();
 			FileOpener fo = new FileOpener(info[n-1]);
+			fo.setMappedReader(mapped);
 			imp = fo.openImage();
-			IJ.log("FileInfoVirtualStack: "+n+", offset="+info[n-1].getOffset()+", "+(System.currentTimeMillis()-t0)+"ms");
+			IJ.log("FileInfoVirtualStack: "+n+", offset="+info[n-1].getOffset()+", "+(System.currentTimeMillis()-t0)+"ms"+(mapped!=null?" (mapped)":""));
 		} else {
 			FileOpener fo = new FileOpener(info[n-1]);
+			fo.setMappedReader(mapped);
 			imp = fo.openImage();
 		}
 		if (imp!=null)
-			return imp.getProcessor();
+			return new Slice(imp.getProcessor());
 		else {
 			int w=getWidth(), h=getHeight();
-			IJ.log("Read error or file not found ("+n+"): "+info[n-1].directory+info[n-1].fileName);
+			if (!VirtualStackCache.isReadAheadThread())
+				IJ.log("Read error or file not found ("+n+"): "+info[n-1].directory+info[n-1].fileName);
+			ImageProcessor ip = null;
 			switch (getBitDepth()) {
-				case 8: return new ByteProcessor(w, h);
-				case 16: return new ShortProcessor(w, h);
-				case 24: return new ColorProcessor(w, h);
-				case 32: return new FloatProcessor(w, h);
-				default: return null;
+				case 8: ip = new ByteProcessor(w, h); break;
+				case 16: ip = new ShortProcessor(w, h); break;
+				case 24: ip = new ColorProcessor(w, h); break;
+				case 32: ip = new FloatProcessor(w, h); break;
 			}
+			Slice slice = new Slice(ip);
+			slice.failed = true;
+			return slice;
 		}
 	 }
  
+	/** Releases the memory-mapped file, if any, so that it can be overwritten,
+		renamed or deleted. Images read later are read with streams.
+		Called by ImagePlus when the image is closed. */
+	public synchronized void close() {
+		if (mappedReader!=null)
+			mappedReader.close();
+		mappedReader = null;
+		mappingTried = true;
+	}
+
+	/** Returns a reader for all images of this stack, which must be
+		uncompressed, in one file and at least MIN_MAPPED_SIZE bytes, or null. */
+	private synchronized MappedImageReader getMappedReader() {
+		if (mappingTried)
+			return mappedReader;
+		mappingTried = true;
+		FileInfo fi = info[0];
+		if (!MappedImageReader.canRead(fi))
+			return null;
+		long imageSize = (long)fi.width*fi.height*fi.getBytesPerPixel();
+		long start=Long.MAX_VALUE, end=0L;
+		for (int i=0; i<nImages; i++) {
+			FileInfo fi2 = info[i];
+			if (fi2.fileType!=fi.fileType || fi2.width!=fi.width || fi2.height!=fi.height
+			|| fi2.intelByteOrder!=fi.intelByteOrder || !fi.fileName.equals(fi2.fileName)
+			|| !fi.directory.equals(fi2.directory) || !MappedImageReader.canRead(fi2))
+				return null;
+			start = Math.min(start, fi2.getOffset());
+			end = Math.max(end, fi2.getOffset()+imageSize);
+		}
+		if (end-start<MIN_MAPPED_SIZE)
+			return null;
+		try {
+			mappedReader = new MappedImageReader(fi, start, end-start);
+		} catch (Exception e) {
+			if (IJ.debugMode) IJ.log("FileInfoVirtualStack: cannot map file: "+e);
+		}
+		return mappedReader;
+	}
+
 	 /** Returns the number of images in this stack. */
 	public int getSize() {
 		return nImages;
@@ -6,7 +6,6 @@ import ij.gui.GenericDialog;
 import ij.util.ThreadUtil;
 import ij.plugin.RGBStackMerge;
 import ij.gui.*;
-import java.util.concurrent.atomic.AtomicInteger;
 
 /*
  * This plugin implements most of the 3D filters in the Process/Filters submenu.
@@ -93,25 +92,15 @@ public class Filters3D implements PlugIn {
 			else
 				res = ImageStack.create(width, height, depth, stackorig.getBitDepth());
 			IJ.showStatus("3D filtering...");
-			// PARALLEL 
+			// PARALLEL: z-slabs are handed out to the shared pool
 			final ImageStack out = res;
-			final AtomicInteger ai = new AtomicInteger(0);
-			final int n_cpus = Prefs.getThreads();
-
 			final int f = filter;
-			final int dec = (int) Math.ceil((double) stack.getSize() / (double) n_cpus);
-			Thread[] threads = ThreadUtil.createThreadArray(n_cpus);
-			for (int ithread = 0; ithread < threads.length; ithread++) {
-				threads[ithread] = new Thread() {
-					public void run() {
-						StackProcessor processor = new StackProcessor(stack);
-						for (int k = ai.getAndIncrement(); k < n_cpus; k = ai.getAndIncrement()) {
-							processor.filter3D(out, voisx, voisy, voisz, dec * k, dec * (k + 1), f);
-						}
-					}
-				};
-			}
-			ThreadUtil.startAndJoin(threads);
+			ThreadUtil.parallelFor(0, depth, new ThreadUtil.RangeTask() {
+				public void run(int zmin, int zmax) {
+					StackProcessor processor = new StackProcessor(stack);
+					processor.filter3D(out, voisx, voisy, voisz, zmin, zmax, f);
+				}
+			});
 		}
 		return res;
 	}
@@ -82,9 +82,10 @@ public class ListVirtualStack extends VirtualStack implements PlugIn {
 		for (int i=1; i<=this.getSize(); i++) {
 			IJ.showProgress(i, n);
 			IJ.showStatus("Opening: "+i+"/"+n);
-			ImageProcessor ip2 = this.getProcessor(i);
-			if (ip2!=null)
-				stack2.addSlice(this.getSliceLabel(i), ip2);
+			Slice slice = readSlice(i);
+			setSliceInfo(i, slice);
+			if (slice.ip!=null)
+				stack2.addSlice(this.getSliceLabel(i), slice.ip);
 		}
 		return stack2;
 	}
@@ -132,21 +133,23 @@ public class ListVirtualStack extends VirtualStack implements PlugIn {
 			list[i-1] = list[i];
 		list[nImages-1] = null;
 		nImages--;
+		VirtualStackCache.remove(this);
 	}
 	
-	/** Returns an ImageProcessor for the specified slice,
-		were 1<=n<=nslices. Returns null if the stack is empty.
+	/** Reads the specified slice, were 1<=n<=nslices.
+		Returns null if the stack is empty.
 	*/
-	public ImageProcessor getProcessor(int n) {
+	protected Slice readSlice(int n) {
 		if (n<1 || n>nImages)
 			throw new IllegalArgumentException("Argument out of range: "+n);
-		IJ.redirectErrorMessages(true);
+		boolean readAhead = VirtualStackCache.isReadAheadThread();
+		if (!readAhead) IJ.redirectErrorMessages(true);
 		String url = list[n-1];
 		ImagePlus imp = null;
 		if (url.length()>0)
 			imp = IJ.openImage(url);
+		if (!readAhead) IJ.redirectErrorMessages(false);
 		if (imp!=null) {
-			labels[n-1] = (new File(list[n-1])).getName()+"\n"+(String)imp.getProperty("Info");
 			ImageProcessor ip =  imp.getProcessor();
 			int bitDepth = getBitDepth();
 			if (imp.getBitDepth()!=bitDepth) {
@@ -159,8 +162,9 @@ public class ListVirtualStack extends VirtualStack implements PlugIn {
 			}
 			if (ip.getWidth()!=imageWidth || ip.getHeight()!=imageHeight)
 			ip = ip.resize(imageWidth, imageHeight);
-			IJ.redirectErrorMessages(false);
-			return ip;
+			Slice slice = new Slice(ip);
+			slice.label = (new File(list[n-1])).getName()+"\n"+(String)imp.getProperty("Info");
+			return slice;
 		} else {
 				ImageProcessor ip = null;
 				switch (getBitDepth()) {
@@ -169,10 +173,17 @@ public class ListVirtualStack extends VirtualStack implements PlugIn {
 					case 24:  ip=new ColorProcessor(imageWidth,imageHeight); break;
 					case 32: ip=new FloatProcessor(imageWidth,imageHeight); break;
 				}
-			IJ.redirectErrorMessages(false);
-			return ip;
+			Slice slice = new Slice(ip);
+			slice.failed = true;
+			return slice;
 		}
 	 }
+
+	/** Sets the label of slice 'n' as read by readSlice. */
+	protected void setSliceInfo(int n, Slice slice) {
+		if (slice.label!=null)
+			labels[n-1] = slice.label;
+	}
  
 	 /** Returns the number of images in this stack. */
 	public int getSize() {
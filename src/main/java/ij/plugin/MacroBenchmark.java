@@ -0,0 +1,48 @@
+package ij.plugin;
+import ij.*;
+
+/** Measures the time the macro interpreter needs for a few typical hot
+	loops: arithmetic, nested getPixel/setPixel loops, user function calls,
+	string concatenation, array access and a loop after 100 other variables
+	have been defined. Each macro is run three times and
+	the fastest run is reported. Run with IJ.runPlugIn("ij.plugin.MacroBenchmark", "");
+	the argument may specify the number of loop iterations (default 200000).
+*/
+public class MacroBenchmark implements PlugIn {
+
+	private static final String[] names = {"Arithmetic", "Pixel loop", "Function calls", "Strings", "Arrays", "100 variables"};
+
+	public void run(String arg) {
+		int n = 200000;
+		if (arg!=null && arg.trim().length()>0)
+			n = (int)ij.util.Tools.parseDouble(arg.trim(), n);
+		int size = (int)Math.max(1, Math.sqrt(n));
+		StringBuilder variables = new StringBuilder();
+		for (int i=0; i<100; i++)
+			variables.append("v"+i+"="+i+"; ");
+		String[] macros = {
+			"sum=0; for (i=0; i<"+n+"; i++) {x=i*0.5; sum=sum+x*x/(1+2*3)-i%7;} result=sum;",
+			"setBatchMode(true); newImage('bench','8-bit ramp',"+size+","+size+",1); w=getWidth(); h=getHeight(); sum=0;\n"
+				+"for (y=0; y<h; y++) {for (x=0; x<w; x++) {v=getPixel(x,y); setPixel(x,y,255-v); sum+=v;}}\n"
+				+"close(); result=sum;",
+			"function f(a, b) {c=a*b; return c+1;}\n"
+				+"sum=0; for (i=0; i<"+n+"; i++) sum=sum+f(i, 2); result=sum;",
+			"s=''; for (i=0; i<"+(n/10)+"; i++) {s=s+i; if (lengthOf(s)>1000) s='';} result=lengthOf(s);",
+			"a=newArray("+size+"); sum=0; for (i=0; i<"+n+"; i++) {j=i%"+size+"; a[j]=a[j]+i; sum+=a[j];} result=sum;",
+			"sum=0; "+variables+"for (i=0; i<"+n+"; i++) {sum=sum+v1*0.5;} result=sum;"
+		};
+		IJ.log("Macro benchmark, "+n+" iterations");
+		for (int i=0; i<macros.length; i++) {
+			String macro = macros[i];
+			long best = Long.MAX_VALUE;
+			String result = null;
+			for (int run=0; run<3; run++) {
+				long t0 = System.currentTimeMillis();
+				result = IJ.runMacro(macro+"\nreturn \"\"+result;");
+				best = Math.min(best, System.currentTimeMillis()-t0);
+			}
+			IJ.log("  "+names[i]+": "+best+" ms (result="+result+")");
+		}
+	}
+
+}
@@ -28,6 +28,8 @@ public class Memory implements PlugIn {
 		GenericDialog gd = new GenericDialog(title);
 		gd.addNumericField("Maximum memory:", max, 0, 5, "MB");
 		gd.addNumericField("Parallel threads:", Prefs.getThreads(), 0, 5, "");
+		gd.addNumericField("Virtual stack cache:", Prefs.getVirtualStackCache(), 0, 5, "MB");
+		gd.addNumericField("Read ahead:", Prefs.getReadAhead(), 0, 5, "slices");
 		gd.setInsets(12, 0, 0);
 		gd.addCheckbox("Keep multiple undo buffers", Prefs.keepUndoBuffers);
 		gd.setInsets(12, 0, 0);
@@ -37,6 +39,8 @@ public class Memory implements PlugIn {
 		if (gd.wasCanceled()) return;
 		int max2 = (int)gd.getNextNumber();
 		Prefs.setThreads((int)gd.getNextNumber());
+		Prefs.setVirtualStackCache((int)gd.getNextNumber());
+		Prefs.setReadAhead((int)gd.getNextNumber());
 		Prefs.keepUndoBuffers = gd.getNextBoolean();
 		Prefs.noClickToGC = !gd.getNextBoolean();
 		if (gd.invalidNumber()) {
@@ -0,0 +1,488 @@
+package ij.plugin;
+import ij.*;
+import ij.gui.GenericDialog;
+import ij.process.*;
+import ij.measure.*;
+import ij.plugin.filter.Analyzer;
+import ij.util.ThreadUtil;
+import ij.util.Tools;
+import java.util.Arrays;
+
+/** This plugin implements the Analyze/Analyze Particles 3D command. It finds
+	the 6, 18 or 26-connected objects of a thresholded stack, creates a 32-bit
+	stack with the object number of each voxel and measures the voxel count,
+	volume, mean, standard deviation, min and max, centroid, center of mass,
+	bounding box and integrated density of each object, in the columns used
+	by Analyze/Measure, with the Z coordinate added.
+	<p>
+	The stack is divided into slabs of slices that are labeled in parallel.
+	Each slab numbers its voxels with provisional labels and accumulates the
+	statistics per label, with a union-find forest of the labels that touch.
+	The forests are then joined where the slabs meet, so that only the label
+	stack, which holds the provisional labels until the objects are numbered,
+	has the size of the image.
+	<p>
+	Objects are numbered in the order of their first voxel (z, then y, then x).
+*/
+public class ParticleAnalyzer3D implements PlugIn, Measurements {
+	private static int staticConnectivity = 26;
+	private static double staticMinSize = 0.0;
+	private static double staticMaxSize = Double.POSITIVE_INFINITY;
+	private static boolean staticExcludeEdges;
+	private static boolean staticShowLabels = true;
+	private static boolean staticDisplayResults = true;
+
+	private int connectivity;
+	private double minSize, maxSize;
+	private boolean excludeEdges;
+	private int width, height, depth;
+	private int[] dx, dy, dz;		// the neighbors visited before a voxel
+	private Objects objects;
+	private int count;
+
+	/** Creates an analyzer for 6, 18 or 26-connected objects with
+		'minSize' to 'maxSize' voxels. */
+	public ParticleAnalyzer3D(int connectivity, double minSize, double maxSize, boolean excludeEdges) {
+		if (connectivity!=6 && connectivity!=18 && connectivity!=26)
+			throw new IllegalArgumentException("Connectivity must be 6, 18 or 26");
+		this.connectivity = connectivity;
+		this.minSize = minSize;
+		this.maxSize = maxSize;
+		this.excludeEdges = excludeEdges;
+	}
+
+	/** Creates an analyzer for 26-connected objects of any size. */
+	public ParticleAnalyzer3D() {
+		this(26, 0.0, Double.POSITIVE_INFINITY, false);
+	}
+
+	public void run(String arg) {
+		ImagePlus imp = IJ.getImage();
+		if (imp.getBitDepth()==24) {
+			IJ.error("Analyze Particles 3D", "RGB images are not supported");
+			return;
+		}
+		ImageProcessor ip = imp.getProcessor();
+		double lower = ip.getMinThreshold();
+		double upper = ip.getMaxThreshold();
+		if (lower==ImageProcessor.NO_THRESHOLD) {
+			if (!(ip instanceof ByteProcessor && ((ByteProcessor)ip).isBinary())) {
+				IJ.error("Analyze Particles 3D",
+					"A thresholded image or 8-bit binary image is\n"
+					+"required. Threshold levels can be set using\n"
+					+"the Image->Adjust->Threshold tool.");
+				return;
+			}
+			boolean threshold255 = imp.isInvertedLut();
+			if (Prefs.blackBackground)
+				threshold255 = !threshold255;
+			lower = upper = threshold255?255:0;
+		}
+		if (!showDialog())
+			return;
+		ImageStack stack = imp.getStack();
+		if (imp.isHyperStack() && imp.getNSlices()<imp.getStackSize()) {
+			ImageStack stack2 = new ImageStack(imp.getWidth(), imp.getHeight());
+			int c = imp.getChannel(), t = imp.getFrame();
+			for (int z=1; z<=imp.getNSlices(); z++)
+				stack2.addSlice(stack.getProcessor(imp.getStackIndex(c, z, t)));
+			stack = stack2;
+		}
+		imp.startTiming();
+		connectivity = staticConnectivity;
+		minSize = staticMinSize;
+		maxSize = staticMaxSize;
+		excludeEdges = staticExcludeEdges;
+		Calibration cal = imp.getCalibration();
+		ImageStack labels = label(stack, lower, upper, cal);
+		if (staticDisplayResults) {
+			ResultsTable rt = Analyzer.getResultsTable();
+			rt.reset();
+			saveResults(rt, Analyzer.getMeasurements(), cal);
+			rt.show("Results");
+		}
+		if (staticShowLabels) {
+			ImagePlus imp2 = new ImagePlus("Labels of "+imp.getShortTitle(), labels);
+			imp2.setCalibration(cal);
+			imp2.getProcessor().setMinAndMax(0, Math.max(count, 1));
+			imp2.show();
+		}
+		IJ.showStatus(count+" objects, "+IJ.d2s((System.currentTimeMillis()-imp.getStartTime())/1000.0,2)+" seconds");
+	}
+
+	private boolean showDialog() {
+		GenericDialog gd = new GenericDialog("Analyze Particles 3D");
+		String[] choices = {"6", "18", "26"};
+		gd.addChoice("Connectivity:", choices, ""+staticConnectivity);
+		String max = staticMaxSize==Double.POSITIVE_INFINITY?"Infinity":IJ.d2s(staticMaxSize,0);
+		gd.addStringField("Size (voxels):", IJ.d2s(staticMinSize,0)+"-"+max, 12);
+		gd.addCheckbox("Exclude on edges", staticExcludeEdges);
+		gd.addCheckbox("Show label stack", staticShowLabels);
+		gd.addCheckbox("Display results", staticDisplayResults);
+		gd.showDialog();
+		if (gd.wasCanceled())
+			return false;
+		staticConnectivity = (int)Tools.parseDouble(gd.getNextChoice(), 26);
+		String[] range = Tools.split(gd.getNextString(), " -");
+		double min = range.length>=1?Tools.parseDouble(range[0]):0.0;
+		double max2 = range.length==2?Tools.parseDouble(range[1]):Double.NaN;
+		staticMinSize = Double.isNaN(min)||min<0.0?0.0:min;
+		staticMaxSize = Double.isNaN(max2)?Double.POSITIVE_INFINITY:max2;
+		staticExcludeEdges = gd.getNextBoolean();
+		staticShowLabels = gd.getNextBoolean();
+		staticDisplayResults = gd.getNextBoolean();
+		return true;
+	}
+
+	/** Labels the objects with voxel values from 'lower' to 'upper' in 'stack'
+		and returns a 32-bit stack with the object numbers (1, 2, ...), or 0 for
+		the background and the objects outside the size range. The statistics
+		of the voxel values are calibrated with the function of 'cal', which may
+		be null. */
+	public ImageStack label(ImageStack stack, final double lower, final double upper, Calibration cal) {
+		width = stack.getWidth();
+		height = stack.getHeight();
+		depth = stack.getSize();
+		setNeighbors();
+		final ImageStack values = stack;
+		final float[] cTable = cal!=null&&stack.getBitDepth()!=32?cal.getCTable():null;
+		final ImageStack labels = ImageStack.create(width, height, depth, 32);
+		int nSlabs = Math.min(Prefs.getThreads(), depth);
+		final int[] slabStarts = new int[nSlabs+1];
+		for (int s=0; s<=nSlabs; s++)
+			slabStarts[s] = (int)((long)depth*s/nSlabs);
+		final Objects[] slabs = new Objects[nSlabs];
+		IJ.showStatus("Labeling...");
+		ThreadUtil.parallelFor(0, nSlabs, 1, new ThreadUtil.RangeTask() {
+			public void run(int from, int to) {
+				for (int s=from; s<to; s++)
+					slabs[s] = labelSlab(values, labels, slabStarts[s], slabStarts[s+1], lower, upper, cTable);
+			}
+		});
+		int[] offsets = new int[nSlabs+1];
+		for (int s=0; s<nSlabs; s++)
+			offsets[s+1] = offsets[s] + slabs[s].size;
+		Objects all = new Objects(offsets[nSlabs]);
+		for (int s=0; s<nSlabs; s++) {
+			all.append(slabs[s], offsets[s]);
+			slabs[s] = null;
+		}
+		for (int s=1; s<nSlabs; s++)
+			mergeSlices(labels, slabStarts[s], offsets[s-1], offsets[s], all);
+		final int[] numbers = number(all);
+		IJ.showStatus("Relabeling...");
+		final int[] slabOffsets = offsets;
+		final int[] slabOfSlice = new int[depth];
+		for (int s=0; s<nSlabs; s++)
+			Arrays.fill(slabOfSlice, slabStarts[s], slabStarts[s+1], s);
+		ThreadUtil.parallelFor(0, depth, new ThreadUtil.RangeTask() {
+			public void run(int from, int to) {
+				for (int z=from; z<to; z++) {
+					float[] pixels = (float[])labels.getPixels(z+1);
+					int offset = slabOffsets[slabOfSlice[z]];
+					for (int i=0; i<pixels.length; i++) {
+						int label = Float.floatToRawIntBits(pixels[i]);
+						if (label!=0)
+							pixels[i] = numbers[offset+label-1];
+					}
+				}
+			}
+		});
+		IJ.showStatus("");
+		return labels;
+	}
+
+	private void setNeighbors() {
+		int n = connectivity==6?3:(connectivity==18?9:13);
+		dx = new int[n]; dy = new int[n]; dz = new int[n];
+		int k = 0;
+		for (int z=-1; z<=0; z++) {
+			for (int y=-1; y<=1; y++) {
+				for (int x=-1; x<=1; x++) {
+					if (z==0 && (y>0 || (y==0 && x>=0)))
+						continue;	// not visited before (0,0,0)
+					int distance = Math.abs(x) + Math.abs(y) + Math.abs(z);
+					if (distance==1 || (distance==2 && connectivity>=18) || connectivity==26) {
+						dx[k] = x; dy[k] = y; dz[k] = z;
+						k++;
+					}
+				}
+			}
+		}
+	}
+
+	/** Labels the slices 'z1' to 'z2'-1. The provisional labels (1, 2, ...)
+		are stored in the label stack as the raw bits of the float values. */
+	private Objects labelSlab(ImageStack values, ImageStack labels, int z1, int z2, double lower, double upper, float[] cTable) {
+		Objects objects = new Objects(256);
+		int n = dx.length;
+		for (int z=z1; z<z2; z++) {
+			Object pixels = values.getPixels(z+1);
+			byte[] bytes = pixels instanceof byte[]?(byte[])pixels:null;
+			short[] shorts = pixels instanceof short[]?(short[])pixels:null;
+			float[] floats = pixels instanceof float[]?(float[])pixels:null;
+			float[] slice = (float[])labels.getPixels(z+1);
+			float[] previous = z>z1?(float[])labels.getPixels(z):null;
+			for (int y=0, i=0; y<height; y++) {
+				for (int x=0; x<width; x++, i++) {
+					int raw = 0;
+					double v;
+					if (bytes!=null)
+						v = raw = bytes[i]&255;
+					else if (shorts!=null)
+						v = raw = shorts[i]&0xffff;
+					else
+						v = floats[i];
+					if (!(v>=lower && v<=upper))
+						continue;
+					int label = 0;
+					for (int k=0; k<n; k++) {
+						int x2=x+dx[k], y2=y+dy[k];
+						if (x2<0 || x2>=width || y2<0 || y2>=height)
+							continue;
+						float[] neighbors = dz[k]==0?slice:previous;
+						if (neighbors==null)
+							continue;
+						int label2 = Float.floatToRawIntBits(neighbors[x2+y2*width]);
+						if (label2==0)
+							continue;
+						if (label==0)
+							label = label2;
+						else if (label2!=label)
+							objects.union(label-1, label2-1);
+					}
+					if (label==0)
+						label = objects.add();
+					slice[i] = Float.intBitsToFloat(label);
+					double value = cTable!=null?cTable[raw]:v;
+					objects.addVoxel(label-1, x, y, z, value, v);
+				}
+			}
+		}
+		return objects;
+	}
+
+	/** Joins the objects of slice 'z', the first of a slab, with those of the
+		last slice of the previous slab. */
+	private void mergeSlices(ImageStack labels, int z, int offset1, int offset2, Objects all) {
+		float[] slice = (float[])labels.getPixels(z+1);
+		float[] previous = (float[])labels.getPixels(z);
+		for (int y=0, i=0; y<height; y++) {
+			for (int x=0; x<width; x++, i++) {
+				int label = Float.floatToRawIntBits(slice[i]);
+				if (label==0)
+					continue;
+				for (int k=0; k<dx.length; k++) {
+					if (dz[k]==0)
+						continue;
+					int x2=x+dx[k], y2=y+dy[k];
+					if (x2<0 || x2>=width || y2<0 || y2>=height)
+						continue;
+					int label2 = Float.floatToRawIntBits(previous[x2+y2*width]);
+					if (label2!=0)
+						all.union(offset2+label-1, offset1+label2-1);
+				}
+			}
+		}
+	}
+
+	/** Adds the statistics of each label to its root, numbers the roots that
+		pass the size and edge filters and returns the number of each label. */
+	private int[] number(Objects all) {
+		int n = all.size;
+		int[] numbers = new int[n];
+		count = 0;
+		for (int i=0; i<n; i++) {
+			int root = all.find(i);
+			if (root!=i)
+				all.merge(i, root);
+		}
+		objects = new Objects(256);
+		for (int i=0; i<n; i++) {
+			if (all.parent[i]!=i)
+				continue;
+			long voxels = all.count[i];
+			boolean include = voxels>=minSize && voxels<=maxSize;
+			if (excludeEdges && (all.xmin[i]==0 || all.ymin[i]==0 || all.zmin[i]==0
+			|| all.xmax[i]==width-1 || all.ymax[i]==height-1 || all.zmax[i]==depth-1))
+				include = false;
+			if (include) {
+				objects.add();
+				objects.append(all, i, count);
+				numbers[i] = ++count;
+			}
+		}
+		for (int i=0; i<n; i++) {
+			if (all.parent[i]!=i)
+				numbers[i] = numbers[all.find(i)];
+		}
+		return numbers;
+	}
+
+	/** Returns the number of objects found by the last call of label(). */
+	public int getCount() {
+		return count;
+	}
+
+	/** Adds a row with the measurements of each object to 'rt'. 'measurements'
+		is a combination of AREA (volume), MEAN, STD_DEV, MIN_MAX, CENTROID,
+		CENTER_OF_MASS, RECT and INTEGRATED_DENSITY; the number of voxels is
+		always added. */
+	public void saveResults(ResultsTable rt, int measurements, Calibration cal) {
+		if (cal==null)
+			cal = new Calibration();
+		double voxelSize = cal.pixelWidth*cal.pixelHeight*cal.pixelDepth;
+		for (int i=0; i<count; i++) {
+			double n = objects.count[i];
+			double mean = objects.sum[i]/n;
+			rt.incrementCounter();
+			rt.addValue("Voxels", n);
+			if ((measurements&AREA)!=0)
+				rt.addValue("Volume", n*voxelSize);
+			if ((measurements&MEAN)!=0)
+				rt.addValue("Mean", mean);
+			if ((measurements&STD_DEV)!=0) {
+				double variance = (objects.sum2[i]-objects.sum[i]*mean)/(n-1.0);
+				rt.addValue("StdDev", n>1.0&&variance>0.0?Math.sqrt(variance):0.0);
+			}
+			if ((measurements&MIN_MAX)!=0) {
+				rt.addValue("Min", objects.min[i]);
+				rt.addValue("Max", objects.max[i]);
+			}
+			if ((measurements&CENTROID)!=0) {
+				rt.addValue("X", cal.getX(objects.xsum[i]/n+0.5));
+				rt.addValue("Y", cal.getY(objects.ysum[i]/n+0.5, height));
+				rt.addValue("Z", cal.getZ(objects.zsum[i]/n+0.5));
+			}
+			if ((measurements&CENTER_OF_MASS)!=0) {
+				double sum = objects.sum[i];
+				rt.addValue("XM", cal.getX(objects.xvsum[i]/sum+0.5));
+				rt.addValue("YM", cal.getY(objects.yvsum[i]/sum+0.5, height));
+				rt.addValue("ZM", cal.getZ(objects.zvsum[i]/sum+0.5));
+			}
+			if ((measurements&RECT)!=0) {
+				rt.addValue("BX", cal.getX(objects.xmin[i]));
+				rt.addValue("BY", cal.getY(objects.ymin[i], height));
+				rt.addValue("BZ", cal.getZ(objects.zmin[i]));
+				rt.addValue("Width", (objects.xmax[i]-objects.xmin[i]+1)*cal.pixelWidth);
+				rt.addValue("Height", (objects.ymax[i]-objects.ymin[i]+1)*cal.pixelHeight);
+				rt.addValue("Depth", (objects.zmax[i]-objects.zmin[i]+1)*cal.pixelDepth);
+			}
+			if ((measurements&INTEGRATED_DENSITY)!=0) {
+				rt.addValue("IntDen", n*voxelSize*mean);
+				rt.addValue("RawIntDen", objects.rawSum[i]);
+			}
+		}
+	}
+
+	/** The statistics and the union-find forest of a set of labels. */
+	private static class Objects {
+		int size;
+		int[] parent;
+		long[] count;
+		int[] xmin, ymin, zmin, xmax, ymax, zmax;
+		double[] xsum, ysum, zsum, sum, sum2, rawSum, min, max, xvsum, yvsum, zvsum;
+
+		Objects(int capacity) {
+			capacity = Math.max(capacity, 1);
+			parent = new int[capacity];
+			count = new long[capacity];
+			xmin = new int[capacity]; ymin = new int[capacity]; zmin = new int[capacity];
+			xmax = new int[capacity]; ymax = new int[capacity]; zmax = new int[capacity];
+			xsum = new double[capacity]; ysum = new double[capacity]; zsum = new double[capacity];
+			sum = new double[capacity]; sum2 = new double[capacity]; rawSum = new double[capacity];
+			min = new double[capacity]; max = new double[capacity];
+			xvsum = new double[capacity]; yvsum = new double[capacity]; zvsum = new double[capacity];
+		}
+
+		/** Adds an empty label and returns its number (index+1). */
+		int add() {
+			if (size==parent.length) {
+				int n = size*2;
+				parent = Arrays.copyOf(parent, n);
+				count = Arrays.copyOf(count, n);
+				xmin = Arrays.copyOf(xmin, n); ymin = Arrays.copyOf(ymin, n); zmin = Arrays.copyOf(zmin, n);
+				xmax = Arrays.copyOf(xmax, n); ymax = Arrays.copyOf(ymax, n); zmax = Arrays.copyOf(zmax, n);
+				xsum = Arrays.copyOf(xsum, n); ysum = Arrays.copyOf(ysum, n); zsum = Arrays.copyOf(zsum, n);
+				sum = Arrays.copyOf(sum, n); sum2 = Arrays.copyOf(sum2, n); rawSum = Arrays.copyOf(rawSum, n);
+				min = Arrays.copyOf(min, n); max = Arrays.copyOf(max, n);
+				xvsum = Arrays.copyOf(xvsum, n); yvsum = Arrays.copyOf(yvsum, n); zvsum = Arrays.copyOf(zvsum, n);
+			}
+			parent[size] = size;
+			return ++size;
+		}
+
+		void addVoxel(int i, int x, int y, int z, double value, double raw) {
+			if (count[i]==0) {
+				xmin[i] = xmax[i] = x;
+				ymin[i] = ymax[i] = y;
+				zmin[i] = zmax[i] = z;
+				min[i] = max[i] = value;
+			} else {
+				if (x<xmin[i]) xmin[i] = x;
+				if (x>xmax[i]) xmax[i] = x;
+				if (y<ymin[i]) ymin[i] = y;
+				ymax[i] = Math.max(ymax[i], y);
+				zmax[i] = z;
+				if (value<min[i]) min[i] = value;
+				if (value>max[i]) max[i] = value;
+			}
+			count[i]++;
+			xsum[i] += x; ysum[i] += y; zsum[i] += z;
+			sum[i] += value;
+			sum2[i] += value*value;
+			rawSum[i] += raw;
+			xvsum[i] += x*value; yvsum[i] += y*value; zvsum[i] += z*value;
+		}
+
+		/** Copies the labels of 'objects' to index 'offset' and following. */
+		void append(Objects objects, int offset) {
+			for (int i=0; i<objects.size; i++) {
+				append(objects, i, offset+i);
+				parent[offset+i] = offset + objects.parent[i];
+			}
+			size = Math.max(size, offset+objects.size);
+		}
+
+		/** Copies the statistics of label 'i' of 'objects' to index 'j'. */
+		void append(Objects objects, int i, int j) {
+			count[j] = objects.count[i];
+			xmin[j] = objects.xmin[i]; ymin[j] = objects.ymin[i]; zmin[j] = objects.zmin[i];
+			xmax[j] = objects.xmax[i]; ymax[j] = objects.ymax[i]; zmax[j] = objects.zmax[i];
+			xsum[j] = objects.xsum[i]; ysum[j] = objects.ysum[i]; zsum[j] = objects.zsum[i];
+			sum[j] = objects.sum[i]; sum2[j] = objects.sum2[i]; rawSum[j] = objects.rawSum[i];
+			min[j] = objects.min[i]; max[j] = objects.max[i];
+			xvsum[j] = objects.xvsum[i]; yvsum[j] = objects.yvsum[i]; zvsum[j] = objects.zvsum[i];
+		}
+
+		/** Adds the statistics of label 'i' to those of label 'j'. */
+		void merge(int i, int j) {
+			xmin[j] = Math.min(xmin[j], xmin[i]); ymin[j] = Math.min(ymin[j], ymin[i]); zmin[j] = Math.min(zmin[j], zmin[i]);
+			xmax[j] = Math.max(xmax[j], xmax[i]); ymax[j] = Math.max(ymax[j], ymax[i]); zmax[j] = Math.max(zmax[j], zmax[i]);
+			min[j] = Math.min(min[j], min[i]); max[j] = Math.max(max[j], max[i]);
+			count[j] += count[i];
+			xsum[j] += xsum[i]; ysum[j] += ysum[i]; zsum[j] += zsum[i];
+			sum[j] += sum[i]; sum2[j] += sum2[i]; rawSum[j] += rawSum[i];
+			xvsum[j] += xvsum[i]; yvsum[j] += yvsum[i]; zvsum[j] += zvsum[i];
+		}
+
+		int find(int i) {
+			while (parent[i]!=i) {
+				parent[i] = parent[parent[i]];	// path halving
+				i = parent[i];
+			}
+			return i;
+		}
+
+		/** Joins two labels; the lower one becomes the root. */
+		void union(int i, int j) {
+			i = find(i);
+			j = find(j);
+			if (i<j)
+				parent[j] = i;
+			else if (j<i)
+				parent[i] = j;
+		}
+	}
+
+}
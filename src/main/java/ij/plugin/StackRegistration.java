@@ -0,0 +1,430 @@
+package ij.plugin;
+import ij.*;
+import ij.gui.*;
+import ij.process.*;
+import ij.measure.ResultsTable;
+import ij.io.FileSaver;
+import ij.util.ThreadUtil;
+import java.awt.*;
+import java.io.*;
+import java.util.concurrent.atomic.AtomicReference;
+
+/** This plugin implements the Image/Stacks/Tools/Register Slices command. It aligns
+	the slices (or the time points of a hyperstack) of a stack to a reference slice by
+	phase correlation, correcting translational drift with subpixel accuracy.
+	<p>
+	The spectrum of the reference slice is computed once and cached. Each slice is
+	mean-subtracted, multiplied with a Hann window and transformed with an FHT of its
+	own size (padded to the next size that has only the prime factors 2, 3, 5 and 7,
+	not to a power of 2). The cross-power spectrum with the reference is smoothed with
+	a Gaussian of 2 pixels, which suppresses the noise, and the peak of its inverse
+	transform is the translation. This is repeated with the window moved by that
+	translation, and the peak is located to 0.01 pixels by evaluating the inverse
+	transform on finer grids around it. The slices are translated with
+	ImageProcessor.translate, using the selected interpolation.
+	Within a rectangular selection, only the selected area is used to find the shifts.
+	<p>
+	Slices are read in batches and the batches are processed in parallel. Normal stacks
+	are registered in place. Virtual stacks are not loaded into memory: the registered
+	slices are written as TIFF files to a folder that is then opened as a virtual stack,
+	so movies that do not fit into memory can be registered as well.
+	<p>
+	Multi-channel images are registered with the shifts found in the reference channel,
+	which are applied to all channels.
+*/
+public class StackRegistration implements PlugIn {
+	private static final String TITLE = "Register Slices";
+	private static final double EPSILON = 0.01;		// regularization of the cross-power spectrum
+	private static final double SMOOTH_SIGMA = 2.0;	// smoothing of the phase correlation, in pixels
+	private static int staticInterpolation = ImageProcessor.BILINEAR;
+	private static boolean staticSubpixel = true;
+	private static boolean staticShowShifts;
+
+	private Rectangle r;			// the area used to find the shifts
+	private int width, height;		// size of the FHT
+	private float[] xWindow, yWindow;
+	private float[] xSmooth, ySmooth;
+	private FHT reference;
+	private boolean subpixel = true;
+	private int interpolationMethod = ImageProcessor.BILINEAR;
+
+	/** Creates a registration with the specified reference image. Only the area
+		of 'roi' is used to find the shifts; the whole image is used if 'roi' is null.
+		The spectrum of the reference is computed here and reused for all images
+		registered with this object. */
+	public StackRegistration(ImageProcessor reference, Rectangle roi) {
+		setReference(reference, roi);
+	}
+
+	/** Used by the Image/Stacks/Tools/Register Slices command. */
+	public StackRegistration() {
+	}
+
+	public void run(String arg) {
+		ImagePlus imp = IJ.getImage();
+		int channels = imp.getNChannels();
+		int positions = imp.getStackSize()/channels;
+		if (positions<2) {
+			IJ.error(TITLE, "Stack required");
+			return;
+		}
+		ImageStack stack = imp.getStack();
+		boolean virtual = stack.isVirtual();
+		GenericDialog gd = new GenericDialog(TITLE);
+		int refPosition = (imp.getCurrentSlice()-1)/channels + 1;
+		gd.addNumericField("Reference "+(channels>1?"position":"slice")+":", refPosition, 0);
+		if (channels>1)
+			gd.addNumericField("Reference channel:", imp.getChannel(), 0);
+		String[] methods = ImageProcessor.getInterpolationMethods();
+		gd.addChoice("Interpolation:", methods, methods[staticInterpolation]);
+		gd.addCheckbox("Subpixel accuracy", staticSubpixel);
+		gd.addCheckbox("Show shifts", staticShowShifts);
+		if (virtual)
+			gd.addMessage("The registered slices of this virtual stack\nwill be saved to a folder.");
+		gd.showDialog();
+		if (gd.wasCanceled())
+			return;
+		refPosition = (int)gd.getNextNumber();
+		int refChannel = channels>1?(int)gd.getNextNumber():1;
+		staticInterpolation = gd.getNextChoiceIndex();
+		staticSubpixel = gd.getNextBoolean();
+		staticShowShifts = gd.getNextBoolean();
+		if (refPosition<1 || refPosition>positions || refChannel<1 || refChannel>channels) {
+			IJ.error(TITLE, "Reference out of range");
+			return;
+		}
+		String directory = null;
+		if (virtual) {
+			directory = IJ.getDirectory("Folder for Registered Slices");
+			if (directory==null)
+				return;
+		}
+		Roi roi = imp.getRoi();
+		Rectangle rect = roi!=null&&roi.isArea()?roi.getBounds():null;
+		ImageProcessor refIp = stack.getProcessor((refPosition-1)*channels+refChannel);
+		setReference(refIp, rect);
+		subpixel = staticSubpixel;
+		interpolationMethod = staticInterpolation;
+		imp.startTiming();
+		double[][] shifts = register(stack, channels, refChannel, directory, true);
+		if (shifts==null)
+			return;
+		if (virtual) {
+			VirtualStack stack2 = new VirtualStack(stack.getWidth(), stack.getHeight(), stack.getColorModel(), directory);
+			for (int n=1; n<=stack.getSize(); n++)
+				stack2.addSlice(getFileName(getPrefix(stack), n, stack.getSize()));
+			stack2.setBitDepth(imp.getBitDepth());
+			ImagePlus imp2 = new ImagePlus("Registered "+imp.getTitle(), stack2);
+			imp2.setDimensions(channels, imp.getNSlices(), imp.getNFrames());
+			if (imp.isHyperStack())
+				imp2.setOpenAsHyperStack(true);
+			imp2.setCalibration(imp.getCalibration());
+			if (channels>1 && imp.isComposite())
+				imp2 = new CompositeImage(imp2, ((CompositeImage)imp).getMode());
+			imp2.show();
+		} else {
+			imp.changes = true;
+			imp.updateAndDraw();
+		}
+		if (staticShowShifts) {
+			ResultsTable rt = new ResultsTable();
+			for (int i=0; i<shifts.length; i++) {
+				rt.incrementCounter();
+				rt.addValue(channels>1?"Position":"Slice", i+1);
+				rt.addValue("dX", shifts[i][0]);
+				rt.addValue("dY", shifts[i][1]);
+			}
+			rt.show("Shifts of "+imp.getShortTitle());
+		}
+		IJ.showTime(imp, imp.getStartTime(), "", stack.getSize());
+	}
+
+	/** Sets the reference image; only the area of 'roi' (or the whole image if
+		'roi' is null) is used to find the shifts. */
+	public void setReference(ImageProcessor ip, Rectangle roi) {
+		r = roi!=null?roi.intersection(new Rectangle(ip.getWidth(), ip.getHeight())):new Rectangle(ip.getWidth(), ip.getHeight());
+		if (r.width<2 || r.height<2)
+			throw new IllegalArgumentException("Registration area too small");
+		width = FFTEngine.nextFastSize(r.width);
+		height = FFTEngine.nextFastSize(r.height);
+		xWindow = makeWindow(r.width);
+		yWindow = makeWindow(r.height);
+		xSmooth = makeSmoothing(width);
+		ySmooth = makeSmoothing(height);
+		reference = getSpectrum(ip, 0, 0);
+	}
+
+	/** Enables or disables the subpixel refinement of the shifts (default enabled). */
+	public void setSubpixel(boolean subpixel) {
+		this.subpixel = subpixel;
+	}
+
+	/** Sets the interpolation method (ImageProcessor.NONE, BILINEAR or BICUBIC)
+		used to translate the images (default BILINEAR). */
+	public void setInterpolationMethod(int method) {
+		interpolationMethod = method;
+	}
+
+	/** Returns the translation {dx, dy} that aligns 'ip' with the reference
+		when applied with ip.translate(dx, dy). May be called from several
+		threads at the same time. */
+	public double[] getShift(ImageProcessor ip) {
+		double[] d = findPeak(getSpectrum(ip, 0, 0), false);
+		int dx = (int)d[0], dy = (int)d[1];
+		if (dx!=0 || dy!=0) {
+			// correlate again with the area of 'ip' moved by the shift, where the
+			// windows of both images cover the same structures and the subpixel
+			// shift is not biased towards the center of the window
+			d = findPeak(getSpectrum(ip, dx, dy), subpixel);
+			d[0] += dx;
+			d[1] += dy;
+		} else if (subpixel)
+			d = findPeak(getSpectrum(ip, 0, 0), true);
+		return new double[] {-d[0], -d[1]};
+	}
+
+	/** Returns the position {x, y} of the peak of the phase correlation of the
+		transformed area 'fht' with the reference, between -size/2 and size/2. */
+	private double[] findPeak(FHT fht, boolean refine) {
+		fht = fht.crossPowerSpectrum(reference, EPSILON);
+		fht.setShowProgress(false);
+		float[] h = (float[])fht.getPixels();
+		for (int v=0, i=0; v<height; v++)
+			for (int u=0; u<width; u++, i++)
+				h[i] *= xSmooth[u]*ySmooth[v];
+		float[] spectrum = refine?(float[])fht.getPixelsCopy():null;
+		fht.inverseTransform();
+		float[] c = (float[])fht.getPixels();
+		int best = 0;
+		for (int i=1; i<c.length; i++)
+			if (c[i]>c[best]) best = i;
+		double x = best%width, y = best/width;
+		if (x>width/2) x -= width;
+		if (y>height/2) y -= height;
+		if (refine) {
+			double[] peak = refinePeak(spectrum, x, y, 0.1, 21);
+			return refinePeak(spectrum, peak[0], peak[1], 0.01, 21);
+		}
+		return new double[] {x, y};
+	}
+
+	/** Returns the position {x, y} of the maximum of the correlation on a grid of n*n
+		points with the spacing 'step', centered at (x0, y0). The correlation is calculated
+		from the Hartley spectrum 'h' (the inverse transform at non-integer positions),
+		as separable sums over the rows and the columns of the spectrum. */
+	private double[] refinePeak(float[] h, double x0, double y0, double step, int n) {
+		int half = n/2;
+		double[][] a = new double[n][width];	// sums of h*cas(v*y) over v
+		double[][] b = new double[n][width];	// sums of h*cas(-v*y) over v
+		for (int k=0; k<n; k++) {
+			double y = y0 + (k-half)*step;
+			double[] ak = a[k], bk = b[k];
+			for (int v=0; v<height; v++) {
+				double phi = 2.0*Math.PI*(v<=height/2?v:v-height)*y/height;
+				double cos = Math.cos(phi), sin = Math.sin(phi);
+				double casP = cos+sin, casM = cos-sin;
+				for (int u=0, i=v*width; u<width; u++, i++) {
+					ak[u] += h[i]*casP;
+					bk[u] += h[i]*casM;
+				}
+			}
+		}
+		double[] cos = new double[width], sin = new double[width];
+		double max = -Double.MAX_VALUE, xMax = x0, yMax = y0;
+		for (int j=0; j<n; j++) {
+			double x = x0 + (j-half)*step;
+			for (int u=0; u<width; u++) {
+				double phi = 2.0*Math.PI*(u<=width/2?u:u-width)*x/width;
+				cos[u] = Math.cos(phi);
+				sin[u] = Math.sin(phi);
+			}
+			for (int k=0; k<n; k++) {
+				double sum = 0.0;
+				double[] ak = a[k], bk = b[k];
+				for (int u=0; u<width; u++)
+					sum += cos[u]*ak[u] + sin[u]*bk[u];
+				if (sum>max) {
+					max = sum;
+					xMax = x;
+					yMax = y0 + (k-half)*step;
+				}
+			}
+		}
+		return new double[] {xMax, yMax};
+	}
+
+	/** Returns the translations {dx, dy} that align the slices of 'stack' with
+		the reference, without changing the stack. Virtual stacks are read
+		in batches of slices. */
+	public double[][] getShifts(ImageStack stack) {
+		return register(stack, 1, 1, null, false);
+	}
+
+	/** Registers the slices of 'stack' in place and returns the shifts applied.
+		With a virtual stack, the slices are not changed and only the shifts are
+		returned; use register(ImagePlus, int, String) to save the registered slices. */
+	public double[][] register(ImageStack stack) {
+		return register(stack, 1, 1, null, !stack.isVirtual());
+	}
+
+	/** Registers the channels, slices and frames of 'imp' with the shifts found in
+		channel 'refChannel', and returns the shifts applied at each position. If
+		'directory' is not null, the registered images are saved there as TIFF files
+		and 'imp' is not changed; otherwise 'imp' is registered in place, which
+		requires a stack that is not virtual. Returns null if cancelled by the user
+		or if an image could not be saved. */
+	public double[][] register(ImagePlus imp, int refChannel, String directory) {
+		ImageStack stack = imp.getStack();
+		if (directory==null && stack.isVirtual())
+			throw new IllegalArgumentException("Virtual stacks require a directory");
+		return register(stack, imp.getNChannels(), refChannel, directory, true);
+	}
+
+	private double[][] register(final ImageStack stack, final int channels, final int refChannel,
+	final String directory, final boolean translate) {
+		final int positions = stack.getSize()/channels;
+		final double[][] shifts = new double[positions][];
+		final boolean virtual = stack.isVirtual();
+		final String prefix = directory!=null?getPrefix(stack):null;
+		final int batchSize = Math.max(16, 4*Prefs.getThreads());
+		final ImageProcessor[] ips = new ImageProcessor[batchSize*channels];
+		final AtomicReference<String> saveError = new AtomicReference<String>();
+		for (int p0=0; p0<positions; p0+=batchSize) {
+			final int first = p0;
+			int last = Math.min(p0+batchSize, positions);
+			for (int p=p0; p<last; p++) {
+				if (translate) {
+					for (int c=0; c<channels; c++)
+						ips[(p-p0)*channels+c] = stack.getProcessor(p*channels+c+1);
+				} else
+					ips[(p-p0)*channels+refChannel-1] = stack.getProcessor(p*channels+refChannel);
+			}
+			ThreadUtil.parallelFor(p0, last, 1, new ThreadUtil.RangeTask() {
+				public void run(int from, int to) {
+					for (int p=from; p<to; p++) {
+						if (saveError.get()!=null)
+							return;
+						int base = (p-first)*channels;
+						double[] shift = getShift(ips[base+refChannel-1]);
+						shifts[p] = shift;
+						if (!translate)
+							continue;
+						for (int c=0; c<channels; c++) {
+							ImageProcessor ip = ips[base+c];
+							if (virtual || directory!=null)
+								ip = ip.duplicate();	// do not change the source, or the cached slice
+							ip.setInterpolationMethod(interpolationMethod);
+							ip.translate(shift[0], shift[1]);
+							int n = p*channels+c+1;
+							if (directory!=null) {
+								String path = directory+getFileName(prefix, n, stack.getSize());
+								String error = save(new ImagePlus(stack.getSliceLabel(n), ip), path);
+								if (error!=null) {
+									saveError.compareAndSet(null, error);
+									return;
+								}
+							}
+						}
+					}
+				}
+			});
+			java.util.Arrays.fill(ips, null);
+			if (saveError.get()!=null) {
+				IJ.showProgress(1.0);
+				IJ.error(TITLE, saveError.get());
+				return null;
+			}
+			IJ.showProgress(last, positions);
+			if (IJ.escapePressed()) {
+				IJ.beep();
+				IJ.showProgress(1.0);
+				return null;
+			}
+		}
+		return shifts;
+	}
+
+	/** The mean-subtracted and windowed area of 'ip', moved by 'xOffset' and
+		'yOffset', zero-padded and transformed. */
+	private FHT getSpectrum(ImageProcessor ip, int xOffset, int yOffset) {
+		if (ip instanceof ColorProcessor)
+			ip = ip.convertToFloat();
+		int xStart = r.x+xOffset, yStart = r.y+yOffset;
+		int x0 = Math.max(xStart, 0), x1 = Math.min(xStart+r.width, ip.getWidth());
+		int y0 = Math.max(yStart, 0), y1 = Math.min(yStart+r.height, ip.getHeight());
+		float[] pixels = new float[width*height];
+		if (x1>x0 && y1>y0) {
+			double sum = 0.0;
+			for (int y=y0; y<y1; y++)
+				for (int x=x0; x<x1; x++)
+					sum += ip.getf(x, y);
+			float mean = (float)(sum/((x1-x0)*(y1-y0)));
+			for (int y=y0; y<y1; y++) {
+				float wy = yWindow[y-yStart];
+				for (int x=x0, i=(y-yStart)*width+x0-xStart; x<x1; x++, i++)
+					pixels[i] = (ip.getf(x, y)-mean)*xWindow[x-xStart]*wy;
+			}
+		}
+		FHT fht = new FHT(new FloatProcessor(width, height, pixels, null));
+		fht.setShowProgress(false);
+		fht.transform();
+		return fht;
+	}
+
+	/** A Hann window, which suppresses the edges of the images
+		that would otherwise correlate at zero shift. */
+	private static float[] makeWindow(int n) {
+		float[] w = new float[n];
+		for (int i=0; i<n; i++)
+			w[i] = (float)(0.5 - 0.5*Math.cos(2.0*Math.PI*(i+0.5)/n));
+		return w;
+	}
+
+	/** The transfer function of a Gaussian with SMOOTH_SIGMA pixels along a
+		transform of size n, for frequencies 0 to n/2 and then -n/2+1 to -1. */
+	private static float[] makeSmoothing(int n) {
+		float[] g = new float[n];
+		for (int i=0; i<n; i++) {
+			double f = (i<=n/2?i:i-n)/(double)n;
+			g[i] = (float)Math.exp(-2.0*Math.PI*Math.PI*SMOOTH_SIGMA*SMOOTH_SIGMA*f*f);
+		}
+		return g;
+	}
+
+	/** Saves 'imp' as a TIFF file. Returns null if successful, or else the
+		error message, which is shown by the calling thread. */
+	private static String save(ImagePlus imp, String path) {
+		byte[] bytes = new FileSaver(imp).serialize();
+		if (bytes==null)
+			return "Could not encode "+path;
+		OutputStream out = null;
+		try {
+			out = new FileOutputStream(path);
+			out.write(bytes);
+			out.close();
+			out = null;
+			return null;
+		} catch (IOException e) {
+			return "Could not save the registered slices:\n"+e.getMessage();
+		} finally {
+			if (out!=null)
+				try {out.close();} catch (IOException e) {}
+		}
+	}
+
+	private static String getPrefix(ImageStack stack) {
+		if (stack instanceof VirtualStack) {
+			String name = ((VirtualStack)stack).getFileName(1);
+			if (name!=null) {
+				int dot = name.lastIndexOf('.');
+				return dot>0?name.substring(0, dot):name;
+			}
+		}
+		return "slice";
+	}
+
+	private static String getFileName(String prefix, int n, int size) {
+		return prefix+"-"+IJ.pad(n, (""+size).length())+".tif";
+	}
+
+}
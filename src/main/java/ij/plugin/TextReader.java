@@ -6,6 +6,7 @@ import ij.*;
 import ij.io.*;
 import ij.process.*;
 import ij.util.Tools;
+import ij.util.ThreadUtil;
 import ij.plugin.frame.Recorder;
 
 
@@ -46,22 +47,25 @@ public class TextReader implements PlugIn {
             return null;
     }
     
-    /** Opens the specified text file as a float image. */
+    /** Opens the specified text file as a float image. The file
+        is read in parts, by several threads. */
     public ImageProcessor open(String path) {
         ImageProcessor ip = null;
         try {
             words = chars = lines = 0;
-            Reader r = new BufferedReader(new FileReader(path));
-            countLines(r);
-            r.close();
-            r = new BufferedReader(new FileReader(path));
-            //int width = words/lines;
+            width = 1;
+            firstTok = null;
+            int nChunks = (int)Math.max(1, Math.min(4*Prefs.getThreads(), new File(path).length()/(1<<20)));
+            long[] starts = TextChunkReader.getChunks(path, nChunks);
+            Chunk[] chunks = new Chunk[nChunks];
+            for (int k=0; k<nChunks; k++)
+                chunks[k] = new Chunk(path, starts[k], starts[k+1]);
+            countLines(chunks);
             if (width*lines==0)
             	return null;
             float[] pixels = new float[width*lines];
             ip = new FloatProcessor(width, lines, pixels, null);
-            read(r, width*lines, pixels);
-            r.close();
+            read(chunks, pixels);
             int firstRowNaNCount = 0;
             for (int i=0; i<width; i++) {
             	if (i<pixels.length && Float.isNaN(pixels[i]))
@@ -94,73 +98,145 @@ public class TextReader implements PlugIn {
         return name;
     }
 
-    void countLines(Reader r) throws IOException {
-        StreamTokenizer tok = new StreamTokenizer(r);
-        int wordsPerLine=0, wordsInPreviousLine=0;
-        tok.resetSyntax();
-        tok.wordChars(43, 43);
-        tok.wordChars(45, 127);
-        tok.whitespaceChars(0, 42);
-        tok.whitespaceChars(44, 44);
-        //tok.wordChars(33, 127);
-        //tok.whitespaceChars(0, ' ');
-		tok.whitespaceChars(128, 255);
-        tok.eolIsSignificant(true);
-
-        while (tok.nextToken() != StreamTokenizer.TT_EOF) {
-            switch (tok.ttype) {
-                case StreamTokenizer.TT_EOL:
-                    lines++;
-                    if (wordsPerLine==0)
-                        lines--;  // ignore empty lines
-                    if (lines==1 && wordsPerLine>0)
-                        width = wordsPerLine;
-                    if (lines>1 && wordsPerLine!=0 && wordsPerLine!=wordsInPreviousLine)
-                        throw new IOException("Line "+lines+ " is not the same length as the first line.");
-                    if (wordsPerLine!=0)
-                        wordsInPreviousLine = wordsPerLine;
-                    wordsPerLine = 0;
-                    if (lines%20==0 && width>1 && lines<=width)
-                        IJ.showProgress(((double)lines/width)/2.0);
-                    break;
-                case StreamTokenizer.TT_WORD:
-                    words++;
-                    wordsPerLine++;
-                    break;
+    /** Counts the lines of all parts in parallel. Lines without words are
+        ignored; all other lines must have the same number of words, except
+        an incomplete last line, which is ignored if it is different. */
+    void countLines(final Chunk[] chunks) throws IOException {
+        run(chunks, false);
+        int wordsInFirstLine = 0;
+        for (int k=0; k<chunks.length; k++) {
+            Chunk chunk = chunks[k];
+            if (chunk.lines>0) {
+                if (wordsInFirstLine==0)
+                    wordsInFirstLine = width = chunk.width;
+                if (chunk.width!=width)
+                    throw new IOException("Line "+(lines+1)+ " is not the same length as the first line.");
+                if (chunk.differentLine>0)
+                    throw new IOException("Line "+(lines+chunk.differentLine)+ " is not the same length as the first line.");
+            }
+            chunk.firstLine = lines;
+            lines += chunk.lines;
+        }
+        for (int k=0; k<chunks.length; k++) {
+            if (chunks[k].wordsInLastLine>0 && chunks[k].wordsInLastLine==width) {
+                chunks[k].readLastLine = true;
+                lines++; // last line does not end with EOL
             }
         }
-        if (wordsPerLine==width) 
-            lines++; // last line does not end with EOL
    }
 
-    void read(Reader r, int size, float[] pixels) throws IOException {
-        StreamTokenizer tok = new StreamTokenizer(r);
-        tok.resetSyntax();
-        tok.wordChars(43, 43);
-        tok.wordChars(45, 127);
-        tok.whitespaceChars(0, 42);
-        tok.whitespaceChars(44, 44);
-        //tok.wordChars(33, 127);
-        //tok.whitespaceChars(0, ' ');
-        tok.whitespaceChars(128, 255);
-        //tok.parseNumbers();
+    /** Reads the numbers of all parts in parallel. */
+    void read(Chunk[] chunks, float[] pixels) throws IOException {
+        for (int k=0; k<chunks.length; k++)
+            chunks[k].pixels = pixels;
+        run(chunks, true);
+        for (int k=0; k<chunks.length && firstTok==null; k++)
+            firstTok = chunks[k].firstTok;
+        IJ.showProgress(1.0);
+    }
+
+    private void run(final Chunk[] chunks, final boolean read) throws IOException {
+        final int[] done = new int[1];
+        try {
+            ThreadUtil.parallelFor(0, chunks.length, 1, new ThreadUtil.RangeTask() {
+                public void run(int from, int to) {
+                    for (int k=from; k<to; k++) {
+                        try {
+                            chunks[k].scan(read?width:0);
+                        } catch (IOException e) {
+                            throw new RuntimeException(e);
+                        }
+                        synchronized(done) {
+                            done[0]++;
+                            IJ.showProgress((read?0.5:0.0)+done[0]/(2.0*chunks.length));
+                        }
+                    }
+                }
+            });
+        } catch (RuntimeException e) {
+            if (e.getCause() instanceof IOException)
+                throw (IOException)e.getCause();
+            throw e;
+        }
+    }
+
+    /** A part of the file, starting at the beginning of a line. */
+    private static class Chunk {
+        String path;
+        long start, end;
+        int lines;				// number of complete lines with words
+        int width;				// words in the first of these lines
+        int differentLine;		// index (1-based) of the first line with a different number of words
+        int wordsInLastLine;	// words in the last line if it does not end with EOL
+        int firstLine;			// index of the first line in the image
+        boolean readLastLine;
+        float[] pixels;
+        String firstTok;
+
+        Chunk(String path, long start, long end) {
+            this.path = path;
+            this.start = start;
+            this.end = end;
+        }
 
-        int i = 0;
-        int inc = size/20;
-        if (inc<1)
-            inc = 1;
-        while (tok.nextToken() != StreamTokenizer.TT_EOF) {
-            if (tok.ttype==StreamTokenizer.TT_WORD) {
-                if (i==0)
-                	firstTok = tok.sval;
-                pixels[i++] = (float)Tools.parseDouble(tok.sval, Double.NaN);
-                if (i==size)
+        /** Counts the lines and words if 'imageWidth' is zero, otherwise reads
+            the numbers into the pixels array. Words consist of the characters
+            '+' and '-' to DEL, as with the StreamTokenizer used previously;
+            other characters below 256 separate words. */
+        void scan(int imageWidth) throws IOException {
+            TextChunkReader reader = new TextChunkReader(path, start, end);
+            int index = firstLine*imageWidth;
+            int line = 0;
+            while (reader.nextLine()) {
+                byte[] bytes = reader.bytes;
+                int lineEnd = reader.lineEnd;
+                if (imageWidth>0 && !reader.terminated && !readLastLine)
                     break;
-                if (i%inc==0)
-                    IJ.showProgress(0.5+((double)i/size)/2.0);
+                int words = 0;
+                int wordStart = -1;
+                for (int i=reader.lineStart; i<=lineEnd; i++) {
+                    boolean wordChar = i<lineEnd && isWordChar(bytes, i, reader.lineStart);
+                    if (wordChar) {
+                        if (wordStart<0)
+                            wordStart = i;
+                    } else if (wordStart>=0) {
+                        if (imageWidth>0) {
+                            if (firstTok==null)
+                                firstTok = new String(bytes, wordStart, i-wordStart);
+                            pixels[index++] = (float)TextChunkReader.parseDouble(bytes, wordStart, i);
+                        }
+                        words++;
+                        wordStart = -1;
+                    }
+                }
+                if (imageWidth>0 || words==0)
+                    continue;
+                if (!reader.terminated) {
+                    wordsInLastLine = words;
+                    break;
+                }
+                line++;
+                if (line==1)
+                    width = words;
+                else if (words!=width && differentLine==0)
+                    differentLine = line;
             }
+            reader.close();
+            if (imageWidth==0)
+                lines = line;
+        }
+
+        /** Returns 'true' if the byte at 'i' belongs to a word. Bytes of UTF-8
+            encoded characters up to 255 separate words, higher characters are
+            part of words. */
+        private static boolean isWordChar(byte[] bytes, int i, int lineStart) {
+            int b = bytes[i]&255;
+            if (b<128)
+                return b==43 || b>=45 && b<=127;
+            while (b<0xc0 && i>lineStart)	// continuation byte; use the first byte of the character
+                b = bytes[--i]&255;
+            return b>0xc3;
         }
-        IJ.showProgress(1.0);
     }
 
 }
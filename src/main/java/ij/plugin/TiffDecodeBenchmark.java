@@ -0,0 +1,124 @@
+package ij.plugin;
+import ij.*;
+import ij.io.*;
+import java.io.*;
+import java.util.zip.Deflater;
+
+/** Compares the time needed for opening LZW and ZIP compressed 16-bit
+	stacks with one thread and with all threads set in Edit/Options/Memory
+	& Threads. The stacks are synthetic (smooth background with noise),
+	written as raw strips to a temporary file and opened with
+	Opener.openTiffStack. Run with IJ.runPlugIn("ij.plugin.TiffDecodeBenchmark", "");
+	the argument may specify the size as "width height slices".
+*/
+public class TiffDecodeBenchmark implements PlugIn {
+	private static final int ROWS_PER_STRIP = 32;
+	private int width=1024, height=1024, nSlices=64;
+
+	public void run(String arg) {
+		if (arg!=null && arg.trim().length()>0) {
+			String[] values = ij.util.Tools.split(arg);
+			if (values.length==3) {
+				width = (int)ij.util.Tools.parseDouble(values[0], width);
+				height = (int)ij.util.Tools.parseDouble(values[1], height);
+				nSlices = (int)ij.util.Tools.parseDouble(values[2], nSlices);
+			}
+		}
+		int threads = Prefs.getThreads();
+		IJ.log("TIFF decoding benchmark, "+width+"x"+height+"x"+nSlices+" 16-bit, "+ROWS_PER_STRIP+" rows/strip");
+		int[] compressions = {FileInfo.LZW, FileInfo.LZW_WITH_DIFFERENCING, FileInfo.ZIP};
+		String[] names = {"LZW", "LZW+predictor", "ZIP"};
+		try {
+			for (int c=0; c<compressions.length; c++) {
+				File file = File.createTempFile("decode-benchmark", ".raw");
+				file.deleteOnExit();
+				FileInfo[] info = writeStack(file, compressions[c]);
+				long time1 = time(info, 1);
+				long timeN = time(info, threads);
+				IJ.log("  "+names[c]+": "+IJ.d2s(file.length()/1048576.0,1)+" MB, 1 thread: "+time1+" ms, "
+					+threads+" threads: "+timeN+" ms, speedup: "+IJ.d2s(time1/(double)Math.max(timeN,1),2));
+				file.delete();
+			}
+		} catch (IOException e) {
+			IJ.error("TIFF Decode Benchmark", ""+e);
+		} finally {
+			Prefs.setThreads(threads);
+		}
+	}
+
+	private long time(FileInfo[] info, int threads) {
+		Prefs.setThreads(threads);
+		Opener opener = new Opener();
+		opener.setSilentMode(true);
+		FileInfo[] info2 = new FileInfo[info.length];	// openTiffStack modifies the first FileInfo
+		for (int i=0; i<info.length; i++)
+			info2[i] = (FileInfo)info[i].clone();
+		long t0 = System.currentTimeMillis();
+		ImagePlus imp = opener.openTiffStack(info2);
+		long time = System.currentTimeMillis()-t0;
+		if (imp==null || imp.getStackSize()!=nSlices)
+			IJ.log("  error: stack not read");
+		return time;
+	}
+
+	/** Writes the compressed strips of a synthetic stack and returns the FileInfos describing them. */
+	private FileInfo[] writeStack(File file, int compression) throws IOException {
+		FileInfo[] info = new FileInfo[nSlices];
+		int nStrips = (height+ROWS_PER_STRIP-1)/ROWS_PER_STRIP;
+		OutputStream out = new BufferedOutputStream(new FileOutputStream(file));
+		java.util.Random random = new java.util.Random(0);
+		byte[] bytes = new byte[width*ROWS_PER_STRIP*2];
+		long offset = 0;
+		for (int z=0; z<nSlices; z++) {
+			FileInfo fi = new FileInfo();
+			fi.fileFormat = FileInfo.TIFF;
+			fi.fileType = FileInfo.GRAY16_UNSIGNED;
+			fi.width = width;
+			fi.height = height;
+			fi.intelByteOrder = true;
+			fi.compression = compression;
+			fi.rowsPerStrip = ROWS_PER_STRIP;
+			fi.directory = file.getParent()+File.separator;
+			fi.fileName = file.getName();
+			fi.stripOffsets = new int[nStrips];
+			fi.stripLengths = new int[nStrips];
+			for (int s=0; s<nStrips; s++) {
+				int rows = Math.min(ROWS_PER_STRIP, height-s*ROWS_PER_STRIP);
+				for (int y=0, i=0; y<rows; y++) {
+					int last = 0;
+					for (int x=0; x<width; x++, i+=2) {
+						int v = 1000 + (x+s*ROWS_PER_STRIP+y+z)%512 + (int)(random.nextGaussian()*20);
+						int value = compression==FileInfo.LZW_WITH_DIFFERENCING ? v-last : v;
+						last = v;
+						bytes[i] = (byte)value;
+						bytes[i+1] = (byte)(value>>8);
+					}
+				}
+				byte[] strip = compress(bytes, width*rows*2, compression);
+				out.write(strip);
+				fi.stripOffsets[s] = (int)offset;
+				fi.stripLengths[s] = strip.length;
+				offset += strip.length;
+			}
+			info[z] = fi;
+		}
+		out.close();
+		return info;
+	}
+
+	private byte[] compress(byte[] bytes, int length, int compression) {
+		if (compression==FileInfo.ZIP) {
+			Deflater deflater = new Deflater();
+			deflater.setInput(bytes, 0, length);
+			deflater.finish();
+			ByteArrayOutputStream out = new ByteArrayOutputStream(length);
+			byte[] buffer = new byte[8192];
+			while (!deflater.finished())
+				out.write(buffer, 0, deflater.deflate(buffer));
+			deflater.end();
+			return out.toByteArray();
+		} else
+			return new ij.io.TiffLZWEncoder().compress(bytes, 0, length);
+	}
+
+}
@@ -5,13 +5,22 @@ import ij.process.*;
 import ij.plugin.filter.*; 
 import ij.plugin.frame.Recorder;
 import ij.measure.Measurements;
+import ij.util.ThreadUtil;
 import java.lang.*; 
 import java.awt.*; 
 import java.awt.event.*; 
 import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicInteger;
 
 /** This plugin performs a z-projection of the input stack. Type of
     output image is same as type of input image.
+    <p>
+    The image is divided into bands of rows that are projected in parallel,
+    each thread going through all slices for its band. The median of 8 and
+    16-bit stacks is found with a histogram of each pixel, that of 32-bit
+    stacks by selection. With addSlice() and updateProjection(), a running
+    projection can be updated as slices are acquired, without projecting
+    the earlier slices again.
     @author Patrick Kelly <phkelly@ucsd.edu>
 */
 public class ZProjector implements PlugIn {
@@ -54,6 +63,12 @@ public class ZProjector implements PlugIn {
     private int increment = 1;
     private int sliceCount;
 
+    /** State of the running projection */
+    private RayFunction runningFunction;
+    private FloatProcessor runningSum;
+    private ImageProcessor runningTemplate;
+    private int runningType, runningCount;
+
     public ZProjector() {
     }
 
@@ -103,6 +118,7 @@ public class ZProjector implements PlugIn {
 	stand alone processing object.  */
     public void setImage(ImagePlus imp) {
     	this.imp = imp; 
+    	resetRunningProjection();
 		startSlice = 1; 
 		stopSlice = imp.getStackSize(); 
     }
@@ -307,6 +323,8 @@ public class ZProjector implements PlugIn {
 		FloatProcessor fp = new FloatProcessor(imp.getWidth(),imp.getHeight()); 
 		ImageStack stack = imp.getStack();
 		RayFunction rayFunc = getRayFunction(method, fp);
+		if (rayFunc==null)
+			return;
 		if (IJ.debugMode==true) {
 	    	IJ.log("\nProjecting stack from: "+startSlice
 		     	+" to: "+stopSlice); 
@@ -327,15 +345,19 @@ public class ZProjector implements PlugIn {
 		}
 
 		// Do the projection
-		int sliceCount = 0;
-		for (int n=startSlice; n<=stopSlice; n+=increment) {
-			if (!isHyperstack) {
-	    		IJ.showStatus("ZProjection " + color +": " + n + "/" + stopSlice);
-	    		IJ.showProgress(n-startSlice, stopSlice-startSlice);
-	    	}
-	    	projectSlice(stack.getPixels(n), rayFunc, ptype);
-	    	sliceCount++;
-		}
+		if (stack.isVirtual()) {
+			// read each slice once; the rows of the slice are projected in parallel
+			for (int n=startSlice; n<=stopSlice; n+=increment) {
+				if (!isHyperstack) {
+		    		IJ.showStatus("ZProjection " + color +": " + n + "/" + stopSlice);
+		    		IJ.showProgress(n-startSlice, stopSlice-startSlice);
+		    	}
+		    	projectSlice(stack.getPixels(n), rayFunc, ptype, imp.getWidth());
+			}
+			if (method!=SUM_METHOD)
+				rayFunc.postProcess();
+		} else
+			projectBands(stack, rayFunc, ptype);
 
 		// Finish up projection.
 		if (method==SUM_METHOD) {
@@ -344,18 +366,37 @@ public class ZProjector implements PlugIn {
 			fp.resetMinAndMax();
 			projImage = new ImagePlus(makeTitle(), fp);
 		} else if (method==SD_METHOD) {
-			rayFunc.postProcess();
 			fp.resetMinAndMax();
 			projImage = new ImagePlus(makeTitle(), fp); 
-		} else {
-			rayFunc.postProcess(); 
+		} else
 			projImage = makeOutputImage(imp, fp, ptype);
-		}
 
 		if(projImage==null)
 	    	IJ.error("Z Project", "Error computing projection.");
     }
 
+	/** Projects the image in bands of rows, in parallel. Each thread goes
+		through all slices for its band, so that the band of the projection
+		stays in the cache. */
+	private void projectBands(final ImageStack stack, final RayFunction rayFunc, final int ptype) {
+		final int width = imp.getWidth();
+		final int height = imp.getHeight();
+		final AtomicInteger rowsDone = new AtomicInteger();
+		if (!isHyperstack)
+			IJ.showStatus("ZProjection " + color + ": " + sliceCount + " slices");
+		ThreadUtil.parallelFor(0, height, new ThreadUtil.RangeTask() {
+			public void run(int from, int to) {
+				int start=from*width, end=to*width;
+				for (int n=startSlice; n<=stopSlice; n+=increment)
+					rayFunc.projectSlice(stack.getPixels(n), ptype, start, end);
+				if (method!=SUM_METHOD)
+					rayFunc.postProcess(start, end);
+				if (!isHyperstack)
+					IJ.showProgress(rowsDone.addAndGet(to-from), height);
+			}
+		});
+	}
+
 	//Added by Marcel Boeglin 2013.09.23
 	/** Performs actual projection using specified method.
 		If handleOverlay, adds stack overlay 
@@ -529,8 +570,19 @@ public class ZProjector implements PlugIn {
 
     /** Generate output image whose type is same as input image. */
     private ImagePlus makeOutputImage(ImagePlus imp, FloatProcessor fp, int ptype) {
-		int width = imp.getWidth(); 
-		int height = imp.getHeight(); 
+		ImageProcessor oip = makeOutputProcessor(imp.getProcessor(), fp, ptype);
+
+		// Create new image plus object. Don't use
+		// ImagePlus.createImagePlus here because there may be
+		// attributes of input image that are not appropriate for
+		// projection.
+		return new ImagePlus(makeTitle(), oip); 
+    }
+
+    /** Converts the projection to the type of 'template'. */
+    private ImageProcessor makeOutputProcessor(ImageProcessor template, FloatProcessor fp, int ptype) {
+		int width = fp.getWidth(); 
+		int height = fp.getHeight(); 
 		float[] pixels = (float[])fp.getPixels(); 
 		ImageProcessor oip=null; 
 
@@ -538,13 +590,13 @@ public class ZProjector implements PlugIn {
 		int size = pixels.length;
 		switch (ptype) {
 			case BYTE_TYPE:
-				oip = imp.getProcessor().createProcessor(width,height);
+				oip = template.createProcessor(width,height);
 				byte[] pixels8 = (byte[])oip.getPixels(); 
 				for(int i=0; i<size; i++)
 					pixels8[i] = (byte)pixels[i];
 				break;
 			case SHORT_TYPE:
-				oip = imp.getProcessor().createProcessor(width,height);
+				oip = template.createProcessor(width,height);
 				short[] pixels16 = (short[])oip.getPixels(); 
 				for(int i=0; i<size; i++)
 					pixels16[i] = (short)pixels[i];
@@ -558,30 +610,19 @@ public class ZProjector implements PlugIn {
 	    // Calling this on non-ByteProcessors ensures image
 	    // processor is set up to correctly display image.
 	    oip.resetMinAndMax(); 
-
-		// Create new image plus object. Don't use
-		// ImagePlus.createImagePlus here because there may be
-		// attributes of input image that are not appropriate for
-		// projection.
-		return new ImagePlus(makeTitle(), oip); 
+		return oip;
     }
 
     /** Handles mechanics of projection by selecting appropriate pixel
 	array type. We do this rather than using more general
 	ImageProcessor getPixelValue() and putPixel() methods because
 	direct manipulation of pixel arrays is much more efficient.  */
-	private void projectSlice(Object pixelArray, RayFunction rayFunc, int ptype) {
-		switch(ptype) {
-			case BYTE_TYPE:
-	    		rayFunc.projectSlice((byte[])pixelArray); 
-	    		break; 
-			case SHORT_TYPE:
-	    		rayFunc.projectSlice((short[])pixelArray); 
-	    		break; 
-			case FLOAT_TYPE:
-	    		rayFunc.projectSlice((float[])pixelArray); 
-	    		break; 
-		}
+	private void projectSlice(final Object pixelArray, final RayFunction rayFunc, final int ptype, final int width) {
+		ThreadUtil.parallelFor(0, rayFunc.len/width, new ThreadUtil.RangeTask() {
+			public void run(int from, int to) {
+				rayFunc.projectSlice(pixelArray, ptype, from*width, to*width);
+			}
+		});
     }
     
     String makeTitle() {
@@ -599,30 +640,179 @@ public class ZProjector implements PlugIn {
 	ImagePlus doMedianProjection() {
 		IJ.showStatus("Calculating median...");
 		ImageStack stack = imp.getStack();
-		ImageProcessor[] slices = new ImageProcessor[sliceCount];
+		final Object[] slices = new Object[sliceCount];
 		int index = 0;
 		for (int slice=startSlice; slice<=stopSlice; slice+=increment)
-			slices[index++] = stack.getProcessor(slice);
-		ImageProcessor ip2 = slices[0].duplicate();
-		ip2 = ip2.convertToFloat();
-		float[] values = new float[sliceCount];
-		int width = ip2.getWidth();
-		int height = ip2.getHeight();
-		int inc = Math.max(height/30, 1);
-		for (int y=0; y<height; y++) {
-			if (y%inc==0) IJ.showProgress(y, height-1);
-			for (int x=0; x<width; x++) {
-				for (int i=0; i<sliceCount; i++)
-				values[i] = slices[i].getPixelValue(x, y);
-				ip2.putPixelValue(x, y, median(values));
+			slices[index++] = stack.getPixels(slice);
+		final int width = imp.getWidth();
+		final int height = imp.getHeight();
+		final float[] median = new float[width*height];
+		final AtomicInteger rowsDone = new AtomicInteger();
+		ThreadUtil.parallelFor(0, height, new ThreadUtil.RangeTask() {
+			public void run(int from, int to) {
+				if (slices[0] instanceof byte[]) {
+					int[] hist = new int[width*256];
+					for (int y=from; y<to; y++)
+						medianOfBytes(slices, width, y, hist, median);
+				} else if (slices[0] instanceof short[]) {
+					int[] hist = new int[width*256];
+					int[] high1 = new int[width], high2 = new int[width];
+					int[] below = new int[width], minLow = new int[width];
+					for (int y=from; y<to; y++)
+						medianOfShorts(slices, width, y, hist, high1, high2, below, minLow, median);
+				} else {
+					float[] values = new float[slices.length];
+					for (int y=from; y<to; y++)
+						medianOfFloats(slices, width, y, values, median);
+				}
+				IJ.showProgress(rowsDone.addAndGet(to-from), height);
 			}
-		}
+		});
+		ImageProcessor ip2 = new FloatProcessor(width, height, median, stack.getColorModel());
 		if (imp.getBitDepth()==8)
 			ip2 = ip2.convertToByte(false);
 		IJ.showProgress(1, 1);
 		return new ImagePlus(makeTitle(), ip2);
 	}
 
+	/** Median of the 8-bit pixels of row 'y', with a histogram of each pixel */
+	private static void medianOfBytes(Object[] slices, int width, int y, int[] hist, float[] median) {
+		int n = slices.length;
+		int offset = y*width;
+		Arrays.fill(hist, 0);
+		for (int s=0; s<n; s++) {
+			byte[] pixels = (byte[])slices[s];
+			for (int x=0, i=offset; x<width; x++, i++)
+				hist[(x<<8)+(pixels[i]&255)]++;
+		}
+		int k1=(n-1)/2, k2=n/2;		// the ranks of the middle values
+		for (int x=0; x<width; x++) {
+			int v1=-1, v2=-1, sum=0;
+			for (int v=0, h=x<<8; v2<0; v++, h++) {
+				sum += hist[h];
+				if (v1<0 && sum>k1) v1 = v;
+				if (sum>k2) v2 = v;
+			}
+			median[offset+x] = v1==v2?v1:(v1+v2)/2f;
+		}
+	}
+
+	/** Median of the 16-bit pixels of row 'y'. A histogram of the high bytes
+		of each pixel gives the bin of the middle values, a histogram of the
+		low bytes of the values in this bin gives the exact value. */
+	private static void medianOfShorts(Object[] slices, int width, int y, int[] hist,
+	int[] high1, int[] high2, int[] below, int[] minLow, float[] median) {
+		int n = slices.length;
+		int offset = y*width;
+		Arrays.fill(hist, 0);
+		for (int s=0; s<n; s++) {
+			short[] pixels = (short[])slices[s];
+			for (int x=0, i=offset; x<width; x++, i++)
+				hist[(x<<8)+((pixels[i]&0xffff)>>8)]++;
+		}
+		int k1=(n-1)/2, k2=n/2;
+		for (int x=0; x<width; x++) {
+			high1[x] = -1;
+			for (int h=0, sum=0; ; h++) {
+				int count = hist[(x<<8)+h];
+				if (high1[x]<0 && sum+count>k1) {
+					high1[x] = h;
+					below[x] = sum;
+				}
+				if (sum+count>k2) {
+					high2[x] = h;
+					break;
+				}
+				sum += count;
+			}
+		}
+		// if k2 is in a higher bin than k1, it is the smallest value of that bin
+		Arrays.fill(hist, 0);
+		Arrays.fill(minLow, 255);
+		for (int s=0; s<n; s++) {
+			short[] pixels = (short[])slices[s];
+			for (int x=0, i=offset; x<width; x++, i++) {
+				int v = pixels[i]&0xffff;
+				int h = v>>8;
+				if (h==high1[x])
+					hist[(x<<8)+(v&255)]++;
+				else if (h==high2[x] && (v&255)<minLow[x])
+					minLow[x] = v&255;
+			}
+		}
+		for (int x=0; x<width; x++) {
+			int v1=-1, v2=-1, sum=below[x];
+			for (int low=0; ; low++) {
+				sum += hist[(x<<8)+low];
+				if (v1<0 && sum>k1) {
+					v1 = (high1[x]<<8)+low;
+					if (high2[x]!=high1[x])
+						break;
+				}
+				if (sum>k2) {
+					v2 = (high1[x]<<8)+low;
+					break;
+				}
+			}
+			if (high2[x]!=high1[x])
+				v2 = (high2[x]<<8)+minLow[x];
+			median[offset+x] = v1==v2?v1:(v1+v2)/2f;
+		}
+	}
+
+	/** Median of the 32-bit pixels of row 'y', by selection. As with
+		Arrays.sort, NaNs are sorted after all other values. */
+	private static void medianOfFloats(Object[] slices, int width, int y, float[] values, float[] median) {
+		int n = slices.length;
+		int k1=(n-1)/2, k2=n/2;
+		for (int x=0, i=y*width; x<width; x++, i++) {
+			int nValues=0, nNaNs=0;
+			for (int s=0; s<n; s++) {
+				float v = ((float[])slices[s])[i];
+				if (Float.isNaN(v))
+					values[n-1-nNaNs++] = v;
+				else
+					values[nValues++] = v;
+			}
+			float v1 = k1<nValues?select(values, nValues, k1):Float.NaN;
+			float v2 = v1;
+			if (k2!=k1) {
+				if (k2<nValues) {	// the smallest value above k1
+					v2 = values[k2];
+					for (int j=k2+1; j<nValues; j++)
+						if (values[j]<v2) v2 = values[j];
+				} else
+					v2 = Float.NaN;
+				median[i] = (v1+v2)/2f;
+			} else
+				median[i] = v1;
+		}
+	}
+
+	/** Returns the k-th smallest of the first 'n' values of 'a' and partially
+		sorts them, so that no value above index k is smaller (Wirth's algorithm). */
+	private static float select(float[] a, int n, int k) {
+		int left=0, right=n-1;
+		while (left<right) {
+			float pivot = a[k];
+			int i=left, j=right;
+			do {
+				while (a[i]<pivot) i++;
+				while (pivot<a[j]) j--;
+				if (i<=j) {
+					float temp = a[i];
+					a[i] = a[j];
+					a[j] = temp;
+					i++;
+					j--;
+				}
+			} while (i<=j);
+			if (j<k) left = i;
+			if (k<i) right = j;
+		}
+		return a[k];
+	}
+
 	float median(float[] a) {
 		Arrays.sort(a);
 		int middle = a.length/2;
@@ -632,19 +822,124 @@ public class ZProjector implements PlugIn {
 			return a[middle];
 	}
 
+	/** Adds 'ip' to the running projection, e.g. for a slice that has just
+		been acquired, without projecting the previous slices again. Works with
+		all methods but the median, and with 8, 16 and 32-bit images.
+		@see #getRunningProjection
+		@see #updateProjection
+	*/
+	public void addSlice(ImageProcessor ip) {
+		if (method<AVG_METHOD || method>=MEDIAN_METHOD)
+			throw new IllegalArgumentException("Running projection not supported: "+getMethodAsString());
+		int ptype;
+		if (ip instanceof ByteProcessor) ptype = BYTE_TYPE;
+		else if (ip instanceof ShortProcessor) ptype = SHORT_TYPE;
+		else if (ip instanceof FloatProcessor) ptype = FLOAT_TYPE;
+		else
+			throw new IllegalArgumentException("Non-RGB image required");
+		if (runningFunction==null) {
+			runningSum = new FloatProcessor(ip.getWidth(), ip.getHeight());
+			runningFunction = getRayFunction(method, runningSum);
+			runningTemplate = ip;
+			runningType = ptype;
+			runningCount = 0;
+		} else if (ptype!=runningType || ip.getWidth()!=runningSum.getWidth() || ip.getHeight()!=runningSum.getHeight())
+			throw new IllegalArgumentException("Image does not match the running projection");
+		projectSlice(ip.getPixels(), runningFunction, ptype, ip.getWidth());
+		runningCount++;
+	}
+
+	/** Returns the projection of the slices added with addSlice() or
+		updateProjection(), or null if no slice has been added. The type is
+		that of the slices, or 32-bit with the sum and standard deviation methods. */
+	public ImageProcessor getRunningProjection() {
+		if (runningCount==0)
+			return null;
+		if (method==SD_METHOD) {
+			runningFunction.num = runningCount;
+			runningFunction.postProcess();
+		}
+		FloatProcessor fp = (FloatProcessor)runningSum.duplicate();
+		switch (method) {
+			case AVG_METHOD:
+				new AverageIntensity(fp, runningCount).postProcess();
+				break;
+			case SUM_METHOD:
+				if (imp!=null && imp.getCalibration().isSigned16Bit())
+					fp.subtract(runningCount*32768.0);
+				fp.resetMinAndMax();
+				return fp;
+			case SD_METHOD:
+				fp.resetMinAndMax();
+				return fp;
+		}
+		return makeOutputProcessor(runningTemplate, fp, runningType);
+	}
+
+	/** Adds the slices that have been appended to the stack of the image
+		since the last call to the running projection and returns the
+		projection. The returned image is the same with each call, so that it
+		is updated if it is displayed.
+		@see #addSlice
+	*/
+	public ImagePlus updateProjection() {
+		if (imp==null)
+			return null;
+		ImageStack stack = imp.getStack();
+		for (int n=startSlice+runningCount; n<=stack.getSize(); n++)
+			addSlice(stack.getProcessor(n));
+		ImageProcessor ip = getRunningProjection();
+		if (ip==null)
+			return null;
+		if (projImage==null)
+			projImage = new ImagePlus(makeTitle(), ip);
+		else
+			projImage.setProcessor(ip);
+		return projImage;
+	}
+
+	/** Discards the running projection. */
+	public void resetRunningProjection() {
+		runningFunction = null;
+		runningSum = null;
+		runningTemplate = null;
+		runningCount = 0;
+		projImage = null;
+	}
+
      /** Abstract class that specifies structure of ray
 	function. Preprocessing should be done in derived class
-	constructors.
+	constructors. The 'from' and 'to' arguments give the range
+	of pixel indices to project, so that several threads can
+	work on a slice.
 	*/
     abstract class RayFunction {
+		int num, len;
+
 		/** Do actual slice projection for specific data types. */
-		public abstract void projectSlice(byte[] pixels);
-		public abstract void projectSlice(short[] pixels);
-		public abstract void projectSlice(float[] pixels);
-		
+		public abstract void projectSlice(byte[] pixels, int from, int to);
+		public abstract void projectSlice(short[] pixels, int from, int to);
+		public abstract void projectSlice(float[] pixels, int from, int to);
+
+		public void projectSlice(byte[] pixels) {projectSlice(pixels, 0, len);}
+		public void projectSlice(short[] pixels) {projectSlice(pixels, 0, len);}
+		public void projectSlice(float[] pixels) {projectSlice(pixels, 0, len);}
+
+		void projectSlice(Object pixels, int ptype, int from, int to) {
+			switch(ptype) {
+				case BYTE_TYPE: projectSlice((byte[])pixels, from, to); break;
+				case SHORT_TYPE: projectSlice((short[])pixels, from, to); break;
+				case FLOAT_TYPE: projectSlice((float[])pixels, from, to); break;
+			}
+		}
+
 		/** Perform any necessary post processing operations, e.g.
 	    	averging values. */
-		public void postProcess() {}
+		public void postProcess() {
+			postProcess(0, len);
+		}
+
+		public void postProcess(int from, int to) {}
 
     } // end RayFunction
 
@@ -652,7 +947,6 @@ public class ZProjector implements PlugIn {
     /** Compute average intensity projection. */
     class AverageIntensity extends RayFunction {
      	private float[] fpixels;
- 		private int num, len; 
 
 		/** Constructor requires number of slices to be
 	    	projected. This is used to determine average at each
@@ -663,24 +957,24 @@ public class ZProjector implements PlugIn {
 	    	this.num = num;
 		}
 
-		public void projectSlice(byte[] pixels) {
-	    	for(int i=0; i<len; i++)
-				fpixels[i] += (pixels[i]&0xff); 
+		public void projectSlice(byte[] pixels, int from, int to) {
+	    	for(int i=from; i<to; i++)
+				fpixels[i] += (pixels[i]&0xff);
 		}
 
-		public void projectSlice(short[] pixels) {
-	    	for(int i=0; i<len; i++)
+		public void projectSlice(short[] pixels, int from, int to) {
+	    	for(int i=from; i<to; i++)
 				fpixels[i] += pixels[i]&0xffff;
 		}
 
-		public void projectSlice(float[] pixels) {
-	    	for(int i=0; i<len; i++)
-				fpixels[i] += pixels[i]; 
+		public void projectSlice(float[] pixels, int from, int to) {
+	    	for(int i=from; i<to; i++)
+				fpixels[i] += pixels[i];
 		}
 
-		public void postProcess() {
+		public void postProcess(int from, int to) {
 			float fnum = num;
-	    	for(int i=0; i<len; i++)
+	    	for(int i=from; i<to; i++)
 				fpixels[i] /= fnum;
 		}
 
@@ -690,7 +984,6 @@ public class ZProjector implements PlugIn {
      /** Compute max intensity projection. */
     class MaxIntensity extends RayFunction {
     	private float[] fpixels;
- 		private int len; 
 
 		/** Simple constructor since no preprocessing is necessary. */
 		public MaxIntensity(FloatProcessor fp) {
@@ -700,33 +993,32 @@ public class ZProjector implements PlugIn {
 				fpixels[i] = -Float.MAX_VALUE;
 		}
 
-		public void projectSlice(byte[] pixels) {
-	    	for(int i=0; i<len; i++) {
+		public void projectSlice(byte[] pixels, int from, int to) {
+	    	for(int i=from; i<to; i++) {
 				if((pixels[i]&0xff)>fpixels[i])
-		    		fpixels[i] = (pixels[i]&0xff); 
+		    		fpixels[i] = (pixels[i]&0xff);
 	    	}
 		}
 
-		public void projectSlice(short[] pixels) {
-	    	for(int i=0; i<len; i++) {
+		public void projectSlice(short[] pixels, int from, int to) {
+	    	for(int i=from; i<to; i++) {
 				if((pixels[i]&0xffff)>fpixels[i])
 		    		fpixels[i] = pixels[i]&0xffff;
 	    	}
 		}
 
-		public void projectSlice(float[] pixels) {
-	    	for(int i=0; i<len; i++) {
+		public void projectSlice(float[] pixels, int from, int to) {
+	    	for(int i=from; i<to; i++) {
 				if(pixels[i]>fpixels[i])
-		    		fpixels[i] = pixels[i]; 
+		    		fpixels[i] = pixels[i];
 	    	}
 		}
-		
+
     } // end MaxIntensity
 
      /** Compute min intensity projection. */
     class MinIntensity extends RayFunction {
     	private float[] fpixels;
- 		private int len; 
 
 		/** Simple constructor since no preprocessing is necessary. */
 		public MinIntensity(FloatProcessor fp) {
@@ -736,27 +1028,27 @@ public class ZProjector implements PlugIn {
 				fpixels[i] = Float.MAX_VALUE;
 		}
 
-		public void projectSlice(byte[] pixels) {
-	    	for(int i=0; i<len; i++) {
+		public void projectSlice(byte[] pixels, int from, int to) {
+	    	for(int i=from; i<to; i++) {
 				if((pixels[i]&0xff)<fpixels[i])
-		    		fpixels[i] = (pixels[i]&0xff); 
+		    		fpixels[i] = (pixels[i]&0xff);
 	    	}
 		}
 
-		public void projectSlice(short[] pixels) {
-	    	for(int i=0; i<len; i++) {
+		public void projectSlice(short[] pixels, int from, int to) {
+	    	for(int i=from; i<to; i++) {
 				if((pixels[i]&0xffff)<fpixels[i])
 		    		fpixels[i] = pixels[i]&0xffff;
 	    	}
 		}
 
-		public void projectSlice(float[] pixels) {
-	    	for(int i=0; i<len; i++) {
+		public void projectSlice(float[] pixels, int from, int to) {
+	    	for(int i=from; i<to; i++) {
 				if(pixels[i]<fpixels[i])
-		    		fpixels[i] = pixels[i]; 
+		    		fpixels[i] = pixels[i];
 	    	}
 		}
-		
+
     } // end MaxIntensity
 
 
@@ -764,7 +1056,6 @@ public class ZProjector implements PlugIn {
     class StandardDeviation extends RayFunction {
     	private float[] result;
     	private double[] sum, sum2;
-		private int num,len; 
 
 		public StandardDeviation(FloatProcessor fp, int num) {
 			result = (float[])fp.getPixels();
@@ -773,38 +1064,38 @@ public class ZProjector implements PlugIn {
 			sum = new double[len];
 			sum2 = new double[len];
 		}
-	
-		public void projectSlice(byte[] pixels) {
+
+		public void projectSlice(byte[] pixels, int from, int to) {
 			int v;
-		    for(int i=0; i<len; i++) {
+		    for(int i=from; i<to; i++) {
 		    	v = pixels[i]&0xff;
 				sum[i] += v;
 				sum2[i] += v*v;
-			} 
+			}
 		}
-	
-		public void projectSlice(short[] pixels) {
+
+		public void projectSlice(short[] pixels, int from, int to) {
 			double v;
-		    for(int i=0; i<len; i++) {
+		    for(int i=from; i<to; i++) {
 		    	v = pixels[i]&0xffff;
 				sum[i] += v;
 				sum2[i] += v*v;
-			} 
+			}
 		}
-	
-		public void projectSlice(float[] pixels) {
+
+		public void projectSlice(float[] pixels, int from, int to) {
 			double v;
-		    for(int i=0; i<len; i++) {
+		    for(int i=from; i<to; i++) {
 		    	v = pixels[i];
 				sum[i] += v;
 				sum2[i] += v*v;
-			} 
+			}
 		}
-	
-		public void postProcess() {
+
+		public void postProcess(int from, int to) {
 			double stdDev;
 			double n = num;
-		    for(int i=0; i<len; i++) {
+		    for(int i=from; i<to; i++) {
 				if (num>1) {
 					stdDev = (n*sum2[i]-sum[i]*sum[i])/n;
 					if (stdDev>0.0)
@@ -819,5 +1110,3 @@ public class ZProjector implements PlugIn {
     } // end StandardDeviation
 
 }  // end ZProjection
-
-
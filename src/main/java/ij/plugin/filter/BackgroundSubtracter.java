@@ -3,7 +3,9 @@ import ij.*;
 import ij.gui.*;
 import ij.process.*;
 import ij.measure.*;
+import ij.plugin.ZProjector;
 import ij.util.Tools;
+import ij.util.ThreadUtil;
 import java.awt.*;
 
 
@@ -42,6 +44,10 @@ Rolling ball code based on the NIH Image Pascal version by Michael Castle and Ja
 Keller of the University of Michigan Mental Health Research Institute.
 Sliding Paraboloid by Michael Schmid, 2007.
 
+With "Same background for all slices" (stacks only, not RGB or multi-channel),
+the background is created once from the average of all slices and subtracted
+from each slice, e.g. for correcting uneven illumination in time-lapse series.
+
 Version 10-Jan-2008
 */
 public class BackgroundSubtracter implements ExtendedPlugInFilter, DialogListener {
@@ -52,14 +58,21 @@ public class BackgroundSubtracter implements ExtendedPlugInFilter, DialogListene
     private static boolean staticCreateBackground;   // don't subtract background (e.g., for processing the background before subtracting)
     private static boolean staticUseParaboloid; // use "Sliding Paraboloid" instead of rolling ball algorithm
     private static boolean staticDoPresmooth = true; // smoothen the image before creating the background
+    private static boolean staticUseProjection; // create one background from the average of all stack slices
     private double radius = staticRadius;
     private boolean lightBackground = staticLightBackground;
     private boolean separateColors = staticSeparateColors;
     private boolean createBackground = staticCreateBackground;
     private boolean useParaboloid = staticUseParaboloid;
     private boolean doPresmooth = staticDoPresmooth;
+    private boolean useProjection = staticUseProjection;
     /* more class variables */
     private boolean isRGB;              // whether we have an RGB image
+    private ImagePlus imp;              // the image, needed for the average of the slices
+    private boolean canUseProjection;   // whether the image is a stack where one background can be used for all slices
+    private FloatProcessor projectionBackground; // the background of the average of the slices (with useProjection)
+    private String projectionParams;    // the parameters used for creating projectionBackground
+    private RollingBall ball;           // the ball for the current radius, kept for all slices
     private boolean previewing;
     private final static int MAXIMUM = 0, MEAN = 1;         //filter types of filter3x3
     private final static int X_DIRECTION = 0, Y_DIRECTION = 1,
@@ -75,12 +88,15 @@ public class BackgroundSubtracter implements ExtendedPlugInFilter, DialogListene
         if (arg.equals("final")) {
             imp.getProcessor().resetMinAndMax();
             return DONE;
-        } else
+        } else {
+            this.imp = imp;
             return flags;
+        }
     }
 
     public int showDialog(ImagePlus imp, String command, PlugInFilterRunner pfr) {
         isRGB = imp.getProcessor() instanceof ColorProcessor;
+        canUseProjection = imp.getStackSize()>1 && !isRGB && imp.getNChannels()==1;
         calledAsPlugin = true;
         String options = Macro.getOptions();
         if  (options!=null) {  //macro
@@ -91,6 +107,7 @@ public class BackgroundSubtracter implements ExtendedPlugInFilter, DialogListene
             createBackground = false;
             useParaboloid = false;
             doPresmooth = true;
+            useProjection = false;
         }
         GenericDialog gd = new GenericDialog(command);
         gd.addNumericField("Rolling ball radius:", radius, 1, 6, "pixels");
@@ -99,6 +116,7 @@ public class BackgroundSubtracter implements ExtendedPlugInFilter, DialogListene
         gd.addCheckbox("Create background (don't subtract)", createBackground);
         gd.addCheckbox("Sliding paraboloid", useParaboloid);
         gd.addCheckbox("Disable smoothing", !doPresmooth);
+        if (canUseProjection) gd.addCheckbox("Same background for all slices", useProjection);
         gd.addPreviewCheckbox(pfr);
         gd.addDialogListener(this);
         previewing = true;
@@ -116,8 +134,11 @@ public class BackgroundSubtracter implements ExtendedPlugInFilter, DialogListene
             staticCreateBackground = createBackground;
             staticUseParaboloid = useParaboloid;
             staticDoPresmooth = doPresmooth;
+            if (canUseProjection) staticUseProjection = useProjection;
             Prefs.set("bs.background", lightBackground);
         }
+        if (canUseProjection && useProjection)
+            return flags|DOES_STACKS;       //the same background is subtracted from all slices
         return IJ.setupDialog(imp, flags);  //ask whether to process all slices of stack (if a stack)
     }
 
@@ -130,12 +151,15 @@ public class BackgroundSubtracter implements ExtendedPlugInFilter, DialogListene
         createBackground = gd.getNextBoolean();
         useParaboloid = gd.getNextBoolean();
         doPresmooth = !gd.getNextBoolean();
+        if (canUseProjection) useProjection = gd.getNextBoolean();
         return true;
     }
 
     /** Background for any image type */
     public void run(ImageProcessor ip) {
-        if (isRGB && !separateColors)
+        if (canUseProjection && useProjection)
+            projectionBackground(ip);
+        else if (isRGB && !separateColors)
             rollingBallBrightnessBackground((ColorProcessor)ip, radius, createBackground, lightBackground, useParaboloid, doPresmooth, true);
         else
             rollingBallBackground(ip, radius, createBackground, lightBackground, useParaboloid, doPresmooth, true);
@@ -144,6 +168,57 @@ public class BackgroundSubtracter implements ExtendedPlugInFilter, DialogListene
         }
     }
 
+    /** Creates or subtracts the background of the average of all slices ('Same background
+     *  for all slices'). The background is created only once for all slices. */
+    private void projectionBackground(ImageProcessor ip) {
+        FloatProcessor bg = getProjectionBackground();
+        if (bg == null) return;             //interrupted
+        if (createBackground)
+            ip.setPixels(0, ip instanceof FloatProcessor ? (FloatProcessor)bg.duplicate() : bg);
+        else
+            subtractBackground(ip, 0, (float[])bg.getPixels(), isInverted(ip, lightBackground));
+    }
+
+    /** Returns the background of the average of all slices, for the current parameters.
+     *  Returns null if interrupted. */
+    private synchronized FloatProcessor getProjectionBackground() {
+        String params = radius+" "+lightBackground+" "+useParaboloid+" "+doPresmooth;
+        if (projectionBackground==null || !params.equals(projectionParams)) {
+            projectionBackground = null;
+            ZProjector projector = new ZProjector(imp);
+            projector.setMethod(ZProjector.AVG_METHOD);
+            projector.doProjection();
+            FloatProcessor fp = (FloatProcessor)projector.getProjection().getProcessor().convertToFloat();
+            boolean invert = isInverted(imp.getProcessor(), lightBackground);
+            int nPasses0 = nPasses;
+            nPasses = useParaboloid ? (doPresmooth ? DIRECTION_PASSES+2 : DIRECTION_PASSES) : 1;
+            pass = 0;
+            if (useParaboloid)
+                slidingParaboloidFloatBackground(fp, (float)radius, invert, doPresmooth, true);
+            else
+                rollingBallFloatBackground(fp, (float)radius, invert, doPresmooth, getBall(radius));
+            nPasses = nPasses0;
+            pass = 0;
+            if (Thread.currentThread().isInterrupted()) return null;
+            projectionBackground = fp;
+            projectionParams = params;
+        }
+        return projectionBackground;
+    }
+
+    /** Returns the ball for a given radius, which is kept for the next call */
+    private synchronized RollingBall getBall(double radius) {
+        if (ball==null || ball.radius!=radius)
+            ball = new RollingBall(radius);
+        return ball;
+    }
+
+    /** Whether the image data have to be inverted to have the background at the bottom */
+    private static boolean isInverted(ImageProcessor ip, boolean lightBackground) {
+        boolean invertedLut = ip.isInvertedLut();
+        return (invertedLut && !lightBackground) || (!invertedLut && lightBackground);
+    }
+
     /** Depracated. For compatibility with previous ImageJ versions */
     public void subtractRGBBackround(ColorProcessor ip, int ballRadius) {
         rollingBallBrightnessBackground(ip, (double)ballRadius, false, lightBackground, false, true, true);
@@ -197,10 +272,9 @@ public class BackgroundSubtracter implements ExtendedPlugInFilter, DialogListene
      */
     public void rollingBallBackground(ImageProcessor ip, double radius, boolean createBackground,
             boolean lightBackground, boolean useParaboloid, boolean doPresmooth, boolean correctCorners) {
-        boolean invertedLut = ip.isInvertedLut();
-        boolean invert = (invertedLut && !lightBackground) || (!invertedLut && lightBackground);
+        boolean invert = isInverted(ip, lightBackground);
         RollingBall ball = null;
-        if (!useParaboloid) ball = new RollingBall(radius);
+        if (!useParaboloid) ball = getBall(radius);
         FloatProcessor fp = null;
         for (int channelNumber=0; channelNumber<ip.getNChannels(); channelNumber++) {
             fp = ip.toFloat(channelNumber, fp);
@@ -219,47 +293,62 @@ public class BackgroundSubtracter implements ExtendedPlugInFilter, DialogListene
                     float[] snapshotPixels = (float[])fp.getSnapshotPixels(); //original data in the snapshot
                     for (int p=0; p<bgPixels.length; p++)
                         bgPixels[p] = snapshotPixels[p]-bgPixels[p];
-                //for all others, the image data are in ip, the background is in fp
-                } else if (ip instanceof ShortProcessor) {
-                    float offset = invert ? 65535.5f : 0.5f;//includes 0.5 for rounding when converting float to short
-                    short[] pixels = (short[])ip.getPixels();
-                    for (int p=0; p<bgPixels.length; p++) {
-                        float value = (pixels[p]&0xffff) - bgPixels[p] + offset;
-                        if (value<0f) value = 0f;
-
-                        if (value>65535f) value = 65535f;
+                } else                                      //for all others, the image data are in ip, the background is in fp
+                    subtractBackground(ip, channelNumber, bgPixels, invert);
+            }
+        }
+    }
 
-                        pixels[p] = (short)(value);
-                    }
-                } else if (ip instanceof ByteProcessor) {
-                    float offset = invert ? 255.5f : 0.5f;  //includes 0.5 for rounding when converting float to byte
-                    byte[] pixels = (byte[])ip.getPixels();
-                    for (int p=0; p<bgPixels.length; p++) {
-                        float value = (pixels[p]&0xff) - bgPixels[p] + offset;
-                        if (value<0f) value = 0f;
+    /** Subtracts a background from one channel of an image
+     * @param ip            The image; for RGB images, the channel given by channelNumber is modified.
+     * @param channelNumber The channel (0-2) of RGB images, 0 for all others.
+     * @param bgPixels      The background.
+     * @param invert        Whether the image has a light background. Then the highest possible
+     *                      pixel value is added to 8-bit, 16-bit and RGB images after subtraction.
+     */
+    static void subtractBackground(ImageProcessor ip, int channelNumber, float[] bgPixels, boolean invert) {
+        if (ip instanceof FloatProcessor) {
+            float[] pixels = (float[])ip.getPixels();
+            for (int p=0; p<bgPixels.length; p++)
+                pixels[p] -= bgPixels[p];
+        } else if (ip instanceof ShortProcessor) {
+            float offset = invert ? 65535.5f : 0.5f;//includes 0.5 for rounding when converting float to short
+            short[] pixels = (short[])ip.getPixels();
+            for (int p=0; p<bgPixels.length; p++) {
+                float value = (pixels[p]&0xffff) - bgPixels[p] + offset;
+                if (value<0f) value = 0f;
+
+                if (value>65535f) value = 65535f;
+
+                pixels[p] = (short)(value);
+            }
+        } else if (ip instanceof ByteProcessor) {
+            float offset = invert ? 255.5f : 0.5f;  //includes 0.5 for rounding when converting float to byte
+            byte[] pixels = (byte[])ip.getPixels();
+            for (int p=0; p<bgPixels.length; p++) {
+                float value = (pixels[p]&0xff) - bgPixels[p] + offset;
+                if (value<0f) value = 0f;
 
-                        if (value>255f) value = 255f;
+                if (value>255f) value = 255f;
 
-                        pixels[p] = (byte)(value);
-                    }
-                } else if (ip instanceof ColorProcessor) {
-                    float offset = invert ? 255.5f : 0.5f;
-                    int[] pixels = (int[])ip.getPixels();
-            		int shift = 16 - 8*channelNumber;
+                pixels[p] = (byte)(value);
+            }
+        } else if (ip instanceof ColorProcessor) {
+            float offset = invert ? 255.5f : 0.5f;
+            int[] pixels = (int[])ip.getPixels();
+            int shift = 16 - 8*channelNumber;
 
-            		int byteMask = 255<<shift;
-            		int resetMask = 0xffffffff^(255<<shift);
+            int byteMask = 255<<shift;
+            int resetMask = 0xffffffff^(255<<shift);
 
-                    for (int p=0; p<bgPixels.length; p++) {
-                        int pxl = pixels[p];
-                        float value = ((pxl&byteMask)>>shift) - bgPixels[p] + offset;
-                        if (value<0f) value = 0f;
+            for (int p=0; p<bgPixels.length; p++) {
+                int pxl = pixels[p];
+                float value = ((pxl&byteMask)>>shift) - bgPixels[p] + offset;
+                if (value<0f) value = 0f;
 
-                        if (value>255f) value = 255f;
-                        pixels[p] = (pxl&resetMask) | ((int)value<<shift);
+                if (value>255f) value = 255f;
+                pixels[p] = (pxl&resetMask) | ((int)value<<shift);
 
-                    }
-                }
             }
         }
     }
@@ -273,8 +362,6 @@ public class BackgroundSubtracter implements ExtendedPlugInFilter, DialogListene
         float[] pixels = (float[])fp.getPixels();   //this will become the background
         int width = fp.getWidth();
         int height = fp.getHeight();
-        float[] cache = new float[Math.max(width, height)]; //work array for lineSlideParabola
-        int[] nextPoint = new int[Math.max(width, height)]; //work array for lineSlideParabola
         float coeff2 = 0.5f/radius;                 //2nd-order coefficient of the polynomial approximating the ball
         float coeff2diag = 1.f/radius;              //same for diagonal directions where step is sqrt2
 
@@ -290,21 +377,24 @@ public class BackgroundSubtracter implements ExtendedPlugInFilter, DialogListene
             filter3x3(fp, MEAN);                    //smoothing to remove noise
             pass++;
         }
-        if (correctCorners)
+        if (correctCorners) {
+            float[] cache = new float[Math.max(width, height)]; //work array for lineSlideParabola
+            int[] nextPoint = new int[Math.max(width, height)]; //work array for lineSlideParabola
             correctCorners(fp, coeff2, cache, nextPoint);   //modify corner data, avoids subtracting corner particles
+        }
 
         /* Slide the parabola over the image in different directions */
         /* Doing the diagonal directions at the end is faster (diagonal lines are denser,
          * so there are more such lines, and the algorithm gets faster with each iteration) */
-        filter1D(fp, X_DIRECTION, coeff2, cache, nextPoint);
-        filter1D(fp, Y_DIRECTION, coeff2, cache, nextPoint);
-        filter1D(fp, X_DIRECTION, coeff2, cache, nextPoint);    //redo for better accuracy
-        filter1D(fp, DIAGONAL_1A, coeff2diag, cache, nextPoint);
-        filter1D(fp, DIAGONAL_1B, coeff2diag, cache, nextPoint);
-        filter1D(fp, DIAGONAL_2A, coeff2diag, cache, nextPoint);
-        filter1D(fp, DIAGONAL_2B, coeff2diag, cache, nextPoint);
-        filter1D(fp, DIAGONAL_1A, coeff2diag, cache, nextPoint);//redo for better accuracy
-        filter1D(fp, DIAGONAL_1B, coeff2diag, cache, nextPoint);
+        filter1D(fp, X_DIRECTION, coeff2);
+        filter1D(fp, Y_DIRECTION, coeff2);
+        filter1D(fp, X_DIRECTION, coeff2);    //redo for better accuracy
+        filter1D(fp, DIAGONAL_1A, coeff2diag);
+        filter1D(fp, DIAGONAL_1B, coeff2diag);
+        filter1D(fp, DIAGONAL_2A, coeff2diag);
+        filter1D(fp, DIAGONAL_2B, coeff2diag);
+        filter1D(fp, DIAGONAL_1A, coeff2diag);//redo for better accuracy
+        filter1D(fp, DIAGONAL_1B, coeff2diag);
 
         if (invert)
             for (int i=0; i<pixels.length; i++)
@@ -316,16 +406,17 @@ public class BackgroundSubtracter implements ExtendedPlugInFilter, DialogListene
     }
 
     /** Filter by subtracting a sliding parabola for all lines in one direction, x, y or one of
-     *  the two diagonal directions (diagonals are processed only for half the image per call). */
-    void filter1D(FloatProcessor fp, int direction, float coeff2, float[] cache, int[] nextPoint) {
-        float[] pixels = (float[])fp.getPixels();   //this will become the background
-        int width = fp.getWidth();
+     *  the two diagonal directions (diagonals are processed only for half the image per call).
+     *  The lines of one direction do not share any pixels; they are processed in parallel threads. */
+    void filter1D(FloatProcessor fp, final int direction, final float coeff2) {
+        final float[] pixels = (float[])fp.getPixels();   //this will become the background
+        final int width = fp.getWidth();
         int height = fp.getHeight();
         int startLine = 0;          //index of the first line to handle
         int nLines = 0;             //index+1 of the last line to handle (initialized to avoid compile-time error)
         int lineInc = 0;            //increment from one line to the next in pixels array
         int pointInc = 0;           //increment from one point to the next along the line
-        int length = 0;             //length of the line
+        int length = 0;             //length of the line (x and y directions)
         switch (direction) {
             case X_DIRECTION:       //lines parallel to x direction
                 nLines = height;
@@ -363,21 +454,31 @@ public class BackgroundSubtracter implements ExtendedPlugInFilter, DialogListene
                 pointInc = width - 1;
             break;
         }
-        for (int i=startLine; i<nLines; i++) {
-            if (i%50==0) {
-                if (Thread.currentThread().isInterrupted()) return;
-                showProgress(i/(double)nLines);
-            }
-            int startPixel = i*lineInc;
-            if (direction == DIAGONAL_2B) startPixel += width-1;
-            switch (direction) {
-                case DIAGONAL_1A: length = Math.min(height, width-i); break;
-                case DIAGONAL_1B: length = Math.min(width, height-i); break;
-                case DIAGONAL_2A: length = Math.min(height, i+1);     break;
-                case DIAGONAL_2B: length = Math.min(width, height-i); break;
+        final int nLines1 = nLines, lineInc1 = lineInc, pointInc1 = pointInc, length1 = length;
+        final Thread callingThread = Thread.currentThread();
+        ThreadUtil.parallelFor(startLine, nLines, new ThreadUtil.RangeTask() {
+            public void run(int from, int to) {
+                float[] cache = new float[Math.max(width, height)]; //work array for lineSlideParabola
+                int[] nextPoint = new int[Math.max(width, height)]; //work array for lineSlideParabola
+                Thread thread = Thread.currentThread();
+                int length = length1;
+                for (int i=from; i<to; i++) {
+                    if (i%50==0) {
+                        if (thread.isInterrupted()) return;
+                        if (thread == callingThread) showProgress(i/(double)nLines1);
+                    }
+                    int startPixel = i*lineInc1;
+                    if (direction == DIAGONAL_2B) startPixel += width-1;
+                    switch (direction) {
+                        case DIAGONAL_1A: length = Math.min(height, width-i); break;
+                        case DIAGONAL_1B: length = Math.min(width, height-i); break;
+                        case DIAGONAL_2A: length = Math.min(height, i+1);     break;
+                        case DIAGONAL_2B: length = Math.min(width, height-i); break;
+                    }
+                    lineSlideParabola(pixels, startPixel, pointInc1, length, coeff2, cache, nextPoint, null);
+                }
             }
-            lineSlideParabola(pixels, startPixel, pointInc, length, coeff2, cache, nextPoint, null);
-        }
+        });
         pass++;
     } //void filter1D
 
@@ -551,29 +652,33 @@ public class BackgroundSubtracter implements ExtendedPlugInFilter, DialogListene
     }
 
     /** Creates a lower resolution image for ball-rolling. */
-    FloatProcessor shrinkImage(FloatProcessor ip, int shrinkFactor) {
-        int width = ip.getWidth();
-        int height = ip.getHeight();
-        float[] pixels = (float[])ip.getPixels();
-        int sWidth = (width+shrinkFactor-1)/shrinkFactor;
+    FloatProcessor shrinkImage(FloatProcessor ip, final int shrinkFactor) {
+        final int width = ip.getWidth();
+        final int height = ip.getHeight();
+        final float[] pixels = (float[])ip.getPixels();
+        final int sWidth = (width+shrinkFactor-1)/shrinkFactor;
         int sHeight = (height+shrinkFactor-1)/shrinkFactor;
         showProgress(0.1);
         FloatProcessor smallImage = new FloatProcessor(sWidth, sHeight);
-        float[] sPixels = (float[])smallImage.getPixels();
-        float min, thispixel;
-        for (int ySmall=0; ySmall<sHeight; ySmall++) {
-            for (int xSmall=0; xSmall<sWidth; xSmall++) {
-                min = Float.MAX_VALUE;
-                for (int j=0, y=shrinkFactor*ySmall; j<shrinkFactor&&y<height; j++, y++) {
-                    for (int k=0, x=shrinkFactor*xSmall; k<shrinkFactor&&x<width; k++, x++) {
-                        thispixel = pixels[x+y*width];
-                        if (thispixel<min)
-                            min = thispixel;
+        final float[] sPixels = (float[])smallImage.getPixels();
+        ThreadUtil.parallelFor(0, sHeight, new ThreadUtil.RangeTask() {
+            public void run(int from, int to) {
+                float min, thispixel;
+                for (int ySmall=from; ySmall<to; ySmall++) {
+                    for (int xSmall=0; xSmall<sWidth; xSmall++) {
+                        min = Float.MAX_VALUE;
+                        for (int j=0, y=shrinkFactor*ySmall; j<shrinkFactor&&y<height; j++, y++) {
+                            for (int k=0, x=shrinkFactor*xSmall; k<shrinkFactor&&x<width; k++, x++) {
+                                thispixel = pixels[x+y*width];
+                                if (thispixel<min)
+                                    min = thispixel;
+                            }
+                        }
+                        sPixels[xSmall+ySmall*sWidth] = min; // each point in small image is minimum of its neighborhood
                     }
                 }
-                sPixels[xSmall+ySmall*sWidth] = min; // each point in small image is minimum of its neighborhood
             }
-        }
+        });
         //new ImagePlus("smallImage", smallImage).show();
         return smallImage;
     }
@@ -589,62 +694,76 @@ public class BackgroundSubtracter implements ExtendedPlugInFilter, DialogListene
         during this process is considered part of the background.  Shrinking the image
         before running this procedure is advised for large ball radii because the
         processing time increases with ball radius^2.
+        This is done in two passes, both in parallel bands of rows: First, the height
+        of the ball is determined for all positions of the ball center, then each pixel
+        is raised to the highest ball surface above it.
     */
     void rollBall(RollingBall ball, FloatProcessor fp) {
-        float[] pixels = (float[])fp.getPixels();   //the input pixels
-        int width = fp.getWidth();
-        int height = fp.getHeight();
-        float[] zBall = ball.data;
-        int ballWidth = ball.width;
-        int radius = ballWidth/2;
-        float[] cache = new float[width*ballWidth]; //temporarily stores the pixels we work on
-
-		Thread thread = Thread.currentThread();
-		long lastTime = System.currentTimeMillis();
-        for (int y=-radius; y<height+radius; y++) { //for all positions of the ball center:
-			long time = System.currentTimeMillis();
-			if (time-lastTime > 100) {
-				lastTime = time;
-				if (thread.isInterrupted()) return;
-				showProgress(0.1+0.8*y/(height+ballWidth));
-            }
-            int nextLineToWriteInCache = (y+radius)%ballWidth;
-            int nextLineToRead = y + radius;        //line of the input not touched yet
-            if (nextLineToRead<height) {
-                System.arraycopy(pixels, nextLineToRead*width, cache, nextLineToWriteInCache*width, width);
-                for (int x=0, p=nextLineToRead*width; x<width; x++,p++)
-                    pixels[p] = -Float.MAX_VALUE;   //unprocessed pixels start at minus infinity
-            }
-            int y0 = y-radius;                      //the first line to see whether the ball touches
-            if (y0 < 0) y0 = 0;
-            int yBall0 = y0-y+radius;               //y coordinate in the ball corresponding to y0
-            int yend = y+radius;                    //the last line to see whether the ball touches
-            if (yend>=height) yend = height-1;
-            for (int x=-radius; x<width+radius; x++) {
-                float z = Float.MAX_VALUE;          //the height of the ball (ball is in position x,y)
-                int x0 = x-radius;
-                if (x0 < 0) x0 = 0;
-                int xBall0 = x0-x+radius;
-                int xend = x+radius;
-                if (xend>=width) xend = width-1;
-                for (int yp=y0, yBall=yBall0; yp<=yend; yp++,yBall++) { //for all points inside the ball
-                    int cachePointer = (yp%ballWidth)*width+x0;
-                    for (int xp=x0, bp=xBall0+yBall*ballWidth; xp<=xend; xp++, cachePointer++, bp++) {
-                        float zReduced = cache[cachePointer] - zBall[bp];
-                        if (z > zReduced)           //does this point imply a greater height?
-                            z = zReduced;
+        final float[] pixels = (float[])fp.getPixels();   //the input pixels
+        final int width = fp.getWidth();
+        final int height = fp.getHeight();
+        final float[] zBall = ball.data;
+        final int ballWidth = ball.width;
+        final int radius = ballWidth/2;
+        final int zWidth = width+2*radius;          //ball centers are at x=-radius ... width+radius-1
+        final float[] zCenters = new float[zWidth*(height+2*radius)]; //height of the ball for each center position
+
+        ThreadUtil.parallelFor(-radius, height+radius, new ThreadUtil.RangeTask() {
+            public void run(int from, int to) {
+                Thread thread = Thread.currentThread();
+                for (int y=from; y<to; y++) {       //for all positions of the ball center:
+                    if (thread.isInterrupted()) return;
+                    int y0 = y-radius;              //the first line to see whether the ball touches
+                    if (y0 < 0) y0 = 0;
+                    int yBall0 = y0-y+radius;       //y coordinate in the ball corresponding to y0
+                    int yend = y+radius;            //the last line to see whether the ball touches
+                    if (yend>=height) yend = height-1;
+                    for (int x=-radius, zp=(y+radius)*zWidth; x<width+radius; x++, zp++) {
+                        float z = Float.MAX_VALUE;  //the height of the ball (ball is in position x,y)
+                        int x0 = x-radius;
+                        if (x0 < 0) x0 = 0;
+                        int xBall0 = x0-x+radius;
+                        int xend = x+radius;
+                        if (xend>=width) xend = width-1;
+                        for (int yp=y0, yBall=yBall0; yp<=yend; yp++,yBall++) { //for all points inside the ball
+                            for (int p=x0+yp*width, pend=xend+yp*width, bp=xBall0+yBall*ballWidth; p<=pend; p++, bp++) {
+                                float zReduced = pixels[p] - zBall[bp];
+                                if (z > zReduced)   //does this point imply a greater height?
+                                    z = zReduced;
+                            }
+                        }
+                        zCenters[zp] = z;
                     }
                 }
-                for (int yp=y0, yBall=yBall0; yp<=yend; yp++,yBall++) //raise pixels to ball surface
-                    for (int xp=x0, p=xp+yp*width, bp=xBall0+yBall*ballWidth; xp<=xend; xp++, p++, bp++) {
-                        float zMin = z + zBall[bp];
-                        if (pixels[p] < zMin)
-                            pixels[p] = zMin;
+            }
+        });
+        if (Thread.currentThread().isInterrupted()) return;
+        showProgress(0.5);
+
+        ThreadUtil.parallelFor(0, height, new ThreadUtil.RangeTask() {
+            public void run(int from, int to) {
+                for (int yp=from; yp<to; yp++) {
+                    int rowStart = yp*width;
+                    for (int p=rowStart; p<rowStart+width; p++)
+                        pixels[p] = -Float.MAX_VALUE;   //unprocessed pixels start at minus infinity
+                    for (int yBall=0; yBall<ballWidth; yBall++) { //for all ball positions touching this line
+                        int y = yp-yBall+radius;
+                        for (int x=-radius, zp=(y+radius)*zWidth; x<width+radius; x++, zp++) {
+                            float z = zCenters[zp];
+                            int x0 = x-radius;
+                            if (x0 < 0) x0 = 0;
+                            int xend = x+radius;
+                            if (xend>=width) xend = width-1;
+                            for (int p=rowStart+x0, pend=rowStart+xend, bp=x0-x+radius+yBall*ballWidth; p<=pend; p++, bp++) {
+                                float zMin = z + zBall[bp]; //raise pixels to ball surface
+                                if (pixels[p] < zMin)
+                                    pixels[p] = zMin;
+                            }
+                        }
                     }
-            // if (x>=0&&y>=0&&x<width&&y<height) bgPixels[x+y*width] = z; //debug, ball height output
+                }
             }
-        }
-        
+        });
         //new ImagePlus("bg rolled", fp.duplicate()).show();
     }
     
@@ -653,39 +772,49 @@ public class BackgroundSubtracter implements ExtendedPlugInFilter, DialogListene
         actually extrapolation.)
     */                                 
     void enlargeImage(FloatProcessor smallImage, FloatProcessor fp, int shrinkFactor) {
-        int width = fp.getWidth();
+        final int width = fp.getWidth();
         int height = fp.getHeight();
         int smallWidth = smallImage.getWidth();
         int smallHeight = smallImage.getHeight();
-        float[] pixels = (float[])fp.getPixels();
-        float[] sPixels = (float[])smallImage.getPixels();
-        int[] xSmallIndices = new int[width];         //index of first point in smallImage
-        float[] xWeights = new float[width];        //weight of this point
+        final float[] pixels = (float[])fp.getPixels();
+        final float[] sPixels = (float[])smallImage.getPixels();
+        final int[] xSmallIndices = new int[width];         //index of first point in smallImage
+        final float[] xWeights = new float[width];        //weight of this point
         makeInterpolationArrays(xSmallIndices, xWeights, width, smallWidth, shrinkFactor);
-        int[] ySmallIndices = new int[height];
-        float[] yWeights = new float[height];
+        final int[] ySmallIndices = new int[height];
+        final float[] yWeights = new float[height];
         makeInterpolationArrays(ySmallIndices, yWeights, height, smallHeight, shrinkFactor);
-        float[] line0 = new float[width];
-        float[] line1 = new float[width];
-        for (int x=0; x<width; x++)                 //x-interpolation of the first smallImage line
-            line1[x] = sPixels[xSmallIndices[x]] * xWeights[x] +
-                    sPixels[xSmallIndices[x]+1] * (1f - xWeights[x]);
-        int ySmallLine0 = -1;                       //line0 corresponds to this y of smallImage
-        for (int y=0; y<height; y++) {
-            if (ySmallLine0 < ySmallIndices[y]) {
-                float[] swap = line0;               //previous line1 -> line0
-                line0 = line1;
-                line1 = swap;                       //keep the other array for filling with new data
-                ySmallLine0++;
-                int sYPointer = (ySmallIndices[y]+1)*smallWidth; //points to line0 + 1 in smallImage
-                for (int x=0; x<width; x++)         //x-interpolation of the new smallImage line -> line1
-                    line1[x] = sPixels[sYPointer+xSmallIndices[x]] * xWeights[x] +
-                            sPixels[sYPointer+xSmallIndices[x]+1] * (1f - xWeights[x]);
+        final int smallWidth1 = smallWidth;
+        ThreadUtil.parallelFor(0, height, new ThreadUtil.RangeTask() {
+            public void run(int from, int to) {
+                float[] line0 = new float[width];
+                float[] line1 = new float[width];
+                int ySmallLine0 = -2;               //line0 corresponds to this y of smallImage
+                for (int y=from; y<to; y++) {
+                    int ySmall = ySmallIndices[y];
+                    if (ySmallLine0 != ySmall) {
+                        if (ySmallLine0+1 == ySmall) {
+                            float[] swap = line0;   //previous line1 -> line0
+                            line0 = line1;
+                            line1 = swap;           //keep the other array for filling with new data
+                        } else {
+                            int sYPointer = ySmall*smallWidth1; //x-interpolation of smallImage line ySmall -> line0
+                            for (int x=0; x<width; x++)
+                                line0[x] = sPixels[sYPointer+xSmallIndices[x]] * xWeights[x] +
+                                        sPixels[sYPointer+xSmallIndices[x]+1] * (1f - xWeights[x]);
+                        }
+                        ySmallLine0 = ySmall;
+                        int sYPointer = (ySmall+1)*smallWidth1; //points to line0 + 1 in smallImage
+                        for (int x=0; x<width; x++) //x-interpolation of the new smallImage line -> line1
+                            line1[x] = sPixels[sYPointer+xSmallIndices[x]] * xWeights[x] +
+                                    sPixels[sYPointer+xSmallIndices[x]+1] * (1f - xWeights[x]);
+                    }
+                    float weight = yWeights[y];
+                    for (int x=0, p=y*width; x<width; x++,p++)
+                        pixels[p] = line0[x]*weight + line1[x]*(1f - weight);
+                }
             }
-            float weight = yWeights[y];
-            for (int x=0, p=y*width; x<width; x++,p++)
-                pixels[p] = line0[x]*weight + line1[x]*(1f - weight);
-        }
+        });
     }
 
     /** Create arrays of indices and weigths for interpolation.
@@ -715,15 +844,26 @@ public class BackgroundSubtracter implements ExtendedPlugInFilter, DialogListene
      *  When used as maximum filter, it returns the average change of the
      *  pixel value by this operation
      */
-    double filter3x3(FloatProcessor fp, int type) {
-        int width = fp.getWidth();
-        int height = fp.getHeight();
+    double filter3x3(FloatProcessor fp, final int type) {
+        final int width = fp.getWidth();
+        final int height = fp.getHeight();
+        final float[] pixels = (float[])fp.getPixels();
+        final double[] shifts = new double[height+width]; //the shift of each row and column, summed up in fixed sequence
+        ThreadUtil.parallelFor(0, height, new ThreadUtil.RangeTask() {
+            public void run(int from, int to) {
+                for (int y=from; y<to; y++)
+                    shifts[y] = filter3(pixels, width, y*width, 1, type);
+            }
+        });
+        ThreadUtil.parallelFor(0, width, new ThreadUtil.RangeTask() {
+            public void run(int from, int to) {
+                for (int x=from; x<to; x++)
+                    shifts[height+x] = filter3(pixels, height, x, width, type);
+            }
+        });
         double shiftBy = 0;
-        float[] pixels = (float[])fp.getPixels();
-        for (int y=0; y<height; y++)
-            shiftBy += filter3(pixels, width, y*width, 1, type);
-        for (int x=0; x<width; x++)
-            shiftBy += filter3(pixels, height, x, width, type);
+        for (int i=0; i<shifts.length; i++)
+            shiftBy += shifts[i];
         return shiftBy/width/height;
     }
 
@@ -775,8 +915,10 @@ class RollingBall {
     float[] data;
     int width;
     int shrinkFactor;
+    double radius;
     
     RollingBall(double radius) {
+        this.radius = radius;
         int arcTrimPer;
         if (radius<=10) {
             shrinkFactor = 1;
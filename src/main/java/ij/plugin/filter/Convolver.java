@@ -30,6 +30,14 @@ public class Convolver implements ExtendedPlugInFilter, DialogListener, ActionLi
 	private Thread mainThread;
 	private int pass;
 
+	/** Kernels with fewer elements are always applied directly */
+	private static final int FFT_MIN_KERNEL_SIZE = 49;
+	/** Largest tile size for convolution in the frequency domain */
+	private static final int FFT_MAX_TILE_SIZE = 1024;
+	/** Estimated time for the FHT of a tile relative to one multiply-add, per pixel and log2(size) */
+	private static final double FFT_COST = 4.0;
+	/** Ways of convolving for convolveFloat; other than AUTO only used by ConvolverBenchmark */
+	static final int AUTO=0, DIRECT=1, SEPARABLE=2, FFT=3;
 	
 	static String kernelText = "-1 -1 -1 -1 -1\n-1 -1 -1 -1 -1\n-1 -1 24 -1 -1\n-1 -1 -1 -1 -1\n-1 -1 -1 -1 -1\n";
 	static boolean normalizeFlag = true;
@@ -207,14 +215,39 @@ public class Convolver implements ExtendedPlugInFilter, DialogListener, ActionLi
 	
 	/** Convolves the float image <code>ip</code> with a kernel of width 
 		<code>kw</code> and height <code>kh</code>. Returns false if 
-		the user cancels the operation by pressing 'Esc'. */
+		the user cancels the operation by pressing 'Esc'.
+		Kernels that are the product of a column and a row vector
+		(rank 1, e.g. Gaussian or binomial kernels) are applied as two
+		1D convolutions. Large kernels that are not separable are applied
+		via the Fast Hartley Transform if this is faster. */
 	public boolean convolveFloat(ImageProcessor ip, float[] kernel, int kw, int kh) {
+		return convolveFloat(ip, kernel, kw, kh, AUTO);
+	}
+
+	/** Convolves like convolveFloat(ip, kernel, kw, kh), with 'method' AUTO,
+		or DIRECT, SEPARABLE or FFT for always using that method. */
+	boolean convolveFloat(ImageProcessor ip, float[] kernel, int kw, int kh, int method) {
 		if (!(ip instanceof FloatProcessor))
 			throw new IllegalArgumentException("FloatProcessor required");
 		if (canceled) return false;
+		Rectangle r = ip.getRoi();
+		float[] pixels2 = (float[])ip.getSnapshotPixels();
+		if (pixels2==null)
+			pixels2 = (float[])ip.getPixelsCopy();
+		double scale = normalize?getScale(kernel):1.0;
+		Thread thread = Thread.currentThread();
+		boolean isMainThread = thread==mainThread || thread.getName().indexOf("Preview")!=-1;
+		if (isMainThread) pass++;
+		float[][] vectors = method==AUTO||method==SEPARABLE ? separate(kernel, kw, kh) : null;
+		if (vectors!=null)
+			return convolveSeparable(ip, pixels2, vectors[0], vectors[1], scale, isMainThread);
+		if (method==SEPARABLE)
+			throw new IllegalArgumentException("Kernel not separable");
+		int tileSize = method==AUTO||method==FFT ? getFFTTileSize(kw, kh, r.width, r.height, method==FFT) : 0;
+		if (tileSize>0)
+			return convolveFFT(ip, pixels2, kernel, kw, kh, scale, tileSize, isMainThread);
 		int width = ip.getWidth();
 		int height = ip.getHeight();
-		Rectangle r = ip.getRoi();
 		int x1 = r.x;
 		int y1 = r.y;
 		int x2 = x1 + r.width;
@@ -222,67 +255,45 @@ public class Convolver implements ExtendedPlugInFilter, DialogListener, ActionLi
 		int uc = kw/2;    
 		int vc = kh/2;
 		float[] pixels = (float[])ip.getPixels();
-		float[] pixels2 = (float[])ip.getSnapshotPixels();
-		if (pixels2==null)
-			pixels2 = (float[])ip.getPixelsCopy();
-		double scale = normalize?getScale(kernel):1.0;
-        Thread thread = Thread.currentThread();
-        boolean isMainThread = thread==mainThread || thread.getName().indexOf("Preview")!=-1;
-        if (isMainThread) pass++;
+		int xInside1 = Math.min(Math.max(x1, uc), x2);            //no edge pixels needed for xInside1<=x<xInside2
+		int xInside2 = Math.max(Math.min(x2, width-uc), xInside1);
 		double sum;
 		int offset, i;
-		boolean edgePixel;
-		int xedge = width-uc;
-		int yedge = height-vc;
 		long lastTime = System.currentTimeMillis();
 		for (int y=y1; y<y2; y++) {
 			long time = System.currentTimeMillis();
 			if (time-lastTime>100) {
 				lastTime = time;
-				if (thread.isInterrupted()) return false;
-				if (isMainThread) {
-					if (IJ.escapePressed()) {
-						canceled = true;
-						ip.reset();
-						ImageProcessor originalIp = imp.getProcessor();
-						if (originalIp.getNChannels() > 1)
-							originalIp.reset();
-						return false;
-					}
-					showProgress((y-y1)/(double)(y2-y1));
-				}
+				if (isCanceled(ip, isMainThread, (y-y1)/(double)(y2-y1)))
+					return false;
 			}
+			boolean edgeRow = y<vc || y>=height-vc;
 			for (int x=x1; x<x2; x++) {
 				if (canceled) return false;
 				sum = 0.0;
 				i = 0;
-				edgePixel = y<vc || y>=yedge || x<uc || x>=xedge;
-				for (int v=-vc; v <= vc; v++) {
-					offset = x+(y+v)*width;
-					for(int u = -uc; u <= uc; u++) {
-						if (edgePixel) {
- 							if (i>=kernel.length) // work around for JIT compiler bug on Linux
- 								IJ.log("kernel index error: "+i);
+				if (edgeRow || x<xInside1 || x>=xInside2) {
+					for (int v=-vc; v <= vc; v++) {
+						for (int u = -uc; u <= uc; u++)
 							sum += getPixel(x+u, y+v, pixels2, width, height)*kernel[i++];
-						} else
+					}
+				} else {
+					offset = x-uc+(y-vc)*width;
+					for (int v=0; v<kh; v++, offset+=width) {
+						for (int u=0; u<kw; u++)
 							sum += pixels2[offset+u]*kernel[i++];
 					}
-		    	}
+				}
 				pixels[x+y*width] = (float)(sum*scale);
 			}
-    	}
-   		return true;
-   	 }
-
-	/** Convolves the image <code>ip</code> with a kernel of width
-		<code>kw</code> and height <code>kh</code>. */
-	public void convolveFloat1D(FloatProcessor ip, float[] kernel, int kw, int kh) {
-		convolveFloat1D(ip, kernel, kw, kh, normalize?getScale(kernel):1.0);
+		}
+		return true;
 	}
 
-	/** Convolves the image <code>ip</code> with a kernel of width 
-		<code>kw</code> and height <code>kh</code>. */
-	public void convolveFloat1D(FloatProcessor ip, float[] kernel, int kw, int kh, double scale) {
+	/** The previous implementation of convolveFloat, which convolves every
+		kernel directly and checks for edge pixels at each kernel element.
+		Only kept as a reference for ConvolverBenchmark. */
+	boolean convolveFloatReference(ImageProcessor ip, float[] kernel, int kw, int kh) {
 		int width = ip.getWidth();
 		int height = ip.getHeight();
 		Rectangle r = ip.getRoi();
@@ -290,47 +301,277 @@ public class Convolver implements ExtendedPlugInFilter, DialogListener, ActionLi
 		int y1 = r.y;
 		int x2 = x1 + r.width;
 		int y2 = y1 + r.height;
-		int uc = kw/2;    
+		int uc = kw/2;
 		int vc = kh/2;
 		float[] pixels = (float[])ip.getPixels();
 		float[] pixels2 = (float[])ip.getSnapshotPixels();
 		if (pixels2==null)
 			pixels2 = (float[])ip.getPixelsCopy();
-		boolean vertical = kw==1;
-
+		double scale = normalize?getScale(kernel):1.0;
 		double sum;
 		int offset, i;
 		boolean edgePixel;
 		int xedge = width-uc;
 		int yedge = height-vc;
-		for(int y=y1; y<y2; y++) {
-			for(int x=x1; x<x2; x++) {
+		for (int y=y1; y<y2; y++) {
+			if (Thread.currentThread().isInterrupted()) return false;
+			for (int x=x1; x<x2; x++) {
 				sum = 0.0;
 				i = 0;
-				if (vertical) {
-					edgePixel = y<vc || y>=yedge;
-					offset = x+(y-vc)*width;
-					for(int v=-vc; v<=vc; v++) {
-						if (edgePixel)
-							sum += getPixel(x+uc, y+v, pixels2, width, height)*kernel[i++];
-						else
-							sum += pixels2[offset+uc]*kernel[i++];
-						offset += width;
-					}
-				} else {
-					edgePixel = x<uc || x>=xedge;
-					offset = x+(y-vc)*width;
-					for(int u = -uc; u<=uc; u++) {
+				edgePixel = y<vc || y>=yedge || x<uc || x>=xedge;
+				for (int v=-vc; v <= vc; v++) {
+					offset = x+(y+v)*width;
+					for(int u = -uc; u <= uc; u++) {
 						if (edgePixel)
-							sum += getPixel(x+u, y+vc, pixels2, width, height)*kernel[i++];
+							sum += getPixel(x+u, y+v, pixels2, width, height)*kernel[i++];
 						else
 							sum += pixels2[offset+u]*kernel[i++];
 					}
 				}
 				pixels[x+y*width] = (float)(sum*scale);
 			}
-    	}
-    }
+		}
+		return true;
+	}
+
+	/** Convolves the image <code>ip</code> with a kernel of width
+		<code>kw</code> and height <code>kh</code>. */
+	public void convolveFloat1D(FloatProcessor ip, float[] kernel, int kw, int kh) {
+		convolveFloat1D(ip, kernel, kw, kh, normalize?getScale(kernel):1.0);
+	}
+
+	/** Convolves the image <code>ip</code> with a kernel of width 
+		<code>kw</code> and height <code>kh</code>. */
+	public void convolveFloat1D(FloatProcessor ip, float[] kernel, int kw, int kh, double scale) {
+		float[] pixels2 = (float[])ip.getSnapshotPixels();
+		if (pixels2==null)
+			pixels2 = (float[])ip.getPixelsCopy();
+		boolean vertical = kw==1;
+		convolveSeparable(ip, pixels2, vertical?null:kernel, vertical?kernel:null, scale, false);
+	}
+
+	/** Splits a kernel into a row vector (element 0 of the array returned) and a
+		column vector (element 1) if the kernel is their product. Either vector is
+		null if its length is 1. Returns null if the kernel is not separable. */
+	static float[][] separate(float[] kernel, int kw, int kh) {
+		if (kw==1 || kh==1)
+			return new float[][] {kh==1?kernel:null, kw==1?kernel:null};
+		int pivot = 0;
+		for (int i=1; i<kernel.length; i++)
+			if (Math.abs(kernel[i])>Math.abs(kernel[pivot]))
+				pivot = i;
+		double max = Math.abs(kernel[pivot]);
+		if (max==0.0 || Double.isNaN(max) || Double.isInfinite(max))
+			return null;
+		int px = pivot%kw, py = pivot/kw;
+		float[] row = new float[kw];
+		float[] column = new float[kh];
+		System.arraycopy(kernel, py*kw, row, 0, kw);
+		for (int v=0; v<kh; v++)
+			column[v] = (float)(kernel[v*kw+px]/(double)kernel[pivot]);
+		double tolerance = 1e-6*max;
+		for (int v=0, i=0; v<kh; v++)
+			for (int u=0; u<kw; u++, i++)
+				if (Math.abs(kernel[i] - (double)column[v]*row[u]) > tolerance)
+					return null;
+		return new float[][] {row, column};
+	}
+
+	/** Convolves the roi of 'ip' with a row and then with a column vector
+		(both must have an odd length, null stands for a vector of length 1),
+		reading the input from 'pixels2'. Both passes process full rows
+		in their inner loop; the column pass accumulates all pixels of a row,
+		thus it does not need to access the image column by column. */
+	private boolean convolveSeparable(ImageProcessor ip, float[] pixels2, float[] row, float[] column, double scale, boolean isMainThread) {
+		int width = ip.getWidth();
+		int height = ip.getHeight();
+		Rectangle r = ip.getRoi();
+		int x1 = r.x;
+		int y1 = r.y;
+		int x2 = x1 + r.width;
+		int y2 = y1 + r.height;
+		int rw = r.width;
+		int vc = column!=null ? column.length/2 : 0;
+		float[] pixels = (float[])ip.getPixels();
+		double[] sum = new double[rw];
+		long lastTime = System.currentTimeMillis();
+		double nRows = column!=null&&row!=null ? 2.0*r.height : r.height;   //for the progress bar
+		float[] lines = pixels2;    //input of the column pass: 'lines[lineOffset+(y-line0)*lineInc+x-x1]'
+		int line0=0, lineOffset=x1, lineInc=width;
+		if (row!=null) {
+			int uc = row.length/2;
+			int ry1 = Math.max(y1-vc, 0);
+			int ry2 = Math.min(y2+vc, height);
+			if (column!=null) {
+				lines = new float[rw*(ry2-ry1)];
+				line0 = ry1;
+				lineOffset = 0;
+				lineInc = rw;
+			}
+			for (int y=ry1; y<ry2; y++) {
+				long time = System.currentTimeMillis();
+				if (time-lastTime>100) {
+					lastTime = time;
+					if (isCanceled(ip, isMainThread, (y-ry1)/nRows))
+						return false;
+				}
+				Arrays.fill(sum, 0.0);
+				int rowStart = y*width;
+				for (int k=0; k<row.length; k++) {
+					int u = k - uc;
+					float kernelValue = row[k];
+					int xInside1 = Math.min(Math.max(x1, -u), x2);          //x+u inside the image for xInside1<=x<xInside2
+					int xInside2 = Math.max(Math.min(x2, width-u), xInside1);
+					double first = pixels2[rowStart]*kernelValue;
+					double last = pixels2[rowStart+width-1]*kernelValue;
+					int x = x1;
+					for (; x<xInside1; x++)
+						sum[x-x1] += first;
+					for (int p=rowStart+x+u; x<xInside2; x++, p++)
+						sum[x-x1] += pixels2[p]*kernelValue;
+					for (; x<x2; x++)
+						sum[x-x1] += last;
+				}
+				if (column!=null) {
+					int p = (y-ry1)*rw;
+					for (int i=0; i<rw; i++)
+						lines[p+i] = (float)sum[i];
+				} else if (y>=y1 && y<y2) {
+					int p = rowStart + x1;
+					for (int i=0; i<rw; i++)
+						pixels[p+i] = (float)(sum[i]*scale);
+				}
+			}
+		}
+		if (column!=null) {
+			double done = row!=null ? r.height : 0;
+			for (int y=y1; y<y2; y++) {
+				long time = System.currentTimeMillis();
+				if (time-lastTime>100) {
+					lastTime = time;
+					if (isCanceled(ip, isMainThread, (done+y-y1)/nRows))
+						return false;
+				}
+				Arrays.fill(sum, 0.0);
+				for (int k=0; k<column.length; k++) {
+					int yy = y + k - vc;
+					if (yy<0) yy = 0;
+					if (yy>=height) yy = height-1;
+					float kernelValue = column[k];
+					int p = lineOffset + (yy-line0)*lineInc;
+					for (int i=0; i<rw; i++, p++)
+						sum[i] += lines[p]*kernelValue;
+				}
+				int p = y*width + x1;
+				for (int i=0; i<rw; i++)
+					pixels[p+i] = (float)(sum[i]*scale);
+			}
+		}
+		return true;
+	}
+
+	/** Returns the size of the square tiles for convolution via the FHT
+		(overlap-save method), or 0 if direct convolution of a roi of
+		size rw*rh would be faster. With 'force', returns the fastest tile size
+		even if direct convolution would be faster. */
+	static int getFFTTileSize(int kw, int kh, int rw, int rh, boolean force) {
+		if (kw*kh<FFT_MIN_KERNEL_SIZE && !force)
+			return 0;
+		double directCost = force ? Double.MAX_VALUE : (double)rw*rh*kw*kh;
+		int maxTileSize = 2;
+		while (maxTileSize<Math.max(rw+kw-1, rh+kh-1) && maxTileSize<FFT_MAX_TILE_SIZE)
+			maxTileSize *= 2;
+		int bestSize = 0;
+		double bestCost = directCost;
+		for (int size=2; size<=maxTileSize; size*=2) {
+			if (size<kw || size<kh) continue;
+			int nx = (rw+size-kw)/(size-kw+1);    //number of tiles needed in x and y
+			int ny = (rh+size-kh)/(size-kh+1);
+			double cost = FFT_COST*nx*ny*size*size*Math.log(size)/Math.log(2);
+			if (cost<bestCost) {
+				bestCost = cost;
+				bestSize = size;
+			}
+		}
+		return bestSize;
+	}
+
+	/** Convolves the roi of 'ip' with a kernel by multiplication in the frequency domain.
+		The roi is divided into tiles, each of them transformed together with the
+		(kw-1)*(kh-1) surrounding pixels needed, with out-of-image pixels set to the
+		nearest edge pixels. Wrap-around of the circular convolution affects only
+		these surrounding pixels. */
+	private boolean convolveFFT(ImageProcessor ip, float[] pixels2, float[] kernel, int kw, int kh, double scale, int size, boolean isMainThread) {
+		int width = ip.getWidth();
+		int height = ip.getHeight();
+		Rectangle r = ip.getRoi();
+		int x1 = r.x;
+		int y1 = r.y;
+		int x2 = x1 + r.width;
+		int y2 = y1 + r.height;
+		int uc = kw/2;
+		int vc = kh/2;
+		float[] pixels = (float[])ip.getPixels();
+		float[] kernelPixels = new float[size*size];  //mirrored and wrapped around, the convolver correlates
+		for (int v=-vc, i=0; v<=vc; v++)
+			for (int u=-uc; u<=uc; u++, i++)
+				kernelPixels[((size-v)%size)*size + (size-u)%size] = (float)(kernel[i]*scale);
+		FHT kernelFHT = new FHT(new FloatProcessor(size, size, kernelPixels, null));
+		kernelFHT.setShowProgress(false);
+		kernelFHT.transform();
+		int stepX = size - kw + 1;
+		int stepY = size - kh + 1;
+		float[] tile = new float[size*size];
+		FloatProcessor tileIp = new FloatProcessor(size, size, tile, null);
+		for (int ty=y1; ty<y2; ty+=stepY) {
+			if (isCanceled(ip, isMainThread, (ty-y1)/(double)(y2-y1)))
+				return false;
+			int th = Math.min(stepY, y2-ty);
+			for (int tx=x1; tx<x2; tx+=stepX) {
+				int tw = Math.min(stepX, x2-tx);
+				Arrays.fill(tile, 0f);
+				for (int j=0; j<th+kh-1; j++) {
+					int y = ty - vc + j;
+					if (y<0) y = 0;
+					if (y>=height) y = height-1;
+					for (int i=0; i<tw+kw-1; i++) {
+						int x = tx - uc + i;
+						if (x<0) x = 0;
+						if (x>=width) x = width-1;
+						tile[j*size+i] = pixels2[y*width+x];
+					}
+				}
+				FHT fht = new FHT(tileIp);
+				fht.setShowProgress(false);
+				fht.transform();
+				FHT result = fht.multiply(kernelFHT);
+				result.setShowProgress(false);
+				result.inverseTransform();
+				float[] resultPixels = (float[])result.getPixels();
+				for (int j=0; j<th; j++)
+					System.arraycopy(resultPixels, (j+vc)*size+uc, pixels, (ty+j)*width+tx, tw);
+			}
+		}
+		return true;
+	}
+
+	/** Checks for interruption and 'Esc' (resetting the image), and updates the progress bar.
+		Returns true if the operation should be stopped. */
+	private boolean isCanceled(ImageProcessor ip, boolean isMainThread, double progress) {
+		if (Thread.currentThread().isInterrupted()) return true;
+		if (isMainThread) {
+			if (IJ.escapePressed()) {
+				canceled = true;
+				ip.reset();
+				ImageProcessor originalIp = imp.getProcessor();
+				if (originalIp.getNChannels() > 1)
+					originalIp.reset();
+				return true;
+			}
+			showProgress(progress);
+		}
+		return canceled;
+	}
    	 
 	public static double getScale(float[] kernel) {
 		double scale = 1.0;
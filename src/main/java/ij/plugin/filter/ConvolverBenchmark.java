@@ -0,0 +1,168 @@
+package ij.plugin.filter;
+import ij.*;
+import ij.plugin.PlugIn;
+import ij.process.*;
+
+/** Compares the previous and the current implementations of the Convolver
+	and the GaussianBlur with 8-bit, 16-bit, 32-bit and RGB images. The images
+	are synthetic (smooth gradients with noise). The previous Convolver
+	applied each kernel directly; the current one uses separable passes for
+	Gaussian kernels and, depending on the size, the FHT or a direct loop for
+	disk kernels (not separable). The previous GaussianBlur filtered the y
+	direction one column at a time, the current one in blocks of columns.
+	Each filter is run three times and the fastest run is reported, together
+	with the largest difference of the results. Run with
+	IJ.runPlugIn("ij.plugin.filter.ConvolverBenchmark", ""); the argument
+	may specify the size as "width height".
+*/
+public class ConvolverBenchmark implements PlugIn {
+	private static final int[] types = {ImagePlus.GRAY8, ImagePlus.GRAY16, ImagePlus.GRAY32, ImagePlus.COLOR_RGB};
+	private static final String[] typeNames = {"8-bit", "16-bit", "32-bit", "RGB"};
+	private static final int[] kernelSizes = {5, 15, 31};
+	private static final int OLD=0, NEW=1;
+	private int width=512, height=512;
+
+	public void run(String arg) {
+		if (arg!=null && arg.trim().length()>0) {
+			String[] values = ij.util.Tools.split(arg);
+			if (values.length==2) {
+				width = (int)ij.util.Tools.parseDouble(values[0], width);
+				height = (int)ij.util.Tools.parseDouble(values[1], height);
+			}
+		}
+		IJ.log("Convolution benchmark, "+width+"x"+height+", previous vs. current implementation");
+		for (int t=0; t<types.length; t++) {
+			ImageProcessor ip = createImage(types[t]);
+			IJ.log("  "+typeNames[t]+":");
+			for (int k=0; k<kernelSizes.length; k++) {
+				int size = kernelSizes[k];
+				logConvolution(ip, "Gaussian", makeGaussian(size), size);
+				logConvolution(ip, "Disk", makeDisk(size), size);
+			}
+			for (int k=0; k<kernelSizes.length; k++) {
+				double sigma = kernelSizes[k]/6.0;
+				long time1 = timeBlur(ip, sigma, OLD);
+				long time2 = timeBlur(ip, sigma, NEW);
+				IJ.log("    GaussianBlur sigma="+IJ.d2s(sigma,2)+": "+time1+" ms -> "+time2+" ms, speedup: "
+					+IJ.d2s(time1/(double)Math.max(time2,1),2)+", max. diff.: "+maxDiff(blur(ip, sigma, OLD), blur(ip, sigma, NEW)));
+			}
+		}
+	}
+
+	private void logConvolution(ImageProcessor ip, String name, float[] kernel, int size) {
+		long time1 = timeConvolution(ip, kernel, size, OLD);
+		long time2 = timeConvolution(ip, kernel, size, NEW);
+		String method = Convolver.separate(kernel, size, size)!=null ? "separable"
+			: Convolver.getFFTTileSize(size, size, width, height, false)>0 ? "FHT" : "direct";
+		IJ.log("    "+name+" "+size+"x"+size+": "+time1+" ms -> "+time2+" ms ("+method+"), speedup: "
+			+IJ.d2s(time1/(double)Math.max(time2,1),2)+", max. diff.: "+maxDiff(convolve(ip, kernel, size, OLD), convolve(ip, kernel, size, NEW)));
+	}
+
+	private long timeConvolution(ImageProcessor ip, float[] kernel, int size, int version) {
+		long best = Long.MAX_VALUE;
+		for (int run=0; run<3; run++) {
+			long t0 = System.currentTimeMillis();
+			convolve(ip, kernel, size, version);
+			best = Math.min(best, System.currentTimeMillis()-t0);
+		}
+		return best;
+	}
+
+	private long timeBlur(ImageProcessor ip, double sigma, int version) {
+		long best = Long.MAX_VALUE;
+		for (int run=0; run<3; run++) {
+			long t0 = System.currentTimeMillis();
+			blur(ip, sigma, version);
+			best = Math.min(best, System.currentTimeMillis()-t0);
+		}
+		return best;
+	}
+
+	/** Returns a copy of 'ip' convolved with the previous or current Convolver,
+		converting each channel to float as done for Process/Filters/Convolve. */
+	private ImageProcessor convolve(ImageProcessor ip, float[] kernel, int size, int version) {
+		ImageProcessor ip2 = ip.duplicate();
+		Convolver convolver = new Convolver();
+		FloatProcessor fp = null;
+		for (int c=0; c<ip2.getNChannels(); c++) {
+			fp = ip2.toFloat(c, fp);
+			fp.snapshot();
+			if (version==OLD)
+				convolver.convolveFloatReference(fp, kernel, size, size);
+			else
+				convolver.convolveFloat(fp, kernel, size, size);
+			ip2.setPixels(c, fp);
+		}
+		return ip2;
+	}
+
+	/** Returns a copy of 'ip' blurred with the previous or current GaussianBlur. */
+	private ImageProcessor blur(ImageProcessor ip, double sigma, int version) {
+		ImageProcessor ip2 = ip.duplicate();
+		GaussianBlur gb = new GaussianBlur();
+		gb.columnByColumn = version==OLD;
+		gb.blurGaussian(ip2, sigma, sigma, 0.002);
+		return ip2;
+	}
+
+	/** The largest difference of the pixel values (of all channels) of two images. */
+	private String maxDiff(ImageProcessor ip1, ImageProcessor ip2) {
+		double max = 0.0;
+		FloatProcessor fp1=null, fp2=null;
+		for (int c=0; c<ip1.getNChannels(); c++) {
+			fp1 = ip1.toFloat(c, fp1);
+			fp2 = ip2.toFloat(c, fp2);
+			float[] pixels1 = (float[])fp1.getPixels();
+			float[] pixels2 = (float[])fp2.getPixels();
+			for (int i=0; i<pixels1.length; i++)
+				max = Math.max(max, Math.abs(pixels1[i]-pixels2[i]));
+		}
+		return IJ.d2s(max, 6);
+	}
+
+	private ImageProcessor createImage(int type) {
+		FloatProcessor fp = new FloatProcessor(width, height);
+		java.util.Random random = new java.util.Random(0);
+		float[] pixels = (float[])fp.getPixels();
+		for (int y=0, i=0; y<height; y++)
+			for (int x=0; x<width; x++, i++)
+				pixels[i] = (float)(100 + 50*Math.sin(x/37.0)*Math.cos(y/23.0) + random.nextGaussian()*20);
+		switch (type) {
+			case ImagePlus.GRAY8: return fp.convertToByte(false);
+			case ImagePlus.GRAY16: return fp.convertToShort(false);
+			case ImagePlus.COLOR_RGB:
+				ColorProcessor cp = new ColorProcessor(width, height);
+				ByteProcessor bp = (ByteProcessor)fp.convertToByte(false);
+				cp.setChannel(1, bp);
+				bp.invert();
+				cp.setChannel(2, bp);
+				bp.flipHorizontal();
+				cp.setChannel(3, bp);
+				return cp;
+			default: return fp;
+		}
+	}
+
+	private static float[] makeGaussian(int size) {
+		float[] kernel = new float[size*size];
+		double sigma = size/6.0;
+		for (int v=0, i=0; v<size; v++)
+			for (int u=0; u<size; u++, i++) {
+				double dx = u-size/2, dy = v-size/2;
+				kernel[i] = (float)Math.exp(-(dx*dx+dy*dy)/(2*sigma*sigma));
+			}
+		return kernel;
+	}
+
+	private static float[] makeDisk(int size) {
+		float[] kernel = new float[size*size];
+		double r2 = (size/2+0.5)*(size/2+0.5);
+		for (int v=0, i=0; v<size; v++)
+			for (int u=0; u<size; u++, i++) {
+				double dx = u-size/2, dy = v-size/2;
+				kernel[i] = dx*dx+dy*dy<=r2 ? 1f : 0f;
+			}
+		return kernel;
+	}
+
+}
@@ -3,6 +3,8 @@ import ij.*;
 import ij.plugin.*;
 import ij.process.*;
 import ij.gui.*;
+import ij.measure.Calibration;
+import ij.util.ThreadUtil;
 
 /**
  * This plugin implements the Euclidean Distance Map (EDM), Watershed,
@@ -29,22 +31,20 @@ import ij.gui.*;
  * plugin applied to the EDM
  * Note: These functions do not take ROIs into account.
  * Setup is called with argument "" (empty string) for EDM,
- * "watershed" for watershed segmentation, "points" for ultimate eroded points and
- * "voronoi" for Voronoi segmentation of the background
+ * "watershed" for watershed segmentation, "points" for ultimate eroded points,
+ * "voronoi" for Voronoi segmentation of the background and "edm3d" for the
+ * 3D EDM of a stack
  *
- * The EDM algorithm is similar to the 8SSEDT in
- *   F. Leymarie, M. D. Levine, in: CVGIP Image Understanding, vol. 55 (1992), pp 84-94
- *   http://dx.doi.org/10.1016/1049-9660(92)90008-Q
- *
- * The algorithm provides a fast approximation of the EDM, with the deviation from a
- * full calculation being between -0.09 and 0. The algorithm is exact for distances<13.
- * For d>=13, deviations from the true result can occur, but are very rare: typically
- * the fraction of pixels deviating from the exact result is in the 10^-5 range, with
- * most deviations between -0.03 and -0.04.
- *
- * Limitations:
- * Maximum image diagonal for EDM: 46340 pixels (sqrt(2^31)); if the particles are
- * dense enough it also works for width, height <=65534.
+ * The EDM is exact; it is calculated separably as in
+ *   P. F. Felzenszwalb, D. P. Huttenlocher, Theory of Computing, vol. 8 (2012), pp 415-428
+ *   http://dx.doi.org/10.4086/toc.2012.v008a019
+ * (see also A. Meijster et al., Mathematical Morphology and its Applications to Image
+ * and Signal Processing, 2002, pp 331-340): The distances to the nearest background
+ * pixel within each column are determined first, then the lower envelope of the parabolas
+ * given by these distances is calculated along each row. Both passes run in parallel
+ * threads, on bands of columns and on rows, respectively.
+ * With the "edm3d" argument ('Distance Map 3D'), the 3D EDM of a stack is calculated by
+ * a third pass along z, taking the voxel depth into account.
  *
  * Version 30-Apr-2008 Michael Schmid:  more accurate EDM algorithm,
  *                                      16-bit and float output possible,
@@ -79,6 +79,7 @@ public class EDM implements ExtendedPlugInFilter {
     private double progressDone;        //for progress bar, fraction of work done so far
     private int nPasses;                //for progress bar, how many images to process (sequentially or parallel threads)
     private boolean interrupted;        //whether watershed segmentation has been interrrupted by the user
+    private boolean is3D;               //whether to create the 3D EDM of a stack
 
     private boolean background255;      //whether background for EDM is 255, not zero
     private int flags = DOES_8G | PARALLELIZE_STACKS | FINAL_PROCESSING;
@@ -93,7 +94,10 @@ public class EDM implements ExtendedPlugInFilter {
     //prefixes for titles of separate output images; for each processType:
     private static final String[] TITLE_PREFIX = new String[] {
             "EDM of ", null, "UEPs of ", "Voronoi of "};
-    private static final int NO_POINT = -1; //no nearest point in array of nearest points
+    private static final int COLUMN_BAND = 64; //number of columns processed together in the first EDM pass
+    private static final int NONE = 1<<30;  //column distance if there is no background pixel in the column
+    private static final long NONE2 = (long)NONE*NONE;
+    private static final float NO_DISTANCE = (float)Math.sqrt(Integer.MAX_VALUE); //EDM value without any background pixel
     private static final double MAXFINDER_TOLERANCE = 0.5; //reasonable values are 0.3 ... 0.8;
                                     //segmentation is more aggressive with smaller values
     /** Output type (BYTE_OVERWRITE, BYTE, SHORT or FLOAT) */
@@ -116,6 +120,8 @@ public class EDM implements ExtendedPlugInFilter {
             processType = UEP;
         else if (arg.equals("voronoi"))
             processType = VORONOI;
+        else if (arg.equals("edm3d"))
+            is3D = true;
 
         //output type
         if (processType != WATERSHED)           //Watershed always has output BYTE_OVERWRITE=0
@@ -134,10 +140,39 @@ public class EDM implements ExtendedPlugInFilter {
             //processing routines assume background=0; image may be otherwise
             boolean invertedLut = imp.isInvertedLut();
             background255 = (invertedLut && Prefs.blackBackground) || (!invertedLut && !Prefs.blackBackground);
+            if (is3D) {
+                run3D();
+                return DONE;
+            }
         }
         return flags;
     } //public int setup
 
+    /** Creates the 3D EDM of the stack as a new 32-bit stack ('Distance Map 3D') */
+    private void run3D() {
+        if (imp.getStackSize() < 2) {
+            IJ.error("Distance Map 3D", "Stack required");
+            return;
+        }
+        Calibration cal = imp.getCalibration();
+        double zScale = 1.0;
+        if (cal.pixelWidth>0 && cal.pixelDepth>0 && cal.getUnit().equals(cal.getZUnit()))
+            zScale = cal.pixelDepth/cal.pixelWidth;
+        int backgroundValue = background255 ? (byte)255 : 0;
+        setNPasses(1);
+        IJ.showStatus("Distance Map 3D");
+        ImageStack edmStack = makeFloatEDM(imp.getStack(), backgroundValue, false, zScale);
+        IJ.showProgress(1.0);
+        if (edmStack == null) return;
+        outImp = new ImagePlus("EDM 3D of "+imp.getShortTitle(), edmStack);
+        int[] d = imp.getDimensions();
+        outImp.setDimensions(d[2], d[3], d[4]);
+        outImp.setCalibration(cal.copy());
+        if (!Prefs.blackBackground) outImp.getProcessor().invertLut();
+        outImp.setDisplayRange(0, new StackStatistics(outImp).max);
+        outImp.show();
+    }
+
     /** Called by the PlugInFilterRunner after setup.
      *  Asks the user in case of a stack and prepares a separate ouptut stack if required
      */
@@ -268,127 +303,248 @@ public class EDM implements ExtendedPlugInFilter {
      *                          Returns null if the thread is interrupted.
      */
     public FloatProcessor makeFloatEDM (ImageProcessor ip, int backgroundValue, boolean edgesAreBackground) {
-        int width = ip.getWidth();
-        int height = ip.getHeight();
+        final int width = ip.getWidth();
+        final int height = ip.getHeight();
         FloatProcessor fp = new FloatProcessor(width, height);
-        byte[] bPixels = (byte[])ip.getPixels();
-        float[] fPixels = (float[])fp.getPixels();
-        final int progressInterval = 100;
-        int nProgressUpdates = height/progressInterval;  //how often the progress bar is updated when passing once through y range
-        double progressAddendum = (nProgressUpdates>0) ? 0.5/nProgressUpdates : 0;
+        final byte[] bPixels = (byte[])ip.getPixels();
+        final float[] fPixels = (float[])fp.getPixels();
+        final byte background = (byte)backgroundValue;
+        final boolean edges = edgesAreBackground;
 
-        for (int i=0; i<width*height; i++)
-            if (bPixels[i]!=backgroundValue) fPixels[i] = Float.MAX_VALUE;
-
-        int[][] pointBufs = new int[2][width];  //two buffers for two passes; low short contains x, high short y
-        int yDist = Integer.MAX_VALUE;          //this value is used only if edges are not background
-        // pass 1 & 2: increasing y
-        for (int x=0; x<width; x++) {
-            pointBufs[0][x] = NO_POINT;
-            pointBufs[1][x] = NO_POINT;
-        }
-        for (int y=0; y<height; y++) {
-            if (edgesAreBackground) yDist = y+1; //distance to nearest background point (along y)
-            edmLine(bPixels, fPixels, pointBufs, width, y*width, y, backgroundValue, yDist);
-            if (y%progressInterval == 0) {
-                if (Thread.currentThread().isInterrupted()) return null;
-                addProgress(progressAddendum);
-            }
-        }
-        //pass 3 & 4: decreasing y
-        for (int x=0; x<width; x++) {
-            pointBufs[0][x] = NO_POINT;
-            pointBufs[1][x] = NO_POINT;
-        }
-        for (int y=height-1; y>=0; y--) {
-            if (edgesAreBackground) yDist = height-y;
-            edmLine(bPixels, fPixels, pointBufs, width, y*width, y, backgroundValue, yDist);
-            if (y%progressInterval == 0) {
-                if (Thread.currentThread().isInterrupted()) return null;
-                addProgress(progressAddendum);
+        // pass 1: distances along the columns, in bands of columns to read the pixels row by row
+        int nBands = (width+COLUMN_BAND-1)/COLUMN_BAND;
+        ThreadUtil.parallelFor(0, nBands, 1, new ThreadUtil.RangeTask() {
+            public void run(int from, int to) {
+                for (int band=from; band<to; band++) {
+                    int x0 = band*COLUMN_BAND;
+                    columnDistances(bPixels, fPixels, width, height, x0, Math.min(x0+COLUMN_BAND, width), background, edges);
+                }
             }
-        }
+        });
+        if (Thread.currentThread().isInterrupted()) return null;
+        addProgress(0.5);
 
-        fp.sqrt();
+        // pass 2: lower envelope of the parabolas along the rows
+        ThreadUtil.parallelFor(0, height, new ThreadUtil.RangeTask() {
+            public void run(int from, int to) {
+                int[] line = new int[width];
+                long[] dist2 = new long[width];
+                int[] sites = new int[width];
+                int[] starts = new int[width];
+                for (int y=from; y<to; y++) {
+                    int offset = y*width;
+                    for (int x=0; x<width; x++)
+                        line[x] = (int)fPixels[offset+x];
+                    rowDistances(line, dist2, width, edges, sites, starts);
+                    for (int x=0; x<width; x++) {
+                        long d2 = dist2[x];
+                        fPixels[offset+x] = d2>=NONE2 ? NO_DISTANCE : (float)Math.sqrt(d2);
+                    }
+                }
+            }
+        });
+        if (Thread.currentThread().isInterrupted()) return null;
+        addProgress(0.5);
         return fp;
     } //public FloatProcessor makeFloatEDM
 
-    // Handle a line; two passes: left-to-right and right-to-left
-    private void edmLine(byte[] bPixels, float[] fPixels, int[][] pointBufs, int width,
-            int offset, int y, int backgroundValue, int yDist) {
-        int[] points = pointBufs[0];        // the buffer for the left-to-right pass
-        int pPrev = NO_POINT;
-        int pDiag = NO_POINT;               // point at (-/+1, -/+1) to current one (-1,-1 in the first pass)
-        int pNextDiag;
-        boolean edgesAreBackground = yDist != Integer.MAX_VALUE;
-        int distSqr = Integer.MAX_VALUE;    // this value is used only if edges are not background
-        for (int x=0; x<width; x++, offset++) {
-            pNextDiag = points[x];
-            if (bPixels[offset] == backgroundValue) {
-                points[x] = x | y<<16;      // remember coordinates as a candidate for nearest background point
-            } else {                        // foreground pixel:
-                if (edgesAreBackground)
-                    distSqr = (x+1 < yDist) ? (x+1)*(x+1) : yDist*yDist; //distance from edge
-                float dist2 = minDist2(points, pPrev, pDiag, x, y, distSqr);
-                if (fPixels[offset] > dist2) fPixels[offset] = dist2;
+    /**
+     * Creates the 3D Euclidian Distance Map of a (binary) 8-bit stack.
+     * The slices are processed in parallel, then the distances along z are
+     * added in parallel bands of rows.
+     * @param stack             The input stack, not modified; must have 8-bit slices.
+     * @param backgroundValue   Voxels in the input with this value are interpreted as background.
+     *                          Note: for pixel value 255, write either -1 or (byte)255.
+     * @param edgesAreBackground Whether out-of-stack voxels are considered background
+     * @param zScale            Voxel depth in units of the pixel width, e.g. 1.0 for cubic voxels
+     * @return                  A 32-bit stack with the distances to the nearest background voxel,
+     *                          in units of the pixel width. Returns null if the thread is interrupted.
+     */
+    public ImageStack makeFloatEDM (ImageStack stack, int backgroundValue, boolean edgesAreBackground, double zScale) {
+        final int width = stack.getWidth();
+        final int height = stack.getHeight();
+        final int depth = stack.getSize();
+        final byte[][] bSlices = new byte[depth][];
+        final float[][] fSlices = new float[depth][];
+        for (int z=0; z<depth; z++) {
+            bSlices[z] = (byte[])stack.getPixels(z+1);
+            fSlices[z] = new float[width*height];
+        }
+        final byte background = (byte)backgroundValue;
+        final boolean edges = edgesAreBackground;
+        final double zScale2 = zScale*zScale;
+
+        // passes 1 and 2: squared distances within each slice
+        ThreadUtil.parallelFor(0, depth, 1, new ThreadUtil.RangeTask() {
+            public void run(int from, int to) {
+                int[] line = new int[width];
+                long[] dist2 = new long[width];
+                int[] sites = new int[width];
+                int[] starts = new int[width];
+                for (int z=from; z<to; z++) {
+                    float[] fPixels = fSlices[z];
+                    columnDistances(bSlices[z], fPixels, width, height, 0, width, background, edges);
+                    for (int y=0, offset=0; y<height; y++, offset+=width) {
+                        for (int x=0; x<width; x++)
+                            line[x] = (int)fPixels[offset+x];
+                        rowDistances(line, dist2, width, edges, sites, starts);
+                        for (int x=0; x<width; x++) {
+                            long d2 = dist2[x];
+                            fPixels[offset+x] = d2>=NONE2 ? Float.MAX_VALUE : (float)d2;
+                        }
+                    }
+                }
+            }
+        });
+        if (Thread.currentThread().isInterrupted()) return null;
+        addProgress(0.5);
+
+        // pass 3: lower envelope along z, for all pixels of a row at a time
+        ThreadUtil.parallelFor(0, height, new ThreadUtil.RangeTask() {
+            public void run(int from, int to) {
+                float[] rows = new float[width*depth];  // the row y of all slices, transposed
+                float[] line = new float[depth];
+                int[] sites = new int[depth];
+                double[] bounds = new double[depth];
+                for (int y=from; y<to; y++) {
+                    int offset = y*width;
+                    for (int z=0; z<depth; z++) {
+                        float[] fPixels = fSlices[z];
+                        for (int x=0, p=z; x<width; x++, p+=depth)
+                            rows[p] = fPixels[offset+x];
+                    }
+                    for (int x=0, p=0; x<width; x++, p+=depth) {
+                        System.arraycopy(rows, p, line, 0, depth);
+                        envelope(line, rows, p, 1, depth, zScale2, edges, sites, bounds);
+                    }
+                    for (int z=0; z<depth; z++) {
+                        float[] fPixels = fSlices[z];
+                        for (int x=0, p=z; x<width; x++, p+=depth) {
+                            float v = rows[p];
+                            fPixels[offset+x] = v>=Float.MAX_VALUE ? NO_DISTANCE : (float)Math.sqrt(v);
+                        }
+                    }
+                }
+            }
+        });
+        if (Thread.currentThread().isInterrupted()) return null;
+        addProgress(0.5);
+
+        ImageStack outStack = new ImageStack(width, height);
+        for (int z=0; z<depth; z++)
+            outStack.addSlice(stack.getSliceLabel(z+1), fSlices[z]);
+        return outStack;
+    } //public ImageStack makeFloatEDM
+
+    // Writes the distance to the nearest background pixel in the same column, for the
+    // columns x0 (inclusive) to x1 (exclusive); NONE if there is none.
+    // The image is accessed row by row, with one down and one up pass.
+    private static void columnDistances(byte[] bPixels, float[] fPixels, int width, int height,
+            int x0, int x1, byte background, boolean edgesAreBackground) {
+        int n = x1 - x0;
+        int[] dist = new int[n];                 // distance along y, for each column of the band
+        for (int i=0; i<n; i++)
+            dist[i] = edgesAreBackground ? 0 : NONE;
+        for (int y=0, offset=x0; y<height; y++, offset+=width) {
+            for (int i=0; i<n; i++) {
+                int d = bPixels[offset+i]==background ? 0 : Math.min(dist[i]+1, NONE);
+                dist[i] = d;
+                fPixels[offset+i] = d;
+            }
+        }
+        for (int i=0; i<n; i++)
+            dist[i] = edgesAreBackground ? 0 : NONE;
+        for (int y=height-1, offset=y*width+x0; y>=0; y--, offset-=width) {
+            for (int i=0; i<n; i++) {
+                int d = bPixels[offset+i]==background ? 0 : Math.min(dist[i]+1, NONE);
+                dist[i] = d;
+                if (d < fPixels[offset+i])
+                    fPixels[offset+i] = d;
             }
-            pPrev = points[x];
-            pDiag = pNextDiag;
         }
-        offset--; //now points to the last pixel in the line
-        points = pointBufs[1];              // the buffer for the right-to-left pass. Low short contains x, high short y
-        pPrev = NO_POINT;
-        pDiag = NO_POINT;
-        for (int x=width-1; x>=0; x--, offset--) {
-            pNextDiag = points[x];
-            if (bPixels[offset] == backgroundValue) {
-                points[x] = x | y<<16;      // remember coordinates as a candidate for nearest background point
-            } else {                        // foreground pixel:
-                if (edgesAreBackground)
-                    distSqr = (width-x < yDist) ? (width-x)*(width-x) : yDist*yDist;
-                float dist2 = minDist2(points, pPrev, pDiag, x, y, distSqr);
-                if (fPixels[offset] > dist2) fPixels[offset] = dist2;
+    }
+
+    // Squared distances along a row, from the distances g to the nearest background pixel in
+    // each column (NONE if there is none), as in Meijster et al.: the minimum over all columns x'
+    // of (x-x')^2 + g[x']^2. The result is NONE2 or more if there is no background pixel at all.
+    // With edgesAreBackground, the out-of-image pixels at x=-1 and x=n count as background.
+    // 'sites' and 'starts' are buffers with at least n elements.
+    private static void rowDistances(int[] g, long[] dist2, int n, boolean edgesAreBackground,
+            int[] sites, int[] starts) {
+        int k = 0;                               // index of the rightmost parabola in the lower envelope
+        sites[0] = 0;
+        starts[0] = 0;                           // the parabola of sites[k] is lowest from starts[k] on
+        for (int u=1; u<n; u++) {
+            long gu2 = (long)g[u]*g[u];
+            while (k >= 0) {                     // remove parabolas hidden by the new one
+                int s = sites[k], t = starts[k];
+                if ((long)(t-s)*(t-s) + (long)g[s]*g[s] <= (long)(t-u)*(t-u) + gu2) break;
+                k--;
+            }
+            if (k < 0) {
+                k = 0;
+                sites[0] = u;
+            } else {
+                int s = sites[k];
+                long sep = Math.floorDiv((long)u*u - (long)s*s + gu2 - (long)g[s]*g[s], 2L*(u-s));
+                if (sep+1 < n) {
+                    k++;
+                    sites[k] = u;
+                    starts[k] = (int)(sep+1);
+                }
             }
-            pPrev = points[x];
-            pDiag = pNextDiag;
         }
-    } //private void edmLine
-
-    // Calculates minimum distance^2 of x,y from the following three points:
-    //  - points[x] (nearest point found for previous line, same x)
-    //  - pPrev (nearest point found for same line, previous x), and
-    //  - pDiag (nearest point found for diagonal, i.e., previous line, previous x)
-    // Sets array element points[x] to the coordinates of the point having the minimum distance to x,y
-    // If the distSqr parameter is lower than the distance^2, then distSqr is used
-    // Returns to the minimum distance^2 obtained
-    private float minDist2 (int[] points, int pPrev, int pDiag, int x, int y, int distSqr) {
-        int p0 = points[x];              // the nearest background point for the same x in the previous line
-        int nearestPoint = p0;
-        if (p0 != NO_POINT) {
-            int x0 = p0& 0xffff; int y0 = (p0>>16)&0xffff;
-            int dist1Sqr = (x-x0)*(x-x0)+(y-y0)*(y-y0);
-            if (dist1Sqr < distSqr)
-                distSqr = dist1Sqr;
+        for (int u=n-1; u>=0; u--) {
+            int s = sites[k];
+            long d2 = (long)(u-s)*(u-s) + (long)g[s]*g[s];
+            if (edgesAreBackground) {
+                long e = Math.min(u+1, n-u);
+                if (d2 > e*e) d2 = e*e;
+            }
+            dist2[u] = d2;
+            if (u == starts[k]) k--;
         }
-        if (pDiag!=p0 && pDiag!=NO_POINT) {
-            int x1 = pDiag&0xffff; int y1 = (pDiag>>16)&0xffff;
-            int dist1Sqr = (x-x1)*(x-x1)+(y-y1)*(y-y1);
-            if (dist1Sqr < distSqr) {
-                nearestPoint = pDiag;
-                distSqr = dist1Sqr;
+    }
+
+    // One-dimensional squared distance transform along a line (Felzenszwalb & Huttenlocher):
+    // out[offset+i*inc] = min over j of (in[j] + scale2*(i-j)^2), where in[j] are squared distances.
+    // Points with in[j] = Float.MAX_VALUE are no candidates and remain unchanged if there are no
+    // candidates at all. With edgesAreBackground, the out-of-line points at -1 and n count as
+    // background. 'sites' and 'bounds' are buffers with at least n elements.
+    private static void envelope(float[] in, float[] out, int offset, int inc, int n, double scale2,
+            boolean edgesAreBackground, int[] sites, double[] bounds) {
+        int k = -1;                              // index of the rightmost parabola in the lower envelope
+        for (int q=0; q<n; q++) {
+            double fq = in[q];
+            if (fq >= Float.MAX_VALUE) continue;
+            double s = Double.NEGATIVE_INFINITY;
+            while (k >= 0) {                     // remove parabolas hidden by the new one
+                int p = sites[k];
+                s = ((fq + scale2*q*q) - (in[p] + scale2*p*p))/(2*scale2*(q - p));
+                if (s > bounds[k]) break;
+                k--;
             }
+            if (k < 0) s = Double.NEGATIVE_INFINITY;
+            k++;
+            sites[k] = q;
+            bounds[k] = s;                       // the parabola of q is lowest from s on
         }
-        if (pPrev!=pDiag && pPrev!=NO_POINT) {
-            int x1 = pPrev& 0xffff; int y1 = (pPrev>>16)&0xffff;
-            int dist1Sqr = (x-x1)*(x-x1)+(y-y1)*(y-y1);
-            if (dist1Sqr < distSqr) {
-                nearestPoint = pPrev;
-                distSqr = dist1Sqr;
+        for (int i=0, j=0, o=offset; i<n; i++, o+=inc) {
+            double d = Float.MAX_VALUE;
+            if (k >= 0) {
+                while (j<k && bounds[j+1]<i) j++;
+                int p = sites[j];
+                d = in[p] + scale2*(i-p)*(i-p);
             }
+            if (edgesAreBackground) {
+                int e = Math.min(i+1, n-i);
+                double dEdge = scale2*e*e;
+                if (d > dEdge) d = dEdge;
+            }
+            if (k >= 0 || edgesAreBackground)
+                out[o] = (float)d;
         }
-        points[x] = nearestPoint;
-        return (float)distSqr;
-    } //private float minDist2
+    }
 
     // overwrite ip with floatEdm converted to bytes
     private void byteFromFloat(ImageProcessor ip, FloatProcessor floatEdm) {
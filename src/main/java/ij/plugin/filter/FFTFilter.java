@@ -72,25 +72,24 @@ public class FFTFilter implements  PlugInFilter, Measurements {
 		
 		IJ.showProgress(1,20);
 
-		/* 	tile mirrored image to power of 2 size		
-			first determine smallest power 2 >= 1.5 * image width/height
+		/* 	tile mirrored image to a size suitable for the FFT
+			first determine smallest fast size >= 1.5 * image width/height
 		  	factor of 1.5 to avoid wrap-around effects of Fourier Trafo */
 
-		int i=2;
-		while(i<1.5 * maxN) i *= 2;		
+		int i = FFTEngine.nextFastSize((int)Math.ceil(1.5 * maxN));
         
         // Calculate the inverse of the 1/e frequencies for large and small structures.
         double filterLarge = 2.0*filterLargeDia / (double)i;
         double filterSmall = 2.0*filterSmallDia / (double)i;
         
-		// fit image into power of 2 size 
+		// fit image into the padded size
 		Rectangle fitRect = new Rectangle();
 		fitRect.x = (int) Math.round( (i - roiRect.width) / 2.0 );
 		fitRect.y = (int) Math.round( (i - roiRect.height) / 2.0 );
 		fitRect.width = roiRect.width;
 		fitRect.height = roiRect.height;
 		
-		// put image (ROI) into power 2 size image
+		// put image (ROI) into the padded image
 		// mirroring to avoid wrap around effects
 		showStatus("Pad to "+i+"x"+i);
 		ip2 = tileMirror(ip2, i, i, fitRect.x, fitRect.y);
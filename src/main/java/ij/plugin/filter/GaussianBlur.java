@@ -3,9 +3,11 @@ import ij.*;
 import ij.gui.DialogListener;
 import ij.gui.GenericDialog;
 import ij.process.*;
+import ij.util.ThreadUtil;
 
 import java.awt.AWTEvent;
 import java.awt.Rectangle;
+import java.util.concurrent.atomic.AtomicInteger;
 
 /** This plug-in filter uses convolution with a Gaussian function for smoothing.
  * 'Radius' means the radius of decay to exp(-0.5) ~ 61%, i.e. the standard
@@ -46,6 +48,10 @@ public class GaussianBlur implements ExtendedPlugInFilter, DialogListener {
     private int pass;                        // Current pass
     private boolean noProgress;      // Do not show progress bar
     private boolean calledAsPlugin;
+    /** Number of adjacent columns filtered together in the y direction (one cache line of floats) */
+    private final static int COLUMN_BLOCK = 16;
+    /** Filter the y direction one column at a time, as previously; only for ConvolverBenchmark */
+    boolean columnByColumn;
     
     /** Method to return types supported
      * @param arg unused
@@ -233,9 +239,6 @@ public class GaussianBlur implements ExtendedPlugInFilter, DialogListener {
         pass++;
         if (pass>nPasses) pass =1;
         
-        final int numThreads = Math.min(Prefs.getThreads(), lineTo-lineFrom);
-        final Thread[] lineThreads = new Thread[numThreads];
-
         /* large radius (sigma): scale down, then convolve, then scale up */
         final boolean doDownscaling = sigma > 2*MIN_DOWNSCALED_SIGMA + 0.5;
         final int reduceBy = doDownscaling ?                //downscale by this factor
@@ -264,60 +267,92 @@ public class GaussianBlur implements ExtendedPlugInFilter, DialogListener {
         final float[] downscaleKernel = doDownscaling ? makeDownscaleKernel(reduceBy) : null;
         final float[] upscaleKernel = doDownscaling ? makeUpscaleKernel(reduceBy) : null;
            
-        for ( int t = 0; t < numThreads; ++t ) {
-            final int ti = t;
-            final float[] cache1 = new float[newLength];  //holds data before convolution (after downscaling, if any)
-            final float[] cache2 = doDownscaling ? new float[newLength] : null;  //holds data after convolution
-            
-            final Thread thread = new Thread(
-                    new Runnable() {
-                        final public void run() { /*try{*/
-                            long lastTime = System.currentTimeMillis();
-                            boolean canShowProgress = Thread.currentThread() == lineThreads[0];
-                            int pixel0 = (lineFrom+ti)*lineInc;
-                            for (int line=lineFrom + ti; line<lineTo; line += numThreads, pixel0+=numThreads*lineInc) {
-                                long time = System.currentTimeMillis();
-                                if (time - lastTime >110) {
-                                    if (canShowProgress)
-                                        showProgress((double)(line-lineFrom)/(lineTo-lineFrom));
-                                    if (Thread.currentThread().isInterrupted()) return; // interruption for new parameters during preview?
-                                    lastTime = time;
-                                }
-                                if (doDownscaling) {
-                                    downscaleLine(pixels, cache1, downscaleKernel, reduceBy, pixel0, unscaled0, length, pointInc, newLength);
-                                    convolveLine(cache1, cache2, gaussKernel, 0, newLength, 1, newLength-1, 0, 1);
-                                    upscaleLine(cache2, pixels, upscaleKernel, reduceBy, pixel0, unscaled0, writeFrom, writeTo, pointInc);
-                                } else {
-                                    int p = pixel0 + readFrom*pointInc;
-                                    for (int i=readFrom; i<readTo; i++ ,p+=pointInc)
-                                        cache1[i] = pixels[p];
-                                    convolveLine(cache1, pixels, gaussKernel, readFrom, readTo, writeFrom, writeTo, pixel0, pointInc);
-                                }
-                                    
-                            }
-                        } /*catch(Exception ex) {IJ.handleException(ex);} }*/
-                    },
-                    "GaussianBlur-"+t);
-            
-            thread.setPriority( Thread.currentThread().getPriority() );
-            lineThreads[ ti ] = thread;
-            thread.start();
-        }
-        try {
-            for ( final Thread thread : lineThreads )
-                if ( thread != null ) thread.join();
-        }
-        catch ( InterruptedException e ) {
-            for ( final Thread thread : lineThreads )
-                thread.interrupt();
-            try {
-                for ( final Thread thread : lineThreads )
-                    thread.join();
+        final Thread mainThread = Thread.currentThread();
+        final AtomicInteger linesDone = new AtomicInteger();
+        if (xDirection || columnByColumn) {
+            ThreadUtil.parallelFor(lineFrom, lineTo, new ThreadUtil.RangeTask() {
+                final public void run(int chunkFrom, int chunkTo) {
+                    final float[] cache1 = new float[newLength];  //holds data before convolution (after downscaling, if any)
+                    final float[] cache2 = doDownscaling ? new float[newLength] : null;  //holds data after convolution
+                    long lastTime = System.currentTimeMillis();
+                    boolean canShowProgress = Thread.currentThread() == mainThread;
+                    int pixel0 = chunkFrom*lineInc;
+                    for (int line=chunkFrom; line<chunkTo; line++, pixel0+=lineInc) {
+                        long time = System.currentTimeMillis();
+                        if (time - lastTime >110) {
+                            if (canShowProgress)
+                                showProgress((double)(linesDone.get())/(lineTo-lineFrom));
+                            if (Thread.currentThread().isInterrupted()) return; // interruption for new parameters during preview?
+                            lastTime = time;
+                        }
+                        if (doDownscaling) {
+                            downscaleLine(pixels, cache1, downscaleKernel, reduceBy, pixel0, unscaled0, length, pointInc, newLength);
+                            convolveLine(cache1, cache2, gaussKernel, 0, newLength, 1, newLength-1, 0, 1);
+                            upscaleLine(cache2, pixels, upscaleKernel, reduceBy, pixel0, unscaled0, writeFrom, writeTo, pointInc);
+                        } else {
+                            int p = pixel0 + readFrom*pointInc;
+                            for (int i=readFrom; i<readTo; i++ ,p+=pointInc)
+                                cache1[i] = pixels[p];
+                            convolveLine(cache1, pixels, gaussKernel, readFrom, readTo, writeFrom, writeTo, pixel0, pointInc);
+                        }
+                    }
+                    linesDone.addAndGet(chunkTo-chunkFrom);
+                }
+            });
+        } else {
+            /* Columns are processed in blocks of COLUMN_BLOCK adjacent columns: The block
+             * is copied row by row into one contiguous array per column, filtered there and
+             * written back row by row. Thus, each access to the pixels array uses a full
+             * cache line instead of one float per cache line. */
+            final int gatherFrom, gatherTo;     //range of the column that has to be read
+            if (doDownscaling) {
+                final int start = unscaled0 - reduceBy*3/2;
+                final int end = start + (newLength+2)*reduceBy;
+                gatherFrom = Math.min(Math.max(start, 0), length-1);
+                gatherTo = Math.max(Math.min(end, length), gatherFrom+1);
+            } else {
+                gatherFrom = readFrom;
+                gatherTo = readTo;
             }
-            catch ( InterruptedException f ) {}
-            Thread.currentThread().interrupt();
+            final int nBlocks = (lineTo-lineFrom+COLUMN_BLOCK-1)/COLUMN_BLOCK;
+            ThreadUtil.parallelFor(0, nBlocks, new ThreadUtil.RangeTask() {
+                final public void run(int blockFrom, int blockTo) {
+                    final float[][] columns = new float[COLUMN_BLOCK][length];  //input data of the columns
+                    final float[][] results = new float[COLUMN_BLOCK][length];  //filtered columns
+                    final float[] cache1 = doDownscaling ? new float[newLength] : null;
+                    final float[] cache2 = doDownscaling ? new float[newLength] : null;
+                    long lastTime = System.currentTimeMillis();
+                    boolean canShowProgress = Thread.currentThread() == mainThread;
+                    for (int block=blockFrom; block<blockTo; block++) {
+                        long time = System.currentTimeMillis();
+                        if (time - lastTime >110) {
+                            if (canShowProgress)
+                                showProgress((double)(linesDone.get())/(lineTo-lineFrom));
+                            if (Thread.currentThread().isInterrupted()) return; // interruption for new parameters during preview?
+                            lastTime = time;
+                        }
+                        final int column0 = lineFrom + block*COLUMN_BLOCK;
+                        final int nColumns = Math.min(COLUMN_BLOCK, lineTo-column0);
+                        for (int y=gatherFrom, p=gatherFrom*width+column0; y<gatherTo; y++, p+=width)
+                            for (int c=0; c<nColumns; c++)
+                                columns[c][y] = pixels[p+c];
+                        for (int c=0; c<nColumns; c++) {
+                            if (doDownscaling) {
+                                downscaleLine(columns[c], cache1, downscaleKernel, reduceBy, 0, unscaled0, length, 1, newLength);
+                                convolveLine(cache1, cache2, gaussKernel, 0, newLength, 1, newLength-1, 0, 1);
+                                upscaleLine(cache2, results[c], upscaleKernel, reduceBy, 0, unscaled0, writeFrom, writeTo, 1);
+                            } else
+                                convolveLine(columns[c], results[c], gaussKernel, readFrom, readTo, writeFrom, writeTo, 0, 1);
+                        }
+                        for (int y=writeFrom, p=writeFrom*width+column0; y<writeTo; y++, p+=width)
+                            for (int c=0; c<nColumns; c++)
+                                pixels[p+c] = results[c][y];
+                        linesDone.addAndGet(nColumns);
+                    }
+                }
+            });
         }
-            
+
         showProgress(1.0);
         return;
     }
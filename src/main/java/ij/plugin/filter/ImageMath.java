@@ -3,6 +3,7 @@ import ij.*;
 import ij.gui.*;
 import ij.process.*;
 import ij.macro.*;
+import ij.util.ThreadUtil;
 import java.awt.*;
 
 /** This plugin implements ImageJ's Process/Math submenu. */
@@ -244,6 +245,16 @@ public class ImageMath implements ExtendedPlugInFilter, DialogListener {
 			return;
 		}
 		Prefs.set(MACRO_KEY, macro);
+		MacroExpression expression = hasGetPixel&&ip.isSigned16Bit() ? null : MacroExpression.compile(macro, ip);
+		if (expression!=null) {
+			try {
+				applyMacro(ip, expression, hasGetPixel, showProgress);
+			} catch (IllegalArgumentException e) {
+				IJ.error("Macro Error", e.getMessage()+" in\n \n"+macro);
+			}
+			WindowManager.setTempCurrentImage(temp);
+			return;
+		}
 		interp.setVariable("w", w);
 		interp.setVariable("h", h);
 		interp.setVariable("z", ip.getSliceNumber()-1);
@@ -385,6 +396,92 @@ public class ImageMath implements ExtendedPlugInFilter, DialogListener {
 		WindowManager.setTempCurrentImage(temp);
 	}
 	
+	/** Applies a compiled macro; the rows are processed in parallel. */
+	private static void applyMacro(final ImageProcessor ip, final MacroExpression expression,
+	final boolean hasGetPixel, final boolean showProgress) {
+		final int w = ip.getWidth();
+		final int h = ip.getHeight();
+		final int z = ip.getSliceNumber()-1;
+		final int bitDepth = ip.getBitDepth();
+		final boolean signed16 = ip.isSigned16Bit();
+		final boolean hasD = expression.uses(MacroExpression.D);
+		final boolean hasA = expression.uses(MacroExpression.A);
+		final Rectangle r = ip.getRoi();
+		final Object pixels1 = ip.getPixels();
+		final Object pixels2 = hasGetPixel&&!signed16 ? ip.createProcessor(w,h).getPixels() : pixels1;
+		final Thread caller = Thread.currentThread();
+		final java.util.concurrent.atomic.AtomicInteger rowsDone = new java.util.concurrent.atomic.AtomicInteger();
+		ThreadUtil.parallelFor(r.y, r.y+r.height, new ThreadUtil.RangeTask() {
+			public void run(int from, int to) {
+				double[] vars = expression.newVariables();
+				vars[MacroExpression.W] = w;
+				vars[MacroExpression.H] = h;
+				vars[MacroExpression.Z] = z;
+				for (int y=from; y<to; y++) {
+					vars[MacroExpression.Y] = y;
+					for (int x=r.x; x<(r.x+r.width); x++) {
+						int index = y*w+x;
+						vars[MacroExpression.X] = x;
+						if (hasA) vars[MacroExpression.A] = getA((h-y-1)-h/2, x-w/2);
+						if (hasD) vars[MacroExpression.D] = getD(x-w/2,y-h/2);
+						if (bitDepth==8) {
+							vars[MacroExpression.V] = ((byte[])pixels1)[index]&255;
+							expression.run(vars);
+							int v2 = (int)vars[MacroExpression.V];
+							if (v2<0) v2 = 0;
+							if (v2>255) v2 = 255;
+							((byte[])pixels2)[index] = (byte)v2;
+						} else if (bitDepth==24) {
+							int rgb = ((int[])pixels1)[index];
+							if (hasGetPixel) {
+								vars[MacroExpression.V] = rgb;
+								expression.run(vars);
+								rgb = (int)vars[MacroExpression.V];
+							} else {
+								int red = getChannel(expression, vars, (rgb&0xff0000)>>16);
+								int green = getChannel(expression, vars, (rgb&0xff00)>>8);
+								int blue = getChannel(expression, vars, rgb&0xff);
+								rgb = 0xff000000 | (red<<16) | (green<<8) | blue;
+							}
+							((int[])pixels2)[index] = rgb;
+						} else if (signed16) {
+							vars[MacroExpression.V] = ip.getPixelValue(x, y);
+							expression.run(vars);
+							ip.putPixelValue(x, y, vars[MacroExpression.V]);
+						} else if (bitDepth==16) {
+							vars[MacroExpression.V] = ((short[])pixels1)[index]&65535;
+							expression.run(vars);
+							int v2 = (int)vars[MacroExpression.V];
+							if (v2<0) v2 = 0;
+							if (v2>65535) v2 = 65535;
+							((short[])pixels2)[index] = (short)v2;
+						} else {
+							vars[MacroExpression.V] = ((float[])pixels1)[index];
+							expression.run(vars);
+							((float[])pixels2)[index] = (float)vars[MacroExpression.V];
+						}
+					}
+					int done = rowsDone.incrementAndGet();
+					if (showProgress && Thread.currentThread()==caller && done%8==0)
+						IJ.showProgress(done, r.height);
+				}
+			}
+		});
+		if (pixels2!=pixels1)
+			System.arraycopy(pixels2, 0, pixels1, 0, w*h);
+		if (showProgress)
+			IJ.showProgress(1.0);
+	}
+
+	private static int getChannel(MacroExpression expression, double[] vars, int value) {
+		vars[MacroExpression.V] = value;
+		expression.run(vars);
+		int v2 = (int)vars[MacroExpression.V];
+		if (v2<0) v2 = 0;
+		if (v2>255) v2 = 255;
+		return v2;
+	}
+
 	private static final double getD(int dx, int dy) {
           return Math.sqrt(dx*dx + dy*dy);
 	}
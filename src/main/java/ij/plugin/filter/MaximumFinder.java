@@ -5,6 +5,7 @@ import ij.gui.*;
 import ij.measure.*;
 import ij.process.*;
 import ij.util.Tools;
+import ij.util.ThreadUtil;
 import java.awt.*;
 import java.util.*;
 
@@ -21,6 +22,8 @@ import java.util.*;
  * Except for segmentation, this plugin works with ROIs, including non-rectangular ROIs.
  * Since this plug-in creates a separate output image it processes
  *    only single images or slices, no stacks.
+ * For finding the maxima of all slices of a stack without any output image,
+ *    use the findMaxima(ImageStack, ...) method.
  *
  * Notes:
  * - When using one instance of MaximumFinder for more than one image in parallel threads,
@@ -87,6 +90,7 @@ public class MaximumFinder implements ExtendedPlugInFilter, DialogListener {
     /** directions to 8 neighboring pixels, clockwise: 0=North (-y), 1=NE, 2=East (+x), ... 7=NW */
     private int[]     dirOffset;                    // pixel offsets of neighbor pixels for direct addressing
     private Polygon points;                    // maxima found by findMaxima() when outputType is POINT_SELECTION
+    private int[]     floodList;                    // list of pixel offsets for flooding from a maximum, kept for reuse
     final static int[] DIR_X_OFFSET = new int[] {  0,  1,  1,  1,  0, -1, -1, -1 };
     final static int[] DIR_Y_OFFSET = new int[] { -1, -1,  0,  1,  1,  1,  0, -1 };
     /** the following constants are used to set bits corresponding to pixel types */
@@ -97,6 +101,12 @@ public class MaximumFinder implements ExtendedPlugInFilter, DialogListener {
     final static byte EQUAL = (byte)16;             // marks contigous maximum points of equal level
     final static byte MAX_POINT = (byte)32;         // marks a single point standing for a maximum
     final static byte ELIMINATED = (byte)64;        // marks maxima that have been eliminated before watershed
+    /** watershed levels with at least twice this number of points are processed in parallel chunks */
+    final static int LEVEL_CHUNK = 4096;
+    /** minimum number of rows per thread when searching local maxima */
+    final static int BAND_HEIGHT = 16;
+    /** below this number of maxima, they are sorted with Arrays.sort instead of a radix sort */
+    final static int RADIX_SORT_MIN = 10000;
     /** type masks corresponding to the output types */
     final static byte[] outputTypeMasks = new byte[] {MAX_POINT, MAX_AREA, MAX_AREA};
     final static float SQRT2 = 1.4142135624f;
@@ -251,6 +261,49 @@ public class MaximumFinder implements ExtendedPlugInFilter, DialogListener {
 			return points;
     }
 
+    /** Finds the maxima of all slices of a stack, with the slices processed in parallel.
+     * No output images, selections or results are created.
+     * @param stack          The input stack
+     * @param tolerance      Height tolerance: maxima are accepted only if protruding more than this value
+     *                       from the ridge to a higher maximum
+     * @param threshold      minimum height of a maximum (uncalibrated); for no minimum height set it to
+     *                       ImageProcessor.NO_THRESHOLD
+     * @param excludeOnEdges Whether to exclude edge maxima
+     * @return               Three arrays with the x coordinates, y coordinates and slice numbers (1 to
+     *                       stack size) of the maxima, in the sequence of the slices.
+     *                       Returns null if the thread is interrupted.
+     */
+    public static int[][] findMaxima(final ImageStack stack, final double tolerance, final double threshold,
+            final boolean excludeOnEdges) {
+        final int nSlices = stack.getSize();
+        final Polygon[] slicePoints = new Polygon[nSlices];
+        ThreadUtil.parallelFor(0, nSlices, 1, new ThreadUtil.RangeTask() {
+            public void run(int from, int to) {
+                MaximumFinder maxFinder = new MaximumFinder(); //reused for the slices, with its flood list
+                for (int n=from; n<to; n++) {
+                    if (Thread.currentThread().isInterrupted()) return;
+                    maxFinder.points = null;
+                    maxFinder.findMaxima(stack.getProcessor(n+1), tolerance, threshold,
+                            POINT_SELECTION, excludeOnEdges, false);
+                    slicePoints[n] = maxFinder.points!=null ? maxFinder.points : new Polygon();
+                }
+            }
+        });
+        if (Thread.currentThread().isInterrupted()) return null;
+        int nPoints = 0;
+        for (int n=0; n<nSlices; n++)
+            nPoints += slicePoints[n].npoints;
+        int[][] xyz = new int[3][nPoints];
+        for (int n=0, i=0; n<nSlices; n++) {
+            Polygon p = slicePoints[n];
+            System.arraycopy(p.xpoints, 0, xyz[0], i, p.npoints);
+            System.arraycopy(p.ypoints, 0, xyz[1], i, p.npoints);
+            Arrays.fill(xyz[2], i, i+p.npoints, n+1);
+            i += p.npoints;
+        }
+        return xyz;
+    }
+
 	/**
 	* Calculates peak positions of 1D array N.Vischer, 06-mar-2017
 	*
@@ -418,15 +471,9 @@ public class MaximumFinder implements ExtendedPlugInFilter, DialogListener {
             threshold = ip.getCalibrationTable()[(int)threshold];   //convert threshold to calibrated
         ByteProcessor typeP = new ByteProcessor(width, height);     //will be a notepad for pixel types
         byte[] types = (byte[])typeP.getPixels();
-        float globalMin = Float.MAX_VALUE;
-        float globalMax = -Float.MAX_VALUE;
-        for (int y=roi.y; y<roi.y+roi.height; y++) {         //find local minimum/maximum now
-            for (int x=roi.x; x<roi.x+roi.width; x++) {      //ImageStatistics won't work if we have no ImagePlus
-                float v = ip.getPixelValue(x, y);
-                if (globalMin>v) globalMin = v;
-                if (globalMax<v) globalMax = v;
-            }
-        }
+        float[] minMax = getMinAndMax(ip, roi);              //ImageStatistics won't work if we have no ImagePlus
+        float globalMin = minMax[0];
+        float globalMax = minMax[1];
         if (threshold !=ImageProcessor.NO_THRESHOLD)
             threshold -= (globalMax-globalMin)*1e-6;//avoid rounding errors
         //for segmentation, exclusion of edge maxima cannot be done now but has to be done after segmentation:
@@ -478,6 +525,30 @@ public class MaximumFinder implements ExtendedPlugInFilter, DialogListener {
         return outIp;
     } // public ByteProcessor findMaxima
         
+    /** Returns the minimum and maximum pixel value (calibrated) in the roi rectangle,
+     *  determined in parallel bands of rows */
+    private float[] getMinAndMax(final ImageProcessor ip, final Rectangle roi) {
+        final float[] minMax = new float[] {Float.MAX_VALUE, -Float.MAX_VALUE};
+        ThreadUtil.parallelFor(roi.y, roi.y+roi.height, new ThreadUtil.RangeTask() {
+            public void run(int from, int to) {
+                float min = Float.MAX_VALUE;
+                float max = -Float.MAX_VALUE;
+                for (int y=from; y<to; y++) {
+                    for (int x=roi.x; x<roi.x+roi.width; x++) {
+                        float v = ip.getPixelValue(x, y);
+                        if (min>v) min = v;
+                        if (max<v) max = v;
+                    }
+                }
+                synchronized(minMax) {
+                    if (minMax[0]>min) minMax[0] = min;
+                    if (minMax[1]<max) minMax[1] = max;
+                }
+            }
+        });
+        return minMax;
+    }
+
     /** Find all local maxima (irrespective whether they finally qualify as maxima or not)
      * @param ip    The image to be analyzed
      * @param typeP A byte image, same size as ip, where the maximum points are marked as MAXIMUM
@@ -490,63 +561,117 @@ public class MaximumFinder implements ExtendedPlugInFilter, DialogListener {
      *                  is encoded in the upper 32 bits and the pixel offset in the lower 32 bit
      * Note: Do not use the positions of the points marked as MAXIMUM in typeP, they are invalid for images with a roi.
      */    
-    long[] getSortedMaxPoints(ImageProcessor ip, ByteProcessor typeP, boolean excludeEdgesNow,
-            boolean isEDM, float globalMin, float globalMax, double threshold) {
-        Rectangle roi = ip.getRoi();
-        byte[] types =  (byte[])typeP.getPixels();
-        int nMax = 0;  //counts local maxima
-        boolean checkThreshold = threshold!=ImageProcessor.NO_THRESHOLD;
+    long[] getSortedMaxPoints(final ImageProcessor ip, ByteProcessor typeP, final boolean excludeEdgesNow,
+            final boolean isEDM, final float globalMin, float globalMax, final double threshold) {
+        final Rectangle roi = ip.getRoi();
+        final byte[] types =  (byte[])typeP.getPixels();
+        final boolean checkThreshold = threshold!=ImageProcessor.NO_THRESHOLD;
+        final int width = this.width;
+        final int height = this.height;
         Thread thread = Thread.currentThread();
-        //long t0 = System.currentTimeMillis();
-        for (int y=roi.y; y<roi.y+roi.height; y++) {         // find local maxima now
-            if (y%50==0 && thread.isInterrupted()) return null;
-            for (int x=roi.x, i=x+y*width; x<roi.x+roi.width; x++, i++) {      // for better performance with rois, restrict search to roi
-                float v = ip.getPixelValue(x,y);
-                float vTrue = isEDM ? trueEdmHeight(x,y,ip) : v;  // for EDMs, use interpolated ridge height
-                if (v==globalMin) continue;
-                if (excludeEdgesNow && (x==0 || x==width-1 || y==0 || y==height-1)) continue;
-                if (checkThreshold && v<threshold) continue;
-                boolean isMax = true;
-                /* check wheter we have a local maximum.
-                 Note: For an EDM, we need all maxima: those of the EDM-corrected values
-                 (needed by findMaxima) and those of the raw values (needed by cleanupMaxima) */
-                boolean isInner = (y!=0 && y!=height-1) && (x!=0 && x!=width-1); //not necessary, but faster than isWithin
-                for (int d=0; d<8; d++) {                         // compare with the 8 neighbor pixels
-                    if (isInner || isWithin(x, y, d)) {
-                        float vNeighbor = ip.getPixelValue(x+DIR_X_OFFSET[d], y+DIR_Y_OFFSET[d]);
-                        float vNeighborTrue = isEDM ? trueEdmHeight(x+DIR_X_OFFSET[d], y+DIR_Y_OFFSET[d], ip) : vNeighbor;
-                        if (vNeighbor > v && vNeighborTrue > vTrue) {
-                            isMax = false;
-                            break;
-                        }
-                    }
-                }
-                if (isMax) {
-                    types[i] = MAXIMUM;
-                    nMax++;
+        // the roi is divided into bands of rows; each band finds its local maxima and counts them
+        final int bandHeight = Math.max(BAND_HEIGHT, (roi.height+4*Prefs.getThreads()-1)/(4*Prefs.getThreads()));
+        final int nBands = (roi.height+bandHeight-1)/bandHeight;
+        final int[] nMaxInBand = new int[nBands+1];
+        ThreadUtil.parallelFor(0, nBands, 1, new ThreadUtil.RangeTask() {
+            public void run(int from, int to) {
+                for (int band=from; band<to; band++) {
+                    int yEnd = Math.min(roi.y+(band+1)*bandHeight, roi.y+roi.height);
+                    int nMax = 0;  //counts local maxima
+                    for (int y=roi.y+band*bandHeight; y<yEnd; y++) {         // find local maxima now
+                        for (int x=roi.x, i=x+y*width; x<roi.x+roi.width; x++, i++) {      // for better performance with rois, restrict search to roi
+                            float v = ip.getPixelValue(x,y);
+                            if (v==globalMin) continue;
+                            if (excludeEdgesNow && (x==0 || x==width-1 || y==0 || y==height-1)) continue;
+                            if (checkThreshold && v<threshold) continue;
+                            float vTrue = isEDM ? trueEdmHeight(x,y,ip) : v;  // for EDMs, use interpolated ridge height
+                            boolean isMax = true;
+                            /* check wheter we have a local maximum.
+                             Note: For an EDM, we need all maxima: those of the EDM-corrected values
+                             (needed by findMaxima) and those of the raw values (needed by cleanupMaxima) */
+                            boolean isInner = (y!=0 && y!=height-1) && (x!=0 && x!=width-1); //not necessary, but faster than isWithin
+                            for (int d=0; d<8; d++) {                         // compare with the 8 neighbor pixels
+                                if (isInner || isWithin(x, y, d)) {
+                                    float vNeighbor = ip.getPixelValue(x+DIR_X_OFFSET[d], y+DIR_Y_OFFSET[d]);
+                                    if (vNeighbor > v && (!isEDM || trueEdmHeight(x+DIR_X_OFFSET[d], y+DIR_Y_OFFSET[d], ip) > vTrue)) {
+                                        isMax = false;
+                                        break;
+                                    }
+                                }
+                            }
+                            if (isMax) {
+                                types[i] = MAXIMUM;
+                                nMax++;
+                            }
+                        } // for x
+                    } // for y
+                    nMaxInBand[band+1] = nMax;
                 }
-            } // for x
-        } // for y
+            }
+        });
         if (thread.isInterrupted()) return null;
-        //long t1 = System.currentTimeMillis();IJ.log("markMax:"+(t1-t0));
         
-        float vFactor = (float)(2e9/(globalMax-globalMin)); //for converting float values into a 32-bit int
-        long[] maxPoints = new long[nMax];                  //value (int) is in the upper 32 bit, pixel offset in the lower
-        int iMax = 0;
-        for (int y=roi.y; y<roi.y+roi.height; y++)           //enter all maxima into an array
-            for (int x=roi.x, p=x+y*width; x<roi.x+roi.width; x++, p++)
-                if (types[p]==MAXIMUM) {
-                    float fValue = isEDM?trueEdmHeight(x,y,ip):ip.getPixelValue(x,y);
-                    int iValue = (int)((fValue-globalMin)*vFactor); //32-bit int, linear function of float value
-                    maxPoints[iMax++] = (long)iValue<<32|p;
+        for (int band=0; band<nBands; band++)               //nMaxInBand[band] becomes the start of the band in maxPoints
+            nMaxInBand[band+1] += nMaxInBand[band];
+        final float vFactor = (float)(2e9/(globalMax-globalMin)); //for converting float values into a 32-bit int
+        final long[] maxPoints = new long[nMaxInBand[nBands]];    //value (int) is in the upper 32 bit, pixel offset in the lower
+        ThreadUtil.parallelFor(0, nBands, 1, new ThreadUtil.RangeTask() {
+            public void run(int from, int to) {
+                for (int band=from; band<to; band++) {
+                    int yEnd = Math.min(roi.y+(band+1)*bandHeight, roi.y+roi.height);
+                    int iMax = nMaxInBand[band];
+                    for (int y=roi.y+band*bandHeight; y<yEnd; y++)           //enter all maxima into an array
+                        for (int x=roi.x, p=x+y*width; x<roi.x+roi.width; x++, p++)
+                            if (types[p]==MAXIMUM) {
+                                float fValue = isEDM?trueEdmHeight(x,y,ip):ip.getPixelValue(x,y);
+                                int iValue = (int)((fValue-globalMin)*vFactor); //32-bit int, linear function of float value
+                                maxPoints[iMax++] = (long)iValue<<32|p;
+                            }
                 }
-        //long t2 = System.currentTimeMillis();IJ.log("makeArray:"+(t2-t1));
+            }
+        });
         if (thread.isInterrupted()) return null;
-        Arrays.sort(maxPoints);                                 //sort the maxima by value
-        //long t3 = System.currentTimeMillis();IJ.log("sort:"+(t3-t2));
+        sortByValue(maxPoints);                             //sort the maxima by value
         return maxPoints;
     } //getSortedMaxPoints
 
+    /** Sorts maxima encoded as in getSortedMaxPoints, with the pixel offsets in ascending order,
+     * in the same sequence as Arrays.sort: By a stable least-significant-digit radix sort of
+     * the values (upper 32 bits) in passes of 11 bits. Passes where all maxima have the same
+     * digit are skipped. */
+    static void sortByValue(long[] maxPoints) {
+        int n = maxPoints.length;
+        if (n < RADIX_SORT_MIN) {
+            Arrays.sort(maxPoints);
+            return;
+        }
+        long[] src = maxPoints;
+        long[] dst = new long[n];
+        int[] count = new int[1<<11];
+        for (int shift=32; shift<64; shift+=11) {
+            Arrays.fill(count, 0);
+            for (int i=0; i<n; i++)
+                count[digit(src[i], shift)]++;
+            if (count[digit(src[0], shift)] == n)
+                continue;                                   //all maxima have the same digit
+            for (int d=0, sum=0; d<count.length; d++) {     //count becomes the start of each digit in dst
+                int c = count[d];
+                count[d] = sum;
+                sum += c;
+            }
+            for (int i=0; i<n; i++)
+                dst[count[digit(src[i], shift)]++] = src[i];
+            long[] swap = src; src = dst; dst = swap;
+        }
+        if (src != maxPoints)
+            System.arraycopy(src, 0, maxPoints, 0, n);
+    }
+
+    /** the 11-bit digit of the value at 'shift', with the sign of the value inverted (for signed order) */
+    private static int digit(long maxPoint, int shift) {
+        return (int)(((maxPoint^0x8000000000000000L)>>>shift)&0x7ff);
+    }
+
    /** Check all maxima in list maxPoints, mark type of the points in typeP
     * @param ip             the image to be analyzed
     * @param typeP          8-bit image, here the point types are marked by type: MAX_POINT, etc.
@@ -566,12 +691,15 @@ public class MaximumFinder implements ExtendedPlugInFilter, DialogListener {
         byte[] types =  (byte[])typeP.getPixels();
         float[] edmPixels = isEDM ? (float[])ip.getPixels() : null;
         int nMax = maxPoints.length;
-        int [] pList = new int[width*height];       //here we enter points starting from a maximum
-        Vector xyVector = null;
+        int[] pList = takeFloodList();              //here we enter points starting from a maximum
+        int[] xPoints = null, yPoints = null;       //coordinates of the maxima for display or counting
+        int nPoints = 0;
         Roi roi = null;
         boolean displayOrCount = outputType==POINT_SELECTION||outputType==LIST||outputType==COUNT;
-        if (displayOrCount) 
-            xyVector=new Vector();
+        if (displayOrCount) {
+            xPoints = new int[100];
+            yPoints = new int[100];
+        }
         if (imp!=null)
             roi = imp.getRoi();	    
       
@@ -626,6 +754,8 @@ public class MaximumFinder implements ExtendedPlugInFilter, DialogListener {
                                     y0 = y2;
 
                                 }
+                                if (listLen == pList.length)
+                                    pList = Arrays.copyOf(pList, 2*listLen);
                                 pList[listLen] = offset2;
                                 listLen++;              //we have found a new point within the tolerance
                                 types[offset2] |= LISTED;
@@ -677,28 +807,31 @@ public class MaximumFinder implements ExtendedPlugInFilter, DialogListener {
 					if (maxPossible) {
 						int offset = pList[nearestI];
 						types[offset] |= MAX_POINT;
-						if (displayOrCount && !(this.excludeOnEdges && isEdgeMaximum)) {
+						if (displayOrCount && !(excludeEdgesNow && isEdgeMaximum)) {
 							int x = offset % width;
 							int y = offset / width;
-							if (roi==null || roi.contains(x, y))
-								xyVector.addElement(new int[] {x, y});
+							if (roi==null || roi.contains(x, y)) {
+								if (nPoints == xPoints.length) {
+									xPoints = Arrays.copyOf(xPoints, 2*nPoints);
+									yPoints = Arrays.copyOf(yPoints, 2*nPoints);
+								}
+								xPoints[nPoints] = x;
+								yPoints[nPoints] = y;
+								nPoints++;
+							}
 						}
 					}
 				} //if !sortingError
 			} while (sortingError);				//redo if we have encountered a higher maximum: handle it now.
         } // for all maxima iMax
 
+        returnFloodList(pList);
         if (Thread.currentThread().isInterrupted()) return;
-        if (displayOrCount && xyVector!=null) {
-            int npoints = xyVector.size();
+        if (displayOrCount) {
+            int npoints = nPoints;
             if (outputType == POINT_SELECTION && npoints>0) {
-                int[] xpoints = new int[npoints];
-                int[] ypoints = new int[npoints];
-                for (int i=0; i<npoints; i++) {
-                    int[] xy = (int[])xyVector.elementAt(i);
-                    xpoints[i] = xy[0];
-                    ypoints[i] = xy[1];
-                }
+                int[] xpoints = Arrays.copyOf(xPoints, npoints);
+                int[] ypoints = Arrays.copyOf(yPoints, npoints);
                 if (imp!=null) {
                 	PointRoi points = new PointRoi(xpoints, ypoints, npoints);
                 	imp.setRoi(points);
@@ -708,10 +841,9 @@ public class MaximumFinder implements ExtendedPlugInFilter, DialogListener {
                 Analyzer.resetCounter();
                 ResultsTable rt = ResultsTable.getResultsTable();
                 for (int i=0; i<npoints; i++) {
-                    int[] xy = (int[])xyVector.elementAt(i);
                     rt.incrementCounter();
-                    rt.addValue("X", xy[0]);
-                    rt.addValue("Y", xy[1]);
+                    rt.addValue("X", xPoints[i]);
+                    rt.addValue("Y", yPoints[i]);
                 }
                 rt.show("Results");
             } else if (outputType==COUNT) {
@@ -742,7 +874,7 @@ public class MaximumFinder implements ExtendedPlugInFilter, DialogListener {
             } 
         }
         if (previewing)
-            messageArea.setText((xyVector==null ? 0 : xyVector.size())+" Maxima");
+            messageArea.setText(nPoints+" Maxima");
     } //void analyzeAndMarkMaxima
 
    /** Create an 8-bit image by scaling the pixel values of ip to 1-254 (<lower threshold 0) and mark maximum areas as 255.
@@ -839,7 +971,7 @@ public class MaximumFinder implements ExtendedPlugInFilter, DialogListener {
         byte[] pixels = (byte[])outIp.getPixels();
         byte[] types = (byte[])typeP.getPixels();
         int nMax = maxPoints.length;
-        int[] pList = new int[width*height];
+        int[] pList = takeFloodList();
         for (int iMax = nMax-1; iMax>=0; iMax--) {
             int offset0 = (int)maxPoints[iMax];     //type cast gets lower 32 bits where pixel offset is encoded
             if ((types[offset0]&(MAX_AREA|ELIMINATED))!=0) continue;
@@ -867,6 +999,8 @@ public class MaximumFinder implements ExtendedPlugInFilter, DialogListener {
                                 saddleFound = true; //we have reached a point touching a "true" maximum...
                                 break;              //...or a level not lower, but touching a "true" maximum
                             } else if ((pixels[offset2]&255)>=loLevel && (types[offset2]&ELIMINATED)==0) {
+                                if (listLen == pList.length)
+                                    pList = Arrays.copyOf(pList, 2*listLen);
                                 pList[listLen] = offset2;
                                 //xList[listLen] = x+DIR_X_OFFSET[d];
                                 //yList[listLen] = x+DIR_Y_OFFSET[d];
@@ -887,6 +1021,7 @@ public class MaximumFinder implements ExtendedPlugInFilter, DialogListener {
                 types[offset] |= ELIMINATED;        //mark as processed: there can't be a local maximum in this area
             }
         } // for all maxima iMax
+        returnFloodList(pList);
     } // void cleanupMaxima
 
     /** Delete extra structures form watershed of non-EDM images, e.g., foreground patches,
@@ -1151,6 +1286,8 @@ public class MaximumFinder implements ExtendedPlugInFilter, DialogListener {
 
 
     /** dilate the UEP on one level by one pixel in the direction specified by step, i.e., set pixels to 255
+     * All pixels of the level are judged by the neighbors set before this pass; only then the pixels
+     * are set. Thus, large levels are judged in parallel chunks of LEVEL_CHUNK points.
      * @param pass gives direction of dilation, see makeFateTable
      * @param ip the EDM with the segmeted blobs successively getting set to 255
      * @param table             The fateTable
@@ -1160,49 +1297,98 @@ public class MaximumFinder implements ExtendedPlugInFilter, DialogListener {
      * @param xCoordinates      list of x Coorinates for the current level only (no offset levelStart)
      * @return                  number of pixels that have been changed
      */
-    private int processLevel(int pass, ImageProcessor ip, int[] fateTable,
-            int levelStart, int levelNPoints, int[] coordinates, int[] setPointList) {
-        int xmax = width - 1;
-        int ymax = height - 1;
-        byte[] pixels = (byte[])ip.getPixels();
-        //byte[] pixels2 = (byte[])ip2.getPixels();
+    private int processLevel(final int pass, ImageProcessor ip, final int[] fateTable,
+            final int levelStart, int levelNPoints, final int[] coordinates, int[] setPointList) {
+        final byte[] pixels = (byte[])ip.getPixels();
+        final int width = this.width;
+        final int height = this.height;
+        final int xMask = intEncodeXMask;
+        final int yMask = intEncodeYMask;
+        final int shift = intEncodeShift;
+        final int mask = 1<<pass;
         int nChanged = 0;
         int nUnchanged = 0;
-        for (int i=0, p=levelStart; i<levelNPoints; i++, p++) {
-            int xy = coordinates[p];
-            int x = xy&intEncodeXMask;
-            int y = (xy&intEncodeYMask)>>intEncodeShift;
-            int offset = x + y*width;
-            int index = 0;      //neighborhood pixel ocupation: index in fateTable
-            if (y>0 && (pixels[offset-width]&255)==255)
-                index ^= 1;
-            if (x<xmax && y>0 && (pixels[offset-width+1]&255)==255)
-                index ^= 2;
-            if (x<xmax && (pixels[offset+1]&255)==255)
-                index ^= 4;
-            if (x<xmax && y<ymax && (pixels[offset+width+1]&255)==255)
-                index ^= 8;
-            if (y<ymax && (pixels[offset+width]&255)==255)
-                index ^= 16;
-            if (x>0 && y<ymax && (pixels[offset+width-1]&255)==255)
-                index ^= 32;
-            if (x>0 && (pixels[offset-1]&255)==255)
-                index ^= 64;
-            if (x>0 && y>0 && (pixels[offset-width-1]&255)==255)
-                index ^= 128;
-            int mask = 1<<pass;
-            if ((fateTable[index]&mask)==mask)
-                setPointList[nChanged++] = offset;  //remember to set pixel to 255
-            else
-                coordinates[levelStart+(nUnchanged++)] = xy; //keep this pixel for future passes
-
-        } // for pixel i
-        //IJ.log("pass="+pass+", changed="+nChanged+" unchanged="+nUnchanged);
-        for (int i=0; i<nChanged; i++)
-            pixels[setPointList[i]] = (byte)255;
+        if (levelNPoints < 2*LEVEL_CHUNK || Prefs.getThreads() < 2) {
+            for (int i=0, p=levelStart; i<levelNPoints; i++, p++) {
+                int xy = coordinates[p];
+                int x = xy&xMask;
+                int y = (xy&yMask)>>shift;
+                int offset = x + y*width;
+                if ((fateTable[fateIndex(pixels, x, y, offset, width, height)]&mask)==mask)
+                    setPointList[nChanged++] = offset;  //remember to set pixel to 255
+                else
+                    coordinates[levelStart+(nUnchanged++)] = xy; //keep this pixel for future passes
+            } // for pixel i
+            //IJ.log("pass="+pass+", changed="+nChanged+" unchanged="+nUnchanged);
+            for (int i=0; i<nChanged; i++)
+                pixels[setPointList[i]] = (byte)255;
+            return nChanged;
+        }
+        // Large level: each chunk keeps its unchanged points in front and the points to set behind them
+        final int levelEnd = levelStart + levelNPoints;
+        int nChunks = (levelNPoints+LEVEL_CHUNK-1)/LEVEL_CHUNK;
+        final int[] nUnchangedInChunk = new int[nChunks];
+        Arrays.fill(nUnchangedInChunk, LEVEL_CHUNK);  //if interrupted, chunks not processed remain unchanged
+        ThreadUtil.parallelFor(0, nChunks, 1, new ThreadUtil.RangeTask() {
+            public void run(int from, int to) {
+                int[] changed = new int[LEVEL_CHUNK];
+                for (int chunk=from; chunk<to; chunk++) {
+                    int start = levelStart + chunk*LEVEL_CHUNK;
+                    int end = Math.min(start+LEVEL_CHUNK, levelEnd);
+                    int nU = 0, nC = 0;
+                    for (int p=start; p<end; p++) {
+                        int xy = coordinates[p];
+                        int x = xy&xMask;
+                        int y = (xy&yMask)>>shift;
+                        if ((fateTable[fateIndex(pixels, x, y, x + y*width, width, height)]&mask)==mask)
+                            changed[nC++] = xy;
+                        else
+                            coordinates[start+(nU++)] = xy;
+                    }
+                    System.arraycopy(changed, 0, coordinates, start+nU, nC);
+                    nUnchangedInChunk[chunk] = nU;
+                }
+            }
+        });
+        for (int chunk=0; chunk<nChunks; chunk++) {
+            int start = levelStart + chunk*LEVEL_CHUNK;
+            int end = Math.min(start+LEVEL_CHUNK, levelEnd);
+            int nU = Math.min(nUnchangedInChunk[chunk], end-start);
+            for (int p=start+nU; p<end; p++) {
+                int xy = coordinates[p];
+                pixels[(xy&xMask) + ((xy&yMask)>>shift)*width] = (byte)255;
+            }
+            nChanged += end - start - nU;
+            System.arraycopy(coordinates, start, coordinates, levelStart+nUnchanged, nU);
+            nUnchanged += nU;
+        }
         return nChanged;
     } //processLevel
 
+    /** neighborhood pixel occupation of pixel x, y: index in fateTable */
+    private static int fateIndex(byte[] pixels, int x, int y, int offset, int width, int height) {
+        int xmax = width - 1;
+        int ymax = height - 1;
+        int index = 0;
+        if (y>0 && (pixels[offset-width]&255)==255)
+            index ^= 1;
+        if (x<xmax && y>0 && (pixels[offset-width+1]&255)==255)
+            index ^= 2;
+        if (x<xmax && (pixels[offset+1]&255)==255)
+            index ^= 4;
+        if (x<xmax && y<ymax && (pixels[offset+width+1]&255)==255)
+            index ^= 8;
+        if (y<ymax && (pixels[offset+width]&255)==255)
+            index ^= 16;
+        if (x>0 && y<ymax && (pixels[offset+width-1]&255)==255)
+            index ^= 32;
+        if (x>0 && (pixels[offset-1]&255)==255)
+            index ^= 64;
+        if (x>0 && y>0 && (pixels[offset-width-1]&255)==255)
+            index ^= 128;
+        return index;
+    }
+
     /** Creates the lookup table used by the watershed function for dilating the particles.
      * The algorithm allows dilation in both straight and diagonal directions.
      * There is an entry in the table for each possible 3x3 neighborhood:
@@ -1307,6 +1493,20 @@ public class MaximumFinder implements ExtendedPlugInFilter, DialogListener {
         return false;   //to make the compiler happy :-)
     } // isWithin
 
+    /** Returns the list for flooding from a maximum. The list may be too short and has to grow
+     *  when needed; give it back with returnFloodList. Parallel threads get separate lists. */
+    private synchronized int[] takeFloodList() {
+        int[] list = floodList;
+        floodList = null;
+        return list!=null ? list : new int[Math.min(width*height, 4096)+1];
+    }
+
+    /** Keeps the (possibly grown) list for flooding for the next call */
+    private synchronized void returnFloodList(int[] list) {
+        if (floodList==null || list.length>floodList.length)
+            floodList = list;
+    }
+
     /** add work done in the meanwhile and show progress */
     private void addProgress(double deltaProgress) {
         if (nPasses==0) return;
@@ -26,6 +26,8 @@ import ij.util.Tools;
 			else
 				continue the scan
 	</pre>
+	Particles without interior holes are found in one pass by a ParticleLabeler
+	instead, and only the particles that are measured are traced.
 */
 public class ParticleAnalyzer implements PlugInFilter, Measurements {
 
@@ -138,6 +140,8 @@ public class ParticleAnalyzer implements PlugInFilter, Measurements {
 	private ImageProcessor mask;
 	private double totalArea;
 	private FloodFiller ff;
+	private ParticleLabeler labeler;
+	private boolean sweepStatistics, roiNeeded;
 	private Polygon polygon;
 	private RoiManager roiManager;
 	private static RoiManager staticRoiManager;
@@ -565,7 +569,8 @@ public class ParticleAnalyzer implements PlugInFilter, Measurements {
 		particleCount = 0;
 		wand = new Wand(ip);
 		pf = new PolygonFiller();
-		if (floodFill) {
+		boolean useLabeler = canUseLabeler(imp);
+		if (floodFill && !useLabeler) {
 			ImageProcessor ipf = ip.duplicate();
 			ipf.setValue(fillColor);
 			ff = new FloodFiller(ipf);
@@ -573,7 +578,9 @@ public class ParticleAnalyzer implements PlugInFilter, Measurements {
 		roiType = Wand.allPoints()?Roi.FREEROI:Roi.TRACED_ROI;
 
 		boolean done = false;
-		for (int y=r.y; y<(r.y+r.height); y++) {
+		if (useLabeler)
+			analyzeLabels(imp, ip, win);
+		else for (int y=r.y; y<(r.y+r.height); y++) {
 			offset = y*width;
 			for (int x=r.x; x<(r.x+r.width); x++) {
 				if (pixels!=null)
@@ -596,6 +603,7 @@ public class ParticleAnalyzer implements PlugInFilter, Measurements {
 				break;
 			}
 		}
+		labeler = null;
 		if (showProgress)
 			IJ.showProgress(1.0);
 		if (showResults && showResultsWindow && rt.size()>0)
@@ -882,6 +890,126 @@ public class ParticleAnalyzer implements PlugInFilter, Measurements {
 		ip.fill(mask);
 	}
 
+	/** Returns 'true' if the particles can be found with a ParticleLabeler
+		instead of tracing and filling them one by one. This requires
+		8-connected particles without interior holes; particles touching
+		the edge of a non-rectangular selection and the whole-image
+		particle of 8-bit images thresholded 0-255 are handled by tracing. */
+	boolean canUseLabeler(ImagePlus imp) {
+		if (!floodFill || wandMode!=Wand.LEGACY_MODE)
+			return false;
+		if (level1==0.0 && level2==255.0 && imp.getBitDepth()==8)
+			return false;
+		if (excludeEdgeParticles && polygon!=null)
+			return false;
+		if (redirectIP!=null && (redirectIP.getWidth()!=width || redirectIP.getHeight()!=height))
+			return false;
+		return true;
+	}
+
+	/** Labels all particles in one pass and measures those that pass the
+		filters, in the order in which the tracing scan would find them.
+		Outlines are only traced if they are needed for the circularity
+		filter, the measurements, the ROI Manager or the output image. */
+	void analyzeLabels(ImagePlus imp, ImageProcessor ip, ImageWindow win) {
+		ImageProcessor ip2 = redirectIP!=null?redirectIP:ip;
+		int statsOptions = MODE|ELLIPSE|SHAPE_DESCRIPTORS|CENTER_OF_MASS|SKEWNESS|KURTOSIS|MEDIAN|AREA_FRACTION;
+		sweepStatistics = (measurements&statsOptions)==0 && calibration.getCTable()==null
+			&& (imageType2==BYTE || (imageType2==SHORT && ip2.getHistogramMin()==0.0 && ip2.getHistogramMax()==0.0));
+		roiNeeded = roiNeedsImage || minCircularity>0.0 || maxCircularity!=1.0 || addToManager
+			|| (showChoice!=NOTHING && showChoice!=ELLIPSES) || getClass()!=ParticleAnalyzer.class;
+		labeler = new ParticleLabeler(ip, level1, level2, true);
+		int n = labeler.label(r, sweepStatistics?ip2:null);
+		int inc = Math.max(n/25, 1);
+		for (int label=1; label<=n; label++) {
+			analyzeLabel(label, imp, ip);
+			if (label%inc==0) {
+				if (showProgress)
+					IJ.showProgress(label, n);
+				if (win!=null)
+					canceled = !win.running;
+				if (canceled) {
+					Macro.abort();
+					break;
+				}
+			}
+		}
+	}
+
+	void analyzeLabel(int label, ImagePlus imp, ImageProcessor ip) {
+		ImageProcessor ip2 = redirectIP!=null?redirectIP:ip;
+		Rectangle r = labeler.getBounds(label);
+		int x = labeler.getXStart(label);
+		int y = labeler.getYStart(label);
+		if (excludeEdgeParticles && (r.x==minX||r.y==minY||r.x+r.width==maxX||r.y+r.height==maxY))
+			return;
+		int count = labeler.getPixelCount(label);
+		boolean countIsPixelCount = !(redirectIP!=null && imageType2==FLOAT);	// NaNs are not counted
+		if (countIsPixelCount && (count<minSize || count>maxSize))
+			return;
+		Roi roi = null;
+		if (roiNeeded) {
+			wand.autoOutline(x, y, level1, level2, wandMode);
+			if (wand.npoints==0)
+				{IJ.log("wand error: "+x+" "+y); return;}
+			roi = new PolygonRoi(wand.xpoints, wand.ypoints, wand.npoints, roiType);
+		}
+		ImageProcessor mask = null;
+		ImageStatistics stats;
+		if (sweepStatistics) {
+			if (r.width>1 && r.height>1 && showChoice!=NOTHING)
+				mask = labeler.getMask(label);
+			stats = getStatistics(label, r);
+		} else {
+			if (r.width>1 && r.height>1)
+				mask = labeler.getMask(label);
+			ip2.setRoi(r);
+			ip2.setMask(mask);
+			stats = getStatistics(ip2, measurements, calibration);
+		}
+		if (minCircularity>0.0 || maxCircularity!=1.0) {
+			double perimeter = roi.getLength();
+			double circularity = perimeter==0.0?0.0:4.0*Math.PI*(stats.pixelCount/(perimeter*perimeter));
+			if (circularity>1.0 && maxCircularity<=1.0) circularity = 1.0;
+			if (circularity<minCircularity || circularity>maxCircularity)
+				return;
+		}
+		if (stats.pixelCount>=minSize && stats.pixelCount<=maxSize) {
+			particleCount++;
+			if (roiNeedsImage)
+				roi.setImage(imp);
+			stats.xstart=x; stats.ystart=y;
+			saveResults(stats, roi);
+			if (showChoice!=NOTHING)
+				drawParticle(drawIP, roi, stats, mask);
+		}
+	}
+
+	/** Returns the statistics of particle 'label' as calculated by
+		ByteStatistics and ShortStatistics, using the sums of the labeler. */
+	ImageStatistics getStatistics(int label, Rectangle r) {
+		ImageStatistics stats = new ImageStatistics();
+		double n = labeler.getPixelCount(label);
+		double sum = labeler.getSum(label);
+		double sum2 = labeler.getSumOfSquares(label);
+		stats.pixelCount = (int)n;
+		stats.longPixelCount = (long)n;
+		stats.area = stats.longPixelCount*calibration.pixelWidth*calibration.pixelHeight;
+		stats.mean = sum/n;
+		stats.umean = stats.mean;
+		double stdDev = (n*sum2-sum*sum)/n;
+		stats.stdDev = stdDev>0.0?Math.sqrt(stdDev/(n-1.0)):0.0;
+		stats.min = labeler.getMin(label);
+		stats.max = labeler.getMax(label);
+		stats.xCentroid = calibration.getX(labeler.getXSum(label)/n+0.5);
+		stats.yCentroid = calibration.getY(labeler.getYSum(label)/n+0.5, height);
+		stats.roiX = calibration.getX(r.x);
+		stats.roiY = calibration.getY(r.y, height);
+		stats.roiWidth = r.width*calibration.pixelWidth;
+		stats.roiHeight = r.height*calibration.pixelHeight;
+		return stats;
+	}
+
 	ImageStatistics getStatistics(ImageProcessor ip, int mOptions, Calibration cal) {
 		switch (imageType2) {
 			case BYTE:
@@ -0,0 +1,312 @@
+package ij.plugin.filter;
+import java.awt.Rectangle;
+import java.util.Arrays;
+import ij.Prefs;
+import ij.process.*;
+import ij.util.ThreadUtil;
+
+/** Finds the 8-connected (or 4-connected) particles of a thresholded image
+	in two raster passes, with a union-find forest stored in the label array.
+	The first pass labels horizontal bands of the image in parallel; the
+	bands are then merged where they touch. The second pass numbers the
+	particles in the order of their first (top left) pixel, as they are
+	found by the ParticleAnalyzer, and accumulates the pixel count, bounding
+	box, coordinate sums and, optionally, the sum, sum of squares, minimum
+	and maximum of the pixel values of each particle.
+	@see ParticleAnalyzer
+*/
+public class ParticleLabeler {
+	private ImageProcessor ip;
+	private double lower, upper;
+	private boolean eightConnected;
+	private int width, height;
+	private int[] labels;
+	private int count;
+	private int[] pixelCount, start, xmin, ymin, xmax, ymax;
+	private double[] xsum, ysum, sum, sum2, min, max;
+
+	/** Creates a labeler for the particles with pixel values from 'lower'
+		to 'upper' (inclusive) in 'ip', which may be a byte, short or float image. */
+	public ParticleLabeler(ImageProcessor ip, double lower, double upper, boolean eightConnected) {
+		this.ip = ip;
+		this.lower = lower;
+		this.upper = upper;
+		this.eightConnected = eightConnected;
+		width = ip.getWidth();
+		height = ip.getHeight();
+	}
+
+	/** Labels the particles inside the rectangle 'r' and returns their number.
+		If 'values' is not null, the statistics of its raw pixel values are
+		calculated for each particle as well. */
+	public int label(Rectangle r, ImageProcessor values) {
+		if (r==null)
+			r = new Rectangle(0, 0, width, height);
+		final Rectangle rect = r;
+		labels = new int[width*height];
+		int nBands = Math.min(Prefs.getThreads(), Math.max(r.height/64, 1));
+		final int[] bandStarts = new int[nBands+1];
+		for (int b=0; b<=nBands; b++)
+			bandStarts[b] = r.y + (int)((long)r.height*b/nBands);
+		ThreadUtil.parallelFor(0, nBands, 1, new ThreadUtil.RangeTask() {
+			public void run(int from, int to) {
+				for (int b=from; b<to; b++)
+					labelBand(rect, bandStarts[b], bandStarts[b+1]);
+			}
+		});
+		for (int b=1; b<nBands; b++)
+			mergeRows(rect, bandStarts[b]);
+		count = 0;
+		pixelCount = new int[256];
+		start = new int[256];
+		xmin = new int[256]; ymin = new int[256];
+		xmax = new int[256]; ymax = new int[256];
+		xsum = new double[256]; ysum = new double[256];
+		if (values!=null) {
+			sum = new double[256]; sum2 = new double[256];
+			min = new double[256]; max = new double[256];
+		} else
+			sum = sum2 = min = max = null;
+		resolve(rect, values);
+		return count;
+	}
+
+	/** First pass: every particle pixel points to its parent (plus one),
+		the root of a particle is its pixel with the lowest index. */
+	private void labelBand(Rectangle r, int y1, int y2) {
+		Object pixels = ip.getPixels();
+		byte[] bytes = pixels instanceof byte[]?(byte[])pixels:null;
+		short[] shorts = pixels instanceof short[]?(short[])pixels:null;
+		float[] floats = pixels instanceof float[]?(float[])pixels:null;
+		int x1 = r.x, x2 = r.x+r.width-1;
+		for (int y=y1; y<y2; y++) {
+			boolean top = y==y1;
+			for (int x=x1, i=y*width+x1; x<=x2; x++, i++) {
+				double v;
+				if (bytes!=null)
+					v = bytes[i]&255;
+				else if (shorts!=null)
+					v = shorts[i]&0xffff;
+				else if (floats!=null)
+					v = floats[i];
+				else
+					v = ip.getf(i);
+				if (!(v>=lower && v<=upper))
+					continue;
+				boolean w = x>x1 && labels[i-1]!=0;
+				boolean n = !top && labels[i-width]!=0;
+				if (eightConnected) {
+					boolean nw = !top && x>x1 && labels[i-width-1]!=0;
+					boolean ne = !top && x<x2 && labels[i-width+1]!=0;
+					if (n)
+						labels[i] = i-width+1;
+					else if (w) {
+						labels[i] = i;
+						if (ne) union(i-1, i-width+1);
+					} else if (nw) {
+						labels[i] = i-width;
+						if (ne) union(i-width-1, i-width+1);
+					} else if (ne)
+						labels[i] = i-width+2;
+					else
+						labels[i] = i+1;
+				} else {
+					if (n) {
+						labels[i] = i-width+1;
+						if (w) union(i-1, i-width);
+					} else if (w)
+						labels[i] = i;
+					else
+						labels[i] = i+1;
+				}
+			}
+		}
+	}
+
+	/** Joins the particles at the first row of a band with those of the row above. */
+	private void mergeRows(Rectangle r, int y) {
+		int x1 = r.x, x2 = r.x+r.width-1;
+		for (int x=x1, i=y*width+x1; x<=x2; x++, i++) {
+			if (labels[i]==0)
+				continue;
+			if (labels[i-width]!=0)
+				union(i, i-width);
+			else if (eightConnected) {
+				if (x>x1 && labels[i-width-1]!=0)
+					union(i, i-width-1);
+				if (x<x2 && labels[i-width+1]!=0)
+					union(i, i-width+1);
+			}
+		}
+	}
+
+	private int find(int i) {
+		while (labels[i]-1!=i) {
+			int parent = labels[i]-1;
+			labels[i] = labels[parent];	// path halving
+			i = parent;
+		}
+		return i;
+	}
+
+	private void union(int i, int j) {
+		i = find(i);
+		j = find(j);
+		if (i<j)
+			labels[j] = i+1;
+		else if (j<i)
+			labels[i] = j+1;
+	}
+
+	/** Second pass: replaces the parent pointers by the particle numbers and
+		accumulates the statistics. Parents have lower indexes than their
+		children, so they have already been numbered. */
+	private void resolve(Rectangle r, ImageProcessor values) {
+		Object pixels = values!=null?values.getPixels():null;
+		byte[] bytes = pixels instanceof byte[]?(byte[])pixels:null;
+		short[] shorts = pixels instanceof short[]?(short[])pixels:null;
+		float[] floats = pixels instanceof float[]?(float[])pixels:null;
+		for (int y=r.y; y<r.y+r.height; y++) {
+			for (int x=r.x, i=y*width+r.x; x<r.x+r.width; x++, i++) {
+				int parent = labels[i]-1;
+				if (parent<0)
+					continue;
+				int k;
+				if (parent==i) {
+					if (count==pixelCount.length)
+						grow();
+					k = count++;
+					start[k] = i;
+					xmin[k] = xmax[k] = x;
+					ymin[k] = ymax[k] = y;
+					labels[i] = count;
+				} else {
+					labels[i] = labels[parent];
+					k = labels[i]-1;
+					if (x<xmin[k]) xmin[k] = x;
+					if (x>xmax[k]) xmax[k] = x;
+					ymax[k] = y;
+				}
+				pixelCount[k]++;
+				xsum[k] += x;
+				ysum[k] += y;
+				if (values!=null) {
+					double v;
+					if (bytes!=null)
+						v = bytes[i]&255;
+					else if (shorts!=null)
+						v = shorts[i]&0xffff;
+					else if (floats!=null)
+						v = floats[i];
+					else
+						v = values.getf(i);
+					if (pixelCount[k]==1)
+						min[k] = max[k] = v;
+					else if (v<min[k])
+						min[k] = v;
+					else if (v>max[k])
+						max[k] = v;
+					sum[k] += v;
+					sum2[k] += v*v;
+				}
+			}
+		}
+	}
+
+	private void grow() {
+		int n = pixelCount.length*2;
+		pixelCount = Arrays.copyOf(pixelCount, n);
+		start = Arrays.copyOf(start, n);
+		xmin = Arrays.copyOf(xmin, n);
+		ymin = Arrays.copyOf(ymin, n);
+		xmax = Arrays.copyOf(xmax, n);
+		ymax = Arrays.copyOf(ymax, n);
+		xsum = Arrays.copyOf(xsum, n);
+		ysum = Arrays.copyOf(ysum, n);
+		if (sum!=null) {
+			sum = Arrays.copyOf(sum, n);
+			sum2 = Arrays.copyOf(sum2, n);
+			min = Arrays.copyOf(min, n);
+			max = Arrays.copyOf(max, n);
+		}
+	}
+
+	/** Returns the number of particles found by label(). */
+	public int getCount() {
+		return count;
+	}
+
+	/** Returns the label image as an array with the particle number
+		(1, 2, ...) of each pixel, or 0 for the background. */
+	public int[] getLabels() {
+		return labels;
+	}
+
+	/** Returns the number of pixels of particle 'label'. */
+	public int getPixelCount(int label) {
+		return pixelCount[label-1];
+	}
+
+	/** Returns the bounding rectangle of particle 'label'. */
+	public Rectangle getBounds(int label) {
+		int k = label-1;
+		return new Rectangle(xmin[k], ymin[k], xmax[k]-xmin[k]+1, ymax[k]-ymin[k]+1);
+	}
+
+	/** Returns the x coordinate of the first (top left) pixel of particle 'label'. */
+	public int getXStart(int label) {
+		return start[label-1]%width;
+	}
+
+	/** Returns the y coordinate of the first (top left) pixel of particle 'label'. */
+	public int getYStart(int label) {
+		return start[label-1]/width;
+	}
+
+	/** Returns the sum of the x coordinates of the pixels of particle 'label'. */
+	public double getXSum(int label) {
+		return xsum[label-1];
+	}
+
+	/** Returns the sum of the y coordinates of the pixels of particle 'label'. */
+	public double getYSum(int label) {
+		return ysum[label-1];
+	}
+
+	/** Returns the sum of the pixel values of particle 'label', or NaN
+		if no 'values' image was passed to label(). */
+	public double getSum(int label) {
+		return sum!=null?sum[label-1]:Double.NaN;
+	}
+
+	/** Returns the sum of the squared pixel values of particle 'label'. */
+	public double getSumOfSquares(int label) {
+		return sum2!=null?sum2[label-1]:Double.NaN;
+	}
+
+	/** Returns the lowest pixel value of particle 'label'. */
+	public double getMin(int label) {
+		return min!=null?min[label-1]:Double.NaN;
+	}
+
+	/** Returns the highest pixel value of particle 'label'. */
+	public double getMax(int label) {
+		return max!=null?max[label-1]:Double.NaN;
+	}
+
+	/** Returns a mask of the bounding rectangle of particle 'label',
+		with the pixels of the particle set to 255. */
+	public ImageProcessor getMask(int label) {
+		Rectangle r = getBounds(label);
+		byte[] mask = new byte[r.width*r.height];
+		for (int y=0, mi=0; y<r.height; y++) {
+			int i = (r.y+y)*width + r.x;
+			for (int x=0; x<r.width; x++, i++, mi++) {
+				if (labels[i]==label)
+					mask[mi] = (byte)255;
+			}
+		}
+		return new ByteProcessor(r.width, r.height, mask, null);
+	}
+
+}
@@ -6,6 +6,7 @@ import ij.plugin.filter.PlugInFilter.*;
 import ij.plugin.filter.*;
 import ij.measure.Calibration;
 import ij.macro.Interpreter;
+import ij.util.ThreadUtil;
 import java.awt.*;
 import java.util.*;
 
@@ -25,9 +26,7 @@ public class PlugInFilterRunner implements Runnable, DialogListener {
 	private long previewTime;				// time (ms) needed for preview processing
 	private boolean ipChanged;			// whether the image data have been changed
 	private int processedAsPreview;			// the slice processed during preview (if non-zero)
-	private Hashtable<Thread, int[]> slicesForThread;		// gives first&last slice that a given thread should process
-	private Hashtable<Thread, ImageProcessor> roisForThread;// gives ROI that a given thread should process
-	Hashtable sliceForThread = new Hashtable(); // here the stack slice currently processed is stored.
+	private ThreadLocal<int[]> sliceForThread = new ThreadLocal<int[]>(); // here the stack slice currently processed is stored.
 	private int nPasses;						// the number of calls to the run(ip) method of the filter
 	private int pass;						// passes done so far
 	private boolean doStack;
@@ -128,33 +127,17 @@ public class PlugInFilterRunner implements Runnable, DialogListener {
 				nPasses *= slicesToDo;
 				if (theFilter instanceof ExtendedPlugInFilter)
 					((ExtendedPlugInFilter)theFilter).setNPasses(nPasses);
-				int threads = 1;
-				if ((flags&PlugInFilter.PARALLELIZE_STACKS)!=0) {
-					threads = Prefs.getThreads(); // multithread support for multiprocessor machines
-					if (threads>slicesToDo) threads = slicesToDo;
-					if (threads>1) slicesForThread = new Hashtable<Thread, int[]>(threads-1);
-				}
-				int startSlice = 1;
-				for (int i=1; i<threads; i++) {				// setup the background threads
-					int endSlice = (slicesToDo*i)/threads;
-					if (processedAsPreview!=0 && processedAsPreview<=endSlice) endSlice++;
-					Thread bgThread = new Thread(this, command+" "+startSlice+"-"+endSlice);
-					slicesForThread.put(bgThread, new int[] {startSlice, endSlice});
-					bgThread.start();
-					//IJ.log("Stack: Thread for slices "+startSlice+"-"+endSlice+" started");
-					startSlice = endSlice+1;
-				}
-				//IJ.log("Stack: Slices "+startSlice+"-"+slices+" by main thread");
-				processStack(startSlice, slices);			// the current thread does the rest
-				if (slicesForThread != null) {
-					while (slicesForThread.size()>0) {	  // for all other threads:
-						Thread theThread = (Thread)slicesForThread.keys().nextElement();
-						try {
-							theThread.join();				// wait until thread has finished
-						} catch (InterruptedException e) {}
-						slicesForThread.remove(theThread);	// and remove it from the list.
-					}
-				}
+				if ((flags&PlugInFilter.PARALLELIZE_STACKS)!=0 && slicesToDo>1) {
+					// multithread support for multiprocessor machines: the slices are handed out
+					// one by one to the shared pool, so threads that are done early take over more
+					ThreadUtil.parallelFor(1, slices+1, 1, new ThreadUtil.RangeTask() {
+						public void run(int from, int to) {
+							if (!IJ.escapePressed())
+								processStack(from, to-1);
+						}
+					});
+				} else
+					processStack(1, slices);
 			}
 		} // end processing:
 		if ((flags&PlugInFilter.FINAL_PROCESSING)!=0 && !IJ.escapePressed())
@@ -188,11 +171,11 @@ public class PlugInFilterRunner implements Runnable, DialogListener {
 		prepareProcessor(ip, imp);
 		ip.setLineWidth(Line.getWidth());		//in contrast to imp.getProcessor, stack.getProcessor does not do this
 		FloatProcessor fp = null;
-		int slices = imp.getNSlices();
 		for (int i=firstSlice; i<=endSlice; i++) {
 			if (i != processedAsPreview) {
 				announceSliceNumber(i);
-				ip.setPixels(stack.getPixels(i));
+				if (i != firstSlice)					// (getProcessor has read the first one already)
+					ip.setPixels(stack.getPixels(i));
 				ip.setSliceNumber(i);
 				processOneImage(ip, fp, false);
 				if (IJ.escapePressed()) {IJ.beep(); break;}
@@ -307,44 +290,36 @@ public class PlugInFilterRunner implements Runnable, DialogListener {
 	}
 
 	/** process an image or a single color channel of an RGB image by splitting
-	 *	into ROIs and using a separate thread for each roi */
-	private void processChannelUsingThreads(ImageProcessor ip) {
+	 *	into stripes (ROIs) that are processed by the threads of the shared pool.
+	 *	There are more stripes than threads, so that a thread that is faster
+	 *	(e.g. because its stripe has fewer masked pixels) takes over more stripes. */
+	private void processChannelUsingThreads(final ImageProcessor ip) {
 		ImageProcessor mask = ip.getMask();
-		Rectangle roi = ip.getRoi();
+		final Rectangle roi = ip.getRoi();
 		int threads = Prefs.getThreads();
+		final int stripes = Math.min(roi.height, threads>1 ? 4*threads : 1);
 		if (IJ.debugMode)
-			IJ.log("processing channel: "+threads);
-		if (threads>roi.height) threads = roi.height;
-		if (threads>1) roisForThread = new Hashtable<Thread, ImageProcessor>(threads-1);
-		int y1 = roi.y;
-		for (int i=1; i<threads; i++) {
-			int y2 = roi.y+(roi.height*i)/threads-1;
-			Thread bgThread = new Thread(this, command+" "+y1+"-"+y2);
-			Rectangle roi2 = new Rectangle(roi.x, y1, roi.width, y2-y1+1);
-			roisForThread.put(bgThread, duplicateProcessor(ip, roi2));
-			bgThread.start();
-			if (IJ.debugMode)
-				IJ.log("  starting thread: "+y1+"-"+y2);
-			y1 = y2+1;
-		}
-		if (IJ.debugMode)
-			IJ.log("  main thread "+y1+"-"+(roi.y+roi.height));
-		Rectangle roi2 = new Rectangle(roi.x, y1, roi.width, roi.y+roi.height-y1);
-		((PlugInFilter)theFilter).run(duplicateProcessor(ip, roi2)); 	// current thread does the rest
-		pass++;
-		if (roisForThread != null) {
-			for (Enumeration<Thread> en = roisForThread.keys(); en.hasMoreElements();) {
-				Thread theThread = en.nextElement();
+			IJ.log("processing channel: "+threads+" threads, "+stripes+" stripes");
+		final int[] slice = sliceForThread.get();
+		ThreadUtil.parallelFor(0, stripes, 1, new ThreadUtil.RangeTask() {
+			public void run(int from, int to) {
+				int[] previousSlice = sliceForThread.get();
+				if (slice!=null) sliceForThread.set(slice);	// the stripe belongs to the slice of the calling thread
 				try {
-					theThread.join();		// wait until thread has finished
-				} catch (InterruptedException e) { // if preview cancelled:
-					interruptRoiThreads(roisForThread); //interrupt all threads and join
-					Thread.currentThread().interrupt(); //restore 'interrupted' state
-					break;
+					for (int i=from; i<to; i++) {
+						int y1 = roi.y+(roi.height*i)/stripes;
+						int y2 = roi.y+(roi.height*(i+1))/stripes;
+						ImageProcessor ip2 = duplicateProcessor(ip, new Rectangle(roi.x, y1, roi.width, y2-y1));
+						((PlugInFilter)theFilter).run(ip2);
+						ip2.setPixels(null);
+						ip2.setSnapshotPixels(null);
+					}
+				} finally {
+					sliceForThread.set(previousSlice);
 				}
 			}
-		}
-		roisForThread = null;
+		});
+		pass++;
 		ip.setMask(mask);  // restore ROI
 		ip.setRoi(roi);
 	}
@@ -355,17 +330,6 @@ public class PlugInFilterRunner implements Runnable, DialogListener {
 		return ip2;
 	}
 
-	/** interrupt threads processing the rois of an image and wait till they have finished */
-	void interruptRoiThreads(Hashtable<Thread, ImageProcessor> roisForThread) {
-		if (roisForThread==null) return;	//class variable may become null in other thread
-		for (Enumeration<Thread> en = roisForThread.keys(); en.hasMoreElements();)
-			((Thread)en.nextElement()).interrupt(); //interrupt all threads
-		for (Enumeration<Thread> en = roisForThread.keys(); en.hasMoreElements();)
-			try {
-				((Thread)en.nextElement()).join();
-			} catch (Exception e){}
-	}
- 
 	/** test whether an ImagePlus can be processed based on the flags specified
 	 *	and display an error message if not.
 	 */
@@ -419,42 +383,34 @@ public class PlugInFilterRunner implements Runnable, DialogListener {
 		IJ.error(s);
 	}
 
-	/** Make the slice number accessible to the PlugInFilter by putting it
-	 * into the appropriate hashtable.
+	/** Make the slice number accessible to the PlugInFilter by storing it
+	 * as task-local state of the calling thread.
 	 */
 	private void announceSliceNumber(int slice) {
-		synchronized(sliceForThread){
-			Integer number = new Integer(slice);
-			sliceForThread.put(Thread.currentThread(), number);
+		int[] number = sliceForThread.get();
+		if (number==null) {
+			number = new int[1];
+			sliceForThread.set(number);
 		}
+		number[0] = slice;
 	}
 
 	/** Return the slice number currently processed by the calling thread.
 	 * @return The slice number. Returns -1 on error (when not processing).
 	 */
 	public int getSliceNumber() {
-		synchronized(sliceForThread){
-			Integer number = (Integer)sliceForThread.get(Thread.currentThread());
-			return (number == null) ? -1 : number.intValue();
-		}
+		int[] number = sliceForThread.get();
+		return (number == null) ? -1 : number[0];
 	}
 
-	/** The dispatcher for the background threads
+	/** The dispatcher for the background thread of the preview
 	 */
 	public void run() {
 		Thread thread = Thread.currentThread();
 		try {
 			if (thread==previewThread)
 				runPreview();
-			else if (roisForThread!=null && roisForThread.containsKey(thread)) {
-				ImageProcessor ip = (ImageProcessor)roisForThread.get(thread);
-				((PlugInFilter)theFilter).run(ip);
-				ip.setPixels(null);
-				ip.setSnapshotPixels(null);
-			} else if (slicesForThread!=null && slicesForThread.containsKey(thread)) {
-				int[] range = (int[])slicesForThread.get(thread);
-				processStack(range[0], range[1]);
-			} else
+			else
 				IJ.error("PlugInFilterRunner internal error:\nunsolicited background thread");
 		} catch (Exception err) {
 			if (thread==previewThread) {
@@ -542,7 +498,7 @@ public class PlugInFilterRunner implements Runnable, DialogListener {
 			}
 		}
 		imp.updateAndDraw();						//display current state of image (reset or result of preview)
-		sliceForThread.remove(thread);				//no need to announce the slice number any more
+		sliceForThread.remove();					//no need to announce the slice number any more
 	 }
 
 	/** stop the background process responsible for preview as fast as possible
@@ -552,8 +508,6 @@ public class PlugInFilterRunner implements Runnable, DialogListener {
 		synchronized (this) {
 			previewThread.interrupt();		//ask for premature finishing (interrupt first -> no keepPreview)
 			bgPreviewOn = false;				//tell a possible background thread to terminate when it has finished
-			if (roisForThread!=null)
-				interruptRoiThreads(roisForThread);
 		}
 		waitForPreviewDone();
 		imp.setOverlay(originalOverlay);
@@ -5,6 +5,7 @@ import ij.gui.DialogListener;
 import ij.gui.Roi;
 import ij.process.*;
 import ij.plugin.ContrastEnhancer;
+import ij.util.ThreadUtil;
 import java.awt.*;
 import java.awt.event.*;
 import java.util.Arrays;
@@ -45,6 +46,12 @@ public class RankFilters implements ExtendedPlugInFilter, DialogListener {
 	private int highestYinCache;		// the highest line read into the cache so far
 	private boolean threadWaiting;		// a thread waits until it may read data
 	private boolean copyingToCache;		// whether a thread is currently copying data to the cache
+	private static final int NOT_STARTED = Integer.MIN_VALUE; // marks threads in 'yForThread' that have not started yet
+	// Kernel radii from where on the faster algorithms for large kernels are used
+	private static final int HISTOGRAM_MIN_RADIUS = 2, HISTOGRAM_MIN_RADIUS_16BIT = 4;	// median&outliers, 8-bit or RGB and 16-bit
+	private static final int VAN_HERK_MIN_RADIUS = 4;	// min&max
+	private static final double VAN_HERK_COST = 3.0;	// time per pixel and kernel line, relative to reading a pixel
+	private static final int VAN_HERK_RETEST_LINES = 16;	// check whether the incremental min&max has become faster
 
 	private boolean isMultiStepFilter(int filterType) {
 		return filterType>=OPEN;
@@ -251,36 +258,19 @@ public class RankFilters implements ExtendedPlugInFilter, DialogListener {
 		highestYinCache = Math.max(roi.y-kHeight/2, 0) - 1; //this line+1 will be read into the cache first
 
 		final int[] yForThread = new int[numThreads];		//threads announce here which line they currently process
-		Arrays.fill(yForThread, -1);
-		yForThread[numThreads-1] = roi.y-1;					//first thread started should begin at roi.y
+		Arrays.fill(yForThread, NOT_STARTED);				//threads of the pool may start late (or not at all if the others are faster)
 		//IJ.log("going to filter lines "+roi.y+"-"+(roi.y+roi.height-1)+"; cacheHeight="+cacheHeight);
-		final Thread[] threads = new Thread[numThreads-1];	//thread number 0 is this one, not in the array
-		for (int t=numThreads-1; t>0; t--) {
-			final int ti=t;
-			final Thread thread = new Thread(
-					new Runnable() {
-						final public void run() {
-							doFiltering(ip, lineRadii, cache, cacheWidth, cacheHeight,
-									filterType, minMaxOutliersSign, threshold, colorChannel,
-									yForThread, ti, aborted);
-						}
-					},
-			"RankFilters-"+t);
-			thread.setPriority(Thread.currentThread().getPriority());
-			thread.start();
-			threads[ti-1] = thread;
-		}
-
-		doFiltering(ip, lineRadii, cache, cacheWidth, cacheHeight,
-				filterType, minMaxOutliersSign, threshold, colorChannel,
-				yForThread, 0, aborted);
-		for (final Thread thread : threads)
-			try {
-					if (thread != null) thread.join();
-			} catch (InterruptedException e) {
-				aborted[0] = true;
-				Thread.currentThread().interrupt();	  //keep interrupted status (PlugInFilterRunner needs it)
+		final Thread mainThread = Thread.currentThread();	//the calling thread is one of the threads, others come from the shared pool
+		ThreadUtil.parallelFor(0, numThreads, 1, new ThreadUtil.RangeTask() {
+			public void run(int from, int to) {
+				for (int t=from; t<to; t++)
+					doFiltering(ip, lineRadii, cache, cacheWidth, cacheHeight,
+							filterType, minMaxOutliersSign, threshold, colorChannel,
+							yForThread, t, Thread.currentThread()==mainThread, aborted);
 			}
+		});
+		if (Thread.currentThread().isInterrupted())
+			aborted[0] = true;							//keep interrupted status (PlugInFilterRunner needs it)
 		showProgress(1.0, ip instanceof ColorProcessor);
 		pass++;
 	}
@@ -310,7 +300,7 @@ public class RankFilters implements ExtendedPlugInFilter, DialogListener {
 	// operation than the median.
 	private void doFiltering(ImageProcessor ip, int[] lineRadii, float[] cache, int cacheWidth, int cacheHeight,
 			int filterType, float minMaxOutliersSign, float threshold, int colorChannel,
-			int [] yForThread, int threadNumber, boolean[] aborted) {
+			int [] yForThread, int threadNumber, boolean isMainThread, boolean[] aborted) {
 		if (aborted[0] || Thread.currentThread().isInterrupted()) return;
 		int width = ip.getWidth();
 		int height = ip.getHeight();
@@ -342,6 +332,17 @@ public class RankFilters implements ExtendedPlugInFilter, DialogListener {
 
 		Object pixels = ip.getPixels();
 		boolean isFloat = pixels instanceof float[];
+		boolean is16bit = pixels instanceof short[];
+		// median of integer data with a sliding histogram; min&max with the van Herk/Gil-Werman algorithm
+		boolean useHistogram = medianFilter && !isFloat && kRadius >= (is16bit ? HISTOGRAM_MIN_RADIUS_16BIT : HISTOGRAM_MIN_RADIUS);
+		int coarseShift = is16bit ? 8 : 4;
+		int[] histogram = useHistogram ? new int[is16bit ? 65536 : 256] : null;
+		int[] coarseHistogram = useHistogram ? new int[histogram.length>>coarseShift] : null;
+		boolean useVanHerk = minOrMax && kRadius >= VAN_HERK_MIN_RADIUS;
+		float[] prefixMax = useVanHerk ? new float[cacheWidth] : null;
+		float[] suffixMax = useVanHerk ? new float[cacheWidth] : null;
+		boolean vanHerkLines = false;		//whether the previous line was faster with van Herk/Gil-Werman
+		int nLines = 0;
 		float maxValue = isFloat ? Float.NaN : (float)ip.maxValue();
 		float[] values = isFloat ? (float[])pixels : new float[roi.width];
 
@@ -351,7 +352,7 @@ public class RankFilters implements ExtendedPlugInFilter, DialogListener {
 		boolean rgb = ip instanceof ColorProcessor;
 
 		while (!aborted[0]) {
-			int y = arrayMax(yForThread) + 1;		// y of the next line that needs processing
+			int y = Math.max(arrayMax(yForThread) + 1, roi.y);	// y of the next line that needs processing
 			yForThread[threadNumber] = y;
 			//IJ.log("thread "+threadNumber+" @y="+y+" needs"+(y-kHeight/2)+"-"+(y+kHeight/2)+" highestYinC="+highestYinCache);
 			boolean threadFinished = y >= roi.y+roi.height;
@@ -363,7 +364,7 @@ public class RankFilters implements ExtendedPlugInFilter, DialogListener {
 			if (threadFinished)
 				return;								// all done, break the loop
 
-			if (threadNumber==0) {					// main thread checks for abort and ProgressBar
+			if (isMainThread) {						// main thread checks for abort and ProgressBar
 				long time = System.currentTimeMillis();
 				if (time-lastTime>100) {
 					lastTime = time;
@@ -381,10 +382,10 @@ public class RankFilters implements ExtendedPlugInFilter, DialogListener {
 			previousY = y;
 
 			if (numThreads>1) {							// thread synchronization
-				int slowestThreadY = arrayMinNonNegative(yForThread); // non-synchronized check to avoid overhead
+				int slowestThreadY = arrayMinOfStarted(yForThread); // non-synchronized check to avoid overhead
 				if (y - slowestThreadY + kHeight > cacheHeight) {	// we would overwrite data needed by another thread
 					synchronized(this) {
-						slowestThreadY = arrayMinNonNegative(yForThread); //recheck whether we have to wait
+						slowestThreadY = arrayMinOfStarted(yForThread); //recheck whether we have to wait
 						if (y - slowestThreadY + kHeight > cacheHeight) {
 							do {
 								notifyAll();			// avoid deadlock: wake up others waiting
@@ -399,7 +400,7 @@ public class RankFilters implements ExtendedPlugInFilter, DialogListener {
 									Thread.currentThread().interrupt(); //keep interrupted status (PlugInFilterRunner needs it)
 									return;
 								}
-								slowestThreadY = arrayMinNonNegative(yForThread);
+								slowestThreadY = arrayMinOfStarted(yForThread);
 							} while (y - slowestThreadY + kHeight > cacheHeight);
 						} //if
 						threadWaiting = false;
@@ -416,7 +417,7 @@ public class RankFilters implements ExtendedPlugInFilter, DialogListener {
 			} else {
 				if (!copyingToCache || highestYinCache < y+kHeight/2) synchronized(cache) {
 					copyingToCache = true;				// copy new line(s) into cache
-					while (highestYinCache < arrayMinNonNegative(yForThread) - kHeight/2 + cacheHeight - 1) {
+					while (highestYinCache < arrayMinOfStarted(yForThread) - kHeight/2 + cacheHeight - 1) {
 						int yNew = highestYinCache + 1;
 						readLineToCacheOrPad(pixels, width, height, roi.y, xminInside, widthInside,
 							cache, cacheWidth, cacheHeight, padLeft, padRight, colorChannel, kHeight, yNew);
@@ -427,9 +428,19 @@ public class RankFilters implements ExtendedPlugInFilter, DialogListener {
 			}
 
 			int cacheLineP = cacheWidth * (y % cacheHeight) + kRadius;	//points to pixel (roi.x, y)
-			filterLine(values, width, cache, cachePointers, kNPoints, cacheLineP, roi, y,	// F I L T E R
-					sums, medianBuf1, medianBuf2, minMaxOutliersSign, maxValue, isFloat, filterType,
-					smallKernel, sumFilter, minOrMax, minOrMaxOrOutliers, threshold);
+			if (useHistogram)																// F I L T E R
+				filterLineHistogram(values, cache, cachePointers, kNPoints, cacheLineP, roi,
+						histogram, coarseHistogram, coarseShift, minMaxOutliersSign, filterType, threshold);
+			else if (vanHerkLines && (nLines++)%VAN_HERK_RETEST_LINES != 0)
+				filterLineMinMax(values, width, cache, cachePointers, roi, y,
+						prefixMax, suffixMax, minMaxOutliersSign, isFloat);
+			else {
+				int nAreaScans = filterLine(values, width, cache, cachePointers, kNPoints, cacheLineP, roi, y,
+						sums, medianBuf1, medianBuf2, minMaxOutliersSign, maxValue, isFloat, filterType,
+						smallKernel, sumFilter, minOrMax, minOrMaxOrOutliers, threshold);
+				if (useVanHerk)			//van Herk/Gil-Werman is faster if the incremental algorithm often needs the full area
+					vanHerkLines = nAreaScans*(double)kNPoints > VAN_HERK_COST*kHeight*roi.width;
+			}
 			if (!isFloat)		//Float images: data are written already during 'filterLine'
 				writeLineToPixels(values, pixels, roi.x+y*width, roi.width, colorChannel);	// W R I T E
 			//IJ.log("thread "+threadNumber+" @y="+y+" line done");
@@ -443,26 +454,30 @@ public class RankFilters implements ExtendedPlugInFilter, DialogListener {
 		return max;
 	}
 
-	//returns the minimum of the array, but not less than 0
-	private int arrayMinNonNegative(int[] array) {
+	//returns the minimum of the array, but not less than 0; threads that have not started yet are ignored
+	private int arrayMinOfStarted(int[] array) {
 		int min = Integer.MAX_VALUE;
 		for (int i=0; i<array.length; i++)
-			if (array[i]<min) min = array[i];
+			if (array[i]<min && array[i]!=NOT_STARTED) min = array[i];
 		return min<0 ? 0 : min;
 	}
 
-	private void filterLine(float[] values, int width, float[] cache, int[] cachePointers, int kNPoints, int cacheLineP, Rectangle roi, int y,
+	//returns the number of times that the min or max of the full kernel area had to be determined
+	private int filterLine(float[] values, int width, float[] cache, int[] cachePointers, int kNPoints, int cacheLineP, Rectangle roi, int y,
 			double[] sums, float[] medianBuf1, float[] medianBuf2, float minMaxOutliersSign, float maxValue, boolean isFloat, int filterType,
 			boolean smallKernel, boolean sumFilter, boolean minOrMax, boolean minOrMaxOrOutliers, float threshold) {
 			int valuesP = isFloat ? roi.x+y*width : 0;
 			float max = 0f;
 			float median = Float.isNaN(cache[cacheLineP]) ? 0 : cache[cacheLineP];	// a first guess
 			boolean fullCalculation = true;
+			int nAreaScans = 0;
 			for (int x=0; x<roi.width; x++, valuesP++) {							// x is with respect to roi.x
 				if (fullCalculation) {
 					fullCalculation = smallKernel;	//for small kernel, always use the full area, not incremental algorithm
-					if (minOrMaxOrOutliers)
+					if (minOrMaxOrOutliers) {
 						max = getAreaMax(cache, x, cachePointers, 0, -Float.MAX_VALUE, minMaxOutliersSign);
+						nAreaScans++;
+					}
 					if (minOrMax) {
 						values[valuesP] = max*minMaxOutliersSign;
 						continue;
@@ -476,8 +491,10 @@ public class RankFilters implements ExtendedPlugInFilter, DialogListener {
 							max = newPointsMax;
 						} else {
 							float removedPointsMax = getSideMax(cache, x, cachePointers, false, minMaxOutliersSign);
-							if (removedPointsMax >= max)
+							if (removedPointsMax >= max) {
 								max = getAreaMax(cache, x, cachePointers, 1, newPointsMax, minMaxOutliersSign);
+								nAreaScans++;
+							}
 						}
 						if (minOrMax) {
 							values[valuesP] = max*minMaxOutliersSign;
@@ -520,7 +537,118 @@ public class RankFilters implements ExtendedPlugInFilter, DialogListener {
 						median = values[valuesP];	//initial guess for the next point
 				}
 			} // for x
+			return nAreaScans;
+		}
+
+	/** Median or outliers filter for one line of integer data (8-bit, 16-bit or one channel of RGB).
+	 *	Uses a histogram of the kernel area that slides along the line (Huang's algorithm):
+	 *	Moving by one pixel, it removes the pixels at the left border and adds those at the right
+	 *	border of the kernel, i.e., two pixels per kernel line. The median is tracked from one pixel
+	 *	to the next; for 16 bits a coarse histogram (256 bins of 256 values) allows to skip empty
+	 *	ranges. The histogram must be empty on entry and is empty again on return. */
+	private static void filterLineHistogram(float[] values, float[] cache, int[] cachePointers, int kNPoints,
+			int cacheLineP, Rectangle roi, int[] histogram, int[] coarseHistogram, int coarseShift,
+			float minMaxOutliersSign, int filterType, float threshold) {
+		int half = kNPoints/2;
+		int coarseSize = 1<<coarseShift;
+		int coarseMask = coarseSize-1;
+		for (int kk=0; kk<cachePointers.length; kk++)
+			for (int p=cachePointers[kk++]; p<=cachePointers[kk]; p++) {
+				int v = (int)cache[p];
+				histogram[v]++;
+				coarseHistogram[v>>coarseShift]++;
+			}
+		int median = 0;		//the current median
+		int nBelow = 0;		//number of values in the kernel area below 'median'
+		for (int x=0; x<roi.width; x++) {
+			if (x>0) {
+				for (int kk=0; kk<cachePointers.length; /*k++;k++ below*/) {
+					int v = (int)cache[cachePointers[kk++]+(x-1)];	//this value is not in the kernel area any more
+					histogram[v]--;
+					coarseHistogram[v>>coarseShift]--;
+					if (v<median) nBelow--;
+					v = (int)cache[cachePointers[kk++]+x];			//this value comes into the kernel area
+					histogram[v]++;
+					coarseHistogram[v>>coarseShift]++;
+					if (v<median) nBelow++;
+				}
+			}
+			while (nBelow > half) {							//median is lower
+				if ((median&coarseMask)==0 && nBelow-coarseHistogram[(median>>coarseShift)-1] > half) {
+					median -= coarseSize;
+					nBelow -= coarseHistogram[median>>coarseShift];
+				} else {
+					median--;
+					nBelow -= histogram[median];
+				}
+			}
+			while (nBelow+histogram[median] <= half) {		//median is higher
+				if ((median&coarseMask)==0 && nBelow+coarseHistogram[median>>coarseShift] <= half) {
+					nBelow += coarseHistogram[median>>coarseShift];
+					median += coarseSize;
+				} else {
+					nBelow += histogram[median];
+					median++;
+				}
+			}
+			if (filterType == MEDIAN)
+				values[x] = median;
+			else {	// OUTLIERS: beyond threshold (below if minMaxOutliersSign=+1), replace outlier by median
+				float v = cache[cacheLineP+x];
+				values[x] = v*minMaxOutliersSign+threshold < median*minMaxOutliersSign ? median : v;
+			}
+		}
+		int xLast = roi.width-1;	//clear the histogram
+		for (int kk=0; kk<cachePointers.length; kk++)
+			for (int p=cachePointers[kk++]+xLast; p<=cachePointers[kk]+xLast; p++) {
+				int v = (int)cache[p];
+				histogram[v]--;
+				coarseHistogram[v>>coarseShift]--;
+			}
+	}
+
+	/** Minimum or maximum filter for one line. The circular kernel is decomposed into its lines;
+	 *	the maximum (or -minimum if sign=-1) over each kernel line is determined with the van Herk/
+	 *	Gil-Werman algorithm, which needs 3 comparisons per pixel, independent of the kernel size:
+	 *	For blocks of the kernel line length, the running maximum from the block start ('prefixMax')
+	 *	and from the block end ('suffixMax') are computed. Each kernel line position contains the
+	 *	end of one block and the start of the next, thus its maximum is the maximum of these two.
+	 *	NaN values are ignored, as in the other algorithms. */
+	private static void filterLineMinMax(float[] values, int width, float[] cache, int[] cachePointers, Rectangle roi, int y,
+			float[] prefixMax, float[] suffixMax, float sign, boolean isFloat) {
+		int valuesP = isFloat ? roi.x+y*width : 0;
+		int n = roi.width;
+		for (int x=0; x<n; x++)
+			values[valuesP+x] = -Float.MAX_VALUE;
+		for (int kk=0; kk<cachePointers.length; kk+=2) {
+			int p0 = cachePointers[kk];
+			int length = cachePointers[kk+1] - p0 + 1;	//length of the kernel line
+			int nData = n + length - 1;					//number of cache values needed
+			for (int blockStart=0; blockStart<nData; blockStart+=length) {
+				int blockEnd = Math.min(blockStart+length, nData);
+				float max = -Float.MAX_VALUE;
+				for (int i=blockStart, p=p0+blockStart; i<blockEnd; i++, p++) {
+					float v = cache[p]*sign;
+					if (v > max) max = v;
+					prefixMax[i] = max;
+				}
+				max = -Float.MAX_VALUE;
+				for (int i=blockEnd-1, p=p0+blockEnd-1; i>=blockStart; i--, p--) {
+					float v = cache[p]*sign;
+					if (v > max) max = v;
+					suffixMax[i] = max;
+				}
+			}
+			for (int x=0; x<n; x++) {
+				float max = suffixMax[x];
+				float v = prefixMax[x+length-1];
+				if (v > max) max = v;
+				if (max > values[valuesP+x]) values[valuesP+x] = max;
+			}
 		}
+		for (int x=0; x<n; x++)
+			values[valuesP+x] *= sign;
+	}
 
 	/** Read a line into the cache (including padding in x).
 	 *	If y>=height, instead of reading new data, it duplicates the line y=height-1.
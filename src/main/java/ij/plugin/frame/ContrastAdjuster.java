@@ -777,14 +777,22 @@ public class ContrastAdjuster extends PlugInDialog implements Runnable,
 	void autoAdjust(ImagePlus imp, ImageProcessor ip) {
  		if (RGBImage)
 			ip.reset();
-		ImageStatistics stats = imp.getRawStatistics();
-		int limit = stats.pixelCount/10;
+		ImageStatistics stats;
+		long pixelCount;
+		if (IJ.altKeyDown() && imp.getStackSize()>1 && !RGBImage && !imp.isComposite()) {
+			stats = imp.getStackStatistics();	// alt-click: use the histogram of the whole stack
+			pixelCount = stats.longPixelCount;
+		} else {
+			stats = imp.getRawStatistics();
+			pixelCount = stats.pixelCount;
+		}
+		long limit = pixelCount/10;
 		int[] histogram = stats.histogram;
 		if (autoThreshold<10)
 			autoThreshold = AUTO_THRESHOLD;
 		else
 			autoThreshold /= 2;
-		int threshold = stats.pixelCount/autoThreshold;
+		long threshold = pixelCount/autoThreshold;
 		int i = -1;
 		boolean found = false;
 		int count;
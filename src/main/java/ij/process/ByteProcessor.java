@@ -5,6 +5,7 @@ import java.awt.*;
 import java.awt.image.*;
 import ij.gui.*;
 import ij.Prefs;
+import ij.util.ThreadUtil;
 
 /**
 This is an 8-bit image and methods that operate on that image. Based on the ImageProcessor class
@@ -907,44 +908,92 @@ public class ByteProcessor extends ImageProcessor {
 			ip2.setBackgroundValue(getBackgroundValue());
 		}
 		boolean checkCoordinates = (xScale < 1.0) || (yScale < 1.0);
-		int index1, index2, xsi, ysi;
-		double ys, xs;
-		if (interpolationMethod==BICUBIC) {
-			for (int y=ymin; y<=ymax; y++) {
-				ys = (y-yCenter)/yScale + yCenter;
-				index1 = y*width + xmin;
-				index2 = width*(int)ys;
-				for (int x=xmin; x<=xmax; x++) {
-					xs = (x-xCenter)/xScale + xCenter;
-					int value = (int)(getBicubicInterpolatedPixel(xs, ys, ip2)+0.5);
-					if (value<0) value = 0;
-					if (value>255) value = 255;
-					pixels[index1++] = (byte)value;
+		ResampleTable xTable = ResampleTable.getTable(width, xmax-xmin+1, xmin, xCenter, xScale, xCenter);
+		ResampleTable yTable = ResampleTable.getTable(height, ymax-ymin+1, ymin, yCenter, yScale, yCenter);
+		resample(pixels2, ip2, pixels, width, xmin, ymin, xTable, yTable, true, checkCoordinates, (byte)bgColor);
+	}
+
+	/** Resamples 'src' (this image or a copy of it) into the rectangle of 'dst' that
+		starts at (x0, y0), with the coordinates given by the tables, row bands in
+		parallel. With 'scaling', the rows of nearest neighbor sampling are limited
+		as with bilinear interpolation and, if 'checkCoordinates', pixels that map
+		to outside of the rectangle are set to 'bg' (scale); otherwise the
+		coordinates are not changed (resize). Pixels where bicubic interpolation
+		reaches beyond the edge are done afterwards with getBicubicInterpolatedPixel,
+		which is not thread-safe if 'srcIp' is this processor. */
+	private void resample(final byte[] src, ImageProcessor srcIp, final byte[] dst, final int dstWidth,
+	final int x0, final int y0, final ResampleTable xt, final ResampleTable yt,
+	final boolean scaling, final boolean checkCoordinates, final byte bg) {
+		final int method = interpolationMethod;
+		final int xmax = x0+xt.n-1, ymax = y0+yt.n-1;
+		ThreadUtil.parallelFor(0, yt.n, new ThreadUtil.RangeTask() {
+			public void run(int from, int to) {
+				for (int y=from; y<to; y++) {
+					int index = (y0+y)*dstWidth + x0;
+					boolean yOutside = checkCoordinates && (yt.truncated[y]<y0 || yt.truncated[y]>ymax);
+					if (method==BICUBIC) {
+						if (!yt.cubicInside[y])
+							continue;
+						int rowBase = yt.cubicBase[y]*width;
+						int wy = 4*y;
+						for (int x=0; x<xt.n; x++, index++) {
+							if (!xt.cubicInside[x])
+								continue;
+							int offset = rowBase + xt.cubicBase[x];
+							int wx = 4*x;
+							double q = 0;
+							for (int j=0; j<=3; j++, offset+=width) {
+								double p = 0;
+								for (int i=0; i<=3; i++)
+									p = p + (src[offset+i]&255)*xt.cubicWeights[wx+i];
+								q = q + p*yt.cubicWeights[wy+j];
+							}
+							int value = (int)(q+0.5);
+							if (value<0) value = 0;
+							if (value>255) value = 255;
+							dst[index] = (byte)value;
+						}
+					} else if (method==BILINEAR) {
+						int rowBase = yt.base[y]*width;
+						double yFraction = yt.fraction[y];
+						for (int x=0; x<xt.n; x++, index++) {
+							if (yOutside || (checkCoordinates && (xt.truncated[x]<x0 || xt.truncated[x]>xmax)))
+								dst[index] = bg;
+							else {
+								int offset = rowBase + xt.base[x];
+								double xFraction = xt.fraction[x];
+								int lowerLeft = src[offset]&255;
+								int lowerRight = src[offset + 1]&255;
+								int upperRight = src[offset + width + 1]&255;
+								int upperLeft = src[offset + width]&255;
+								double upperAverage = upperLeft + xFraction * (upperRight - upperLeft);
+								double lowerAverage = lowerLeft + xFraction * (lowerRight - lowerLeft);
+								double value = lowerAverage + yFraction * (upperAverage - lowerAverage);
+								dst[index] = (byte)((int)(value+0.5)&255);
+							}
+						}
+					} else {
+						int rowBase = (scaling?yt.base[y]:yt.truncated[y])*width;
+						for (int x=0; x<xt.n; x++, index++) {
+							if (yOutside || (checkCoordinates && (xt.truncated[x]<x0 || xt.truncated[x]>xmax)))
+								dst[index] = bg;
+							else
+								dst[index] = src[rowBase+xt.truncated[x]];
+						}
+					}
 				}
 			}
-		} else {
-			double xlimit = width-1.0, xlimit2 = width-1.001;
-			double ylimit = height-1.0, ylimit2 = height-1.001;
-			for (int y=ymin; y<=ymax; y++) {
-				ys = (y-yCenter)/yScale + yCenter;
-				ysi = (int)ys;
-				if (ys<0.0) ys = 0.0;			
-				if (ys>=ylimit) ys = ylimit2;
-				index1 = y*width + xmin;
-				index2 = width*(int)ys;
-				for (int x=xmin; x<=xmax; x++) {
-					xs = (x-xCenter)/xScale + xCenter;
-					xsi = (int)xs;
-					if (checkCoordinates && ((xsi<xmin) || (xsi>xmax) || (ysi<ymin) || (ysi>ymax)))
-						pixels[index1++] = (byte)bgColor;
-					else {
-						if (interpolationMethod==BILINEAR) {
-							if (xs<0.0) xs = 0.0;
-							if (xs>=xlimit) xs = xlimit2;
-							pixels[index1++] =(byte)((int)(getInterpolatedPixel(xs, ys, pixels2)+0.5)&255);
-						} else
-							pixels[index1++] = pixels2[index2+xsi];
-					}
+		});
+		if (method==BICUBIC) {
+			for (int y=0; y<yt.n; y++) {
+				int index = (y0+y)*dstWidth + x0;
+				int nx = yt.cubicInside[y]?xt.cubicOutside.length:xt.n;
+				for (int k=0; k<nx; k++) {
+					int x = yt.cubicInside[y]?xt.cubicOutside[k]:k;
+					int value = (int)(getBicubicInterpolatedPixel(xt.coordinates[x], yt.coordinates[y], srcIp)+0.5);
+					if (value<0) value = 0;
+					if (value>255) value = 255;
+					dst[index+x] = (byte)value;
 				}
 			}
 		}
@@ -986,47 +1035,9 @@ public class ByteProcessor extends ImageProcessor {
 		}
 		ImageProcessor ip2 = createProcessor(dstWidth, dstHeight);
 		byte[] pixels2 = (byte[])ip2.getPixels();
-		int inc = getProgressIncrement(dstWidth,dstHeight);
-		double xs, ys;
-		int index1, index2;
-		if (interpolationMethod==BICUBIC) {
-			for (int y=0; y<=dstHeight-1; y++) {
-				if (inc!=0&&y%inc==0) showProgress((double)y/dstHeight);
-				ys = (y-dstCenterY)/yScale + srcCenterY;
-				index1 = width*(int)ys;
-				index2 = y*dstWidth;
-				for (int x=0; x<=dstWidth-1; x++) {
-					xs = (x-dstCenterX)/xScale + srcCenterX;
-					int value = (int)(getBicubicInterpolatedPixel(xs, ys, this)+0.5);
-					if (value<0) value = 0;
-					if (value>255) value = 255;
-					pixels2[index2++] = (byte)value;
-				}
-			}
-		} else {
-			double xlimit = width-1.0, xlimit2 = width-1.001;
-			double ylimit = height-1.0, ylimit2 = height-1.001;
-			for (int y=0; y<=dstHeight-1; y++) {
-				if (inc!=0&&y%inc==0) showProgress((double)y/dstHeight);
-				ys = (y-dstCenterY)/yScale + srcCenterY;
-				if (interpolationMethod==BILINEAR) {
-					if (ys<0.0) ys = 0.0;
-					if (ys>=ylimit) ys = ylimit2;
-				}
-				index1 = width*(int)ys;
-				index2 = y*dstWidth;
-				for (int x=0; x<=dstWidth-1; x++) {
-					xs = (x-dstCenterX)/xScale + srcCenterX;
-					if (interpolationMethod==BILINEAR) {
-						if (xs<0.0) xs = 0.0;
-						if (xs>=xlimit) xs = xlimit2;
-						pixels2[index2++] = (byte)((int)(getInterpolatedPixel(xs, ys, pixels)+0.5)&255);
-					} else
-						pixels2[index2++] = pixels[index1+(int)xs];
-				}
-			}
-		}
-		if (inc!=0) showProgress(1.0);
+		ResampleTable xTable = ResampleTable.getTable(width, dstWidth, 0, dstCenterX, xScale, srcCenterX);
+		ResampleTable yTable = ResampleTable.getTable(height, dstHeight, 0, dstCenterY, yScale, srcCenterY);
+		resample(pixels, this, pixels2, dstWidth, 0, 0, xTable, yTable, false, false, (byte)0);
 		return ip2;
 	}
 
@@ -1036,69 +1047,62 @@ public class ByteProcessor extends ImageProcessor {
 	public void rotate(double angle) {
         if (angle%360==0)
         	return;
-		byte[] pixels2 = (byte[])getPixelsCopy();
-		ImageProcessor ip2 = null;
+		final byte[] pixels2 = (byte[])getPixelsCopy();
+		ImageProcessor ip = null;
 		if (interpolationMethod==BICUBIC) {
-			ip2 = new ByteProcessor(getWidth(), getHeight(), pixels2, null);
-			ip2.setBackgroundValue(getBackgroundValue());
+			ip = new ByteProcessor(getWidth(), getHeight(), pixels2, null);
+			ip.setBackgroundValue(getBackgroundValue());
 		}
-		double centerX = roiX + (roiWidth-1)/2.0;
-		double centerY = roiY + (roiHeight-1)/2.0;
-		int xMax = roiX + this.roiWidth - 1;
+		final ImageProcessor ip2 = ip;
+		final double centerX = roiX + (roiWidth-1)/2.0;
+		final double centerY = roiY + (roiHeight-1)/2.0;
+		final int xMax = roiX + this.roiWidth - 1;
 		if (!bgColorSet && isInvertedLut()) bgColor = 0;
 		
 		double angleRadians = -angle/(180.0/Math.PI);
-		double ca = Math.cos(angleRadians);
-		double sa = Math.sin(angleRadians);
-		double tmp1 = centerY*sa-centerX*ca;
-		double tmp2 = -centerX*sa-centerY*ca;
-		double tmp3, tmp4, xs, ys;
-		int index, ixs, iys;
-		double dwidth=width, dheight=height;
-		double xlimit = width-1.0, xlimit2 = width-1.001;
-		double ylimit = height-1.0, ylimit2 = height-1.001;
-		
-		if (interpolationMethod==BICUBIC) {
-			for (int y=roiY; y<(roiY + roiHeight); y++) {
-				index = y*width + roiX;
-				tmp3 = tmp1 - y*sa + centerX;
-				tmp4 = tmp2 + y*ca + centerY;
-				for (int x=roiX; x<=xMax; x++) {
-					xs = x*ca + tmp3;
-					ys = x*sa + tmp4;
-					int value = (int)(getBicubicInterpolatedPixel(xs, ys, ip2)+0.5);
-					if (value<0) value = 0;
-					if (value>255) value = 255;
-					pixels[index++] = (byte)value;
-				}
-			}
-		} else {
-			for (int y=roiY; y<(roiY + roiHeight); y++) {
-				index = y*width + roiX;
-				tmp3 = tmp1 - y*sa + centerX;
-				tmp4 = tmp2 + y*ca + centerY;
-				for (int x=roiX; x<=xMax; x++) {
-					xs = x*ca + tmp3;
-					ys = x*sa + tmp4;
-					if ((xs>=-0.01) && (xs<dwidth) && (ys>=-0.01) && (ys<dheight)) {
-						if (interpolationMethod==BILINEAR) {
-							if (xs<0.0) xs = 0.0;
-							if (xs>=xlimit) xs = xlimit2;
-							if (ys<0.0) ys = 0.0;			
-							if (ys>=ylimit) ys = ylimit2;
-							pixels[index++] = (byte)(getInterpolatedPixel(xs, ys, pixels2)+0.5);
-						} else {
-							ixs = (int)(xs+0.5);
-							iys = (int)(ys+0.5);
-							if (ixs>=width) ixs = width - 1;
-							if (iys>=height) iys = height -1;
-							pixels[index++] = pixels2[width*iys+ixs];
-						}
-					} else
-						pixels[index++] = (byte)bgColor;
+		final double ca = Math.cos(angleRadians);
+		final double sa = Math.sin(angleRadians);
+		final double tmp1 = centerY*sa-centerX*ca;
+		final double tmp2 = -centerX*sa-centerY*ca;
+		final double dwidth=width, dheight=height;
+		final double xlimit = width-1.0, xlimit2 = width-1.001;
+		final double ylimit = height-1.0, ylimit2 = height-1.001;
+		final int method = interpolationMethod;
+		final byte bg = (byte)bgColor;
+		ThreadUtil.parallelFor(roiY, roiY+roiHeight, new ThreadUtil.RangeTask() {
+			public void run(int from, int to) {
+				for (int y=from; y<to; y++) {
+					int index = y*width + roiX;
+					double tmp3 = tmp1 - y*sa + centerX;
+					double tmp4 = tmp2 + y*ca + centerY;
+					for (int x=roiX; x<=xMax; x++) {
+						double xs = x*ca + tmp3;
+						double ys = x*sa + tmp4;
+						if (method==BICUBIC) {
+							int value = (int)(getBicubicInterpolatedPixel(xs, ys, ip2)+0.5);
+							if (value<0) value = 0;
+							if (value>255) value = 255;
+							pixels[index++] = (byte)value;
+						} else if ((xs>=-0.01) && (xs<dwidth) && (ys>=-0.01) && (ys<dheight)) {
+							if (method==BILINEAR) {
+								if (xs<0.0) xs = 0.0;
+								if (xs>=xlimit) xs = xlimit2;
+								if (ys<0.0) ys = 0.0;			
+								if (ys>=ylimit) ys = ylimit2;
+								pixels[index++] = (byte)(getInterpolatedPixel(xs, ys, pixels2)+0.5);
+							} else {
+								int ixs = (int)(xs+0.5);
+								int iys = (int)(ys+0.5);
+								if (ixs>=width) ixs = width - 1;
+								if (iys>=height) iys = height -1;
+								pixels[index++] = pixels2[width*iys+ixs];
+							}
+						} else
+							pixels[index++] = bg;
+					}
 				}
 			}
-		}
+		});
 	}
 
 	public void flipVertical() {
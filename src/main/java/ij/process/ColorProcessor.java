@@ -5,6 +5,7 @@ import java.awt.*;
 import java.awt.image.*;
 import ij.gui.*;
 import ij.ImageStack;
+import ij.util.ThreadUtil;
 
 /**
 This is an 32-bit RGB image and methods that operate on that image.. Based on the ImageProcessor class from
@@ -810,35 +811,38 @@ public class ColorProcessor extends ImageProcessor {
 		}
 		int[] pixels2 = (int[])getPixelsCopy();
 		boolean checkCoordinates = (xScale < 1.0) || (yScale < 1.0);
-		int index1, index2, xsi, ysi;
-		double ys, xs;
-		double xlimit = width-1.0, xlimit2 = width-1.001;
-		double ylimit = height-1.0, ylimit2 = height-1.001;
-		for (int y=ymin; y<=ymax; y++) {
-			ys = (y-yCenter)/yScale + yCenter;
-			ysi = (int)ys;
-			if (ys<0.0) ys = 0.0;			
-			if (ys>=ylimit) ys = ylimit2;
-			index1 = y*width + xmin;
-			index2 = width*(int)ys;
-			for (int x=xmin; x<=xmax; x++) {
-				xs = (x-xCenter)/xScale + xCenter;
-				xsi = (int)xs;
-				if (checkCoordinates && ((xsi<xmin) || (xsi>xmax) || (ysi<ymin) || (ysi>ymax)))
-					pixels[index1++] = bgColor;
-				else {
-					if (interpolationMethod==BILINEAR) {
-						if (xs<0.0) xs = 0.0;
-						if (xs>=xlimit) xs = xlimit2;
-						pixels[index1++] = getInterpolatedPixel(xs, ys, pixels2);
-					} else
-						pixels[index1++] = pixels2[index2+xsi];
+		ResampleTable xTable = ResampleTable.getTable(width, xmax-xmin+1, xmin, xCenter, xScale, xCenter);
+		ResampleTable yTable = ResampleTable.getTable(height, ymax-ymin+1, ymin, yCenter, yScale, yCenter);
+		resample(pixels2, pixels, width, xmin, ymin, xTable, yTable, true, checkCoordinates, bgColor);
+		showProgress(1.0);
+	}
+
+	/** Resamples 'src' into the rectangle of 'dst' that starts at (x0, y0), with
+		nearest neighbor or bilinear interpolation at the coordinates given by the
+		tables, row bands in parallel. See ByteProcessor.resample. */
+	private void resample(final int[] src, final int[] dst, final int dstWidth,
+	final int x0, final int y0, final ResampleTable xt, final ResampleTable yt,
+	final boolean scaling, final boolean checkCoordinates, final int bg) {
+		final boolean bilinear = interpolationMethod==BILINEAR;
+		final int xmax = x0+xt.n-1, ymax = y0+yt.n-1;
+		ThreadUtil.parallelFor(0, yt.n, new ThreadUtil.RangeTask() {
+			public void run(int from, int to) {
+				for (int y=from; y<to; y++) {
+					int index = (y0+y)*dstWidth + x0;
+					boolean yOutside = checkCoordinates && (yt.truncated[y]<y0 || yt.truncated[y]>ymax);
+					int rowBase = (bilinear||scaling?yt.base[y]:yt.truncated[y])*width;
+					double yFraction = yt.fraction[y];
+					for (int x=0; x<xt.n; x++, index++) {
+						if (yOutside || (checkCoordinates && (xt.truncated[x]<x0 || xt.truncated[x]>xmax)))
+							dst[index] = bg;
+						else if (bilinear)
+							dst[index] = getInterpolatedPixel(rowBase+xt.base[x], xt.fraction[x], yFraction, src);
+						else
+							dst[index] = src[rowBase+xt.truncated[x]];
+					}
 				}
 			}
-			if (y%20==0)
-			showProgress((double)(y-ymin)/height);
-		}
-		showProgress(1.0);
+		});
 	}
 
 	public ImageProcessor crop() {
@@ -876,10 +880,12 @@ public class ColorProcessor extends ImageProcessor {
 	private final int getInterpolatedPixel(double x, double y, int[] pixels) {
 		int xbase = (int)x;
 		int ybase = (int)y;
-		double xFraction = x - xbase;
-		double yFraction = y - ybase;
-		int offset = ybase * width + xbase;
-		
+		return getInterpolatedPixel(ybase * width + xbase, x - xbase, y - ybase, pixels);
+	}
+
+	/** Bilinear interpolation between the pixel at 'offset' and its neighbors
+		to the right and below. */
+	private final int getInterpolatedPixel(int offset, double xFraction, double yFraction, int[] pixels) {
 		int lowerLeft = pixels[offset];
 		int rll = (lowerLeft&0xff0000)>>16;
 		int gll = (lowerLeft&0xff00)>>8;
@@ -937,36 +943,15 @@ public class ColorProcessor extends ImageProcessor {
 		double dstCenterY = dstHeight/2.0;
 		double xScale = (double)dstWidth/roiWidth;
 		double yScale = (double)dstHeight/roiHeight;
-		double xlimit = width-1.0, xlimit2 = width-1.001;
-		double ylimit = height-1.0, ylimit2 = height-1.001;
 		if (interpolationMethod==BILINEAR) {
 			if (dstWidth!=width) dstCenterX+=xScale/4.0;
 			if (dstHeight!=height) dstCenterY+=yScale/4.0;
 		}
 		ImageProcessor ip2 = createProcessor(dstWidth, dstHeight);
 		int[] pixels2 = (int[])ip2.getPixels();
-		double xs, ys;
-		int index1, index2;
-		for (int y=0; y<=dstHeight-1; y++) {
-			ys = (y-dstCenterY)/yScale + srcCenterY;
-			if (interpolationMethod==BILINEAR) {
-				if (ys<0.0) ys = 0.0;
-				if (ys>=ylimit) ys = ylimit2;
-			}
-			index1 = width*(int)ys;
-			index2 = y*dstWidth;
-			for (int x=0; x<=dstWidth-1; x++) {
-				xs = (x-dstCenterX)/xScale + srcCenterX;
-				if (interpolationMethod==BILINEAR) {
-					if (xs<0.0) xs = 0.0;
-					if (xs>=xlimit) xs = xlimit2;
-					pixels2[index2++] = getInterpolatedPixel(xs, ys, pixels);
-				} else
-		  			pixels2[index2++] = pixels[index1+(int)xs];
-			}
-			if (y%20==0)
-			showProgress((double)y/dstHeight);
-		}
+		ResampleTable xTable = ResampleTable.getTable(width, dstWidth, 0, dstCenterX, xScale, srcCenterX);
+		ResampleTable yTable = ResampleTable.getTable(height, dstHeight, 0, dstCenterY, yScale, srcCenterY);
+		resample(pixels, pixels2, dstWidth, 0, 0, xTable, yTable, false, false, 0);
 		showProgress(1.0);
 		return ip2;
 	}
@@ -987,49 +972,50 @@ public class ColorProcessor extends ImageProcessor {
         	filterRGB(RGB_ROTATE, angle);
         	return;
         }
-		int[] pixels2 = (int[])getPixelsCopy();
-		double centerX = roiX + (roiWidth-1)/2.0;
-		double centerY = roiY + (roiHeight-1)/2.0;
-		int xMax = roiX + this.roiWidth - 1;
+		final int[] pixels2 = (int[])getPixelsCopy();
+		final double centerX = roiX + (roiWidth-1)/2.0;
+		final double centerY = roiY + (roiHeight-1)/2.0;
+		final int xMax = roiX + this.roiWidth - 1;
 		
 		double angleRadians = -angle/(180.0/Math.PI);
-		double ca = Math.cos(angleRadians);
-		double sa = Math.sin(angleRadians);
-		double tmp1 = centerY*sa-centerX*ca;
-		double tmp2 = -centerX*sa-centerY*ca;
-		double tmp3, tmp4, xs, ys;
-		int index, ixs, iys;
-		double dwidth = width, dheight=height;
-		double xlimit = width-1.0, xlimit2 = width-1.001;
-		double ylimit = height-1.0, ylimit2 = height-1.001;
+		final double ca = Math.cos(angleRadians);
+		final double sa = Math.sin(angleRadians);
+		final double tmp1 = centerY*sa-centerX*ca;
+		final double tmp2 = -centerX*sa-centerY*ca;
+		final double dwidth = width, dheight=height;
+		final double xlimit = width-1.0, xlimit2 = width-1.001;
+		final double ylimit = height-1.0, ylimit2 = height-1.001;
+		final boolean bilinear = interpolationMethod==BILINEAR;
 		
-		for (int y=roiY; y<(roiY + roiHeight); y++) {
-			index = y*width + roiX;
-			tmp3 = tmp1 - y*sa + centerX;
-			tmp4 = tmp2 + y*ca + centerY;
-			for (int x=roiX; x<=xMax; x++) {
-				xs = x*ca + tmp3;
-				ys = x*sa + tmp4;
-				if ((xs>=-0.01) && (xs<dwidth) && (ys>=-0.01) && (ys<dheight)) {
-					if (interpolationMethod==BILINEAR) {
-						if (xs<0.0) xs = 0.0;
-						if (xs>=xlimit) xs = xlimit2;
-						if (ys<0.0) ys = 0.0;			
-						if (ys>=ylimit) ys = ylimit2;
-				  		pixels[index++] = getInterpolatedPixel(xs, ys, pixels2);
-				  	} else {
-				  		ixs = (int)(xs+0.5);
-				  		iys = (int)(ys+0.5);
-				  		if (ixs>=width) ixs = width - 1;
-				  		if (iys>=height) iys = height -1;
-						pixels[index++] = pixels2[width*iys+ixs];
+		ThreadUtil.parallelFor(roiY, roiY+roiHeight, new ThreadUtil.RangeTask() {
+			public void run(int from, int to) {
+				for (int y=from; y<to; y++) {
+					int index = y*width + roiX;
+					double tmp3 = tmp1 - y*sa + centerX;
+					double tmp4 = tmp2 + y*ca + centerY;
+					for (int x=roiX; x<=xMax; x++) {
+						double xs = x*ca + tmp3;
+						double ys = x*sa + tmp4;
+						if ((xs>=-0.01) && (xs<dwidth) && (ys>=-0.01) && (ys<dheight)) {
+							if (bilinear) {
+								if (xs<0.0) xs = 0.0;
+								if (xs>=xlimit) xs = xlimit2;
+								if (ys<0.0) ys = 0.0;			
+								if (ys>=ylimit) ys = ylimit2;
+								pixels[index++] = getInterpolatedPixel(xs, ys, pixels2);
+							} else {
+								int ixs = (int)(xs+0.5);
+								int iys = (int)(ys+0.5);
+								if (ixs>=width) ixs = width - 1;
+								if (iys>=height) iys = height -1;
+								pixels[index++] = pixels2[width*iys+ixs];
+							}
+						} else
+							pixels[index++] = bgColor;
 					}
-				} else
-					pixels[index++] = bgColor;
+				}
 			}
-			if (y%30==0)
-			showProgress((double)(y-roiY)/roiHeight);
-		}
+		});
 		showProgress(1.0);
 	}
 	
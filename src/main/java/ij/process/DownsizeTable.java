@@ -1,5 +1,7 @@
 package ij.process;
 import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.Map;
 
 /** A table for easier downsizing by convolution with a kernel.
  *	Supports the interpolation methods of ImageProcessor: none, bilinear, bicubic
@@ -40,6 +42,25 @@ public class DownsizeTable {
 	private final double scale;			//source/destination pixel numbers
 	private final int interpolationMethod;
 	private final static int UNUSED=-1; //marks unused entries in 'indices' array
+	private final static int MAX_CACHED = 8;
+	private static Map<String,DownsizeTable> tables = new LinkedHashMap<String,DownsizeTable>(MAX_CACHED, 0.75f, true) {
+		protected boolean removeEldestEntry(Map.Entry<String,DownsizeTable> eldest) {
+			return size()>MAX_CACHED;
+		}
+	};
+
+	/** Returns a table as created by the constructor, from a cache of recently used
+	 *	tables if possible. When downsizing a stack, the tables are thus created only
+	 *	once. The table returned must not be modified. */
+	static synchronized DownsizeTable get(int srcSize, int srcOrigin, int srcLength, int dstSize, int interpolationMethod) {
+		String key = srcSize+" "+srcOrigin+" "+srcLength+" "+dstSize+" "+interpolationMethod;
+		DownsizeTable table = tables.get(key);
+		if (table==null) {
+			table = new DownsizeTable(srcSize, srcOrigin, srcLength, dstSize, interpolationMethod);
+			tables.put(key, table);
+		}
+		return table;
+	}
 
 
 	/** Create a table for 1-dimensional downscaling interpolation.
@@ -0,0 +1,403 @@
+package ij.process;
+import ij.*;
+import ij.plugin.Filters3D;
+import ij.plugin.filter.RankFilters;
+
+/** 3D mean, median, minimum, maximum, variance and local maximum filters
+	of 8-bit, 16-bit and 32-bit stacks with an ellipsoid neighborhood, as
+	used by Process>Filters>3D. Voxels outside of the stack are not part of
+	the neighborhood. The ellipsoid is decomposed into lines in x direction,
+	and each line of the stack is processed as a whole:
+	<ul>
+	<li>Mean and variance add the sums over each kernel line, taken from the
+	running sums (prefix sums) of the stack line. Values, squares and sums are
+	in double precision, thus the variance is accurate to float precision also
+	for large values with a small spread.
+	<li>Minimum, maximum and local maximum use the van Herk/Gil-Werman algorithm
+	for each kernel line, with three comparisons per voxel independent of the
+	kernel line length.
+	<li>The median of integer data uses a histogram of the neighborhood that
+	slides along the x axis, updated with the two end points of each kernel line.
+	With float data, it uses a selection algorithm on the neighborhood values.
+	</ul>
+	The time per voxel thus grows with the number of kernel lines, i.e., with
+	the y and z radii only. The stack slices needed are kept in a ring buffer
+	of float arrays. Filtering different z ranges of the same stack in parallel
+	is possible with one EllipsoidFilter per thread.
+	@see ij.plugin.Filters3D
+*/
+public class EllipsoidFilter {
+	private ImageStack stack;
+	private int filter;
+	private int width, height, depth;
+	private int vz;
+	private int nLines;						// number of kernel lines
+	private int[] lineDx, lineDy, lineDz;	// kernel lines run from x-dx to x+dx
+	private int nPoints;
+	private boolean isFloat;
+	private float[][] planes;				// ring buffer of the slices, as float
+	private float[][] planeBuffers;			// the arrays of the ring buffer for non-float data
+	private int[] planeZ;					// slice in the ring buffer, -1 if none
+
+	/** Creates a filter for 'stack' (8, 16 or 32 bits). 'filter' is one of the
+		filter types of ij.plugin.Filters3D; the radii are those of the ellipsoid
+		neighborhood, as in StackProcessor.filter3D. */
+	public EllipsoidFilter(ImageStack stack, float radx, float rady, float radz, int filter) {
+		int bitDepth = stack.getBitDepth();
+		if (bitDepth!=8 && bitDepth!=16 && bitDepth!=32)
+			throw new IllegalArgumentException("8, 16 or 32-bit stack required");
+		this.stack = stack;
+		this.filter = filter;
+		width = stack.getWidth();
+		height = stack.getHeight();
+		depth = stack.getSize();
+		isFloat = bitDepth==32;
+		int vx = (int)Math.ceil(radx);
+		int vy = (int)Math.ceil(rady);
+		vz = (int)Math.ceil(radz);
+		double rx2 = radx!=0 ? 1.0/(radx*radx) : 0;	// as in StackProcessor.createKernelEllipsoid
+		double ry2 = rady!=0 ? 1.0/(rady*rady) : 0;
+		double rz2 = radz!=0 ? 1.0/(radz*radz) : 0;
+		int maxLines = (2*vy+1)*(2*vz+1);
+		lineDx = new int[maxLines];
+		lineDy = new int[maxLines];
+		lineDz = new int[maxLines];
+		for (int k=-vz; k<=vz; k++) {
+			for (int j=-vy; j<=vy; j++) {
+				double distYZ = ((double)(j*j))*ry2 + ((double)(k*k))*rz2;
+				if (distYZ>1.0)
+					continue;
+				int dx = 0;
+				while (dx<vx && ((double)((dx+1)*(dx+1)))*rx2+distYZ<=1.0)
+					dx++;
+				lineDx[nLines] = dx;
+				lineDy[nLines] = j;
+				lineDz[nLines] = k;
+				nLines++;
+				nPoints += 2*dx+1;
+			}
+		}
+	}
+
+	/** Filters the slices from 'zmin' (inclusive) to 'zmax' (exclusive, zero-based)
+		and writes the result into 'out', which must have the same size as the input.
+		With FILTER_VAR, 'out' must be a 32-bit stack, otherwise it must have the
+		bit depth of the input. */
+	public void filter(ImageStack out, int zmin, int zmax) {
+		if (zmin<0) zmin = 0;
+		if (zmax>depth) zmax = depth;
+		int ringSize = 2*vz+1;
+		planes = new float[ringSize][];
+		planeBuffers = isFloat ? null : new float[ringSize][];
+		planeZ = new int[ringSize];
+		for (int i=0; i<ringSize; i++)
+			planeZ[i] = -1;
+		int[] lineStarts = new int[nLines];				// index of the stack line in 'linePlanes', -1 if outside
+		float[][] linePlanes = new float[nLines][];
+		boolean sumFilter = filter==Filters3D.MEAN || filter==Filters3D.VAR;
+		boolean minMaxFilter = filter==Filters3D.MIN || filter==Filters3D.MAX || filter==Filters3D.MAXLOCAL;
+		boolean useHistogram = filter==Filters3D.MEDIAN && !isFloat;
+		double[] sums = sumFilter ? new double[width] : null;
+		double[] sums2 = filter==Filters3D.VAR ? new double[width] : null;
+		int[] counts = sumFilter ? new int[width] : null;
+		double[] prefixSums = sumFilter ? new double[width+1] : null;
+		double[] prefixSums2 = filter==Filters3D.VAR ? new double[width+1] : null;
+		float[] max = minMaxFilter ? new float[width] : null;
+		int maxLineLength = 0;
+		for (int i=0; i<nLines; i++)
+			maxLineLength = Math.max(maxLineLength, 2*lineDx[i]+1);
+		float[] prefixMax = minMaxFilter ? new float[width+maxLineLength] : null;
+		float[] suffixMax = minMaxFilter ? new float[width+maxLineLength] : null;
+		int coarseShift = stack.getBitDepth()==16 ? 8 : 4;
+		int[] histogram = useHistogram ? new int[stack.getBitDepth()==16 ? 65536 : 256] : null;
+		int[] coarseHistogram = useHistogram ? new int[histogram.length>>coarseShift] : null;
+		float[] neighbors = filter==Filters3D.MEDIAN && isFloat ? new float[nPoints] : null;
+		double[] result = new double[width];
+
+		for (int z=zmin; z<zmax; z++) {
+			if (zmin==0) IJ.showProgress(z+1, zmax);
+			if (Thread.currentThread().isInterrupted()) return;
+			for (int i=0; i<nLines; i++) {
+				int zz = z + lineDz[i];
+				linePlanes[i] = zz>=0 && zz<depth ? getPlane(zz) : null;
+			}
+			Object outPixels = out.getPixels(z+1);
+			float[] plane = getPlane(z);
+			for (int y=0; y<height; y++) {
+				for (int i=0; i<nLines; i++) {
+					int yy = y + lineDy[i];
+					lineStarts[i] = linePlanes[i]!=null && yy>=0 && yy<height ? yy*width : -1;
+				}
+				if (sumFilter) {
+					filterLineSums(linePlanes, lineStarts, sums, sums2, counts, prefixSums, prefixSums2);
+					for (int x=0; x<width; x++) {
+						int n = counts[x];
+						if (filter==Filters3D.MEAN)
+							result[x] = sums[x]/n;
+						else
+							result[x] = n==1 ? 0 : (sums2[x] - sums[x]*sums[x]/n)/(n-1);
+					}
+				} else if (minMaxFilter) {
+					float sign = filter==Filters3D.MIN ? -1f : 1f;
+					filterLineMax(linePlanes, lineStarts, max, prefixMax, suffixMax, sign);
+					if (filter==Filters3D.MAXLOCAL) {
+						for (int x=0, p=y*width; x<width; x++, p++)
+							result[x] = max[x]<=plane[p] ? plane[p] : 0;
+					} else {
+						for (int x=0; x<width; x++)
+							result[x] = max[x]*sign;
+					}
+				} else if (useHistogram)
+					filterLineMedian(linePlanes, lineStarts, result, histogram, coarseHistogram, coarseShift);
+				else
+					filterLineFloatMedian(linePlanes, lineStarts, result, neighbors);
+				writeLine(result, outPixels, y*width);
+			}
+		}
+	}
+
+	/** Returns slice z (zero-based) as float array, from the ring buffer if possible */
+	private float[] getPlane(int z) {
+		int slot = z%planes.length;
+		if (planeZ[slot]!=z) {
+			Object pixels = stack.getPixels(z+1);
+			if (isFloat)
+				planes[slot] = (float[])pixels;
+			else {
+				if (planeBuffers[slot]==null)
+					planeBuffers[slot] = new float[width*height];
+				float[] buffer = planeBuffers[slot];
+				if (pixels instanceof byte[]) {
+					byte[] bPixels = (byte[])pixels;
+					for (int i=0; i<buffer.length; i++)
+						buffer[i] = bPixels[i]&0xff;
+				} else {
+					short[] sPixels = (short[])pixels;
+					for (int i=0; i<buffer.length; i++)
+						buffer[i] = sPixels[i]&0xffff;
+				}
+				planes[slot] = buffer;
+			}
+			planeZ[slot] = z;
+		}
+		return planes[slot];
+	}
+
+	/** Sums and number of the neighborhood values for all voxels of a line, from the
+		running sums of the stack lines. 'sums2' (sum of squares) may be null. */
+	private void filterLineSums(float[][] linePlanes, int[] lineStarts, double[] sums, double[] sums2, int[] counts,
+			double[] prefixSums, double[] prefixSums2) {
+		java.util.Arrays.fill(sums, 0.0);
+		java.util.Arrays.fill(counts, 0);
+		if (sums2!=null) java.util.Arrays.fill(sums2, 0.0);
+		for (int i=0; i<nLines; i++) {
+			if (lineStarts[i]<0) continue;
+			float[] plane = linePlanes[i];
+			int p0 = lineStarts[i];
+			double sum = 0, sum2 = 0;
+			for (int x=0; x<width; x++) {
+				double v = plane[p0+x];
+				sum += v;
+				prefixSums[x+1] = sum;
+				if (sums2!=null) {
+					sum2 += v*v;
+					prefixSums2[x+1] = sum2;
+				}
+			}
+			int dx = lineDx[i];
+			for (int x=0; x<width; x++) {
+				int xmin = x-dx<0 ? 0 : x-dx;
+				int xmax = x+dx>=width ? width-1 : x+dx;
+				sums[x] += prefixSums[xmax+1] - prefixSums[xmin];
+				counts[x] += xmax - xmin + 1;
+				if (sums2!=null)
+					sums2[x] += prefixSums2[xmax+1] - prefixSums2[xmin];
+			}
+		}
+	}
+
+	/** Maximum (or -minimum if sign=-1) of the neighborhood for all voxels of a line.
+		For each kernel line, the stack line is divided into blocks of the kernel line
+		length. Each kernel line position spans the end of one block and the start of
+		the next one, thus its maximum is the maximum of the running maximum from the
+		block end ('suffixMax') and that from the block start ('prefixMax'). */
+	private void filterLineMax(float[][] linePlanes, int[] lineStarts, float[] max,
+			float[] prefixMax, float[] suffixMax, float sign) {
+		for (int x=0; x<width; x++)
+			max[x] = Float.NEGATIVE_INFINITY;
+		for (int i=0; i<nLines; i++) {
+			if (lineStarts[i]<0) continue;
+			float[] plane = linePlanes[i];
+			int dx = lineDx[i];
+			int length = 2*dx+1;
+			int nData = width + 2*dx;		// index t corresponds to x=t-dx; out-of-stack values are -Infinity
+			int p0 = lineStarts[i] - dx;
+			for (int blockStart=0; blockStart<nData; blockStart+=length) {
+				int blockEnd = Math.min(blockStart+length, nData);
+				float m = Float.NEGATIVE_INFINITY;
+				for (int t=blockStart; t<blockEnd; t++) {
+					if (t>=dx && t<width+dx) {
+						float v = plane[p0+t]*sign;
+						if (v>m) m = v;
+					}
+					prefixMax[t] = m;
+				}
+				m = Float.NEGATIVE_INFINITY;
+				for (int t=blockEnd-1; t>=blockStart; t--) {
+					if (t>=dx && t<width+dx) {
+						float v = plane[p0+t]*sign;
+						if (v>m) m = v;
+					}
+					suffixMax[t] = m;
+				}
+			}
+			for (int x=0; x<width; x++) {
+				float m = suffixMax[x];
+				float v = prefixMax[x+length-1];
+				if (v>m) m = v;
+				if (m>max[x]) max[x] = m;
+			}
+		}
+	}
+
+	/** Median of the neighborhood for all voxels of a line of integer data, with a
+		histogram sliding along the line. The median (the lower one for an even number
+		of values) is tracked from one voxel to the next; a coarse histogram allows to
+		skip empty ranges. The histogram is empty on entry and on return. */
+	private void filterLineMedian(float[][] linePlanes, int[] lineStarts, double[] result,
+			int[] histogram, int[] coarseHistogram, int coarseShift) {
+		int coarseSize = 1<<coarseShift;
+		int coarseMask = coarseSize-1;
+		int n = 0;
+		for (int i=0; i<nLines; i++) {
+			if (lineStarts[i]<0) continue;
+			float[] plane = linePlanes[i];
+			int p0 = lineStarts[i];
+			for (int x=0; x<=lineDx[i] && x<width; x++) {
+				int v = (int)plane[p0+x];
+				histogram[v]++;
+				coarseHistogram[v>>coarseShift]++;
+				n++;
+			}
+		}
+		int median = 0;		// the current (lower) median
+		int nBelow = 0;		// number of values below 'median'
+		for (int x=0; x<width; x++) {
+			if (x>0) {
+				for (int i=0; i<nLines; i++) {
+					if (lineStarts[i]<0) continue;
+					float[] plane = linePlanes[i];
+					int p0 = lineStarts[i];
+					int xOut = x-lineDx[i]-1;		// this value is not in the neighborhood any more
+					if (xOut>=0) {
+						int v = (int)plane[p0+xOut];
+						histogram[v]--;
+						coarseHistogram[v>>coarseShift]--;
+						if (v<median) nBelow--;
+						n--;
+					}
+					int xIn = x+lineDx[i];			// this value comes into the neighborhood
+					if (xIn<width) {
+						int v = (int)plane[p0+xIn];
+						histogram[v]++;
+						coarseHistogram[v>>coarseShift]++;
+						if (v<median) nBelow++;
+						n++;
+					}
+				}
+			}
+			int rank = (n-1)/2;
+			while (nBelow > rank) {						// median is lower
+				if ((median&coarseMask)==0 && nBelow-coarseHistogram[(median>>coarseShift)-1] > rank) {
+					median -= coarseSize;
+					nBelow -= coarseHistogram[median>>coarseShift];
+				} else {
+					median--;
+					nBelow -= histogram[median];
+				}
+			}
+			while (nBelow+histogram[median] <= rank) {	// median is higher
+				if ((median&coarseMask)==0 && nBelow+coarseHistogram[median>>coarseShift] <= rank) {
+					nBelow += coarseHistogram[median>>coarseShift];
+					median += coarseSize;
+				} else {
+					nBelow += histogram[median];
+					median++;
+				}
+			}
+			if ((n&1)==1 || nBelow+histogram[median] > rank+1)
+				result[x] = median;
+			else {										// even number, the upper median is the next value
+				int upper = median+1;
+				while (histogram[upper]==0) {
+					if ((upper&coarseMask)==0 && coarseHistogram[upper>>coarseShift]==0)
+						upper += coarseSize;
+					else
+						upper++;
+				}
+				result[x] = 0.5f*(median+upper);
+			}
+		}
+		for (int i=0; i<nLines; i++) {					// clear the histogram
+			if (lineStarts[i]<0) continue;
+			float[] plane = linePlanes[i];
+			int p0 = lineStarts[i];
+			for (int x=Math.max(width-1-lineDx[i], 0); x<width; x++) {
+				int v = (int)plane[p0+x];
+				histogram[v]--;
+				coarseHistogram[v>>coarseShift]--;
+			}
+		}
+	}
+
+	/** Median of the neighborhood for all voxels of a line of float data */
+	private void filterLineFloatMedian(float[][] linePlanes, int[] lineStarts, double[] result, float[] neighbors) {
+		for (int x=0; x<width; x++) {
+			int n = 0;
+			for (int i=0; i<nLines; i++) {
+				if (lineStarts[i]<0) continue;
+				float[] plane = linePlanes[i];
+				int p0 = lineStarts[i];
+				int xmin = x-lineDx[i]<0 ? 0 : x-lineDx[i];
+				int xmax = x+lineDx[i]>=width ? width-1 : x+lineDx[i];
+				for (int xx=xmin; xx<=xmax; xx++)
+					neighbors[n++] = plane[p0+xx];
+			}
+			int half = n/2;
+			float median = RankFilters.findNthLowestNumber(neighbors, n, half);
+			if ((n&1)==0) {			// even number: average of the two central values
+				float lower = neighbors[0];
+				for (int i=1; i<half; i++)
+					if (neighbors[i]>lower) lower = neighbors[i];
+				median = 0.5f*(lower+median);
+			}
+			result[x] = median;
+		}
+	}
+
+	/** Writes a line of the result, with rounding and clipping like ImageStack.setVoxel */
+	private void writeLine(double[] result, Object pixels, int p0) {
+		if (pixels instanceof byte[]) {
+			byte[] bPixels = (byte[])pixels;
+			for (int x=0; x<width; x++) {
+				double value = result[x];
+				if (value>255.0) value = 255.0;
+				else if (value<0.0) value = 0.0;
+				bPixels[p0+x] = (byte)(value+0.5);
+			}
+		} else if (pixels instanceof short[]) {
+			short[] sPixels = (short[])pixels;
+			for (int x=0; x<width; x++) {
+				double value = result[x];
+				if (value>65535.0) value = 65535.0;
+				else if (value<0.0) value = 0.0;
+				sPixels[p0+x] = (short)(value+0.5);
+			}
+		} else {
+			float[] fPixels = (float[])pixels;
+			for (int x=0; x<width; x++)
+				fPixels[p0+x] = (float)result[x];
+		}
+	}
+
+}
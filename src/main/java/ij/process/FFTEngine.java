@@ -0,0 +1,577 @@
+package ij.process;
+import ij.*;
+import ij.util.ThreadUtil;
+import java.util.Arrays;
+import java.util.HashMap;
+
+/**
+This class performs Fast Fourier Transforms of complex data of any length.
+Lengths that are products of 2, 3, 5 and 7 are transformed by a mixed-radix
+(Stockham autosort) algorithm with radix 4, 2, 3, 5 and 7 butterflies;
+all other lengths use Bluestein's algorithm, i.e., a convolution with a
+'chirp' calculated by a transform of a suitable larger size.
+The tables of sines and cosines are calculated once per size and kept
+(see getEngine). An FFTEngine is thread-safe, but each thread needs its own
+work arrays, see createWorkArrays.
+
+The forward transform is not normalized, the inverse transform divides by the
+length. The sign convention is the usual one: The forward transform
+of x is X[k] = sum_j x[j] exp(-2 pi i j k/n).
+
+The static methods for 2D and 3D data transform the lines in parallel threads.
+The FHT class uses this class for images that do not have a power-of-2 size.
+*/
+public class FFTEngine {
+	private static final int MAX_CACHED = 32;       // number of engines (sizes) kept
+	private static final int BLOCK = 16;            // number of columns transformed together (must be even)
+	private static HashMap<Integer,FFTEngine> engines = new HashMap<Integer,FFTEngine>();
+
+	private int n;                  // length of the transform
+	private int[] radices;          // radix of each stage
+	private double[][] twRe, twIm;  // twiddle factors of each stage, [p*(radix-1)+k-1] for 1<=k<radix
+	private double[][] cosTable, sinTable; // cosines and sines for the radixOdd butterflies (only radix 7)
+	private FFTEngine bluestein;    // for lengths with other prime factors: the engine for the convolution
+	private double[] chirpRe, chirpIm;  // exp(-i pi k^2/n) for Bluestein's algorithm
+	private double[] kernelRe, kernelIm; // transform of the conjugate chirp for Bluestein's algorithm
+
+	/** Returns an FFTEngine for complex arrays of length n. Engines are cached,
+	 *  so the tables need not be calculated again for the same size. */
+	public static synchronized FFTEngine getEngine(int n) {
+		FFTEngine engine = engines.get(n);
+		if (engine==null) {
+			engine = new FFTEngine(n);
+			if (engines.size()>=MAX_CACHED)
+				engines.clear();
+			engines.put(n, engine);
+		}
+		return engine;
+	}
+
+	/** Creates an FFTEngine for complex arrays of length n. Usually, getEngine
+	 *  should be used instead, which avoids creating the tables again. */
+	public FFTEngine(int n) {
+		if (n<1)
+			throw new IllegalArgumentException("Invalid FFT length: "+n);
+		this.n = n;
+		int[] factors = new int[32];
+		int nFactors = 0;
+		int rest = n;
+		while (rest%4==0) {factors[nFactors++] = 4; rest /= 4;}
+		for (int radix=2; radix<=7; radix++) {
+			if (radix==4 || radix==6) continue;
+			while (rest%radix==0) {factors[nFactors++] = radix; rest /= radix;}
+		}
+		if (rest>1)
+			makeBluesteinTables();
+		else
+			makeTables(factors, nFactors);
+	}
+
+	/** Returns the length of the arrays transformed by this engine. */
+	public int getSize() {
+		return n;
+	}
+
+	/** Returns the smallest even number >= n that has no prime factors other than 2, 3, 5, 7.
+	 *  Images padded to this size are transformed fast. */
+	public static int nextFastSize(int n) {
+		int size = nextSmoothSize(n);
+		while (size%2!=0)
+			size = nextSmoothSize(size+1);
+		return size;
+	}
+
+	/** Returns the smallest number >= n that has no prime factors other than 2, 3, 5, 7. */
+	static int nextSmoothSize(int n) {
+		if (n<=1) return 1;
+		for (int size=n; size>0; size++) {
+			int rest = size;
+			for (int p=2; p<=7; p++)
+				while (rest%p==0) rest /= p;
+			if (rest==1) return size;
+		}
+		throw new IllegalArgumentException("Too large for FFT: "+n);
+	}
+
+	/** Returns the work arrays required by transform and hartley.
+	 *  Each thread needs its own work arrays. */
+	public double[][] createWorkArrays() {
+		if (bluestein!=null)
+			return new double[4][bluestein.n];
+		else
+			return new double[2][n];
+	}
+
+	/** Performs an in-place transform of complex data with the real and imaginary
+	 *  parts in the arrays 're' and 'im', which must have the length of this engine. */
+	public void transform(double[] re, double[] im, boolean inverse) {
+		transform(re, im, inverse, createWorkArrays());
+	}
+
+	/** Performs an in-place transform of complex data with the real and imaginary
+	 *  parts in the arrays 're' and 'im', using work arrays obtained by createWorkArrays. */
+	public void transform(double[] re, double[] im, boolean inverse, double[][] work) {
+		if (inverse)
+			for (int i=0; i<n; i++)
+				im[i] = -im[i];             // inverse = conjugate of forward transform of the conjugate
+		if (bluestein!=null)
+			bluesteinTransform(re, im, work);
+		else
+			stockham(re, im, work[0], work[1]);
+		if (inverse) {
+			double scale = 1.0/n;
+			for (int i=0; i<n; i++) {
+				re[i] *= scale;
+				im[i] *= -scale;
+			}
+		}
+	}
+
+	/** Calculates the Hartley transforms of two real arrays 'a' and 'b' (in place),
+	 *  with the array pair transformed as one complex array. The Hartley transform is
+	 *  H[k] = sum_j x[j] cas(2 pi j k/n), where cas(t) = cos(t) + sin(t).
+	 *  The inverse transform is the same as the forward transform, but divided by the length. */
+	public void hartley(double[] a, double[] b, boolean inverse, double[][] work) {
+		if (bluestein!=null)
+			bluesteinTransform(a, b, work);
+		else
+			stockham(a, b, work[0], work[1]);
+		double scale = inverse ? 0.5/n : 0.5;
+		for (int k=0; k<=n/2; k++) {
+			int k2 = k==0 ? 0 : n-k;
+			double zr = a[k], zi = b[k];    // Z[k]
+			double wr = a[k2], wi = b[k2];  // Z[n-k]
+			a[k] = ((zr+wr) - (zi-wi))*scale;
+			b[k] = ((zi+wi) + (zr-wr))*scale;
+			a[k2] = ((wr+zr) - (wi-zi))*scale;
+			b[k2] = ((wi+zi) + (wr-zr))*scale;
+		}
+	}
+
+	/** Performs an in-place 2D transform of complex data with the real and imaginary
+	 *  parts in the arrays 're' and 'im'. The rows and columns are transformed in parallel threads. */
+	public static void transform2D(final float[] re, final float[] im, final int width, final int height, final boolean inverse) {
+		final FFTEngine rowEngine = getEngine(width);
+		ThreadUtil.parallelFor(0, height, new ThreadUtil.RangeTask() {
+			public void run(int from, int to) {
+				double[][] work = rowEngine.createWorkArrays();
+				double[] lineRe = new double[width];
+				double[] lineIm = new double[width];
+				for (int y=from; y<to; y++) {
+					int offset = y*width;
+					for (int x=0; x<width; x++) {
+						lineRe[x] = re[offset+x];
+						lineIm[x] = im[offset+x];
+					}
+					rowEngine.transform(lineRe, lineIm, inverse, work);
+					for (int x=0; x<width; x++) {
+						re[offset+x] = (float)lineRe[x];
+						im[offset+x] = (float)lineIm[x];
+					}
+				}
+			}
+		});
+		transformColumns(re, im, width, height, inverse);
+	}
+
+	/** Performs an in-place 3D transform of complex data with the real and imaginary
+	 *  parts in two float stacks of the same size, e.g. for deconvolution or cross-correlation
+	 *  of volumes. The lines in x, y and z are transformed in parallel threads. */
+	public static void transform3D(ImageStack re, ImageStack im, final boolean inverse) {
+		final int width = re.getWidth();
+		final int height = re.getHeight();
+		final int depth = re.getSize();
+		if (im.getWidth()!=width || im.getHeight()!=height || im.getSize()!=depth)
+			throw new IllegalArgumentException("Real and imaginary stacks must have the same size");
+		final float[][] rePixels = new float[depth][];
+		final float[][] imPixels = new float[depth][];
+		for (int z=0; z<depth; z++) {
+			Object rp = re.getPixels(z+1);
+			Object ip = im.getPixels(z+1);
+			if (!(rp instanceof float[]) || !(ip instanceof float[]))
+				throw new IllegalArgumentException("32-bit stacks required");
+			rePixels[z] = (float[])rp;
+			imPixels[z] = (float[])ip;
+		}
+		for (int z=0; z<depth; z++) {
+			if (Thread.currentThread().isInterrupted()) return;
+			transform2D(rePixels[z], imPixels[z], width, height, inverse);
+			IJ.showProgress(z+1, depth+1);
+		}
+		if (depth>1)
+			transformDepth(rePixels, imPixels, width, height, inverse);
+		IJ.showProgress(1.0);
+	}
+
+	/** Transforms the columns (y direction) of complex 2D data. Blocks of columns
+	 *  are copied into line arrays, which is faster than accessing the columns directly. */
+	private static void transformColumns(final float[] rePixels, final float[] imPixels, final int width, final int height, final boolean inverse) {
+		final FFTEngine engine = getEngine(height);
+		ThreadUtil.parallelFor(0, (width+BLOCK-1)/BLOCK, new ThreadUtil.RangeTask() {
+			public void run(int from, int to) {
+				double[][] work = engine.createWorkArrays();
+				double[][] linesRe = new double[BLOCK][height];
+				double[][] linesIm = new double[BLOCK][height];
+				for (int block=from; block<to; block++) {
+					int x0 = block*BLOCK;
+					int nx = Math.min(BLOCK, width-x0);
+					for (int y=0, p0=x0; y<height; y++, p0+=width)
+						for (int ix=0, p=p0; ix<nx; ix++, p++) {
+							linesRe[ix][y] = rePixels[p];
+							linesIm[ix][y] = imPixels[p];
+						}
+					for (int ix=0; ix<nx; ix++)
+						engine.transform(linesRe[ix], linesIm[ix], inverse, work);
+					for (int y=0, p0=x0; y<height; y++, p0+=width)
+						for (int ix=0, p=p0; ix<nx; ix++, p++) {
+							rePixels[p] = (float)linesRe[ix][y];
+							imPixels[p] = (float)linesIm[ix][y];
+						}
+				}
+			}
+		});
+	}
+
+	/** Transforms the lines in z direction of a stack, in parallel blocks of pixels along x */
+	private static void transformDepth(final float[][] re, final float[][] im, final int width, int height, final boolean inverse) {
+		final int depth = re.length;
+		final FFTEngine engine = getEngine(depth);
+		ThreadUtil.parallelFor(0, height*((width+BLOCK-1)/BLOCK), new ThreadUtil.RangeTask() {
+			public void run(int from, int to) {
+				double[][] work = engine.createWorkArrays();
+				double[][] linesRe = new double[BLOCK][depth];
+				double[][] linesIm = new double[BLOCK][depth];
+				int nBlocks = (width+BLOCK-1)/BLOCK;
+				for (int i=from; i<to; i++) {
+					int x0 = (i%nBlocks)*BLOCK;
+					int nx = Math.min(BLOCK, width-x0);
+					int p0 = (i/nBlocks)*width + x0;
+					for (int z=0; z<depth; z++)
+						for (int ix=0, p=p0; ix<nx; ix++, p++) {
+							linesRe[ix][z] = re[z][p];
+							linesIm[ix][z] = im[z][p];
+						}
+					for (int ix=0; ix<nx; ix++)
+						engine.transform(linesRe[ix], linesIm[ix], inverse, work);
+					for (int z=0; z<depth; z++)
+						for (int ix=0, p=p0; ix<nx; ix++, p++) {
+							re[z][p] = (float)linesRe[ix][z];
+							im[z][p] = (float)linesIm[ix][z];
+						}
+				}
+			}
+		});
+	}
+
+	/** Calculates the 1D Hartley transforms of all rows and then all columns of a real image
+	 *  (in place). Pairs of lines are transformed together as one complex array; the
+	 *  lines are processed in parallel threads. Note that this is not the 2D Hartley
+	 *  transform; see FHT for the final step. */
+	public static void rowColumnHartley(final float[] x, final int width, final int height, final boolean inverse) {
+		final FFTEngine rowEngine = getEngine(width);
+		ThreadUtil.parallelFor(0, (height+1)/2, new ThreadUtil.RangeTask() {
+			public void run(int from, int to) {
+				double[][] work = rowEngine.createWorkArrays();
+				double[] a = new double[width];
+				double[] b = new double[width];
+				for (int pair=from; pair<to; pair++) {
+					int offsetA = 2*pair*width;
+					int offsetB = offsetA + width;
+					boolean hasB = 2*pair+1 < height;
+					for (int i=0; i<width; i++) {
+						a[i] = x[offsetA+i];
+						b[i] = hasB ? x[offsetB+i] : 0.0;
+					}
+					rowEngine.hartley(a, b, inverse, work);
+					for (int i=0; i<width; i++)
+						x[offsetA+i] = (float)a[i];
+					if (hasB)
+						for (int i=0; i<width; i++)
+							x[offsetB+i] = (float)b[i];
+				}
+			}
+		});
+		final FFTEngine columnEngine = getEngine(height);
+		ThreadUtil.parallelFor(0, (width+BLOCK-1)/BLOCK, new ThreadUtil.RangeTask() {
+			public void run(int from, int to) {
+				double[][] work = columnEngine.createWorkArrays();
+				double[][] lines = new double[BLOCK][height];
+				for (int block=from; block<to; block++) {
+					int x0 = block*BLOCK;
+					int nx = Math.min(BLOCK, width-x0);
+					for (int y=0, p0=x0; y<height; y++, p0+=width)
+						for (int ix=0, p=p0; ix<nx; ix++, p++)
+							lines[ix][y] = x[p];
+					if (nx%2!=0)
+						Arrays.fill(lines[nx], 0.0);
+					for (int ix=0; ix<nx; ix+=2)
+						columnEngine.hartley(lines[ix], lines[ix+1], inverse, work);
+					for (int y=0, p0=x0; y<height; y++, p0+=width)
+						for (int ix=0, p=p0; ix<nx; ix++, p++)
+							x[p] = (float)lines[ix][y];
+				}
+			}
+		});
+	}
+
+	/* Mixed-radix transform, Stockham algorithm (decimation in frequency). Stage by stage,
+	 * the data are read from one pair of arrays and written to the other one, in the
+	 * order required by the next stage; thus no bit reversal is needed. */
+	private void stockham(double[] re, double[] im, double[] workRe, double[] workIm) {
+		double[] xr = re, xi = im, yr = workRe, yi = workIm;
+		int stride = 1;
+		int len = n;
+		for (int stage=0; stage<radices.length; stage++) {
+			int radix = radices[stage];
+			int m = len/radix;
+			switch (radix) {
+				case 2: radix2(xr, xi, yr, yi, twRe[stage], twIm[stage], m, stride); break;
+				case 3: radix3(xr, xi, yr, yi, twRe[stage], twIm[stage], m, stride); break;
+				case 4: radix4(xr, xi, yr, yi, twRe[stage], twIm[stage], m, stride); break;
+				case 5: radix5(xr, xi, yr, yi, twRe[stage], twIm[stage], m, stride); break;
+				default: radixOdd(xr, xi, yr, yi, twRe[stage], twIm[stage], cosTable[stage], sinTable[stage], radix, m, stride);
+			}
+			double[] swap = xr; xr = yr; yr = swap;
+			swap = xi; xi = yi; yi = swap;
+			stride *= radix;
+			len = m;
+		}
+		if (xr!=re) {
+			System.arraycopy(xr, 0, re, 0, n);
+			System.arraycopy(xi, 0, im, 0, n);
+		}
+	}
+
+	private static void radix2(double[] xr, double[] xi, double[] yr, double[] yi, double[] wr, double[] wi, int m, int s) {
+		for (int p=0; p<m; p++) {
+			double w1r = wr[p], w1i = wi[p];
+			for (int q=0, i0=s*p, i1=i0+s*m, o0=2*s*p, o1=o0+s; q<s; q++, i0++, i1++, o0++, o1++) {
+				double ar = xr[i0], ai = xi[i0];
+				double br = xr[i1], bi = xi[i1];
+				yr[o0] = ar + br;
+				yi[o0] = ai + bi;
+				double dr = ar - br, di = ai - bi;
+				yr[o1] = dr*w1r - di*w1i;
+				yi[o1] = dr*w1i + di*w1r;
+			}
+		}
+	}
+
+	private static final double SIN60 = Math.sqrt(0.75);
+
+	private static void radix3(double[] xr, double[] xi, double[] yr, double[] yi, double[] wr, double[] wi, int m, int s) {
+		int sm = s*m;
+		for (int p=0; p<m; p++) {
+			double w1r = wr[2*p], w1i = wi[2*p];
+			double w2r = wr[2*p+1], w2i = wi[2*p+1];
+			for (int q=0, i0=s*p, o0=3*s*p; q<s; q++, i0++, o0++) {
+				int i1 = i0 + sm, i2 = i1 + sm;
+				double tr = xr[i1] + xr[i2], ti = xi[i1] + xi[i2];
+				double mr = xr[i0] - 0.5*tr, mi = xi[i0] - 0.5*ti;
+				double dr = SIN60*(xr[i1] - xr[i2]), di = SIN60*(xi[i1] - xi[i2]);
+				yr[o0] = xr[i0] + tr;
+				yi[o0] = xi[i0] + ti;
+				double y1r = mr + di, y1i = mi - dr;
+				double y2r = mr - di, y2i = mi + dr;
+				int o1 = o0 + s, o2 = o1 + s;
+				yr[o1] = y1r*w1r - y1i*w1i;
+				yi[o1] = y1r*w1i + y1i*w1r;
+				yr[o2] = y2r*w2r - y2i*w2i;
+				yi[o2] = y2r*w2i + y2i*w2r;
+			}
+		}
+	}
+
+	private static void radix4(double[] xr, double[] xi, double[] yr, double[] yi, double[] wr, double[] wi, int m, int s) {
+		int sm = s*m;
+		for (int p=0; p<m; p++) {
+			double w1r = wr[3*p], w1i = wi[3*p];
+			double w2r = wr[3*p+1], w2i = wi[3*p+1];
+			double w3r = wr[3*p+2], w3i = wi[3*p+2];
+			for (int q=0, i0=s*p, o0=4*s*p; q<s; q++, i0++, o0++) {
+				int i1 = i0 + sm, i2 = i1 + sm, i3 = i2 + sm;
+				double t0r = xr[i0] + xr[i2], t0i = xi[i0] + xi[i2];
+				double t1r = xr[i0] - xr[i2], t1i = xi[i0] - xi[i2];
+				double t2r = xr[i1] + xr[i3], t2i = xi[i1] + xi[i3];
+				double t3r = xr[i1] - xr[i3], t3i = xi[i1] - xi[i3];
+				yr[o0] = t0r + t2r;
+				yi[o0] = t0i + t2i;
+				double y1r = t1r + t3i, y1i = t1i - t3r;
+				double y2r = t0r - t2r, y2i = t0i - t2i;
+				double y3r = t1r - t3i, y3i = t1i + t3r;
+				int o1 = o0 + s, o2 = o1 + s, o3 = o2 + s;
+				yr[o1] = y1r*w1r - y1i*w1i;
+				yi[o1] = y1r*w1i + y1i*w1r;
+				yr[o2] = y2r*w2r - y2i*w2i;
+				yi[o2] = y2r*w2i + y2i*w2r;
+				yr[o3] = y3r*w3r - y3i*w3i;
+				yi[o3] = y3r*w3i + y3i*w3r;
+			}
+		}
+	}
+
+	private static final double C1_5 = Math.cos(2*Math.PI/5), C2_5 = Math.cos(4*Math.PI/5);
+	private static final double S1_5 = Math.sin(2*Math.PI/5), S2_5 = Math.sin(4*Math.PI/5);
+
+	private static void radix5(double[] xr, double[] xi, double[] yr, double[] yi, double[] wr, double[] wi, int m, int s) {
+		int sm = s*m;
+		for (int p=0; p<m; p++) {
+			int t = 4*p;
+			for (int q=0, i0=s*p, o0=5*s*p; q<s; q++, i0++, o0++) {
+				int i1 = i0 + sm, i2 = i1 + sm, i3 = i2 + sm, i4 = i3 + sm;
+				double b1r = xr[i1] + xr[i4], b1i = xi[i1] + xi[i4];
+				double b2r = xr[i2] + xr[i3], b2i = xi[i2] + xi[i3];
+				double d1r = xr[i1] - xr[i4], d1i = xi[i1] - xi[i4];
+				double d2r = xr[i2] - xr[i3], d2i = xi[i2] - xi[i3];
+				double a0r = xr[i0], a0i = xi[i0];
+				yr[o0] = a0r + b1r + b2r;
+				yi[o0] = a0i + b1i + b2i;
+				double m1r = a0r + C1_5*b1r + C2_5*b2r, m1i = a0i + C1_5*b1i + C2_5*b2i;
+				double m2r = a0r + C2_5*b1r + C1_5*b2r, m2i = a0i + C2_5*b1i + C1_5*b2i;
+				double n1r = S1_5*d1r + S2_5*d2r, n1i = S1_5*d1i + S2_5*d2i;
+				double n2r = S2_5*d1r - S1_5*d2r, n2i = S2_5*d1i - S1_5*d2i;
+				// y1 = m1 - i*n1, y4 = m1 + i*n1, y2 = m2 - i*n2, y3 = m2 + i*n2
+				twiddle(yr, yi, o0+s,   m1r + n1i, m1i - n1r, wr[t],   wi[t]);
+				twiddle(yr, yi, o0+2*s, m2r + n2i, m2i - n2r, wr[t+1], wi[t+1]);
+				twiddle(yr, yi, o0+3*s, m2r - n2i, m2i + n2r, wr[t+2], wi[t+2]);
+				twiddle(yr, yi, o0+4*s, m1r - n1i, m1i + n1r, wr[t+3], wi[t+3]);
+			}
+		}
+	}
+
+	/** Butterflies for any odd radix (used for radix 7). Pairs of inputs a[j], a[radix-j]
+	 *  are combined first, which halves the number of multiplications of a direct DFT.
+	 *  'cos' and 'sin' hold cos(2 pi j k/radix) and sin(2 pi j k/radix) at [k*half+j-1],
+	 *  for 1 <= j, k <= half = (radix-1)/2 */
+	private static void radixOdd(double[] xr, double[] xi, double[] yr, double[] yi, double[] wr, double[] wi,
+			double[] cos, double[] sin, int radix, int m, int s) {
+		int sm = s*m;
+		int half = (radix-1)/2;
+		double[] br = new double[half+1], bi = new double[half+1];
+		double[] dr = new double[half+1], di = new double[half+1];
+		for (int p=0; p<m; p++) {
+			int t = p*(radix-1) - 1;
+			for (int q=0, i0=s*p, o0=radix*s*p; q<s; q++, i0++, o0++) {
+				double a0r = xr[i0], a0i = xi[i0];
+				double sumRe = a0r, sumIm = a0i;
+				for (int j=1; j<=half; j++) {
+					int i1 = i0 + j*sm, i2 = i0 + (radix-j)*sm;
+					br[j] = xr[i1] + xr[i2];
+					bi[j] = xi[i1] + xi[i2];
+					dr[j] = xr[i1] - xr[i2];
+					di[j] = xi[i1] - xi[i2];
+					sumRe += br[j];
+					sumIm += bi[j];
+				}
+				yr[o0] = sumRe;
+				yi[o0] = sumIm;
+				for (int k=1; k<=half; k++) {
+					double mr = a0r, mi = a0i, nr = 0, ni = 0;
+					for (int j=1, c=k*half; j<=half; j++, c++) {
+						mr += cos[c]*br[j];
+						mi += cos[c]*bi[j];
+						nr += sin[c]*dr[j];
+						ni += sin[c]*di[j];
+					}
+					// y[k] = m - i*n, y[radix-k] = m + i*n
+					twiddle(yr, yi, o0+k*s, mr + ni, mi - nr, wr[t+k], wi[t+k]);
+					twiddle(yr, yi, o0+(radix-k)*s, mr - ni, mi + nr, wr[t+radix-k], wi[t+radix-k]);
+				}
+			}
+		}
+	}
+
+	private static void twiddle(double[] yr, double[] yi, int index, double vr, double vi, double wr, double wi) {
+		yr[index] = vr*wr - vi*wi;
+		yi[index] = vr*wi + vi*wr;
+	}
+
+	/* Bluestein's algorithm: X[k] = c[k] sum_j (x[j] c[j]) conj(c[k-j]), with the chirp
+	 * c[k] = exp(-i pi k^2/n). The sum is a convolution, done via the FFT of a larger size. */
+	private void bluesteinTransform(double[] re, double[] im, double[][] work) {
+		int size = bluestein.n;
+		double[] ar = work[0], ai = work[1];
+		for (int k=0; k<n; k++) {
+			ar[k] = re[k]*chirpRe[k] - im[k]*chirpIm[k];
+			ai[k] = re[k]*chirpIm[k] + im[k]*chirpRe[k];
+		}
+		for (int k=n; k<size; k++)
+			ar[k] = ai[k] = 0.0;
+		double[][] subWork = new double[][] {work[2], work[3]};
+		bluestein.transform(ar, ai, false, subWork);
+		for (int k=0; k<size; k++) {
+			double r = ar[k]*kernelRe[k] - ai[k]*kernelIm[k];
+			ai[k] = ar[k]*kernelIm[k] + ai[k]*kernelRe[k];
+			ar[k] = r;
+		}
+		bluestein.transform(ar, ai, true, subWork);
+		for (int k=0; k<n; k++) {
+			re[k] = ar[k]*chirpRe[k] - ai[k]*chirpIm[k];
+			im[k] = ar[k]*chirpIm[k] + ai[k]*chirpRe[k];
+		}
+	}
+
+	private void makeTables(int[] factors, int nFactors) {
+		radices = new int[nFactors];
+		twRe = new double[nFactors][];
+		twIm = new double[nFactors][];
+		cosTable = new double[nFactors][];
+		sinTable = new double[nFactors][];
+		int len = n;
+		for (int stage=0; stage<nFactors; stage++) {
+			int radix = factors[stage];
+			int m = len/radix;
+			radices[stage] = radix;
+			double[] wr = new double[m*(radix-1)];
+			double[] wi = new double[m*(radix-1)];
+			for (int p=0, i=0; p<m; p++)
+				for (int k=1; k<radix; k++, i++) {
+					double angle = -2*Math.PI*(p*(long)k)/len;
+					wr[i] = Math.cos(angle);
+					wi[i] = Math.sin(angle);
+				}
+			twRe[stage] = wr;
+			twIm[stage] = wi;
+			if (radix>5) {
+				int half = (radix-1)/2;
+				cosTable[stage] = new double[(half+1)*half];
+				sinTable[stage] = new double[(half+1)*half];
+				for (int k=1; k<=half; k++)
+					for (int j=1; j<=half; j++) {
+						cosTable[stage][k*half+j-1] = Math.cos(2*Math.PI*((j*k)%radix)/radix);
+						sinTable[stage][k*half+j-1] = Math.sin(2*Math.PI*((j*k)%radix)/radix);
+					}
+			}
+			len = m;
+		}
+	}
+
+	private void makeBluesteinTables() {
+		if (n>0x3fffffff)
+			throw new IllegalArgumentException("Too large for FFT: "+n);
+		bluestein = getEngine(nextSmoothSize(2*n-1));
+		int size = bluestein.n;
+		chirpRe = new double[n];
+		chirpIm = new double[n];
+		for (int k=0; k<n; k++) {
+			long k2 = ((long)k*k) % (2L*n);     // exp(-i pi k^2/n) is periodic with k^2 modulo 2n
+			double angle = -Math.PI*k2/n;
+			chirpRe[k] = Math.cos(angle);
+			chirpIm[k] = Math.sin(angle);
+		}
+		kernelRe = new double[size];
+		kernelIm = new double[size];
+		kernelRe[0] = chirpRe[0];
+		kernelIm[0] = -chirpIm[0];
+		for (int k=1; k<n; k++) {
+			kernelRe[k] = kernelRe[size-k] = chirpRe[k];
+			kernelIm[k] = kernelIm[size-k] = -chirpIm[k];
+		}
+		bluestein.transform(kernelRe, kernelIm, false);
+	}
+
+	public String toString() {
+		return "FFTEngine, n="+n+(bluestein!=null ? ", Bluestein via "+bluestein.n : "");
+	}
+
+}
@@ -2,6 +2,7 @@ package ij.process;
 import ij.*;
 import ij.plugin.FFT;
 import ij.plugin.ContrastEnhancer;
+import ij.util.ThreadUtil;
 import java.awt.image.ColorModel; 
 
 /**
@@ -11,6 +12,9 @@ by Arlo Reeves (http://imagej.nih.gov/ij/docs/ImageFFT/).
 The Fast Hartley Transform was restricted by U.S. Patent No. 4,646,256, 
 but was placed in the public domain by Stanford University in 1995 
 and is now freely available.
+Images of any size can be transformed: Square images with a power-of-2 width use
+the original algorithm, all others are transformed via the FFTEngine. In both cases,
+the rows and columns are transformed in parallel threads.
 */
 public class FHT extends FloatProcessor {
 	private boolean isFrequencyDomain;
@@ -59,13 +63,15 @@ public class FHT extends FloatProcessor {
 	}
 
 	/** Performs a forward transform, converting this image into the frequency domain. 
-		The image contained in this FHT must be square and its width must be a power of 2. */
+		The image contained in this FHT may have any size, but the transform is fastest
+		for square images with a power-of-2 width and for sizes that are products of
+		2, 3, 5 and 7 (see FFTEngine.nextFastSize). */
 	public void transform() {
 		transform(false);
 	}
 
 	/** Performs an inverse transform, converting this image into the space domain. 
-		The image contained in this FHT must be square and its width must be a power of 2. */
+		The image contained in this FHT may have any size. */
 	public void inverseTransform() {
 		transform(true);
 	}
@@ -154,7 +160,7 @@ public class FHT extends FloatProcessor {
 	}
 
 	/** Performs an optimized 1D Fast Hartley Transform (FHT) of an array.
-	 *  Array size must be a power of 2.
+	 *  The array size need not be a power of 2, but then the FFTEngine is used, which is slower.
 	 *  Note that all amplitudes in the output 'x' are multiplied by the array length.
 	 *  Therefore, to get the power spectrum, for 1 <=i < N/2, use
 	 *  ps[i] = (x[i]*x[i]+x[maxN-i]*x[maxN-i])/(maxN*maxN), where maxN is the array length.
@@ -166,34 +172,52 @@ public class FHT extends FloatProcessor {
 	 */
 	public void transform1D(float[] x) {
 		int n = x.length;
-		if (S==null || n!=maxN) {
-			if (!isPowerOf2(n))
-				throw new IllegalArgumentException("Not power of 2 length: "+n);
-			initializeTables(n);
+		if (!isPowerOf2(n)) {
+			hartley1D(x, false);
+			return;
 		}
+		if (S==null || n!=maxN)
+			initializeTables(n);
 		dfht3(x, 0, false, n);
 	}
 
     /** Performs an inverse 1D Fast Hartley Transform (FHT) of an array */
 	public void inverseTransform1D(float[] fht) {
 		int n = fht.length;
-		if (S==null || n!=maxN) {
-			if (!isPowerOf2(n))
-				throw new IllegalArgumentException("Not power of 2 length: "+n);
-			initializeTables(n);
+		if (!isPowerOf2(n)) {
+			hartley1D(fht, true);
+			return;
 		}
+		if (S==null || n!=maxN)
+			initializeTables(n);
 		dfht3(fht, 0, true, n);
 	}
 
+	/** 1D Hartley transform of an array with a size that is not a power of 2 */
+	private void hartley1D(float[] x, boolean inverse) {
+		FFTEngine engine = FFTEngine.getEngine(x.length);
+		double[] a = new double[x.length];
+		for (int i=0; i<x.length; i++)
+			a[i] = x[i];
+		engine.hartley(a, new double[x.length], inverse, engine.createWorkArrays());
+		for (int i=0; i<x.length; i++)
+			x[i] = (float)a[i];
+	}
+
 	void transform(boolean inverse) {
 		//IJ.log("transform: "+maxN+" "+inverse);
-		if (!powerOf2Size())
-			throw new  IllegalArgumentException("Image not power of 2 size or not square: "+width+"x"+height);
 		maxN = width;
-		if (S==null)
-			initializeTables(maxN);
 		float[] fht = (float[])getPixels();
-	 	rc2DFHT(fht, inverse, maxN);
+		if (powerOf2Size()) {
+			if (S==null)
+				initializeTables(maxN);
+			rc2DFHT(fht, inverse, maxN);
+		} else {
+			FFTEngine.rowColumnHartley(fht, width, height, inverse);
+			progress(0.8);
+			rowColumnToHartley(fht, width, height);
+			progress(0.95);
+		}
 		isFrequencyDomain = !inverse;
 	}
 	
@@ -228,35 +252,54 @@ public class FHT extends FloatProcessor {
 	/** Performs a 2D FHT (Fast Hartley Transform). */
 	public void rc2DFHT(float[] x, boolean inverse, int maxN) {
 		if (S==null) initializeTables(maxN);
-		for (int row=0; row<maxN; row++)
-			dfht3(x, row*maxN, inverse, maxN);		
+		dfhtRows(x, inverse, maxN);
 		progress(0.4);
 		transposeR(x, maxN);
 		progress(0.5);
-		for (int row=0; row<maxN; row++)		
-			dfht3(x, row*maxN, inverse, maxN);
+		dfhtRows(x, inverse, maxN);
 		progress(0.7);
 		transposeR(x, maxN);
 		progress(0.8);
+		rowColumnToHartley(x, maxN, maxN);
+		progress(0.95);
+	}
 
-		int mRow, mCol;
-		float A,B,C,D,E;
-		for (int row=0; row<=maxN/2; row++) { // Now calculate actual Hartley transform
-			for (int col=0; col<=maxN/2; col++) {
-				mRow = (maxN - row) % maxN;
-				mCol = (maxN - col)  % maxN;
-				A = x[row * maxN + col];	//  see Bracewell, 'Fast 2D Hartley Transf.' IEEE Procs. 9/86
-				B = x[mRow * maxN + col];
-				C = x[row * maxN + mCol];
-				D = x[mRow * maxN + mCol];
-				E = ((A + D) - (B + C)) / 2;
-				x[row * maxN + col] = A - E;
-				x[mRow * maxN + col] = B + E;
-				x[row * maxN + mCol] = C + E;
-				x[mRow * maxN + mCol] = D - E;
+	/** 1D FHT of all rows of a square image, in parallel threads */
+	private void dfhtRows(final float[] x, final boolean inverse, final int maxN) {
+		ThreadUtil.parallelFor(0, maxN, new ThreadUtil.RangeTask() {
+			public void run(int from, int to) {
+				float[] temp = new float[maxN];
+				for (int row=from; row<to; row++)
+					dfht3(x, row*maxN, inverse, maxN, temp);
 			}
-		}
-		progress(0.95);
+		});
+	}
+
+	/** Converts the result of 1D Hartley transforms of all rows and then all columns
+	 *  into the actual 2D Hartley transform. The pairs of rows (row, height-row) are
+	 *  processed in parallel threads. */
+	static void rowColumnToHartley(final float[] x, final int width, final int height) {
+		ThreadUtil.parallelFor(0, height/2+1, new ThreadUtil.RangeTask() {
+			public void run(int from, int to) {
+				int mRow, mCol;
+				float A,B,C,D,E;
+				for (int row=from; row<to; row++) {
+					for (int col=0; col<=width/2; col++) {
+						mRow = (height - row) % height;
+						mCol = (width - col)  % width;
+						A = x[row * width + col];	//  see Bracewell, 'Fast 2D Hartley Transf.' IEEE Procs. 9/86
+						B = x[mRow * width + col];
+						C = x[row * width + mCol];
+						D = x[mRow * width + mCol];
+						E = ((A + D) - (B + C)) / 2;
+						x[row * width + col] = A - E;
+						x[mRow * width + col] = B + E;
+						x[row * width + mCol] = C + E;
+						x[mRow * width + mCol] = D - E;
+					}
+				}
+			}
+		});
 	}
 	
 	void progress(double percent) {
@@ -273,14 +316,19 @@ public class FHT extends FloatProcessor {
 	 *  Note that all amplitudes in the output 'x' are multiplied by maxN.
 	 */
 	public void dfht3(float[] x, int base, boolean inverse, int maxN) {
+		if (S==null) initializeTables(maxN);
+		dfht3(x, base, inverse, maxN, tempArr);
+	}
+
+	/** 1D FHT as above, with a work array of size maxN; the tables must exist already. */
+	private void dfht3(float[] x, int base, boolean inverse, int maxN, float[] temp) {
 		int i, stage, gpNum, gpIndex, gpSize, numGps, Nlog2;
 		int bfNum, numBfs;
 		int Ad0, Ad1, Ad2, Ad3, Ad4, CSAd;
 		float rt1, rt2, rt3, rt4;
 
-		if (S==null) initializeTables(maxN);
 		Nlog2 = log2(maxN);
-		BitRevRArr(x, base, Nlog2, maxN);	//bitReverse the input array
+		BitRevRArr(x, base, Nlog2, maxN, temp);	//bitReverse the input array
 		gpSize = 2;     //first & second stages - do radix 4 butterflies once thru
 		numGps = maxN / 4;
 		for (gpNum=0; gpNum<numGps; gpNum++)  {
@@ -346,19 +394,21 @@ public class FHT extends FloatProcessor {
 		}
 	}
 
-	void transposeR (float[] x, int maxN) {
-		int   r, c;
-		float  rTemp;
-
-		for (r=0; r<maxN; r++)  {
-			for (c=r; c<maxN; c++) {
-				if (r != c)  {
-					rTemp = x[r*maxN + c];
-					x[r*maxN + c] = x[c*maxN + r];
-					x[c*maxN + r] = rTemp;
+	/** Transposes a square image. Each row swaps the pixels right of the diagonal
+	 *  with the column below; rows are processed in parallel threads. */
+	void transposeR (final float[] x, final int maxN) {
+		ThreadUtil.parallelFor(0, maxN, 16, new ThreadUtil.RangeTask() {
+			public void run(int from, int to) {
+				float rTemp;
+				for (int r=from; r<to; r++)  {
+					for (int c=r+1; c<maxN; c++) {
+						rTemp = x[r*maxN + c];
+						x[r*maxN + c] = x[c*maxN + r];
+						x[c*maxN + r] = rTemp;
+					}
 				}
 			}
-		}
+		});
 	}
 	
 	int log2 (int x) {
@@ -374,10 +424,14 @@ public class FHT extends FloatProcessor {
 	}
 
 	void BitRevRArr (float[] x, int base, int bitlen, int maxN) {
+		BitRevRArr(x, base, bitlen, maxN, tempArr);
+	}
+
+	private void BitRevRArr (float[] x, int base, int bitlen, int maxN, float[] temp) {
 		for (int i=0; i<maxN; i++)
-			tempArr[i] = x[base+bitrev[i]];
+			temp[i] = x[base+bitrev[i]];
 		for (int i=0; i<maxN; i++)
-			x[base+i] = tempArr[i];
+			x[base+i] = temp[i];
 	}
 
 	private int bitRevX (int  x, int bitlen) {
@@ -402,14 +456,14 @@ public class FHT extends FloatProcessor {
 		float  r, scale;
 		float min = Float.MAX_VALUE;
   		float max = Float.MIN_VALUE;
-   		float[] fps = new float[maxN*maxN];
- 		byte[] ps = new byte[maxN*maxN];
+   		float[] fps = new float[width*height];
+ 		byte[] ps = new byte[width*height];
 		float[] fht = (float[])getPixels();
 
-  		for (int row=0; row<maxN; row++) {
-			FHTps(row, maxN, fht, fps);
-			base = row * maxN;
-			for (int col=0; col<maxN; col++) {
+  		for (int row=0; row<height; row++) {
+			FHTps(row, width, height, fht, fps);
+			base = row * width;
+			for (int col=0; col<width; col++) {
 				r = fps[base+col];
 				if (r<min) min = r;
 				if (r>max) max = r;
@@ -422,9 +476,9 @@ public class FHT extends FloatProcessor {
 			min = max - 50; //display range not more than approx e^50
 		scale = (float)(253.999/(max-min));
 
-		for (int row=0; row<maxN; row++) {
-			base = row*maxN;
-			for (int col=0; col<maxN; col++) {
+		for (int row=0; row<height; row++) {
+			base = row*width;
+			for (int col=0; col<width; col++) {
 				r = fps[base+col];
 				r = ((float)Math.log(r)-min)*scale;
 				if (Float.isNaN(r) || r<0)
@@ -432,15 +486,15 @@ public class FHT extends FloatProcessor {
 				ps[base+col] = (byte)(r+1f); // 1 is min value
 			}
 		}
-		ImageProcessor ip = new ByteProcessor(maxN, maxN, ps, null);
+		ImageProcessor ip = new ByteProcessor(width, height, ps, null);
 		swapQuadrants(ip);
 		if (FFT.displayRawPS) {
-			ImageProcessor ip2 = new FloatProcessor(maxN, maxN, fps, null);
+			ImageProcessor ip2 = new FloatProcessor(width, height, fps, null);
 			swapQuadrants(ip2);
 			new ImagePlus("PS of "+FFT.fileName, ip2).show();
 		}
 		if (FFT.displayFHT) {
-			ImageProcessor ip3 = new FloatProcessor(maxN, maxN, fht, null);
+			ImageProcessor ip3 = new FloatProcessor(width, height, fht, null);
 			ImagePlus imp2 = new ImagePlus("FHT of "+FFT.fileName, ip3.duplicate());
 			(new ContrastEnhancer()).stretchHistogram(imp2, 0.1);
 			imp2.show();
@@ -457,11 +511,11 @@ public class FHT extends FloatProcessor {
 	}
 
 	/** Power Spectrum of one row from 2D Hartley Transform. */
- 	void FHTps(int row, int maxN, float[] fht, float[] ps) {
- 		int base = row*maxN;
+ 	void FHTps(int row, int width, int height, float[] fht, float[] ps) {
+ 		int base = row*width;
 		int l;
-		for (int c=0; c<maxN; c++) {
-			l = ((maxN-row)%maxN) * maxN + (maxN-c)%maxN;
+		for (int c=0; c<width; c++) {
+			l = ((height-row)%height) * width + (width-c)%width;
 			ps[base+c] = (sqr(fht[base+c]) + sqr(fht[l]))/2f;
  		}
 	}
@@ -473,15 +527,15 @@ public class FHT extends FloatProcessor {
 		if (!isFrequencyDomain)
 			throw new  IllegalArgumentException("Frequency domain image required");
 		float[] fht = (float[])getPixels();
-		float[] re = new float[maxN*maxN];
-		float[] im = new float[maxN*maxN];
-		for (int i=0; i<maxN; i++) {
-			FHTreal(i, maxN, fht, re);
-			FHTimag(i, maxN, fht, im);
+		float[] re = new float[width*height];
+		float[] im = new float[width*height];
+		for (int i=0; i<height; i++) {
+			FHTreal(i, width, height, fht, re);
+			FHTimag(i, width, height, fht, im);
 		}
-		swapQuadrants(new FloatProcessor(maxN, maxN, re, null));
-		swapQuadrants(new FloatProcessor(maxN, maxN, im, null));
-		ImageStack stack = new ImageStack(maxN, maxN);
+		swapQuadrants(new FloatProcessor(width, height, re, null));
+		swapQuadrants(new FloatProcessor(width, height, im, null));
+		ImageStack stack = new ImageStack(width, height);
 		stack.addSlice("Real", re);
 		stack.addSlice("Imaginary", im);
 		return stack;
@@ -490,11 +544,11 @@ public class FHT extends FloatProcessor {
 	/**	 FFT real value of one row from 2D Hartley Transform.
 	*	Author: Joachim Wesner
 	*/
-      void FHTreal(int row, int maxN, float[] fht, float[] real) {
-            int base = row*maxN;
-            int offs = ((maxN-row)%maxN) * maxN;
-            for (int c=0; c<maxN; c++) {
-                  real[base+c] = (fht[base+c] + fht[offs+((maxN-c)%maxN)])*0.5f;
+      void FHTreal(int row, int width, int height, float[] fht, float[] real) {
+            int base = row*width;
+            int offs = ((height-row)%height) * width;
+            for (int c=0; c<width; c++) {
+                  real[base+c] = (fht[base+c] + fht[offs+((width-c)%width)])*0.5f;
             }
       }
 
@@ -502,30 +556,30 @@ public class FHT extends FloatProcessor {
 	/** FFT imag value of one row from 2D Hartley Transform.
 	*	Author: Joachim Wesner
 	*/
-      void FHTimag(int row, int maxN, float[] fht, float[] imag) {
-            int base = row*maxN;
-            int offs = ((maxN-row)%maxN) * maxN;
-            for (int c=0; c<maxN; c++) {
-                  imag[base+c] = (-fht[base+c] + fht[offs+((maxN-c)%maxN)])*0.5f;
+      void FHTimag(int row, int width, int height, float[] fht, float[] imag) {
+            int base = row*width;
+            int offs = ((height-row)%height) * width;
+            for (int c=0; c<width; c++) {
+                  imag[base+c] = (-fht[base+c] + fht[offs+((width-c)%width)])*0.5f;
             }
       }
 
-	ImageProcessor calculateAmplitude(float[] fht, int maxN) {
-   		float[] amp = new float[maxN*maxN];
-   		for (int row=0; row<maxN; row++) {
-			amplitude(row, maxN, fht, amp);
+	ImageProcessor calculateAmplitude(float[] fht, int width, int height) {
+   		float[] amp = new float[width*height];
+   		for (int row=0; row<height; row++) {
+			amplitude(row, width, height, fht, amp);
 		}
-		ImageProcessor ip = new FloatProcessor(maxN, maxN, amp, null);
+		ImageProcessor ip = new FloatProcessor(width, height, amp, null);
 		swapQuadrants(ip);
 		return ip;
 	}
 
 	/** Amplitude of one row from 2D Hartley Transform. */
- 	void amplitude(int row, int maxN, float[] fht, float[] amplitude) {
- 		int base = row*maxN;
+ 	void amplitude(int row, int width, int height, float[] fht, float[] amplitude) {
+ 		int base = row*width;
 		int l;
-		for (int c=0; c<maxN; c++) {
-			l = ((maxN-row)%maxN) * maxN + (maxN-c)%maxN;
+		for (int c=0; c<width; c++) {
+			l = ((height-row)%height) * width + (width-c)%width;
 			amplitude[base+c] = (float)Math.sqrt(sqr(fht[base+c]) + sqr(fht[l]));
  		}
 	}
@@ -540,23 +594,27 @@ public class FHT extends FloatProcessor {
 		    2 1
 		    3 4
 		</pre>
+		The image need not be square. For an odd width or height, the origin
+		moves to (width/2, height/2), rounded down; then the swap is not its own inverse.
 	*/
  	public void swapQuadrants(ImageProcessor ip) {
 		//IJ.log("swap");
- 		ImageProcessor t1, t2;
-		int size = ip.getWidth()/2;
-		ip.setRoi(size,0,size,size);
-		t1 = ip.crop();
-  		ip.setRoi(0,size,size,size);
-		t2 = ip.crop();
-		ip.insert(t1,0,size);
-		ip.insert(t2,size,0);
-		ip.setRoi(0,0,size,size);
+ 		ImageProcessor t1, t2, t3, t4;
+		int width = ip.getWidth(), height = ip.getHeight();
+		int w2 = width/2, h2 = height/2;    // size of the right and bottom parts
+		int w1 = width-w2, h1 = height-h2;  // size of the left and top parts
+		ip.setRoi(0,0,w1,h1);
 		t1 = ip.crop();
-  		ip.setRoi(size,size,size,size);
+		ip.setRoi(w1,0,w2,h1);
 		t2 = ip.crop();
-		ip.insert(t1,size,size);
-		ip.insert(t2,0,0);
+		ip.setRoi(0,h1,w1,h2);
+		t3 = ip.crop();
+		ip.setRoi(w1,h1,w2,h2);
+		t4 = ip.crop();
+		ip.insert(t1,w2,h2);
+		ip.insert(t2,0,h2);
+		ip.insert(t3,w2,0);
+		ip.insert(t4,0,0);
 		ip.resetRoi();
 	}
 
@@ -593,25 +651,59 @@ public class FHT extends FloatProcessor {
 		return multiply(fht, true);
 	}
 
+	/** Returns the cross-power spectrum of this image and the specified image, both
+		in the frequency domain: the conjugate multiplication, with the amplitude of each
+		frequency divided by the amplitude plus 'epsilon' times the maximum amplitude.
+		The inverse transform is the phase correlation of the two images, which has a
+		sharp peak at the translation between them. With 'epsilon' zero, all amplitudes
+		are set to one; a small 'epsilon' (e.g. 0.01) keeps frequencies with little
+		signal from amplifying the noise. */
+	public FHT crossPowerSpectrum(FHT fht, double epsilon) {
+		FHT fht2 = conjugateMultiply(fht);
+		float[] h = (float[])fht2.getPixels();
+		double max = 0.0;
+		for (int r=0; r<height; r++) {
+			int rowMod = (height - r) % height;
+			for (int c=0; c<width; c++) {
+				int i = r*width + c;
+				int j = rowMod*width + (width - c) % width;
+				max = Math.max(max, h[i]*h[i] + h[j]*h[j]);
+			}
+		}
+		double floor = epsilon*Math.sqrt(max/2.0) + 1e-30;
+		for (int r=0; r<height; r++) {
+			int rowMod = (height - r) % height;
+			for (int c=0; c<width; c++) {
+				int i = r*width + c;
+				int j = rowMod*width + (width - c) % width;
+				if (j<i) continue;	// the pair (i, j) has been done
+				double scale = 1.0/(Math.sqrt((h[i]*h[i] + h[j]*h[j])/2.0) + floor);
+				h[i] = (float)(h[i]*scale);
+				if (j!=i) h[j] = (float)(h[j]*scale);
+			}
+		}
+		return fht2;
+	}
+
 	FHT multiply(FHT fht, boolean  conjugate) {
 		int rowMod, cMod, colMod;
 		double h2e, h2o;
 		float[] h1 = (float[])getPixels();
 		float[] h2 = (float[])fht.getPixels();
-		float[] tmp = new float[maxN*maxN];
-		for (int r =0; r<maxN; r++) {
-			rowMod = (maxN - r) % maxN;
-			for (int c=0; c<maxN; c++) {
-				colMod = (maxN - c) % maxN;
-				h2e = (h2[r * maxN + c] + h2[rowMod * maxN + colMod]) / 2;
-				h2o = (h2[r * maxN + c] - h2[rowMod * maxN + colMod]) / 2;
+		float[] tmp = new float[width*height];
+		for (int r =0; r<height; r++) {
+			rowMod = (height - r) % height;
+			for (int c=0; c<width; c++) {
+				colMod = (width - c) % width;
+				h2e = (h2[r * width + c] + h2[rowMod * width + colMod]) / 2;
+				h2o = (h2[r * width + c] - h2[rowMod * width + colMod]) / 2;
 				if (conjugate) 
-					tmp[r * maxN + c] = (float)(h1[r * maxN + c] * h2e - h1[rowMod * maxN + colMod] * h2o);
+					tmp[r * width + c] = (float)(h1[r * width + c] * h2e - h1[rowMod * width + colMod] * h2o);
 				else
-					tmp[r * maxN + c] = (float)(h1[r * maxN + c] * h2e + h1[rowMod * maxN + colMod] * h2o);
+					tmp[r * width + c] = (float)(h1[r * width + c] * h2e + h1[rowMod * width + colMod] * h2o);
 			}
 		}
-		FHT fht2 =  new FHT(new FloatProcessor(maxN, maxN, tmp, null));
+		FHT fht2 =  new FHT(new FloatProcessor(width, height, tmp, null));
 		fht2.isFrequencyDomain = true;
 		return fht2;
 	}
@@ -625,21 +717,21 @@ public class FHT extends FloatProcessor {
 		double mag, h2e, h2o;
 		float[] h1 = (float[])getPixels();
 		float[] h2 = (float[])fht.getPixels();
-		float[] out = new float[maxN*maxN];
-		for (int r=0; r<maxN; r++) {
-			rowMod = (maxN - r) % maxN;
-			for (int c=0; c<maxN; c++) {
-				colMod = (maxN - c) % maxN;
-				mag =h2[r*maxN+c] * h2[r*maxN+c] + h2[rowMod*maxN+colMod] * h2[rowMod*maxN+colMod];
+		float[] out = new float[width*height];
+		for (int r=0; r<height; r++) {
+			rowMod = (height - r) % height;
+			for (int c=0; c<width; c++) {
+				colMod = (width - c) % width;
+				mag =h2[r*width+c] * h2[r*width+c] + h2[rowMod*width+colMod] * h2[rowMod*width+colMod];
 				if (mag<1e-20)
 					mag = 1e-20;
-				h2e = (h2[r*maxN+c] + h2[rowMod*maxN+colMod]);
-				h2o = (h2[r*maxN+c] - h2[rowMod*maxN+colMod]);
-				double tmp = (h1[r*maxN+c] * h2e - h1[rowMod*maxN+colMod] * h2o);
-				out[r*maxN+c] = (float)(tmp/mag);
+				h2e = (h2[r*width+c] + h2[rowMod*width+colMod]);
+				h2o = (h2[r*width+c] - h2[rowMod*width+colMod]);
+				double tmp = (h1[r*width+c] * h2e - h1[rowMod*width+colMod] * h2o);
+				out[r*width+c] = (float)(tmp/mag);
 			}
 		}
-		FHT fht2 = new FHT(new FloatProcessor(maxN, maxN, out, null));
+		FHT fht2 = new FHT(new FloatProcessor(width, height, out, null));
 		fht2.isFrequencyDomain = true;
 		return fht2;
 	}
@@ -4,6 +4,7 @@ import java.util.*;
 import java.awt.*;
 import java.awt.image.*;
 import ij.gui.*;
+import ij.util.ThreadUtil;
 
 /** This is an 32-bit floating-point image and methods that operate on that image. */
 public class FloatProcessor extends ImageProcessor {
@@ -147,63 +148,71 @@ public class FloatProcessor extends ImageProcessor {
 
 	/** Create an 8-bit AWT image by scaling pixels in the range min-max to 0-255. */
 	public Image createImage() {
+		return createImage(null);
+	}
+
+	/** Same as createImage(), but only the pixels inside 'rect' are converted to 8 bits,
+		the rest of the AWT image keeps its previous content. ImageCanvas uses this
+		for updating only the visible part of zoomed-in images. */
+	public Image createImage(Rectangle rect) {
 		boolean firstTime = pixels8==null;
 		boolean thresholding = minThreshold!=NO_THRESHOLD && lutUpdateMode<NO_LUT_UPDATE;
 		//ij.IJ.log("createImage: "+firstTime+"  "+lutAnimation+"  "+thresholding);
 		if (firstTime || !lutAnimation)
-			create8BitImage(thresholding&&lutUpdateMode==RED_LUT);
+			create8BitImage(thresholding?lutUpdateMode+1:0, rect);
 		if (cm==null)
 			makeDefaultColorModel();
-		if (thresholding) {
-			int size = width*height;
-			double value;
-			if (lutUpdateMode==BLACK_AND_WHITE_LUT) {
-				for (int i=0; i<size; i++) {
-					value = pixels[i];
-					if (value>=minThreshold && value<=maxThreshold)
-						pixels8[i] = (byte)255;
-					else
-						pixels8[i] = (byte)0;
-				}
-			} else { // threshold red
-				for (int i=0; i<size; i++) {
-					value = pixels[i];
-					if (value>=minThreshold && value<=maxThreshold)
-						pixels8[i] = (byte)255;
-				}
-			}
-		}
 		return createBufferedImage();
 	}
 		
-	// creates 8-bit image by linearly scaling from float to 8-bits
-	private byte[] create8BitImage(boolean thresholding) {
-		int size = width*height;
+	// Creates the 8-bit image inside 'rect' (null: all). With 'type' 0, pixels are
+	// scaled linearly from float to 8-bits; with RED_LUT+1, thresholded pixels are 255
+	// and the others are scaled to 0-254; with BLACK_AND_WHITE_LUT+1, thresholded pixels
+	// are 255 and the others 0.
+	private void create8BitImage(final int type, Rectangle rect) {
 		if (pixels8==null)
-			pixels8 = new byte[size];
-		double value;
-		int ivalue;
-		double min2 = getMin(), max2=getMax();
-		int maxValue = 255;
-		double scale = 256.0/(max2-min2);
-		if (thresholding) {
-			maxValue = 254;
-			scale = 255.0/(max2-min2);
-		}
-		for (int i=0; i<size; i++) {
-			value = pixels[i]-min2;
-			if (value<0.0) value=0.0;
-			ivalue = (int)((value*scale)+0.5f);
-			if (ivalue>maxValue) ivalue = maxValue;
-			pixels8[i] = (byte)ivalue;
-		}
+			pixels8 = new byte[width*height];
+		final Rectangle r = rect==null ? new Rectangle(0, 0, width, height) : rect.intersection(new Rectangle(0, 0, width, height));
+		if (r.isEmpty())
+			return;
+		final double min2 = getMin(), max2=getMax();
+		final double t1 = minThreshold, t2 = maxThreshold;
+		final int maxValue = type==RED_LUT+1 ? 254 : 255;
+		final double scale = (type==RED_LUT+1 ? 255.0 : 256.0)/(max2-min2);
+		int grain = Math.max(r.height/(4*ij.Prefs.getThreads()), 65536/r.width);
+		ThreadUtil.parallelFor(r.y, r.y+r.height, grain, new ThreadUtil.RangeTask() {
+			public void run(int from, int to) {
+				for (int y=from; y<to; y++) {
+					for (int i=y*width+r.x, end=i+r.width; i<end; i++) {
+						double value = pixels[i];
+						if (type!=0 && value>=t1 && value<=t2)
+							pixels8[i] = (byte)255;
+						else if (type==BLACK_AND_WHITE_LUT+1)
+							pixels8[i] = (byte)0;
+						else {
+							value = value-min2;
+							if (value<0.0) value=0.0;
+							int ivalue = (int)((value*scale)+0.5f);
+							if (ivalue>maxValue) ivalue = maxValue;
+							pixels8[i] = (byte)ivalue;
+						}
+					}
+				}
+			}
+		});
 		//if (ij.IJ.debugMode) new ij.ImagePlus("pixels8",new ByteProcessor(width,height,pixels8).duplicate()).show();
-		return pixels8;
 	}
 	
 	@Override
 	byte[] create8BitImage() {
-		return create8BitImage(false);
+		create8BitImage(0, null);
+		return pixels8;
+	}
+
+	@Override
+	byte[] create8BitImage(Rectangle rect) {
+		create8BitImage(0, rect);
+		return pixels8;
 	}
 		
 	Image createBufferedImage() {
@@ -654,63 +663,52 @@ public class FloatProcessor extends ImageProcessor {
 		@see ImageProcessor#setInterpolate
 	*/
 	public void rotate(double angle) {
-		float[] pixels2 = (float[])getPixelsCopy();
-		ImageProcessor ip2 = null;
-		if (interpolationMethod==BICUBIC)
-			ip2 = new FloatProcessor(getWidth(), getHeight(), pixels2, null);
-		double centerX = roiX + (roiWidth-1)/2.0;
-		double centerY = roiY + (roiHeight-1)/2.0;
-		int xMax = roiX + this.roiWidth - 1;
+		final float[] pixels2 = (float[])getPixelsCopy();
+		final ImageProcessor ip2 = interpolationMethod==BICUBIC?new FloatProcessor(getWidth(), getHeight(), pixels2, null):null;
+		final double centerX = roiX + (roiWidth-1)/2.0;
+		final double centerY = roiY + (roiHeight-1)/2.0;
+		final int xMax = roiX + this.roiWidth - 1;
 		
 		double angleRadians = -angle/(180.0/Math.PI);
-		double ca = Math.cos(angleRadians);
-		double sa = Math.sin(angleRadians);
-		double tmp1 = centerY*sa-centerX*ca;
-		double tmp2 = -centerX*sa-centerY*ca;
-		double tmp3, tmp4, xs, ys;
-		int index, ixs, iys;
-		
-		if (interpolationMethod==BICUBIC) {
-			for (int y=roiY; y<(roiY + roiHeight); y++) {
-				index = y*width + roiX;
-				tmp3 = tmp1 - y*sa + centerX;
-				tmp4 = tmp2 + y*ca + centerY;
-				for (int x=roiX; x<=xMax; x++) {
-					xs = x*ca + tmp3;
-					ys = x*sa + tmp4;
-					pixels[index++] = (float)getBicubicInterpolatedPixel(xs, ys, ip2);
-				}
-			}
-		} else {
-			double dwidth=width,dheight=height;
-			double xlimit = width-1.0, xlimit2 = width-1.001;
-			double ylimit = height-1.0, ylimit2 = height-1.001;
-			for (int y=roiY; y<(roiY + roiHeight); y++) {
-				index = y*width + roiX;
-				tmp3 = tmp1 - y*sa + centerX;
-				tmp4 = tmp2 + y*ca + centerY;
-				for (int x=roiX; x<=xMax; x++) {
-					xs = x*ca + tmp3;
-					ys = x*sa + tmp4;
-					if ((xs>=-0.01) && (xs<dwidth) && (ys>=-0.01) && (ys<dheight)) {
-						if (interpolationMethod==BILINEAR) {
-							if (xs<0.0) xs = 0.0;
-							if (xs>=xlimit) xs = xlimit2;
-							if (ys<0.0) ys = 0.0;			
-							if (ys>=ylimit) ys = ylimit2;
-							pixels[index++] = (float)getInterpolatedPixel(xs, ys, pixels2);
-						} else {
-							ixs = (int)(xs+0.5);
-							iys = (int)(ys+0.5);
-							if (ixs>=width) ixs = width - 1;
-							if (iys>=height) iys = height -1;
-							pixels[index++] = pixels2[width*iys+ixs];
-						}
-					} else
-						pixels[index++] = bgValue;
+		final double ca = Math.cos(angleRadians);
+		final double sa = Math.sin(angleRadians);
+		final double tmp1 = centerY*sa-centerX*ca;
+		final double tmp2 = -centerX*sa-centerY*ca;
+		final double dwidth=width,dheight=height;
+		final double xlimit = width-1.0, xlimit2 = width-1.001;
+		final double ylimit = height-1.0, ylimit2 = height-1.001;
+		final int method = interpolationMethod;
+		ThreadUtil.parallelFor(roiY, roiY+roiHeight, new ThreadUtil.RangeTask() {
+			public void run(int from, int to) {
+				for (int y=from; y<to; y++) {
+					int index = y*width + roiX;
+					double tmp3 = tmp1 - y*sa + centerX;
+					double tmp4 = tmp2 + y*ca + centerY;
+					for (int x=roiX; x<=xMax; x++) {
+						double xs = x*ca + tmp3;
+						double ys = x*sa + tmp4;
+						if (method==BICUBIC)
+							pixels[index++] = (float)getBicubicInterpolatedPixel(xs, ys, ip2);
+						else if ((xs>=-0.01) && (xs<dwidth) && (ys>=-0.01) && (ys<dheight)) {
+							if (method==BILINEAR) {
+								if (xs<0.0) xs = 0.0;
+								if (xs>=xlimit) xs = xlimit2;
+								if (ys<0.0) ys = 0.0;			
+								if (ys>=ylimit) ys = ylimit2;
+								pixels[index++] = (float)getInterpolatedPixel(xs, ys, pixels2);
+							} else {
+								int ixs = (int)(xs+0.5);
+								int iys = (int)(ys+0.5);
+								if (ixs>=width) ixs = width - 1;
+								if (iys>=height) iys = height -1;
+								pixels[index++] = pixels2[width*iys+ixs];
+							}
+						} else
+							pixels[index++] = bgValue;
+					}
 				}
 			}
-		}
+		});
 	}
 
 	public void flipVertical() {
@@ -793,40 +791,71 @@ public class FloatProcessor extends ImageProcessor {
 		if (interpolationMethod==BICUBIC)
 			ip2 = new FloatProcessor(getWidth(), getHeight(), pixels2, null);
 		boolean checkCoordinates = (xScale < 1.0) || (yScale < 1.0);
-		int index1, index2, xsi, ysi;
-		double ys, xs;
-		if (interpolationMethod==BICUBIC) {
-			for (int y=ymin; y<=ymax; y++) {
-				ys = (y-yCenter)/yScale + yCenter;
-				index1 = y*width + xmin;
-				for (int x=xmin; x<=xmax; x++) {
-					xs = (x-xCenter)/xScale + xCenter;
-					pixels[index1++] = (float)getBicubicInterpolatedPixel(xs, ys, ip2);
+		ResampleTable xTable = ResampleTable.getTable(width, xmax-xmin+1, xmin, xCenter, xScale, xCenter);
+		ResampleTable yTable = ResampleTable.getTable(height, ymax-ymin+1, ymin, yCenter, yScale, yCenter);
+		resample(pixels2, ip2, pixels, width, xmin, ymin, xTable, yTable, true, checkCoordinates, (float)getMin());
+	}
+
+	/** Resamples 'src' (this image or a copy of it) into the rectangle of 'dst' that
+		starts at (x0, y0), with the coordinates given by the tables, row bands in
+		parallel. See ByteProcessor.resample. */
+	private void resample(final float[] src, ImageProcessor srcIp, final float[] dst, final int dstWidth,
+	final int x0, final int y0, final ResampleTable xt, final ResampleTable yt,
+	final boolean scaling, final boolean checkCoordinates, final float bg) {
+		final int method = interpolationMethod;
+		final int xmax = x0+xt.n-1, ymax = y0+yt.n-1;
+		ThreadUtil.parallelFor(0, yt.n, new ThreadUtil.RangeTask() {
+			public void run(int from, int to) {
+				for (int y=from; y<to; y++) {
+					int index = (y0+y)*dstWidth + x0;
+					boolean yOutside = checkCoordinates && (yt.truncated[y]<y0 || yt.truncated[y]>ymax);
+					if (method==BICUBIC) {
+						if (!yt.cubicInside[y])
+							continue;
+						int rowBase = yt.cubicBase[y]*width;
+						int wy = 4*y;
+						for (int x=0; x<xt.n; x++, index++) {
+							if (!xt.cubicInside[x])
+								continue;
+							int offset = rowBase + xt.cubicBase[x];
+							int wx = 4*x;
+							double q = 0;
+							for (int j=0; j<=3; j++, offset+=width) {
+								double p = 0;
+								for (int i=0; i<=3; i++)
+									p = p + src[offset+i]*xt.cubicWeights[wx+i];
+								q = q + p*yt.cubicWeights[wy+j];
+							}
+							dst[index] = (float)q;
+						}
+					} else if (method==BILINEAR) {
+						int rowBase = yt.base[y]*width;
+						double yFraction = yt.fraction[y];
+						for (int x=0; x<xt.n; x++, index++) {
+							if (yOutside || (checkCoordinates && (xt.truncated[x]<x0 || xt.truncated[x]>xmax)))
+								dst[index] = bg;
+							else
+								dst[index] = (float)getInterpolatedPixel(rowBase+xt.base[x], xt.fraction[x], yFraction, src);
+						}
+					} else {
+						int rowBase = (scaling?yt.base[y]:yt.truncated[y])*width;
+						for (int x=0; x<xt.n; x++, index++) {
+							if (yOutside || (checkCoordinates && (xt.truncated[x]<x0 || xt.truncated[x]>xmax)))
+								dst[index] = bg;
+							else
+								dst[index] = src[rowBase+xt.truncated[x]];
+						}
+					}
 				}
 			}
-		} else {
-			double xlimit = width-1.0, xlimit2 = width-1.001;
-			double ylimit = height-1.0, ylimit2 = height-1.001;
-			for (int y=ymin; y<=ymax; y++) {
-				ys = (y-yCenter)/yScale + yCenter;
-				ysi = (int)ys;
-				if (ys<0.0) ys = 0.0;			
-				if (ys>=ylimit) ys = ylimit2;
-				index1 = y*width + xmin;
-				index2 = width*(int)ys;
-				for (int x=xmin; x<=xmax; x++) {
-					xs = (x-xCenter)/xScale + xCenter;
-					xsi = (int)xs;
-					if (checkCoordinates && ((xsi<xmin) || (xsi>xmax) || (ysi<ymin) || (ysi>ymax)))
-						pixels[index1++] = (float)getMin();
-					else {
-						if (interpolationMethod==BILINEAR) {
-							if (xs<0.0) xs = 0.0;
-							if (xs>=xlimit) xs = xlimit2;
-							pixels[index1++] = (float)getInterpolatedPixel(xs, ys, pixels2);
-						} else
-							pixels[index1++] = pixels2[index2+xsi];
-					}
+		});
+		if (method==BICUBIC) {
+			for (int y=0; y<yt.n; y++) {
+				int index = (y0+y)*dstWidth + x0;
+				int nx = yt.cubicInside[y]?xt.cubicOutside.length:xt.n;
+				for (int k=0; k<nx; k++) {
+					int x = yt.cubicInside[y]?xt.cubicOutside[k]:k;
+					dst[index+x] = (float)getBicubicInterpolatedPixel(xt.coordinates[x], yt.coordinates[y], srcIp);
 				}
 			}
 		}
@@ -836,9 +865,12 @@ public class FloatProcessor extends ImageProcessor {
 	private final double getInterpolatedPixel(double x, double y, float[] pixels) {
 		int xbase = (int)x;
 		int ybase = (int)y;
-		double xFraction = x - xbase;
-		double yFraction = y - ybase;
-		int offset = ybase * width + xbase;
+		return getInterpolatedPixel(ybase * width + xbase, x - xbase, y - ybase, pixels);
+	}
+
+	/** Bilinear interpolation between the pixel at 'offset' and its neighbors
+		to the right and below, ignoring NaN pixels nearby if possible. */
+	private final double getInterpolatedPixel(int offset, double xFraction, double yFraction, float[] pixels) {
 		double lowerLeft = pixels[offset];
 		double lowerRight = pixels[offset + 1];
 		double upperRight = pixels[offset + width + 1];
@@ -898,45 +930,11 @@ public class FloatProcessor extends ImageProcessor {
 			if (dstWidth!=width) dstCenterX+=xScale/4.0;
 			if (dstHeight!=height) dstCenterY+=yScale/4.0;
 		}
-		int inc = getProgressIncrement(dstWidth,dstHeight);
 		ImageProcessor ip2 = createProcessor(dstWidth, dstHeight);
 		float[] pixels2 = (float[])ip2.getPixels();
-		double xs, ys;
-		if (interpolationMethod==BICUBIC) {
-			for (int y=0; y<=dstHeight-1; y++) {
-				if (inc>0&&y%inc==0) showProgress((double)y/dstHeight);
-				ys = (y-dstCenterY)/yScale + srcCenterY;
-				int index = y*dstWidth;
-				for (int x=0; x<=dstWidth-1; x++) {
-					xs = (x-dstCenterX)/xScale + srcCenterX;
-					pixels2[index++] = (float)getBicubicInterpolatedPixel(xs, ys, this);
-				}
-			}
-		} else {
-			double xlimit = width-1.0, xlimit2 = width-1.001;
-			double ylimit = height-1.0, ylimit2 = height-1.001;
-			int index1, index2;
-			for (int y=0; y<=dstHeight-1; y++) {
-				if (inc>0&&y%inc==0) showProgress((double)y/dstHeight);
-				ys = (y-dstCenterY)/yScale + srcCenterY;
-				if (interpolationMethod==BILINEAR) {
-					if (ys<0.0) ys = 0.0;
-					if (ys>=ylimit) ys = ylimit2;
-				}
-				index1 = width*(int)ys;
-				index2 = y*dstWidth;
-				for (int x=0; x<=dstWidth-1; x++) {
-					xs = (x-dstCenterX)/xScale + srcCenterX;
-					if (interpolationMethod==BILINEAR) {
-						if (xs<0.0) xs = 0.0;
-						if (xs>=xlimit) xs = xlimit2;
-						pixels2[index2++] = (float)getInterpolatedPixel(xs, ys, pixels);
-					} else
-						pixels2[index2++] = pixels[index1+(int)xs];
-				}
-			}
-		}
-		if (inc>0) showProgress(1.0);
+		ResampleTable xTable = ResampleTable.getTable(width, dstWidth, 0, dstCenterX, xScale, srcCenterX);
+		ResampleTable yTable = ResampleTable.getTable(height, dstHeight, 0, dstCenterY, yScale, srcCenterY);
+		resample(pixels, this, pixels2, dstWidth, 0, 0, xTable, yTable, false, false, 0f);
 		return ip2;
 	}
 	
@@ -957,30 +955,45 @@ public class FloatProcessor extends ImageProcessor {
 		return ip2;
 	}
 	
-	// Downsizing in one direction.
-	private FloatProcessor downsize1D(int dstWidth, int dstHeight, boolean xDirection) {
-		int srcPointInc = xDirection ? 1 : width;	//increment of array index for next point along direction
-		int srcLineInc = xDirection ? width : 1;	//increment of array index for next line to be downscaled
-		int dstPointInc = xDirection ? 1 : dstWidth;
-		int dstLineInc = xDirection ? dstWidth : 1;
-		int srcLine0 = xDirection ? roiY : roiX;
-		int dstLines = xDirection ? dstHeight : dstWidth;
-		DownsizeTable dt = xDirection ?
-			new DownsizeTable(getWidth(), roiX, roiWidth, dstWidth, interpolationMethod) : 
-			new DownsizeTable(getHeight(), roiY, roiHeight, dstHeight, interpolationMethod);
+	// Downsizing in one direction. Lines in x direction are done in parallel; in y direction,
+	// the image is processed row by row in parallel bands of columns, for sequential memory access.
+	// The sum for each destination pixel is accumulated in the same order in both cases.
+	private FloatProcessor downsize1D(final int dstWidth, int dstHeight, final boolean xDirection) {
+		final DownsizeTable dt = xDirection ?
+			DownsizeTable.get(getWidth(), roiX, roiWidth, dstWidth, interpolationMethod) : 
+			DownsizeTable.get(getHeight(), roiY, roiHeight, dstHeight, interpolationMethod);
 		FloatProcessor ip2 = (FloatProcessor)createProcessor(dstWidth, dstHeight);
-		float[] pixels = (float[])getPixels();
-		float[] pixels2 = (float[])ip2.getPixels();
-		for (int srcLine=srcLine0, dstLine=0; dstLine<dstLines; srcLine++,dstLine++) {
-			int dstLineOffset = dstLine * dstLineInc;
-			int tablePointer = 0;
-			for (int srcPoint=dt.srcStart, p=srcPoint*srcPointInc+srcLine*srcLineInc;
-			srcPoint<=dt.srcEnd; srcPoint++, p+=srcPointInc) {
-				float v = pixels[p];
-				for (int i=0; i<dt.kernelSize; i++, tablePointer++)
-				pixels2[dstLineOffset+dt.indices[tablePointer]*dstPointInc] += v * dt.weights[tablePointer];
+		final float[] pixels = (float[])getPixels();
+		final float[] pixels2 = (float[])ip2.getPixels();
+		final int srcLine0 = xDirection ? roiY : roiX;
+		int dstLines = xDirection ? dstHeight : dstWidth;
+		ThreadUtil.parallelFor(0, dstLines, new ThreadUtil.RangeTask() {
+			public void run(int from, int to) {
+				if (xDirection) {
+					for (int dstLine=from; dstLine<to; dstLine++) {
+						int dstLineOffset = dstLine * dstWidth;
+						int tablePointer = 0;
+						for (int srcPoint=dt.srcStart, p=srcPoint+(srcLine0+dstLine)*width;
+						srcPoint<=dt.srcEnd; srcPoint++, p++) {
+							float v = pixels[p];
+							for (int i=0; i<dt.kernelSize; i++, tablePointer++)
+								pixels2[dstLineOffset+dt.indices[tablePointer]] += v * dt.weights[tablePointer];
+						}
+					}
+				} else {
+					int tablePointer = 0;
+					for (int srcPoint=dt.srcStart; srcPoint<=dt.srcEnd; srcPoint++) {
+						int srcOffset = srcPoint*width + srcLine0;
+						for (int i=0; i<dt.kernelSize; i++, tablePointer++) {
+							int dstOffset = dt.indices[tablePointer]*dstWidth;
+							float w = dt.weights[tablePointer];
+							for (int x=from; x<to; x++)
+								pixels2[dstOffset+x] += pixels[srcOffset+x] * w;
+						}
+					}
+				}
 			}
-		}
+		});
 		return ip2;
 	}
 
@@ -2051,6 +2051,14 @@ public abstract class ImageProcessor implements Cloneable {
 	/** Returns a copy of this image is the form of an AWT Image. */
 	public abstract Image createImage();
 
+	/** Returns this image in the form of an AWT Image, which needs to be up to date
+		only inside 'rect', e.g. the part of the image visible in the window.
+		ShortProcessor and FloatProcessor then convert only this part to 8 bits;
+		with other types, this is the same as createImage(). */
+	public Image createImage(Rectangle rect) {
+		return createImage();
+	}
+
 	/** Returns this image as a BufferedImage. */
 	public BufferedImage getBufferedImage() {
 		BufferedImage bi = new BufferedImage(width, height, BufferedImage.TYPE_INT_RGB);
@@ -2292,6 +2300,7 @@ public abstract class ImageProcessor implements Cloneable {
 	}
 
 	void resetPixels(Object pixels) {
+		bytes = null;
 		if (pixels==null) {
 			if (img!=null) {
 				img.flush();
@@ -2553,8 +2562,12 @@ public abstract class ImageProcessor implements Cloneable {
 	public void updateComposite(int[] rgbPixels, int channel) {
 		int redValue, greenValue, blueValue;
 		int size = width*height;
-		if (bytes==null || !lutAnimation)
+		if (bytes==null || !lutAnimation) {
 			bytes = create8BitImage();
+			bytesRect = null;
+			bytesMin = getMin();
+			bytesMax = getMax();
+		}
 		if (cm==null)
 			makeDefaultColorModel();
 		if (reds==null || cm!=cm2)
@@ -2597,10 +2610,84 @@ public abstract class ImageProcessor implements Cloneable {
 		lutAnimation = false;
 	}
 
+	/** CompositeImage calls this method to blend the channels 'cip' for which
+		'active' is true into 'rgbPixels', only inside 'rect' if it is not null.
+		The 8-bit versions of the channels are kept between calls; a channel is
+		converted again only if its display range has changed, if 'update' is true
+		for it (its pixel data may have changed), or if its 8-bit version does not
+		cover 'rect' yet. All channels are added in one pass over the image, with
+		bands of rows in parallel.
+	*/
+	public static void updateComposite(final int[] rgbPixels, ImageProcessor[] cip, boolean[] active, boolean[] update, Rectangle rect) {
+		final int width = cip[0].width, height = cip[0].height;
+		final Rectangle r = rect==null ? new Rectangle(0, 0, width, height) : rect.intersection(new Rectangle(0, 0, width, height));
+		if (r.isEmpty())
+			return;
+		int n = 0;
+		for (int c=0; c<cip.length && c<active.length; c++)
+			if (active[c]) n++;
+		final byte[][] bytes = new byte[n][];
+		final int[][] reds = new int[n][], greens = new int[n][], blues = new int[n][];
+		for (int c=0, k=0; c<cip.length && c<active.length; c++) {
+			if (!active[c])
+				continue;
+			ImageProcessor ip = cip[c];
+			ip.updateCompositeBytes(r, update==null || update[c]);
+			bytes[k] = ip.bytes;
+			reds[k] = ip.reds; greens[k] = ip.greens; blues[k] = ip.blues;
+			k++;
+		}
+		final int nChannels = n;
+		int grain = Math.max(r.height/(4*ij.Prefs.getThreads()), 65536/r.width);
+		ThreadUtil.parallelFor(r.y, r.y+r.height, grain, new ThreadUtil.RangeTask() {
+			public void run(int from, int to) {
+				for (int y=from; y<to; y++) {
+					for (int i=y*width+r.x, end=i+r.width; i<end; i++) {
+						int redValue=0, greenValue=0, blueValue=0;
+						for (int k=0; k<nChannels; k++) {
+							int v = bytes[k][i]&0xff;
+							redValue += reds[k][v];
+							greenValue += greens[k][v];
+							blueValue += blues[k][v];
+						}
+						if (redValue>16711680) redValue = 16711680;
+						if (greenValue>65280) greenValue = 65280;
+						if (blueValue>255) blueValue = 255;
+						rgbPixels[i] = redValue | greenValue | blueValue;
+					}
+				}
+			}
+		});
+	}
+
+	// Converts the image inside 'r' to 8 bits for updateComposite(int[],ImageProcessor[],...),
+	// unless the 8-bit version is still up to date there
+	private void updateCompositeBytes(Rectangle r, boolean update) {
+		if (bytes==null || update || getMin()!=bytesMin || getMax()!=bytesMax
+		|| (bytesRect!=null && !bytesRect.contains(r))) {
+			bytes = create8BitImage(r);
+			bytesRect = r.width==width && r.height==height ? null : new Rectangle(r);
+			bytesMin = getMin();
+			bytesMax = getMax();
+		}
+		if (cm==null)
+			makeDefaultColorModel();
+		if (reds==null || cm!=cm2)
+			updateLutBytes();
+	}
+
 	// method and variables used by updateComposite()
 	byte[]  create8BitImage() {return null;}
 	private byte[] bytes;
 	private int[] reds, greens, blues;
+	private Rectangle bytesRect; // the up-to-date part of 'bytes', or null if all of it
+	private double bytesMin, bytesMax;
+
+	/** Returns the 8-bit version of this image, which needs to be up
+		to date only inside 'rect'. */
+	byte[] create8BitImage(Rectangle rect) {
+		return create8BitImage();
+	}
 
 	void updateLutBytes() {
 		IndexColorModel icm = (IndexColorModel)cm;
@@ -0,0 +1,88 @@
+package ij.process;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/** Source indices and interpolation weights for resampling along one axis,
+ *	as used by the resize and scale methods of the ImageProcessor subclasses.
+ *	Point i of the destination (0 <= i < n) takes its value at the source coordinate
+ *	(dstStart+i-dstCenter)/scale + srcCenter. Since the scaling is separable, the
+ *	weights of each destination column and row are calculated only once, instead of
+ *	once per pixel. The values are those of the per-pixel calculation of the
+ *	interpolation methods of ImageProcessor, so the results do not change.
+ *	<p>
+ *	The most recently used tables are cached, so that all slices of a stack are
+ *	resized or scaled with the same tables (see getTable).
+ */
+class ResampleTable {
+	private static final int MAX_CACHED = 16;
+	private static Map<String,ResampleTable> tables = new LinkedHashMap<String,ResampleTable>(MAX_CACHED, 0.75f, true) {
+		protected boolean removeEldestEntry(Map.Entry<String,ResampleTable> eldest) {
+			return size()>MAX_CACHED;
+		}
+	};
+
+	/** Number of destination points */
+	final int n;
+	/** Source coordinates */
+	final double[] coordinates;
+	/** The source coordinates truncated to int (nearest neighbor and bounds checks) */
+	final int[] truncated;
+	/** Bilinear interpolation: index of the lower pixel, with the coordinate limited
+	 *	to 0 ... size-1.001, and fraction of the upper pixel */
+	final int[] base;
+	final double[] fraction;
+	/** Bicubic interpolation: index of the first of four pixels (floor(coordinate)-1),
+	 *	and four weights per point */
+	final int[] cubicBase;
+	final double[] cubicWeights;
+	/** True where the four pixels of bicubic interpolation are inside; elsewhere,
+	 *	getBicubicInterpolatedPixel uses bilinear interpolation */
+	final boolean[] cubicInside;
+	/** The points where cubicInside is false */
+	final int[] cubicOutside;
+
+	/** Returns a table for 'n' destination points at the source coordinates
+	 *	(dstStart+i-dstCenter)/scale + srcCenter, for a source of 'srcSize' pixels. */
+	static synchronized ResampleTable getTable(int srcSize, int n, int dstStart, double dstCenter, double scale, double srcCenter) {
+		String key = srcSize+" "+n+" "+dstStart+" "+dstCenter+" "+scale+" "+srcCenter;
+		ResampleTable table = tables.get(key);
+		if (table==null) {
+			table = new ResampleTable(srcSize, n, dstStart, dstCenter, scale, srcCenter);
+			tables.put(key, table);
+		}
+		return table;
+	}
+
+	private ResampleTable(int srcSize, int n, int dstStart, double dstCenter, double scale, double srcCenter) {
+		this.n = n;
+		coordinates = new double[n];
+		truncated = new int[n];
+		base = new int[n];
+		fraction = new double[n];
+		cubicBase = new int[n];
+		cubicWeights = new double[4*n];
+		cubicInside = new boolean[n];
+		double limit = srcSize-1.0, limit2 = srcSize-1.001;
+		int nOutside = 0;
+		for (int i=0; i<n; i++) {
+			double c = (dstStart+i-dstCenter)/scale + srcCenter;
+			coordinates[i] = c;
+			truncated[i] = (int)c;
+			double cb = c;
+			if (cb<0.0) cb = 0.0;
+			if (cb>=limit) cb = limit2;
+			base[i] = (int)cb;
+			fraction[i] = cb - base[i];
+			int c0 = (int)Math.floor(c);
+			cubicBase[i] = c0 - 1;
+			cubicInside[i] = c0>0 && c0<srcSize-2;
+			if (!cubicInside[i]) nOutside++;
+			for (int k=0; k<4; k++)
+				cubicWeights[4*i+k] = ImageProcessor.cubic(c - (c0-1+k));
+		}
+		cubicOutside = new int[nOutside];
+		for (int i=0, k=0; i<n; i++)
+			if (!cubicInside[i]) cubicOutside[k++] = i;
+	}
+
+}
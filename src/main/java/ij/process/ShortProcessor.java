@@ -4,6 +4,7 @@ import java.util.*;
 import java.awt.*;
 import java.awt.image.*;
 import ij.gui.*;
+import ij.util.ThreadUtil;
 
 /** ShortProcessors contain a 16-bit unsigned image
 	and methods that operate on that image. */
@@ -13,7 +14,8 @@ public class ShortProcessor extends ImageProcessor {
 	private short[] pixels;
 	private byte[] pixels8;
 	private short[] snapshotPixels;
-	private byte[] LUT;
+	private byte[] LUT;	// pixel value to display value, see getDisplayLut
+	private int lutMin, lutMax, lutType=-1, lutT1, lutT2;
 	private boolean fixedScale;
 	private int bgValue;
 
@@ -86,63 +88,89 @@ public class ShortProcessor extends ImageProcessor {
 
 	/** Create an 8-bit AWT image by scaling pixels in the range min-max to 0-255. */
 	public Image createImage() {
+		return createImage(null);
+	}
+
+	/** Same as createImage(), but only the pixels inside 'rect' are converted to 8 bits,
+		the rest of the AWT image keeps its previous content. ImageCanvas uses this
+		for updating only the visible part of zoomed-in images. */
+	public Image createImage(Rectangle rect) {
 		boolean firstTime = pixels8==null;
 		boolean thresholding = minThreshold!=NO_THRESHOLD && lutUpdateMode<NO_LUT_UPDATE;
 		//ij.IJ.log("createImage: "+firstTime+"  "+lutAnimation+"  "+thresholding);
 		if (firstTime || !lutAnimation)
-			create8BitImage(thresholding&&lutUpdateMode==RED_LUT);
+			create8BitImage(thresholding?lutUpdateMode+1:0, rect);
 		if (cm==null)
 			makeDefaultColorModel();
-		if (thresholding) {
-			int t1 = (int)minThreshold;
-			int t2 = (int)maxThreshold;
-			int size = width*height;
-			int value;
-			if (lutUpdateMode==BLACK_AND_WHITE_LUT) {
-				for (int i=0; i<size; i++) {
-					value = (pixels[i]&0xffff);
-					if (value>=t1 && value<=t2)
-						pixels8[i] = (byte)255;
-					else
-						pixels8[i] = (byte)0;
-				}
-			} else { // threshold red
-				for (int i=0; i<size; i++) {
-					value = (pixels[i]&0xffff);
-					if (value>=t1 && value<=t2)
-						pixels8[i] = (byte)255;
-				}
-			}
-		}
 		return createBufferedImage();
 	}
 	
-	// create 8-bit image by linearly scaling from 16-bits to 8-bits
-	private byte[] create8BitImage(boolean thresholding) {
-		int size = width*height;
+	// Creates the 8-bit image inside 'rect' (null: all) by table lookup. With 'type' 0,
+	// pixels are scaled linearly from 16-bits to 8-bits; with RED_LUT+1, thresholded pixels
+	// are 255 and the others are scaled to 0-254; with BLACK_AND_WHITE_LUT+1, thresholded
+	// pixels are 255 and the others 0.
+	private void create8BitImage(int type, Rectangle rect) {
 		if (pixels8==null)
-			pixels8 = new byte[size];
-		int value;
+			pixels8 = new byte[width*height];
+		final Rectangle r = rect==null ? new Rectangle(0, 0, width, height) : rect.intersection(new Rectangle(0, 0, width, height));
+		if (r.isEmpty())
+			return;
+		final byte[] lut = getDisplayLut(type);
+		int grain = Math.max(r.height/(4*ij.Prefs.getThreads()), 65536/r.width);
+		ThreadUtil.parallelFor(r.y, r.y+r.height, grain, new ThreadUtil.RangeTask() {
+			public void run(int from, int to) {
+				for (int y=from; y<to; y++) {
+					for (int i=y*width+r.x, end=i+r.width; i<end; i++)
+						pixels8[i] = lut[pixels[i]&0xffff];
+				}
+			}
+		});
+	}
+
+	// Returns the table for create8BitImage. It is only calculated
+	// again if the display range or the threshold have changed.
+	private synchronized byte[] getDisplayLut(int type) {
 		int min2=(int)getMin(), max2=(int)getMax();
+		int t1 = type==0?0:(int)minThreshold;
+		int t2 = type==0?0:(int)maxThreshold;
+		if (LUT!=null && type==lutType && min2==lutMin && max2==lutMax && t1==lutT1 && t2==lutT2)
+			return LUT;
+		byte[] lut = new byte[65536];
 		int maxValue = 255;
 		double scale = 256.0/(max2-min2+1);
-		if (thresholding) {
+		if (type==RED_LUT+1) {
 			maxValue = 254;
 			scale = 255.0/(max2-min2+1);
 		}
-		for (int i=0; i<size; i++) {
-			value = (pixels[i]&0xffff)-min2;
-			if (value<0) value = 0;
-			value = (int)(value*scale+0.5);
-			if (value>maxValue) value = maxValue;
-			pixels8[i] = (byte)value;
+		for (int v=0; v<65536; v++) {
+			int value;
+			if (type!=0 && v>=t1 && v<=t2)
+				value = 255;
+			else if (type==BLACK_AND_WHITE_LUT+1)
+				value = 0;
+			else {
+				value = v-min2;
+				if (value<0) value = 0;
+				value = (int)(value*scale+0.5);
+				if (value>maxValue) value = maxValue;
+			}
+			lut[v] = (byte)value;
 		}
-		return pixels8;
+		lutType = type; lutMin = min2; lutMax = max2; lutT1 = t1; lutT2 = t2;
+		LUT = lut;
+		return lut;
 	}
 
 	@Override
 	byte[] create8BitImage() {
-		return create8BitImage(false);
+		create8BitImage(0, null);
+		return pixels8;
+	}
+
+	@Override
+	byte[] create8BitImage(Rectangle rect) {
+		create8BitImage(0, rect);
+		return pixels8;
 	}
 
 	Image createBufferedImage() {
@@ -709,68 +737,57 @@ public class ShortProcessor extends ImageProcessor {
 		@see ImageProcessor#setInterpolate
 	*/
 	public void rotate(double angle) {
-		short[] pixels2 = (short[])getPixelsCopy();
-		ImageProcessor ip2 = null;
-		if (interpolationMethod==BICUBIC)
-			ip2 = new ShortProcessor(getWidth(), getHeight(), pixels2, null);
-		double centerX = roiX + (roiWidth-1)/2.0;
-		double centerY = roiY + (roiHeight-1)/2.0;
-		int xMax = roiX + this.roiWidth - 1;
+		final short[] pixels2 = (short[])getPixelsCopy();
+		final ImageProcessor ip2 = interpolationMethod==BICUBIC?new ShortProcessor(getWidth(), getHeight(), pixels2, null):null;
+		final double centerX = roiX + (roiWidth-1)/2.0;
+		final double centerY = roiY + (roiHeight-1)/2.0;
+		final int xMax = roiX + this.roiWidth - 1;
 		
 		double angleRadians = -angle/(180.0/Math.PI);
-		double ca = Math.cos(angleRadians);
-		double sa = Math.sin(angleRadians);
-		double tmp1 = centerY*sa-centerX*ca;
-		double tmp2 = -centerX*sa-centerY*ca;
-		double tmp3, tmp4, xs, ys;
-		int index, ixs, iys;
-		double dwidth=width,dheight=height;
-		double xlimit = width-1.0, xlimit2 = width-1.001;
-		double ylimit = height-1.0, ylimit2 = height-1.001;
+		final double ca = Math.cos(angleRadians);
+		final double sa = Math.sin(angleRadians);
+		final double tmp1 = centerY*sa-centerX*ca;
+		final double tmp2 = -centerX*sa-centerY*ca;
+		final double dwidth=width,dheight=height;
+		final double xlimit = width-1.0, xlimit2 = width-1.001;
+		final double ylimit = height-1.0, ylimit2 = height-1.001;
 		// zero is 32768 for signed images
-		int background = isSigned16Bit()?bgValue+32768:bgValue; 
-		
-		if (interpolationMethod==BICUBIC) {
-			for (int y=roiY; y<(roiY + roiHeight); y++) {
-				index = y*width + roiX;
-				tmp3 = tmp1 - y*sa + centerX;
-				tmp4 = tmp2 + y*ca + centerY;
-				for (int x=roiX; x<=xMax; x++) {
-					xs = x*ca + tmp3;
-					ys = x*sa + tmp4;
-					int value = (int)(getBicubicInterpolatedPixel(xs, ys, ip2)+0.5);
-					if (value<0) value = 0;
-					if (value>65535) value = 65535;
-					pixels[index++] = (short)value;
-				}
-			}
-		} else {
-			for (int y=roiY; y<(roiY + roiHeight); y++) {
-				index = y*width + roiX;
-				tmp3 = tmp1 - y*sa + centerX;
-				tmp4 = tmp2 + y*ca + centerY;
-				for (int x=roiX; x<=xMax; x++) {
-					xs = x*ca + tmp3;
-					ys = x*sa + tmp4;
-					if ((xs>=-0.01) && (xs<dwidth) && (ys>=-0.01) && (ys<dheight)) {
-						if (interpolationMethod==BILINEAR) {
-							if (xs<0.0) xs = 0.0;
-							if (xs>=xlimit) xs = xlimit2;
-							if (ys<0.0) ys = 0.0;			
-							if (ys>=ylimit) ys = ylimit2;
-							pixels[index++] = (short)(getInterpolatedPixel(xs, ys, pixels2)+0.5);
-						} else {
-							ixs = (int)(xs+0.5);
-							iys = (int)(ys+0.5);
-							if (ixs>=width) ixs = width - 1;
-							if (iys>=height) iys = height -1;
-							pixels[index++] = pixels2[width*iys+ixs];
-						}
-					} else
-						pixels[index++] = (short)background;
+		final short background = (short)(isSigned16Bit()?bgValue+32768:bgValue);
+		final int method = interpolationMethod;
+		ThreadUtil.parallelFor(roiY, roiY+roiHeight, new ThreadUtil.RangeTask() {
+			public void run(int from, int to) {
+				for (int y=from; y<to; y++) {
+					int index = y*width + roiX;
+					double tmp3 = tmp1 - y*sa + centerX;
+					double tmp4 = tmp2 + y*ca + centerY;
+					for (int x=roiX; x<=xMax; x++) {
+						double xs = x*ca + tmp3;
+						double ys = x*sa + tmp4;
+						if (method==BICUBIC) {
+							int value = (int)(getBicubicInterpolatedPixel(xs, ys, ip2)+0.5);
+							if (value<0) value = 0;
+							if (value>65535) value = 65535;
+							pixels[index++] = (short)value;
+						} else if ((xs>=-0.01) && (xs<dwidth) && (ys>=-0.01) && (ys<dheight)) {
+							if (method==BILINEAR) {
+								if (xs<0.0) xs = 0.0;
+								if (xs>=xlimit) xs = xlimit2;
+								if (ys<0.0) ys = 0.0;			
+								if (ys>=ylimit) ys = ylimit2;
+								pixels[index++] = (short)(getInterpolatedPixel(xs, ys, pixels2)+0.5);
+							} else {
+								int ixs = (int)(xs+0.5);
+								int iys = (int)(ys+0.5);
+								if (ixs>=width) ixs = width - 1;
+								if (iys>=height) iys = height -1;
+								pixels[index++] = pixels2[width*iys+ixs];
+							}
+						} else
+							pixels[index++] = background;
+					}
 				}
 			}
-		}
+		});
 	}
 
 	public void flipVertical() {
@@ -815,43 +832,86 @@ public class ShortProcessor extends ImageProcessor {
 		if (interpolationMethod==BICUBIC)
 			ip2 = new ShortProcessor(getWidth(), getHeight(), pixels2, null);
 		boolean checkCoordinates = (xScale < 1.0) || (yScale < 1.0);
-		short min2 = (short)getMin();
-		int index1, index2, xsi, ysi;
-		double ys, xs;
-		if (interpolationMethod==BICUBIC) {
-			for (int y=ymin; y<=ymax; y++) {
-				ys = (y-yCenter)/yScale + yCenter;
-				int index = y*width + xmin;
-				for (int x=xmin; x<=xmax; x++) {
-					xs = (x-xCenter)/xScale + xCenter;
-					int value = (int)(getBicubicInterpolatedPixel(xs, ys, ip2)+0.5);
-					if (value<0) value=0; if (value>65535) value=65535;
-					pixels[index++] = (short)value;
+		ResampleTable xTable = ResampleTable.getTable(width, xmax-xmin+1, xmin, xCenter, xScale, xCenter);
+		ResampleTable yTable = ResampleTable.getTable(height, ymax-ymin+1, ymin, yCenter, yScale, yCenter);
+		resample(pixels2, ip2, pixels, width, xmin, ymin, xTable, yTable, true, checkCoordinates, (short)getMin());
+	}
+
+	/** Resamples 'src' (this image or a copy of it) into the rectangle of 'dst' that
+		starts at (x0, y0), with the coordinates given by the tables, row bands in
+		parallel. See ByteProcessor.resample. */
+	private void resample(final short[] src, ImageProcessor srcIp, final short[] dst, final int dstWidth,
+	final int x0, final int y0, final ResampleTable xt, final ResampleTable yt,
+	final boolean scaling, final boolean checkCoordinates, final short bg) {
+		final int method = interpolationMethod;
+		final int xmax = x0+xt.n-1, ymax = y0+yt.n-1;
+		ThreadUtil.parallelFor(0, yt.n, new ThreadUtil.RangeTask() {
+			public void run(int from, int to) {
+				for (int y=from; y<to; y++) {
+					int index = (y0+y)*dstWidth + x0;
+					boolean yOutside = checkCoordinates && (yt.truncated[y]<y0 || yt.truncated[y]>ymax);
+					if (method==BICUBIC) {
+						if (!yt.cubicInside[y])
+							continue;
+						int rowBase = yt.cubicBase[y]*width;
+						int wy = 4*y;
+						for (int x=0; x<xt.n; x++, index++) {
+							if (!xt.cubicInside[x])
+								continue;
+							int offset = rowBase + xt.cubicBase[x];
+							int wx = 4*x;
+							double q = 0;
+							for (int j=0; j<=3; j++, offset+=width) {
+								double p = 0;
+								for (int i=0; i<=3; i++)
+									p = p + (src[offset+i]&0xffff)*xt.cubicWeights[wx+i];
+								q = q + p*yt.cubicWeights[wy+j];
+							}
+							int value = (int)(q+0.5);
+							if (value<0) value = 0;
+							if (value>65535) value = 65535;
+							dst[index] = (short)value;
+						}
+					} else if (method==BILINEAR) {
+						int rowBase = yt.base[y]*width;
+						double yFraction = yt.fraction[y];
+						for (int x=0; x<xt.n; x++, index++) {
+							if (yOutside || (checkCoordinates && (xt.truncated[x]<x0 || xt.truncated[x]>xmax)))
+								dst[index] = bg;
+							else {
+								int offset = rowBase + xt.base[x];
+								double xFraction = xt.fraction[x];
+								int lowerLeft = src[offset]&0xffff;
+								int lowerRight = src[offset + 1]&0xffff;
+								int upperRight = src[offset + width + 1]&0xffff;
+								int upperLeft = src[offset + width]&0xffff;
+								double upperAverage = upperLeft + xFraction * (upperRight - upperLeft);
+								double lowerAverage = lowerLeft + xFraction * (lowerRight - lowerLeft);
+								dst[index] = (short)(lowerAverage + yFraction * (upperAverage - lowerAverage)+0.5);
+							}
+						}
+					} else {
+						int rowBase = (scaling?yt.base[y]:yt.truncated[y])*width;
+						for (int x=0; x<xt.n; x++, index++) {
+							if (yOutside || (checkCoordinates && (xt.truncated[x]<x0 || xt.truncated[x]>xmax)))
+								dst[index] = bg;
+							else
+								dst[index] = src[rowBase+xt.truncated[x]];
+						}
+					}
 				}
 			}
-		} else {
-			double xlimit = width-1.0, xlimit2 = width-1.001;
-			double ylimit = height-1.0, ylimit2 = height-1.001;
-			for (int y=ymin; y<=ymax; y++) {
-				ys = (y-yCenter)/yScale + yCenter;
-				ysi = (int)ys;
-				if (ys<0.0) ys = 0.0;			
-				if (ys>=ylimit) ys = ylimit2;
-				index1 = y*width + xmin;
-				index2 = width*(int)ys;
-				for (int x=xmin; x<=xmax; x++) {
-					xs = (x-xCenter)/xScale + xCenter;
-					xsi = (int)xs;
-					if (checkCoordinates && ((xsi<xmin) || (xsi>xmax) || (ysi<ymin) || (ysi>ymax)))
-						pixels[index1++] = min2;
-					else {
-						if (interpolationMethod==BILINEAR) {
-							if (xs<0.0) xs = 0.0;
-							if (xs>=xlimit) xs = xlimit2;
-							pixels[index1++] = (short)(getInterpolatedPixel(xs, ys, pixels2)+0.5);
-						} else
-							pixels[index1++] = pixels2[index2+xsi];
-					}
+		});
+		if (method==BICUBIC) {
+			for (int y=0; y<yt.n; y++) {
+				int index = (y0+y)*dstWidth + x0;
+				int nx = yt.cubicInside[y]?xt.cubicOutside.length:xt.n;
+				for (int k=0; k<nx; k++) {
+					int x = yt.cubicInside[y]?xt.cubicOutside[k]:k;
+					int value = (int)(getBicubicInterpolatedPixel(xt.coordinates[x], yt.coordinates[y], srcIp)+0.5);
+					if (value<0) value = 0;
+					if (value>65535) value = 65535;
+					dst[index+x] = (short)value;
 				}
 			}
 		}
@@ -889,47 +949,11 @@ public class ShortProcessor extends ImageProcessor {
 			if (dstWidth!=width) dstCenterX+=xScale/4.0;
 			if (dstHeight!=height) dstCenterY+=yScale/4.0;
 		}
-		int inc = getProgressIncrement(dstWidth,dstHeight);
 		ImageProcessor ip2 = createProcessor(dstWidth, dstHeight);
 		short[] pixels2 = (short[])ip2.getPixels();
-		double xs, ys;
-		if (interpolationMethod==BICUBIC) {
-			for (int y=0; y<=dstHeight-1; y++) {
-				if (inc>0&&y%inc==0) showProgress((double)y/dstHeight);
-				ys = (y-dstCenterY)/yScale + srcCenterY;
-				int index2 = y*dstWidth;
-				for (int x=0; x<=dstWidth-1; x++) {
-					xs = (x-dstCenterX)/xScale + srcCenterX;
-					int value = (int)(getBicubicInterpolatedPixel(xs, ys, this)+0.5);
-					if (value<0) value=0; if (value>65535) value=65535;
-					pixels2[index2++] = (short)value;
-				}
-			}
-		} else {
-			double xlimit = width-1.0, xlimit2 = width-1.001;
-			double ylimit = height-1.0, ylimit2 = height-1.001;
-			int index1, index2;
-			for (int y=0; y<=dstHeight-1; y++) {
-				if (inc>0&&y%inc==0) showProgress((double)y/dstHeight);
-				ys = (y-dstCenterY)/yScale + srcCenterY;
-				if (interpolationMethod==BILINEAR) {
-					if (ys<0.0) ys = 0.0;
-					if (ys>=ylimit) ys = ylimit2;
-				}
-				index1 = width*(int)ys;
-				index2 = y*dstWidth;
-				for (int x=0; x<=dstWidth-1; x++) {
-					xs = (x-dstCenterX)/xScale + srcCenterX;
-					if (interpolationMethod==BILINEAR) {
-						if (xs<0.0) xs = 0.0;
-						if (xs>=xlimit) xs = xlimit2;
-						pixels2[index2++] = (short)(getInterpolatedPixel(xs, ys, pixels)+0.5);
-					} else
-						pixels2[index2++] = pixels[index1+(int)xs];
-				}
-			}
-		}
-		if (inc>0) showProgress(1.0);
+		ResampleTable xTable = ResampleTable.getTable(width, dstWidth, 0, dstCenterX, xScale, srcCenterX);
+		ResampleTable yTable = ResampleTable.getTable(height, dstHeight, 0, dstCenterY, yScale, srcCenterY);
+		resample(pixels, this, pixels2, dstWidth, 0, 0, xTable, yTable, false, false, (short)0);
 		return ip2;
 	}
 
@@ -263,7 +263,9 @@ public class StackProcessor {
     }
 
     /**
-     * 3D filter using threads
+     * 3D filter using threads. Filters the slices from zmin to zmax-1 (zero-based)
+     * of a 8, 16 or 32-bit stack with an EllipsoidFilter; RGB stacks are filtered
+     * voxel by voxel.
      *
      * @param out
      * @param radx Radius of mean filter in x
@@ -274,6 +276,10 @@ public class StackProcessor {
      * @param filter
      */
     public void filter3D(ImageStack out, float radx, float rady, float radz, int zmin, int zmax, int filter) {
+        if (stack.getBitDepth()!=24) {
+            new EllipsoidFilter(stack, radx, rady, radz, filter).filter(out, zmin, zmax);
+            return;
+        }
         int[] ker = this.createKernelEllipsoid(radx, rady, radz);
         int nb = 0;
         for (int i=0; i<ker.length; i++)
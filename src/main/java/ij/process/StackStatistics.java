@@ -3,10 +3,15 @@ import ij.*;
 import ij.gui.*;
 import ij.measure.*;
 import ij.plugin.filter.Analyzer;
+import ij.util.ThreadUtil;
 import java.awt.*;
+import java.util.concurrent.atomic.AtomicInteger;
 
-/** Statistics, including the histogram, of a stack. */
+/** Statistics, including the histogram, of a stack. The slices are
+	processed in parallel, each thread with its own partial histogram. */
 public class StackStatistics extends ImageStatistics {
+	private Rectangle bounds;
+	private byte[] mask;
 	
 	/** Creates a StackStatistics object from a stack, using 256 
 		histogram bins and the entire stack pixel value range. */
@@ -41,111 +46,65 @@ public class StackStatistics extends ImageStatistics {
     	histMin = histogramMin;
     	histMax = histogramMax;
         ImageStack stack = imp.getStack();
-        int size = stack.getSize();
         ip.setRoi(imp.getRoi());
-        byte[] mask = ip.getMaskArray();
+        mask = ip.getMaskArray();
+        bounds = ip.getRoi();
         float[] cTable = imp.getCalibration().getCTable();
-        longHistogram = new long[nBins];
-        double v;
-        double sum = 0;
-        double sum2 = 0;
-        int width, height;
-        int rx, ry, rw, rh;
-        double pw, ph;
-        
-        width = ip.getWidth();
-        height = ip.getHeight();
-        Rectangle roi = ip.getRoi();
-        if (roi != null) {
-            rx = roi.x;
-            ry = roi.y;
-            rw = roi.width;
-            rh = roi.height;
-        } else {
-            rx = 0;
-            ry = 0;
-            rw = width;
-            rh = height;
-        }
-        
-        pw = 1.0;
-        ph = 1.0;
-        roiX = rx*pw;
-        roiY = ry*ph;
-        roiWidth = rw*pw;
-        roiHeight = rh*ph;
+        roiX = bounds.x;
+        roiY = bounds.y;
+        roiWidth = bounds.width;
+        roiHeight = bounds.height;
         boolean fixedRange = histMin!=0 || histMax!=0.0;
-        
-        // calculate min and max
-		double roiMin = Double.MAX_VALUE;
-		double roiMax = -Double.MAX_VALUE;
-		for (int slice=1; slice<=size; slice++) {
-			IJ.showStatus("Calculating stack histogram...");
-			IJ.showProgress(slice/2, size);
-			ip = stack.getProcessor(slice);
-			//ip.setCalibrationTable(cTable);
-			for (int y=ry, my=0; y<(ry+rh); y++, my++) {
-				int i = y * width + rx;
-				int mi = my * rw;
-				for (int x=rx; x<(rx+rw); x++) {
-					if (mask==null || mask[mi++]!=0) {
-						v = ip.getPixelValue(x,y);
-						if (v>=minThreshold && v<=maxThreshold) {
-							if (v<roiMin) roiMin = v;
-							if (v>roiMax) roiMax = v;
-						}
-					}
-					i++;
+        IJ.showStatus("Calculating stack histogram...");
+        int bits = stack.getBitDepth();
+        Partial total;
+        if (bits==8 || bits==16) {
+			// histogram of the raw values, the statistics are derived from it
+			long[] hist = sumHistograms(stack, bits==8?256:65536);
+			total = new Partial(nBins);
+			for (int i=0; i<hist.length; i++) {
+				if (hist[i]==0L) continue;
+				double v = cTable!=null?cTable[i]:i;
+				if (v>=minThreshold && v<=maxThreshold) {
+					if (v<total.min) total.min = v;
+					if (v>total.max) total.max = v;
 				}
 			}
-		 }
-		min = roiMin;
-		max = roiMax;
-		if (fixedRange) {
-			if (min<histMin) min = histMin;
-			if (max>histMax) max = histMax;
+			setRange(total, fixedRange);
+			double scale = nBins/(histMax-histMin);
+			for (int i=0; i<hist.length; i++) {
+				long count = hist[i];
+				if (count==0L) continue;
+				double v = cTable!=null?cTable[i]:i;
+				if (v>=minThreshold && v<=maxThreshold && v>=histMin && v<=histMax) {
+					total.count += count;
+					total.sum += v*count;
+					total.sum2 += v*v*count;
+					int index = (int)(scale*(v-histMin));
+					if (index>=nBins)
+						index = nBins-1;
+					total.histogram[index] += count;
+				}
+			}
+		} else if (fixedRange) {
+			total = accumulate(stack, minThreshold, maxThreshold, histMin, histMax, true);
+			setRange(total, true);
 		} else {
-			histMin = min; 
-			histMax =  max;
+			// the range of the histogram is not known before the first pass
+			total = accumulate(stack, minThreshold, maxThreshold, -Double.MAX_VALUE, Double.MAX_VALUE, false);
+			setRange(total, false);
+			if (total.count>0L)
+				total.histogram = accumulate(stack, minThreshold, maxThreshold, histMin, histMax, true).histogram;
 		}
-       
-        // Generate histogram
-        double scale = nBins/( histMax-histMin);
-        pixelCount = 0;
-        int index;
-        boolean first = true;
-        for (int slice=1; slice<=size; slice++) {
-            IJ.showProgress(size/2+slice/2, size);
-            ip = stack.getProcessor(slice);
-            ip.setCalibrationTable(cTable);
-            for (int y=ry, my=0; y<(ry+rh); y++, my++) {
-                int i = y * width + rx;
-                int mi = my * rw;
-                for (int x=rx; x<(rx+rw); x++) {
-                    if (mask==null || mask[mi++]!=0) {
-                        v = ip.getPixelValue(x,y);
-						if (v>=minThreshold && v<=maxThreshold && v>=histMin && v<=histMax) {
-							longPixelCount++;
-							sum += v;
-							sum2 += v*v;
-							index = (int)(scale*(v-histMin));
-							if (index>=nBins)
-								index = nBins-1;
-							longHistogram[index]++;
-						}
-                    }
-                    i++;
-                }
-            }
-        }
+		longHistogram = total.histogram;
+		longPixelCount = total.count;
         pixelCount = (int)longPixelCount;
-        area = longPixelCount*pw*ph;
-        mean = sum/longPixelCount;
-        calculateStdDev(longPixelCount, sum, sum2);
+        area = longPixelCount;
+        mean = total.sum/longPixelCount;
+        calculateStdDev(longPixelCount, total.sum, total.sum2);
         histMin = cal.getRawValue(histMin); 
         histMax =  cal.getRawValue(histMax);
         binSize = (histMax-histMin)/nBins;
-        int bits = imp.getBitDepth();
         if (histMin==0.0 && histMax==256.0 && (bits==8||bits==24))
         	histMax = 255.0;
         dmode = getMode(cal);
@@ -153,7 +112,136 @@ public class StackStatistics extends ImageStatistics {
         IJ.showStatus("");
         IJ.showProgress(1.0);
     }
-    
+
+	/** Sets min and max, and the histogram range if it is not fixed. */
+	private void setRange(Partial total, boolean fixedRange) {
+		min = total.min;
+		max = total.max;
+		if (fixedRange) {
+			if (min<histMin) min = histMin;
+			if (max>histMax) max = histMax;
+		} else {
+			histMin = min; 
+			histMax =  max;
+		}
+	}
+
+	/** Sets the bounds and mask of the area to be measured from the selection
+		of 'imp', leaving the processor of 'imp' unchanged. */
+	private void setupRoi(ImagePlus imp) {
+		ImageProcessor ip = imp.getProcessor();
+		Rectangle saveRect = ip.getRoi();
+		ImageProcessor saveMask = ip.getMask();
+		ip.setRoi(imp.getRoi());
+		bounds = ip.getRoi();
+		mask = ip.getMaskArray();
+		ip.setRoi(saveRect);
+		ip.setMask(saveMask);
+	}
+
+	/** Returns the histogram of the raw values of all slices of an 8-bit,
+		16-bit or RGB stack inside 'bounds' and 'mask', calculated for groups
+		of slices in parallel. Virtual stack slices are read by several threads
+		at the same time. */
+	private long[] sumHistograms(final ImageStack stack, int size) {
+		final Partial total = new Partial(size);
+		final int n = stack.getSize();
+		final AtomicInteger done = new AtomicInteger();
+		ThreadUtil.parallelFor(1, n+1, new ThreadUtil.RangeTask() {
+			public void run(int from, int to) {
+				Partial partial = new Partial(total.histogram.length);
+				long[] hist = partial.histogram;
+				for (int slice=from; slice<to; slice++) {
+					ImageProcessor ip = stack.getProcessor(slice);
+					Object pixels = ip.getPixels();
+					int width = ip.getWidth();
+					if (pixels instanceof byte[]) {
+						byte[] bytes = (byte[])pixels;
+						for (int y=bounds.y, mi=0; y<bounds.y+bounds.height; y++) {
+							for (int x=bounds.x, i=y*width+bounds.x; x<bounds.x+bounds.width; x++, i++, mi++) {
+								if (mask==null || mask[mi]!=0)
+									hist[bytes[i]&255]++;
+							}
+						}
+					} else if (pixels instanceof short[]) {
+						short[] shorts = (short[])pixels;
+						for (int y=bounds.y, mi=0; y<bounds.y+bounds.height; y++) {
+							for (int x=bounds.x, i=y*width+bounds.x; x<bounds.x+bounds.width; x++, i++, mi++) {
+								if (mask==null || mask[mi]!=0)
+									hist[shorts[i]&0xffff]++;
+							}
+						}
+					} else {
+						ip.setRoi(bounds);
+						ip.setMask(mask!=null?new ByteProcessor(bounds.width, bounds.height, mask, null):null);
+						int[] h = ip.getHistogram();
+						for (int i=0; i<h.length; i++)
+							hist[i] += h[i];
+					}
+					IJ.showProgress(done.incrementAndGet(), n);
+				}
+				total.add(partial);
+			}
+		});
+		return total.histogram;
+	}
+
+	/** Returns the number, sum, sum of squares, min and max of the values
+		of all slices from 'minThreshold' to 'maxThreshold', calculated for
+		groups of slices in parallel. Only values from 'histMin' to 'histMax'
+		are counted, and, if 'histogram' is true, added to a histogram with
+		nBins bins. */
+	private Partial accumulate(final ImageStack stack, final double minThreshold, final double maxThreshold,
+		final double histMin, final double histMax, final boolean histogram) {
+		final Partial total = new Partial(histogram?nBins:0);
+		final int n = stack.getSize();
+		final double scale = nBins/(histMax-histMin);
+		final AtomicInteger done = new AtomicInteger();
+		ThreadUtil.parallelFor(1, n+1, new ThreadUtil.RangeTask() {
+			public void run(int from, int to) {
+				Partial partial = new Partial(total.histogram.length);
+				long[] hist = partial.histogram;
+				long count = 0L;
+				double sum=0.0, sum2=0.0, min=partial.min, max=partial.max;
+				for (int slice=from; slice<to; slice++) {
+					ImageProcessor ip = stack.getProcessor(slice);
+					float[] floats = ip instanceof FloatProcessor?(float[])ip.getPixels():null;
+					int width = ip.getWidth();
+					for (int y=bounds.y, mi=0; y<bounds.y+bounds.height; y++) {
+						for (int x=bounds.x, i=y*width+bounds.x; x<bounds.x+bounds.width; x++, i++, mi++) {
+							if (mask!=null && mask[mi]==0)
+								continue;
+							double v = floats!=null?floats[i]:ip.getPixelValue(x,y);
+							if (v>=minThreshold && v<=maxThreshold) {
+								if (v<min) min = v;
+								if (v>max) max = v;
+								if (v>=histMin && v<=histMax) {
+									count++;
+									sum += v;
+									sum2 += v*v;
+									if (histogram) {
+										int index = (int)(scale*(v-histMin));
+										if (index>=nBins)
+											index = nBins-1;
+										hist[index]++;
+									}
+								}
+							}
+						}
+					}
+					IJ.showProgress(done.incrementAndGet(), n);
+				}
+				partial.count = count;
+				partial.sum = sum;
+				partial.sum2 = sum2;
+				partial.min = min;
+				partial.max = max;
+				total.add(partial);
+			}
+		});
+		return total;
+	}
+
 	void sum8BitHistograms(ImagePlus imp) {
 		Calibration cal = imp.getCalibration();
 		boolean limitToThreshold = (Analyzer.getMeasurements()&LIMIT)!=0;
@@ -164,18 +252,8 @@ public class StackStatistics extends ImageStatistics {
 			minThreshold = (int)ip.getMinThreshold();
 			maxThreshold = (int)ip.getMaxThreshold();
 		}
-		ImageStack stack = imp.getStack();
-		Roi roi = imp.getRoi();
-		longHistogram = new long[256];
-		int n = stack.getSize();
-		for (int slice=1; slice<=n; slice++) {
-			IJ.showProgress(slice, n);
-			ip = stack.getProcessor(slice);
-			if (roi!=null) ip.setRoi(roi);
-			int[] hist = ip.getHistogram();
-			for (int i=0; i<256; i++)
-				longHistogram[i] += hist[i];
-		}
+		setupRoi(imp);
+		longHistogram = sumHistograms(imp.getStack(), 256);
 		pw=1.0; ph=1.0;
 		getRawStatistics(longHistogram, minThreshold, maxThreshold);
 		getRawMinAndMax(longHistogram, minThreshold, maxThreshold);
@@ -245,19 +323,8 @@ public class StackStatistics extends ImageStatistics {
 			minThreshold = (int)ip.getMinThreshold();
 			maxThreshold = (int)ip.getMaxThreshold();
 		}
-		ImageStack stack = imp.getStack();
-		Roi roi = imp.getRoi();
-		long[] hist16 = new long[65536];
-		int n = stack.getSize();
-		for (int slice=1; slice<=n; slice++) {
-			IJ.showProgress(slice, n);
-			IJ.showStatus(slice+"/"+n);
-			ip = stack.getProcessor(slice);
-			if (roi!=null) ip.setRoi(roi);
-			int[] hist = ip.getHistogram();
-			for (int i=0; i<65536; i++)
-				hist16[i] += hist[i];
-		}
+		setupRoi(imp);
+		long[] hist16 = sumHistograms(imp.getStack(), 65536);
 		pw=1.0; ph=1.0;
 		getRaw16BitMinAndMax(hist16, minThreshold, maxThreshold);
 		get16BitStatistics(hist16, (int)min, (int)max);
@@ -337,4 +404,27 @@ public class StackStatistics extends ImageStatistics {
         return tmode;
     }
     
+	/** Count, sums, range and histogram of a group of slices. */
+	private static class Partial {
+		long count;
+		double sum, sum2;
+		double min = Double.MAX_VALUE;
+		double max = -Double.MAX_VALUE;
+		long[] histogram;
+
+		Partial(int nBins) {
+			histogram = new long[nBins];
+		}
+
+		synchronized void add(Partial partial) {
+			count += partial.count;
+			sum += partial.sum;
+			sum2 += partial.sum2;
+			if (partial.min<min) min = partial.min;
+			if (partial.max>max) max = partial.max;
+			for (int i=0; i<histogram.length; i++)
+				histogram[i] += partial.histogram[i];
+		}
+	}
+
 }
@@ -1,11 +1,22 @@
 package ij.util;
+import ij.Prefs;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
 
 public class ThreadUtil {
-	
+
+	private static ForkJoinPool pool;
+
+	/** A piece of work covering the indices from 'from' (inclusive)
+	 * to 'to' (exclusive), as handed out by parallelFor. */
+	public interface RangeTask {
+		public void run(int from, int to);
+	}
+
 	/** Start all given threads and wait on each of them until all are done.
 	 * From Stephan Preibisch's Multithreading.java class. See:
 	 * http://repo.or.cz/w/trakem2.git?a=blob;f=mpi/fruitfly/general/MultiThreading.java;hb=HEAD
-	 * @param threads 
+	 * @param threads
 	 */
 	public static void startAndJoin(Thread[] threads) {
 		for (int ithread = 0; ithread < threads.length; ++ithread) {
@@ -39,4 +50,168 @@ public class ThreadUtil {
 		return Runtime.getRuntime().availableProcessors();
 	}
 
+	/** Returns the process-wide work-stealing pool used by the filters.
+	 * The pool is created on first use; its daemon worker threads are
+	 * retired automatically when idle. */
+	public static synchronized ForkJoinPool getPool() {
+		if (pool==null) {
+			ForkJoinPool.ForkJoinWorkerThreadFactory factory = new ForkJoinPool.ForkJoinWorkerThreadFactory() {
+				public ForkJoinWorkerThread newThread(ForkJoinPool pool) {
+					ForkJoinWorkerThread thread = ForkJoinPool.defaultForkJoinWorkerThreadFactory.newThread(pool);
+					thread.setName("ImageJ-worker-"+thread.getPoolIndex());
+					thread.setDaemon(true);
+					return thread;
+				}
+			};
+			pool = new ForkJoinPool(getNbCpus(), factory, null, false);
+		}
+		return pool;
+	}
+
+	/** Returns true if the calling thread is a worker of the shared pool. */
+	public static boolean isPoolThread() {
+		Thread thread = Thread.currentThread();
+		return thread instanceof ForkJoinWorkerThread && ((ForkJoinWorkerThread)thread).getPool()==pool;
+	}
+
+	/** Runs 'task' over the index range from 'from' (inclusive) to 'to'
+	 * (exclusive), split into chunks of about (to-from)/(4*Prefs.getThreads())
+	 * indices. See parallelFor(int,int,int,RangeTask).
+	 */
+	public static void parallelFor(int from, int to, RangeTask task) {
+		int grain = (to-from)/(4*Prefs.getThreads());
+		parallelFor(from, to, grain, task);
+	}
+
+	/** Runs 'task' over the index range from 'from' (inclusive) to 'to'
+	 * (exclusive), using up to Prefs.getThreads() threads of the shared pool.
+	 * The range is handed out dynamically in chunks of 'grain' indices, so
+	 * threads that finish early take over work of the slower ones. The calling
+	 * thread processes chunks as well and returns when all chunks are done.
+	 * If the calling thread is interrupted (e.g. when the parameters of a
+	 * preview change), no further chunks are started, the threads still
+	 * working on a chunk are interrupted, and the interrupted status of
+	 * the calling thread is kept. The first exception thrown by a chunk
+	 * is rethrown in the calling thread.
+	 */
+	public static void parallelFor(int from, int to, int grain, RangeTask task) {
+		if (to<=from) return;
+		if (grain<1) grain = 1;
+		int nChunks = (to-from+grain-1)/grain;
+		int nThreads = Math.min(Prefs.getThreads(), nChunks);
+		if (nThreads<=1) {
+			task.run(from, to);
+			return;
+		}
+		Loop loop = new Loop(from, to, grain, task, Thread.currentThread());
+		ForkJoinPool pool = getPool();
+		for (int i=1; i<nThreads; i++)
+			pool.execute(loop);
+		loop.runChunks();
+		loop.awaitCompletion();
+		if (loop.error!=null) {
+			if (loop.error instanceof RuntimeException)
+				throw (RuntimeException)loop.error;
+			if (loop.error instanceof Error)
+				throw (Error)loop.error;
+			throw new RuntimeException(loop.error);
+		}
+	}
+
+	/** The state shared by all threads working on one parallelFor call. */
+	private static class Loop implements Runnable, ForkJoinPool.ManagedBlocker {
+		final int to, grain;
+		final RangeTask task;
+		final Thread caller;
+		final AtomicInteger next;
+		private int active;				// number of threads currently inside task.run
+		private final java.util.HashSet<Thread> workers = new java.util.HashSet<Thread>();
+		volatile boolean cancelled;
+		volatile Throwable error;
+
+		Loop(int from, int to, int grain, RangeTask task, Thread caller) {
+			this.to = to;
+			this.grain = grain;
+			this.task = task;
+			this.caller = caller;
+			next = new AtomicInteger(from);
+		}
+
+		/** Entry point of the helper tasks in the pool */
+		public void run() {
+			runChunks();
+		}
+
+		void runChunks() {
+			Thread thread = Thread.currentThread();
+			boolean isCaller = thread==caller;
+			while (!cancelled) {
+				if (caller.isInterrupted()) {
+					cancelled = true;
+					break;
+				}
+				synchronized(this) {
+					if (cancelled) break;
+					active++;
+					if (!isCaller) workers.add(thread);
+				}
+				int start = next.getAndAdd(grain);
+				try {
+					if (start<to)
+						task.run(start, Math.min(start+grain, to));
+				} catch (Throwable e) {
+					if (error==null) error = e;
+					cancelled = true;
+				} finally {
+					synchronized(this) {
+						active--;
+						if (!isCaller) {
+							workers.remove(thread);
+							Thread.interrupted();	// a cancelled chunk must not leave the worker interrupted
+						}
+						notifyAll();
+					}
+				}
+				if (start>=to) break;
+			}
+		}
+
+		/** Waits until no thread works on a chunk any more. Chunks that have
+		 *  not been started yet are not waited for; helper tasks that start
+		 *  later find no more work. */
+		void awaitCompletion() {
+			boolean interrupted = false;
+			while (true) {
+				try {
+					if (isPoolThread())
+						ForkJoinPool.managedBlock(this);
+					else
+						block();
+					break;
+				} catch (InterruptedException e) {
+					interrupted = true;
+					cancel();
+				}
+			}
+			if (interrupted)
+				caller.interrupt();
+		}
+
+		synchronized void cancel() {
+			cancelled = true;
+			for (Thread thread : workers)
+				thread.interrupt();
+		}
+
+		public synchronized boolean block() throws InterruptedException {
+			while (!isReleasable())
+				wait();
+			return true;
+		}
+
+		public synchronized boolean isReleasable() {
+			return active==0 && (cancelled || next.get()>=to);
+		}
+	}
+
 }